@@ -0,0 +1,143 @@
+package jane.bench;
+
+import java.util.concurrent.TimeUnit;
+import jane.bean.AllBeans;
+import jane.bean.TestBean;
+import jane.bean.TestType;
+import jane.core.BeanCodec;
+import jane.core.MarshalException;
+import jane.core.NetManager;
+import jane.core.Octets;
+import jane.core.OctetsStream;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.filterchain.IoFilter.NextFilter;
+import org.apache.mina.core.write.DefaultWriteRequest;
+import org.apache.mina.core.write.WriteRequest;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** 生成的bean(TestType)和BeanCodec的编解码 */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeanBench {
+	/** 只把过滤器的输出交给Blackhole的NextFilter */
+	private static final class SinkFilter implements NextFilter {
+		Blackhole bh;
+
+		@Override
+		public void sessionCreated() {
+		}
+
+		@Override
+		public void sessionOpened() {
+		}
+
+		@Override
+		public void messageReceived(Object message) {
+			bh.consume(message);
+		}
+
+		@Override
+		public void filterWrite(WriteRequest writeRequest) {
+			bh.consume(writeRequest);
+		}
+
+		@Override
+		public void filterClose() {
+		}
+
+		@Override
+		public void inputClosed() {
+		}
+
+		@Override
+		public void sessionClosed() {
+		}
+
+		@Override
+		public void exceptionCaught(Throwable cause) {
+		}
+	}
+
+	private final TestType _bean = new TestType();
+	private final OctetsStream _os = new OctetsStream(256);
+	private OctetsStream _data;
+	private byte[] _protocol;
+	private final SinkFilter _sink = new SinkFilter();
+	private BeanCodec _codec;
+
+	@Setup
+	public void setup() {
+		TestType b = _bean;
+		b.setV1(true);
+		b.setV2((byte)2);
+		b.setV3((short)300);
+		b.setV4(-40000);
+		b.setV5(5_000_000_000L);
+		b.setV6(6.6f);
+		b.setV7(7.7);
+		b.setV8(Octets.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+		b.setV9("jane.bench");
+		for (int i = 0; i < 8; ++i) {
+			b.getV12().add(i * 1000);
+			b.getV13().add((long)i << 40);
+			b.getV16().put((long)i, "v" + i);
+		}
+		TestBean tb = b.getV19();
+		tb.setValue1(12345);
+		tb.setValue2(1234567890123L);
+
+		_data = new OctetsStream();
+		b.marshal(_data);
+
+		NetManager mgr = new NetManager();
+		mgr.setHandlers(AllBeans.getTestServerHandlers());
+		_codec = new BeanCodec(mgr);
+		Octets os = new Octets();
+		b.marshalProtocol(os);
+		OctetsStream head = new OctetsStream();
+		head.marshalUInt(b.type()).marshal(0).marshalUInt(os.size()).append(os);
+		_protocol = head.getBytes();
+	}
+
+	@Benchmark
+	public int marshal() {
+		OctetsStream os = _os;
+		os.clear();
+		return _bean.marshal(os).size();
+	}
+
+	@Benchmark
+	public TestType unmarshal() throws MarshalException {
+		OctetsStream os = _data;
+		os.setPosition(0);
+		TestType b = new TestType();
+		b.unmarshal(os);
+		return b;
+	}
+
+	@Benchmark
+	public void codecEncode(Blackhole bh) throws Exception {
+		_sink.bh = bh;
+		_codec.filterWrite(_sink, null, new DefaultWriteRequest(_bean, null));
+	}
+
+	@Benchmark
+	public void codecDecode(Blackhole bh) throws Exception {
+		_sink.bh = bh;
+		_codec.messageReceived(_sink, null, IoBuffer.wrap(_protocol));
+	}
+}
@@ -0,0 +1,177 @@
+package jane.bench;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * 比较两次JMH基准测试的JSON结果(-rf json)
+ * <p>
+ * 用法: BenchCompare &lt;baseline.json&gt; &lt;result.json&gt; [threshold_percent=5]<br>
+ * 按"基准方法+参数"对应比较得分,吞吐量模式越高越好,其它模式越低越好. 有超过阈值的性能退化时返回码为1
+ */
+public final class BenchCompare {
+	private final String _s;
+	private int _p;
+
+	private BenchCompare(String s) {
+		_s = s;
+	}
+
+	private void skipSpace() {
+		while (_p < _s.length() && Character.isWhitespace(_s.charAt(_p)))
+			++_p;
+	}
+
+	private Object parse() {
+		skipSpace();
+		char c = _s.charAt(_p);
+		switch (c) {
+		case '{': {
+			Map<String, Object> map = new LinkedHashMap<>();
+			++_p;
+			for (; ; ) {
+				skipSpace();
+				if (_s.charAt(_p) == '}') {
+					++_p;
+					return map;
+				}
+				String k = (String)parse();
+				skipSpace();
+				++_p; // ':'
+				map.put(k, parse());
+				skipSpace();
+				if (_s.charAt(_p) == ',')
+					++_p;
+			}
+		}
+		case '[': {
+			List<Object> list = new ArrayList<>();
+			++_p;
+			for (; ; ) {
+				skipSpace();
+				if (_s.charAt(_p) == ']') {
+					++_p;
+					return list;
+				}
+				list.add(parse());
+				skipSpace();
+				if (_s.charAt(_p) == ',')
+					++_p;
+			}
+		}
+		case '"': {
+			StringBuilder sb = new StringBuilder();
+			for (++_p; (c = _s.charAt(_p++)) != '"'; ) {
+				if (c == '\\') {
+					c = _s.charAt(_p++);
+					if (c == 'u') {
+						c = (char)Integer.parseInt(_s.substring(_p, _p + 4), 16);
+						_p += 4;
+					} else if (c == 'n')
+						c = '\n';
+					else if (c == 't')
+						c = '\t';
+					else if (c == 'r')
+						c = '\r';
+				}
+				sb.append(c);
+			}
+			return sb.toString();
+		}
+		default: {
+			int b = _p;
+			while (_p < _s.length() && ",}] \t\r\n".indexOf(_s.charAt(_p)) < 0)
+				++_p;
+			String v = _s.substring(b, _p);
+			if (v.equals("true") || v.equals("false"))
+				return Boolean.valueOf(v);
+			if (v.equals("null"))
+				return null;
+			try {
+				return Double.valueOf(v);
+			} catch (NumberFormatException e) {
+				return v; // "NaN"等
+			}
+		}
+		}
+	}
+
+	private static final class Score {
+		String mode;
+		double score;
+		double error;
+		String unit;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static TreeMap<String, Score> load(String filename) throws IOException {
+		String s = new String(Files.readAllBytes(Paths.get(filename)), StandardCharsets.UTF_8);
+		TreeMap<String, Score> scores = new TreeMap<>();
+		for (Object o : (List<Object>)new BenchCompare(s).parse()) {
+			Map<String, Object> m = (Map<String, Object>)o;
+			StringBuilder name = new StringBuilder((String)m.get("benchmark"));
+			Object params = m.get("params");
+			if (params instanceof Map) {
+				char c = '(';
+				for (Entry<String, Object> e : ((Map<String, Object>)params).entrySet()) {
+					name.append(c).append(e.getKey()).append('=').append(e.getValue());
+					c = ',';
+				}
+				name.append(')');
+			}
+			Map<String, Object> pm = (Map<String, Object>)m.get("primaryMetric");
+			Score score = new Score();
+			score.mode = String.valueOf(m.get("mode"));
+			score.score = toDouble(pm.get("score"));
+			score.error = toDouble(pm.get("scoreError"));
+			score.unit = String.valueOf(pm.get("scoreUnit"));
+			scores.put(name.toString(), score);
+		}
+		return scores;
+	}
+
+	private static double toDouble(Object o) {
+		return o instanceof Double ? (Double)o : Double.NaN;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 2) {
+			System.err.println("USAGE: java -cp ... jane.bench.BenchCompare <baseline.json> <result.json> [threshold_percent=5]");
+			System.exit(2);
+			return;
+		}
+		double threshold = (args.length > 2 ? Double.parseDouble(args[2]) : 5);
+		TreeMap<String, Score> base = load(args[0]);
+		TreeMap<String, Score> cur = load(args[1]);
+		int regressions = 0;
+		for (Entry<String, Score> e : cur.entrySet()) {
+			Score c = e.getValue();
+			Score b = base.get(e.getKey());
+			if (b == null || !b.mode.equals(c.mode) || !b.unit.equals(c.unit)) {
+				System.out.format("%-70s %14s %14.3f %-10s new%n", e.getKey(), "-", c.score, c.unit);
+				continue;
+			}
+			double delta = (c.score - b.score) * 100 / b.score;
+			double worse = ("thrpt".equals(c.mode) ? -delta : delta); // >0表示退化
+			boolean regress = worse > threshold && Math.abs(c.score - b.score) > b.error + c.error;
+			if (regress)
+				++regressions;
+			System.out.format("%-70s %14.3f %14.3f %-10s %+7.2f%%%s%n", e.getKey(), b.score, c.score, c.unit, delta, regress ? " REGRESSION" : "");
+		}
+		for (String name : base.keySet()) {
+			if (!cur.containsKey(name))
+				System.out.format("%-70s missing%n", name);
+		}
+		System.out.format("%d regression(s) over %.1f%%%n", regressions, threshold);
+		if (regressions > 0)
+			System.exit(1);
+	}
+}
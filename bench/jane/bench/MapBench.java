@@ -0,0 +1,87 @@
+package jane.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import jane.core.map.ConcurrentLRUMap;
+import jane.core.map.LongConcurrentHashMap;
+import jane.core.map.LongConcurrentLRUMap;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * LongConcurrentHashMap和LRU容器的并发读写
+ * <p>
+ * key在[0,keyCount)中均匀随机,LRU容器的容量是keyCount的一半,用于覆盖淘汰的路径
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class MapBench {
+	@Param({"65536"})
+	public int keyCount;
+
+	private LongConcurrentHashMap<Object> _longMap;
+	private LongConcurrentLRUMap<Object> _longLruMap;
+	private ConcurrentLRUMap<Long, Object> _lruMap;
+	private final Object _value = new Object();
+
+	@Setup
+	public void setup() {
+		_longMap = new LongConcurrentHashMap<>(keyCount);
+		_longLruMap = new LongConcurrentLRUMap<>(keyCount / 2, 0.5f, "bench");
+		_lruMap = new ConcurrentLRUMap<>(keyCount / 2, 0.5f, "bench");
+		for (long i = 0; i < keyCount; ++i) {
+			_longMap.put(i, _value);
+			_longLruMap.put(i, _value);
+			_lruMap.put(i, _value);
+		}
+	}
+
+	private long randomKey() {
+		return ThreadLocalRandom.current().nextInt(keyCount);
+	}
+
+	@Benchmark
+	public Object longMapGet() {
+		return _longMap.get(randomKey());
+	}
+
+	@Benchmark
+	public Object longMapPut() {
+		return _longMap.put(randomKey(), _value);
+	}
+
+	@Benchmark
+	public Object longLruMapGet() {
+		return _longLruMap.get(randomKey());
+	}
+
+	@Benchmark
+	public Object longLruMapPut() {
+		return _longLruMap.put(randomKey(), _value);
+	}
+
+	@Benchmark
+	public Object lruMapGet() {
+		return _lruMap.get(randomKey());
+	}
+
+	@Benchmark
+	public Object lruMapPut() {
+		return _lruMap.put(randomKey(), _value);
+	}
+}
@@ -0,0 +1,90 @@
+package jane.bench;
+
+import java.util.concurrent.TimeUnit;
+import jane.core.MarshalException;
+import jane.core.OctetsStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Octets/OctetsStream的变长整数序列化和反序列化 */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OctetsBench {
+	private static final int COUNT = 1024;
+
+	@Param({"1", "3", "5", "9"})
+	public int bytes; // 每个值序列化后的近似字节数
+
+	private final int[] _ints = new int[COUNT];
+	private final long[] _longs = new long[COUNT];
+	private final OctetsStream _os = new OctetsStream(COUNT * 10);
+	private final OctetsStream _osInt = new OctetsStream(COUNT * 5);
+	private final OctetsStream _osLong = new OctetsStream(COUNT * 10);
+
+	@Setup
+	public void setup() {
+		long base = (bytes <= 1 ? 0x3fL : (1L << (bytes * 7 - 2)) - 1);
+		for (int i = 0; i < COUNT; ++i) {
+			_longs[i] = ((i & 1) == 0 ? base - i : -base + i);
+			_ints[i] = (int)Math.max(Math.min(_longs[i], Integer.MAX_VALUE), Integer.MIN_VALUE);
+			_osInt.marshal(_ints[i]);
+			_osLong.marshal(_longs[i]);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public int marshalInt() {
+		OctetsStream os = _os;
+		os.clear();
+		for (int v : _ints)
+			os.marshal(v);
+		return os.size();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public int marshalLong() {
+		OctetsStream os = _os;
+		os.clear();
+		for (long v : _longs)
+			os.marshal(v);
+		return os.size();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public long unmarshalInt() throws MarshalException {
+		OctetsStream os = _osInt;
+		os.setPosition(0);
+		long r = 0;
+		for (int i = 0; i < COUNT; ++i)
+			r += os.unmarshalInt();
+		return r;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(COUNT)
+	public long unmarshalLong() throws MarshalException {
+		OctetsStream os = _osLong;
+		os.setPosition(0);
+		long r = 0;
+		for (int i = 0; i < COUNT; ++i)
+			r += os.unmarshalLong();
+		return r;
+	}
+}
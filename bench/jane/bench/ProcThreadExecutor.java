@@ -0,0 +1,35 @@
+package jane.bench;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jane.core.DBManager;
+import jane.core.ProcThread;
+
+/**
+ * JMH的自定义执行器,使基准测试的工作线程都是ProcThread,从而可以直接调用Procedure.execute
+ * <p>
+ * 用法: -Djmh.executor=CUSTOM -Djmh.executor.class=jane.bench.ProcThreadExecutor
+ */
+public final class ProcThreadExecutor extends ThreadPoolExecutor {
+	public ProcThreadExecutor(int maxThreads, String prefix) {
+		super(maxThreads, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), new ThreadFactoryImpl(prefix));
+	}
+
+	private static final class ThreadFactoryImpl implements java.util.concurrent.ThreadFactory {
+		private final String _prefix;
+		private final AtomicInteger _idx = new AtomicInteger();
+
+		ThreadFactoryImpl(String prefix) {
+			_prefix = prefix;
+		}
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new ProcThread(DBManager.instance(), _prefix + '-' + _idx.incrementAndGet(), r);
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
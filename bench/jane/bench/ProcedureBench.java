@@ -0,0 +1,127 @@
+package jane.bench;
+
+import java.util.concurrent.TimeUnit;
+import jane.bean.TestBean;
+import jane.core.DBManager;
+import jane.core.Procedure;
+import jane.core.TableLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 事务的加锁(1~6个锁和appendLock的重排序)及SContext的提交
+ * <p>
+ * 工作线程必须是ProcThread,所以每个fork都使用{@link ProcThreadExecutor}. SContext的提交使用内存表,不依赖存储引擎
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djmh.executor=CUSTOM", "-Djmh.executor.class=jane.bench.ProcThreadExecutor"})
+public class ProcedureBench {
+	private static final int MAX_LOCK = 6;
+	private static TableLong<TestBean, TestBean.Safe> _table;
+
+	@Param({"1", "2", "3", "4", "5", "6"})
+	public int lockCount;
+
+	private final int[] _lockIds = new int[MAX_LOCK];
+	private final int[] _lockIdsTmp = new int[MAX_LOCK];
+	private final long[] _keys = new long[MAX_LOCK];
+
+	private final Procedure _lockProc = new Procedure() {
+		@Override
+		protected void onProcess() throws Exception {
+			int[] ids = _lockIds;
+			switch (lockCount) {
+			//@formatter:off
+			case 1: lock(ids[0]); break;
+			case 2: lock(ids[0], ids[1]); break;
+			case 3: lock(ids[0], ids[1], ids[2]); break;
+			case 4: lock(ids[0], ids[1], ids[2], ids[3]); break;
+			case 5: lock(ids[0], ids[1], ids[2], ids[3], ids[4]); break;
+			default: lock(ids[0], ids[1], ids[2], ids[3], ids[4], ids[5]); break;
+			//@formatter:on
+			}
+		}
+	};
+
+	private final Procedure _lockArrayProc = new Procedure() {
+		@Override
+		protected void onProcess() throws Exception {
+			System.arraycopy(_lockIds, 0, _lockIdsTmp, 0, lockCount);
+			lock(_lockIdsTmp, lockCount);
+		}
+	};
+
+	private final Procedure _appendLockProc = new Procedure() {
+		@Override
+		protected void onProcess() throws Exception {
+			int[] ids = _lockIds;
+			for (int i = lockCount - 1; i >= 0; --i) // 倒序追加,每次都需要插入到已加锁的最前面
+				appendLock(ids[i]);
+		}
+	};
+
+	private final Procedure _commitProc = new Procedure() {
+		@Override
+		protected void onProcess() throws Exception {
+			TableLong<TestBean, TestBean.Safe> t = _table;
+			long[] keys = _keys;
+			int n = lockCount;
+			for (int i = 0; i < n; ++i)
+				_lockIdsTmp[i] = t.lockId(keys[i]);
+			lock(_lockIdsTmp, n);
+			for (int i = 0; i < n; ++i) {
+				TestBean.Safe s = t.get(keys[i]);
+				if (s != null)
+					s.setValue2(s.getValue2() + 1);
+				else
+					t.put(keys[i], new TestBean());
+			}
+		}
+	};
+
+	@Setup
+	public void setup() {
+		synchronized (ProcedureBench.class) {
+			if (_table == null)
+				_table = DBManager.instance().openTable(-1, "bench", "bench", 65536, TestBean.BEAN_STUB);
+		}
+		long base = Thread.currentThread().getId() * 1000;
+		for (int i = 0; i < MAX_LOCK; ++i) {
+			_keys[i] = base + i * 7;
+			_lockIds[i] = _table.lockId(_keys[i]);
+		}
+	}
+
+	@Benchmark
+	public boolean lock() {
+		return _lockProc.execute();
+	}
+
+	@Benchmark
+	public boolean lockArray() {
+		return _lockArrayProc.execute();
+	}
+
+	@Benchmark
+	public boolean appendLock() {
+		return _appendLockProc.execute();
+	}
+
+	@Benchmark
+	public boolean commit() {
+		return _commitProc.execute();
+	}
+}
@@ -0,0 +1,76 @@
+package jane.bench;
+
+import java.util.concurrent.TimeUnit;
+import jane.core.FastRWLock;
+import jane.core.StripedRWLock;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * 事务提交锁的读锁+读解锁: FastRWLock(单个计数) vs StripedRWLock(分段计数)
+ * <p>
+ * 每个事务都会加一次提交读锁,所以主要测没有写锁时的读路径在1~64线程下的扩展性.
+ * 另有3个读线程和1个周期加写锁(模拟提交)的线程同时运行的分组测试,观察写锁对读路径的影响和写锁本身的耗时
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RWLockBench {
+	private static final long WRITE_INTERVAL_TOKENS = 10_000; // 写锁之间的空转量(Blackhole.consumeCPU的参数)
+
+	private final FastRWLock _fastLock = new FastRWLock();
+	private final StripedRWLock _stripedLock = new StripedRWLock();
+
+	private void fast() {
+		FastRWLock lock = _fastLock;
+		lock.readLock();
+		lock.readUnlock();
+	}
+
+	private void striped() {
+		StripedRWLock lock = _stripedLock;
+		lock.readLock();
+		lock.readUnlock();
+	}
+
+	private static void write(FastRWLock lock) {
+		lock.writeLock();
+		lock.writeUnlock();
+		Blackhole.consumeCPU(WRITE_INTERVAL_TOKENS);
+	}
+
+	private static void write(StripedRWLock lock) {
+		lock.writeLock();
+		lock.writeUnlock();
+		Blackhole.consumeCPU(WRITE_INTERVAL_TOKENS);
+	}
+
+	//@formatter:off
+	@Benchmark @Threads(1) public void fast_t1() { fast(); }
+	@Benchmark @Threads(4) public void fast_t4() { fast(); }
+	@Benchmark @Threads(16) public void fast_t16() { fast(); }
+	@Benchmark @Threads(64) public void fast_t64() { fast(); }
+	@Benchmark @Threads(1) public void striped_t1() { striped(); }
+	@Benchmark @Threads(4) public void striped_t4() { striped(); }
+	@Benchmark @Threads(16) public void striped_t16() { striped(); }
+	@Benchmark @Threads(64) public void striped_t64() { striped(); }
+	@Benchmark @Group("fastRW") @GroupThreads(3) public void fastRW_read() { fast(); }
+	@Benchmark @Group("fastRW") @GroupThreads(1) public void fastRW_write() { write(_fastLock); }
+	@Benchmark @Group("stripedRW") @GroupThreads(3) public void stripedRW_read() { striped(); }
+	@Benchmark @Group("stripedRW") @GroupThreads(1) public void stripedRW_write() { write(_stripedLock); }
+	//@formatter:on
+}
@@ -0,0 +1,103 @@
+package jane.bench;
+
+import java.util.concurrent.TimeUnit;
+import jane.bean.TestBean;
+import jane.core.DBManager;
+import jane.core.Procedure;
+import jane.core.TableLong;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 事务中访问大量记录时SContext的记录登记,查找和回收
+ * <p>
+ * 全部记录的key都映射到同一个lockId,所以只加一个锁,主要测量SContext本身. 每个记录在事务中获取两次,第二次命中已登记的记录<br>
+ * 建议加上"-prof gc"运行,观察每个事务的分配字节数(gc.alloc.rate.norm)随记录数的变化
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Djmh.executor=CUSTOM", "-Djmh.executor.class=jane.bench.ProcThreadExecutor"})
+public class SContextBench {
+	private static TableLong<TestBean, TestBean.Safe> _table;
+
+	@Param({"4", "32", "256"})
+	public int recordCount;
+
+	private long[] _keys;
+
+	private final Procedure _readProc = new Procedure() {
+		@Override
+		protected void onProcess() throws Exception {
+			TableLong<TestBean, TestBean.Safe> t = _table;
+			long[] keys = _keys;
+			lock(t.lockId(keys[0]));
+			int s = 0;
+			for (int r = 0; r < 2; ++r) {
+				for (int i = 0, n = recordCount; i < n; ++i)
+					s += t.get(keys[i]).getValue1();
+			}
+			if (s < 0)
+				throw new IllegalStateException();
+		}
+	};
+
+	private final Procedure _writeProc = new Procedure() {
+		@Override
+		protected void onProcess() throws Exception {
+			TableLong<TestBean, TestBean.Safe> t = _table;
+			long[] keys = _keys;
+			lock(t.lockId(keys[0]));
+			for (int r = 0; r < 2; ++r) {
+				for (int i = 0, n = recordCount; i < n; ++i) {
+					TestBean.Safe s = t.get(keys[i]);
+					s.setValue2(s.getValue2() + 1);
+				}
+			}
+		}
+	};
+
+	@Setup
+	public void setup() {
+		synchronized (SContextBench.class) {
+			if (_table == null)
+				_table = DBManager.instance().openTable(-1, "bench", "bench", 65536, TestBean.BEAN_STUB);
+		}
+		long base = Thread.currentThread().getId() * 1000;
+		long[] keys = new long[recordCount];
+		for (int i = 0; i < recordCount; ++i)
+			keys[i] = base ^ ((long)i << 32 | i); // 高低32位同时异或i,lockId不变
+		_keys = keys;
+		new Procedure() {
+			@Override
+			protected void onProcess() throws Exception {
+				lock(_table.lockId(keys[0]));
+				for (long k : keys) {
+					if (_table.get(k) == null)
+						_table.put(k, new TestBean());
+				}
+			}
+		}.execute();
+	}
+
+	@Benchmark
+	public boolean read() {
+		return _readProc.execute();
+	}
+
+	@Benchmark
+	public boolean write() {
+		return _writeProc.execute();
+	}
+}
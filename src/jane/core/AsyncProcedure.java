@@ -0,0 +1,154 @@
+package jane.core;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * 可异步等待的事务基类(抽象类)
+ * <p>
+ * 事务运行到等待点(await*)时,当前阶段会立即结束并提交,释放全部的锁和事务线程. 等待结束后,事务以续接阶段的形式重新提交运行<br>
+ * 有sid的事务在等待期间仍占据sid队列的队头,同sid后提交的事务等本事务全部完成后才运行,所以保持了sid的顺序,但等待过久会阻塞整个队列<br>
+ * 续接阶段运行前会重新加锁等待前已加的锁,并用锁版本号检查等待期间这些锁保护的记录是否被其它事务修改过,
+ * 如果有则等待前读取的数据已过期,会从onProcess重新开始整个事务(包括之前的等待)<br>
+ * 使用规则:
+ * <li>等待点之前不能有任何修改,否则抛出IllegalStateException. 修改只能在最后一个阶段进行
+ * <li>等待前获取的Safe对象在续接阶段中不能再使用,需要重新lockGet. 读取的普通数据可以通过局部变量传给续接阶段
+ * <li>等待前通过addOnCommit添加的回调会在当前阶段结束时运行
+ * <li>每个阶段和普通事务一样有重做和超时打断的处理,重做时只重新运行当前阶段
+ */
+public abstract class AsyncProcedure extends Procedure {
+	/** 等待结束后运行的续接阶段 */
+	public interface Continuation<T> {
+		void onResume(T result) throws Exception;
+	}
+
+	private Continuation<Object> _cont; // 当前阶段的续接. null表示当前是第一个阶段(onProcess)
+	private Object _result; // 传给当前续接的等待结果
+	private Throwable _error; // 等待的异常结果. 非null时续接阶段会直接抛出此异常
+	private int[] _lockIdxes; // 等待前已加的锁下标
+	private long[] _versions; // 等待前已加的锁版本号
+	private Continuation<Object> _nextCont; // 当前阶段结束后需要等待的续接
+	private CompletableFuture<?> _nextFuture; // 当前阶段结束后需要等待的future
+	private int _restartCount; // 因版本检查失败而重新开始的次数
+
+	/**
+	 * 异步等待future完成后续接运行
+	 * <p>
+	 * 只能在事务中调用,调用后当前阶段立即结束(此方法不会返回). future异常完成时,续接阶段会抛出此异常并走事务的异常处理
+	 */
+	@SuppressWarnings("unchecked")
+	protected final <T> void await(CompletableFuture<T> future, Continuation<? super T> cont) {
+		if (future == null || cont == null)
+			throw new NullPointerException();
+		if (hasDirty())
+			throw new IllegalStateException("invalid await after any dirty record");
+		_lockIdxes = getLockIndexes();
+		_versions = getLockVersions();
+		_nextCont = (Continuation<Object>)cont;
+		_nextFuture = future;
+		throw awaitException();
+	}
+
+	/**
+	 * 向某个连接发送请求,异步等待回复后续接运行
+	 * <p>
+	 * 回复超时或连接已经失效时,续接阶段的参数为null
+	 */
+	protected final <B extends Bean<B>> void awaitAnswer(NetManager mgr, IoSession session, Bean<?> bean, int timeoutSec,
+			Continuation<B> cont) {
+		if (hasDirty())
+			throw new IllegalStateException("invalid await after any dirty record");
+		CompletableFuture<B> future = mgr.askAsync(session, bean, timeoutSec);
+		await(future != null ? future : CompletableFuture.completedFuture(null), cont);
+	}
+
+	protected final <B extends Bean<B>> void awaitAnswer(NetManager mgr, IoSession session, Bean<?> bean, Continuation<B> cont) {
+		awaitAnswer(mgr, session, bean, Const.askDefaultTimeout, cont);
+	}
+
+	/** 异步等待一段时间(毫秒)后续接运行 */
+	protected final void awaitDelay(long delayMs, Continuation<Void> cont) {
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		NetManager.scheduleMs(delayMs, () -> future.complete(null));
+		await(future, cont);
+	}
+
+	@Override
+	boolean isResuming() {
+		return _cont != null;
+	}
+
+	@Override
+	void process() throws Exception {
+		Continuation<Object> cont = _cont;
+		if (cont == null) {
+			onProcess();
+			return;
+		}
+		if (!relock(_lockIdxes, _versions)) { // 等待前读取的数据已过期,只能从头开始
+			if (++_restartCount > Const.maxProceduerRedo)
+				throw new Exception("async procedure restart too many times=" + Const.maxProceduerRedo + ": " + toString());
+			Log.info("async procedure restart({}): {}", _restartCount, toString());
+			_cont = null;
+			_result = null;
+			_error = null;
+			onProcess();
+			return;
+		}
+		Throwable error = _error;
+		if (error != null) {
+			if (error instanceof Exception)
+				throw (Exception)error;
+			throw new Exception(error);
+		}
+		cont.onResume(_result);
+	}
+
+	/**
+	 * 当前阶段结束后如果需要等待,则安排等待结束后调用resume运行续接阶段
+	 * <p>
+	 * 有sid的事务由sid队列调用,使事务等待期间仍占据队头. 没有sid的事务在execute中直接调用
+	 *
+	 * @return 是否在等待
+	 */
+	boolean scheduleResume(Runnable resume) {
+		Continuation<Object> cont = _nextCont;
+		CompletableFuture<?> future = _nextFuture;
+		if (cont == null)
+			return false;
+		_nextCont = null;
+		_nextFuture = null;
+		future.whenComplete((res, e) -> {
+			_cont = cont;
+			_result = res;
+			_error = (e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+			try {
+				resume.run();
+			} catch (Throwable ex) {
+				Log.error(ex, "async procedure resume failed: {}", toString());
+			}
+		});
+		return true;
+	}
+
+	@Override
+	public boolean execute() {
+		DBManager dbm = ((ProcThread)Thread.currentThread()).dbm;
+		boolean r = super.execute();
+		if (_nextCont == null || !r) {
+			_cont = null;
+			_result = null;
+			_error = null;
+			_lockIdxes = null;
+			_versions = null;
+			_nextCont = null;
+			_nextFuture = null;
+			_restartCount = 0;
+			return r;
+		}
+		if (getSid() == null) // 有sid时由sid队列调用scheduleResume
+			scheduleResume(() -> dbm.resubmit(this));
+		return true;
+	}
+}
@@ -36,19 +36,41 @@ public class BeanCodec implements IoFilter {
 			if (serial == Bean.STORE_SERIAL)
 				serial = 0;
 			int reserveLen = Octets.marshalUIntLen(type) + Octets.marshalLen(serial) + 5;
-			Octets os = new Octets(reserveLen + bean.initSize());
-			os.resize(reserveLen);
-			int end = bean.marshalProtocol(os).size();
-			int len = end - reserveLen;
-			int pos = 5 - Octets.marshalUIntLen(len);
-			os.resize(pos);
-			os.marshalUInt(type).marshal(serial).marshalUInt(len);
-			IoBuffer buf = IoBuffer.wrap(os.array(), pos, end - pos);
+			IoBuffer buf;
+			if (Const.beanDirectEncode) {
+				OctetsDirect os = new OctetsDirect(reserveLen + bean.initSize());
+				try {
+					buf = os.detach(marshalProtocol(bean, type, serial, reserveLen, os));
+				} catch (Throwable e) {
+					os.reset();
+					throw e;
+				}
+			} else {
+				Octets os = new Octets(reserveLen + bean.initSize());
+				int pos = marshalProtocol(bean, type, serial, reserveLen, os);
+				buf = IoBuffer.wrap(os.array(), pos, os.size() - pos);
+			}
 			WriteFuture wf = writeRequest.writeRequestFuture();
 			next.filterWrite(wf == DefaultWriteRequest.UNUSED_FUTURE ? buf : new DefaultWriteRequest(buf, wf));
 		}
 	}
 
+	/**
+	 * 把bean的协议头和数据序列化到os中. 先预留reserveLen的空间序列化数据,再把协议头写到预留空间的末尾
+	 *
+	 * @return 协议在os中的起始位置. 结束位置是os.size()
+	 */
+	private static int marshalProtocol(Bean<?> bean, int type, int serial, int reserveLen, Octets os) {
+		os.resize(reserveLen);
+		int end = bean.marshalProtocol(os).size();
+		int len = end - reserveLen;
+		int pos = 5 - Octets.marshalUIntLen(len);
+		os.resize(pos);
+		os.marshalUInt(type).marshal(serial).marshalUInt(len);
+		os.resize(end);
+		return pos;
+	}
+
 	protected BeanHandler<?> checkTypeSize(@SuppressWarnings("unused") IoSession session) throws Exception {
 		BeanHandler<?> handler = _mgr.getHandler(_ptype);
 		int maxSize;
@@ -80,22 +102,31 @@ public class BeanCodec implements IoFilter {
 				return false;
 			handler = _mgr.getHandler(_ptype);
 		}
-		int serial = _pserial;
+		Bean<?> bean = decodeBean(handler, _ptype, _pserial, _psize, os);
+		_psize = -1;
+		next.messageReceived(bean);
+		return true;
+	}
+
+	/**
+	 * 从os的当前位置解码一个bean的内容(不含头部),解码后os的位置在此bean的末尾
+	 * <p>
+	 * 也用于mina以外的传输. 没有处理器时解码成RawBean
+	 */
+	public static Bean<?> decodeBean(BeanHandler<?> handler, int type, int serial, int size, OctetsStream os) throws Exception {
 		Bean<?> bean;
 		if (handler != null && (bean = handler.beanStub().create()) != null) {
 			int pos = os.position();
 			bean.unmarshalProtocol(os);
 			bean.serial(serial != Bean.STORE_SERIAL ? serial : 0);
 			int realSize = os.position() - pos;
-			if (realSize > _psize)
-				throw new DecodeException("bean realSize overflow: type=" + _ptype +
-						",serial=" + serial + ",size=" + _psize + ",realSize=" + realSize);
-			os.setPosition(pos + _psize);
+			if (realSize > size)
+				throw new DecodeException("bean realSize overflow: type=" + type +
+						",serial=" + serial + ",size=" + size + ",realSize=" + realSize);
+			os.setPosition(pos + size);
 		} else
-			bean = new RawBean(_ptype, serial, os.unmarshalRaw(_psize));
-		_psize = -1;
-		next.messageReceived(bean);
-		return true;
+			bean = new RawBean(type, serial, os.unmarshalRaw(size));
+		return bean;
 	}
 
 	@Override
@@ -140,19 +171,22 @@ public class BeanCodec implements IoFilter {
 			if (in.hasArray()) {
 				os = OctetsStream.wrap(in.array(), in.position(), n);
 				in.position(n);
-			} else {
+			} else { // 直接内存的数据复制到本连接的数据缓存中解码,避免每次分配临时数组
 				n = in.remaining();
-				byte[] buf = new byte[n];
-				in.get(buf, 0, n);
-				os = OctetsStream.wrap(buf);
+				os = _os;
+				os.resize(n);
+				os.setPosition(0);
+				in.get(os.array(), 0, n);
 			}
-			while (decodeProtocol(session, os, next))
+			while (decodeProtocol(session, os, next)) {
 				if (os.remain() <= 0)
-					return;
-			if (os.remain() <= 0)
-				return; // 正好只解出头部的情况
-			_os.replace(os.array(), os.position(), os.remain());
-			_os.setPosition(0);
+					break;
+			}
+			if (os.remain() > 0) { // in可能是网络线程共享的读缓冲区,剩余数据必须复制出来
+				_os.replace(os.array(), os.position(), os.remain());
+				_os.setPosition(0);
+			} else if (os == _os)
+				_os.clear(); // 正好解完或只解出头部的情况
 		} finally {
 			in.free();
 		}
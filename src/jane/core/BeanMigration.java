@@ -0,0 +1,201 @@
+package jane.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 数据库表记录value的版本迁移
+ * <p>
+ * 记录value序列化数据的首字节即版本号(原来固定为0),写入时使用当前版本. 读到旧版本的记录时,先反序列化成DynBean,
+ * 依次调用各版本的升级器转换到当前版本的字段布局,再转成当前的bean. 不需要停服重写整个表<br>
+ * 事务中已加锁的记录升级后会标记为已修改,在下次存库时写回当前版本. 其余的旧记录可由后台线程限速遍历升级<br>
+ * 每个表最多绑定一个实例,应在打开表后,访问表前调用表的setMigration绑定
+ */
+public final class BeanMigration<V extends Bean<V>> {
+	public static final int MAX_VERSION = 255; // 版本号只占记录value的首字节
+	private static final long WALK_LOG_PERIOD = 10_000; // 后台遍历输出进度日志的周期(毫秒)
+	private static final int WALK_SCAN_LIMIT = 1024; // 后台遍历每步最多遍历的记录数,之后检查限速和停止
+
+	/** 升级器. 把某个版本的bean字段转换成下一个版本的字段 */
+	public interface Upgrader {
+		/**
+		 * @param bean 旧版本的字段. 整数类型都是Long,浮点类型是Float或Double,字符串/二进制/容器/bean等都是Octets. 值为0或空的字段不存在
+		 * @return 下一个版本的字段. 可以直接修改并返回参数bean
+		 */
+		DynBean upgrade(DynBean bean) throws Exception;
+	}
+
+	/** 绑定表的后台遍历升级接口 */
+	interface Walker {
+		/**
+		 * 从上次的位置继续遍历一步,升级遍历到的旧版本记录
+		 *
+		 * @param batchSize 每个事务升级的记录数量上限
+		 * @param scanLimit 本步遍历的记录数量上限
+		 * @return 是否已遍历完整个表
+		 */
+		boolean walkStep(int batchSize, int scanLimit) throws Exception;
+	}
+
+	private final V _stubV;
+	private final int _version;
+	private final Upgrader[] _upgraders; // 下标是升级前的版本号
+	private final LongAdder _upgradeCount = new LongAdder(); // 读取时升级的次数统计
+	private volatile long _walkCount; // 后台已遍历的记录数. 只在后台遍历线程修改
+	private volatile long _walkUpgradeCount; // 后台遍历找到并提交升级的旧版本记录数. 只在后台遍历线程修改
+	private volatile boolean _walkDone; // 后台遍历是否已完成
+	private String _tableName;
+	private DBManager _dbm;
+	private Walker _walker; // 绑定表的后台遍历接口. null表示还没绑定表
+	private volatile Thread _walkThread;
+
+	/**
+	 * @param stubV   记录value的存根对象
+	 * @param version 当前的版本号. 范围:[0,255]
+	 */
+	public BeanMigration(V stubV, int version) {
+		if (version < 0 || version > MAX_VERSION)
+			throw new IllegalArgumentException("invalid version: " + version);
+		_stubV = stubV;
+		_version = version;
+		_upgraders = new Upgrader[version];
+	}
+
+	/**
+	 * 设置从某个版本升级到下一个版本的升级器
+	 * <p>
+	 * 没有设置的版本直接按下一版本的字段解析,适用于只增删字段的版本(删除字段的数据会被忽略)
+	 *
+	 * @param fromVersion 升级前的版本号. 范围:[0,当前版本)
+	 */
+	public BeanMigration<V> setUpgrader(int fromVersion, Upgrader upgrader) {
+		if (fromVersion < 0 || fromVersion >= _version)
+			throw new IllegalArgumentException("invalid fromVersion: " + fromVersion + " (version=" + _version + ')');
+		_upgraders[fromVersion] = upgrader;
+		return this;
+	}
+
+	/** 获取当前的版本号 */
+	public int getVersion() {
+		return _version;
+	}
+
+	/** 获取读取时升级旧版本记录的次数统计(包括后台遍历引起的读取) */
+	public long getUpgradeCount() {
+		return _upgradeCount.sum();
+	}
+
+	/** 获取后台已遍历的记录数 */
+	public long getWalkCount() {
+		return _walkCount;
+	}
+
+	/** 获取后台遍历找到并提交升级的旧版本记录数 */
+	public long getWalkUpgradeCount() {
+		return _walkUpgradeCount;
+	}
+
+	/** 后台遍历是否已完成 */
+	public boolean isWalkDone() {
+		return _walkDone;
+	}
+
+	synchronized void bind(DBManager dbm, String tableName, Walker walker) {
+		if (_walker != null)
+			throw new IllegalStateException("migration has been bound to table: " + _tableName);
+		_dbm = dbm;
+		_tableName = tableName;
+		_walker = walker;
+	}
+
+	void addWalkCount(int walkCount, int upgradeCount) {
+		_walkCount += walkCount;
+		_walkUpgradeCount += upgradeCount;
+	}
+
+	/**
+	 * 把旧版本的记录value数据升级成当前版本的bean
+	 *
+	 * @param format 记录value的版本号. 必须小于当前版本
+	 * @param os     记录value版本号之后的数据
+	 */
+	public V upgrade(int format, OctetsStream os) throws MarshalException {
+		DynBean b = new DynBean();
+		b.unmarshal(os);
+		for (int ver = format; ver < _version; ++ver) {
+			Upgrader upgrader = _upgraders[ver];
+			if (upgrader != null) {
+				try {
+					b = upgrader.upgrade(b);
+				} catch (Exception e) {
+					throw new IllegalStateException("upgrade exception: type=" + _stubV.typeName() + ",version=" + ver, e);
+				}
+			}
+		}
+		V v = _stubV.create();
+		v.unmarshal(OctetsStream.wrap(b.marshal(new Octets(b.initSize()))));
+		_upgradeCount.increment();
+		return v;
+	}
+
+	/**
+	 * 开始在后台低优先级线程中遍历绑定的表,升级全部旧版本的记录
+	 * <p>
+	 * 找到的旧记录在小事务中加锁读取,从而升级并标记为已修改,之后随正常的存库写回. 只遍历存储中的记录,周期输出进度日志<br>
+	 * 数据库启动并绑定表后才能调用
+	 *
+	 * @param maxPerSecond 每秒升级的记录数量上限
+	 */
+	public synchronized void startWalker(int maxPerSecond) {
+		if (_walker == null)
+			throw new IllegalStateException("migration has not been bound to any table");
+		if (_walkThread != null)
+			return;
+		Thread t = new ProcThread(_dbm, "MigrationWalker-" + _tableName, () -> runWalker(Math.max(maxPerSecond, 1)));
+		t.setDaemon(true);
+		t.setPriority(Thread.MIN_PRIORITY);
+		_walkThread = t;
+		t.start();
+	}
+
+	/** 停止后台遍历. 已提交的升级不受影响 */
+	public synchronized void stopWalker() {
+		Thread t = _walkThread;
+		if (t != null) {
+			_walkThread = null;
+			t.interrupt();
+		}
+	}
+
+	private void runWalker(int maxPerSecond) {
+		int batchSize = Math.min(Math.max(Const.maxLockPerProcedure, 1), maxPerSecond);
+		long beginTime = System.currentTimeMillis(), logTime = beginTime;
+		Log.info("MigrationWalker: begin: table={}, version={}, maxPerSecond={}", _tableName, _version, maxPerSecond);
+		try {
+			for (boolean done = false; !done && _walkThread == Thread.currentThread(); ) {
+				done = _walker.walkStep(batchSize, WALK_SCAN_LIMIT);
+				long now = System.currentTimeMillis();
+				long delay = beginTime + _walkUpgradeCount * 1000 / maxPerSecond - now; // 按平均速率限速
+				if (delay > 0)
+					Thread.sleep(delay);
+				if (now - logTime >= WALK_LOG_PERIOD) {
+					logTime = now;
+					Log.info("MigrationWalker: table={}, walked={}, upgraded={}", _tableName, _walkCount, _walkUpgradeCount);
+				}
+				if (done) {
+					_walkDone = true;
+					Log.info("MigrationWalker: end: table={}, walked={}, upgraded={}, time={}ms",
+							_tableName, _walkCount, _walkUpgradeCount, System.currentTimeMillis() - beginTime);
+				}
+			}
+		} catch (InterruptedException e) {
+			Log.info("MigrationWalker: stopped: table={}, walked={}, upgraded={}", _tableName, _walkCount, _walkUpgradeCount);
+		} catch (Throwable e) {
+			Log.error("MigrationWalker: exception: table=" + _tableName, e);
+		} finally {
+			synchronized (this) {
+				if (_walkThread == Thread.currentThread())
+					_walkThread = null;
+			}
+		}
+	}
+}
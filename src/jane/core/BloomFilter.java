@@ -0,0 +1,65 @@
+package jane.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 可并发添加的Bloom过滤器
+ * <p>
+ * 只能添加不能删除. 判定不存在的key一定不存在,判定存在的key有一定的误判率<br>
+ * 使用64位hash的高低32位做双重hash,计算出多个位的位置
+ */
+public final class BloomFilter {
+	private final AtomicLongArray _bits;
+	private final int _bitMask; // 总位数-1. 总位数是2的幂
+	private final int _hashCount; // 每个key设置的位数
+
+	/**
+	 * @param expectedCount 预计添加的key数量
+	 * @param bitsPerKey    每个key平均占用的位数. 越大误判率越低,10位约1%
+	 */
+	public BloomFilter(long expectedCount, int bitsPerKey) {
+		if (bitsPerKey < 1)
+			bitsPerKey = 1;
+		long bitCount = Math.max(expectedCount, 1) * bitsPerKey;
+		int n = (int)Math.min(Long.highestOneBit(Math.max(bitCount - 1, 63)) << 1, 1L << 30); // 最多128MB
+		_bits = new AtomicLongArray(n >>> 6);
+		_bitMask = n - 1;
+		_hashCount = Math.max(Math.min((int)Math.round(bitsPerKey * 0.693), 16), 1);
+	}
+
+	/** 把任意的key hash值(比如hashCode)扩散成64位hash */
+	public static long hash(long h) {
+		h *= 0x9e3779b97f4a7c15L;
+		return h ^ (h >>> 29);
+	}
+
+	public void add(long hash) {
+		AtomicLongArray bits = _bits;
+		int h1 = (int)hash, h2 = (int)(hash >>> 32) | 1;
+		for (int i = 0, n = _hashCount; i < n; ++i, h1 += h2) {
+			int p = h1 & _bitMask;
+			long b = 1L << p;
+			int idx = p >>> 6;
+			for (long w; ((w = bits.get(idx)) & b) == 0; ) {
+				if (bits.compareAndSet(idx, w, w | b))
+					break;
+			}
+		}
+	}
+
+	public boolean mightContain(long hash) {
+		AtomicLongArray bits = _bits;
+		int h1 = (int)hash, h2 = (int)(hash >>> 32) | 1;
+		for (int i = 0, n = _hashCount; i < n; ++i, h1 += h2) {
+			int p = h1 & _bitMask;
+			if ((bits.get(p >>> 6) & (1L << p)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/** 获取占用的总位数 */
+	public long getBitCount() {
+		return _bitMask + 1L;
+	}
+}
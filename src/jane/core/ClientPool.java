@@ -0,0 +1,381 @@
+package jane.core;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import jane.core.NetManager.AnswerHandler;
+import org.apache.mina.core.future.ConnectFuture;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * 客户端连接池
+ * <p>
+ * 对同一个远程地址建立多个连接,连接由NetManager的IO线程池按连接ID分配到不同的IO线程,避免单个连接的缓冲区和IO线程成为瓶颈<br>
+ * 发送和请求时按轮询或最少未回复请求数选择连接,优先选择未超过写队列高水位的连接<br>
+ * 定时检查各连接: 断开的连接按指数退避自动重连;设置了心跳请求时,心跳超时无回复的连接会被主动断开并重连<br>
+ * 连接的回调(onAddSession,onDelSession,onConnectFailed等)仍由NetManager处理,但onConnectFailed的返回值对连接池无效
+ */
+public final class ClientPool {
+	/** 选择连接的策略 */
+	public enum Balance {
+		ROUND_ROBIN, // 轮询
+		LEAST_OUTSTANDING, // 最少未回复请求数
+	}
+
+	private static final class Conn {
+		final AtomicInteger outstanding = new AtomicInteger(); // 未回复的请求数量. 重连时不清零,旧连接上的请求会在回复或超时后各自减回
+		volatile IoSession session; // 当前的连接. null表示未连接
+		volatile boolean connecting; // 是否正在连接中
+		volatile boolean pinging; // 是否有未回复的心跳请求
+		int failCount; // 连续连接失败的次数
+		long retryTime; // 下次允许重连的时间(毫秒)
+	}
+
+	private final NetManager _mgr;
+	private final InetSocketAddress _addr;
+	private final Conn[] _conns;
+	private final AtomicInteger _rrIndex = new AtomicInteger();
+	private volatile Balance _balance = Balance.LEAST_OUTSTANDING;
+	private int _checkIntervalMs = 1000; // 定时检查的间隔(毫秒)
+	private int _retryMinMs = 1000; // 重连的最小间隔(毫秒)
+	private int _retryMaxMs = 30_000; // 重连的最大间隔(毫秒)
+	private Supplier<Bean<?>> _heartbeat; // 心跳请求的构造. null表示不发心跳
+	private int _heartbeatTimeoutSec = 10; // 心跳请求的超时时间(秒)
+	private ScheduledFuture<?> _checkFuture;
+	private volatile boolean _running;
+
+	/**
+	 * @param mgr  所属的NetManager,用于建立连接和收发消息
+	 * @param addr 远程地址
+	 * @param size 连接数量
+	 */
+	public ClientPool(NetManager mgr, InetSocketAddress addr, int size) {
+		if (mgr == null || addr == null)
+			throw new NullPointerException();
+		if (size <= 0)
+			throw new IllegalArgumentException("size=" + size);
+		_mgr = mgr;
+		_addr = addr;
+		_conns = new Conn[size];
+		for (int i = 0; i < size; ++i)
+			_conns[i] = new Conn();
+	}
+
+	public NetManager getManager() {
+		return _mgr;
+	}
+
+	public InetSocketAddress getAddress() {
+		return _addr;
+	}
+
+	/** 获取连接池的连接数量(包括未连接的) */
+	public int size() {
+		return _conns.length;
+	}
+
+	/** 获取当前有效的连接数量 */
+	public int getConnectedCount() {
+		int n = 0;
+		for (Conn conn : _conns) {
+			IoSession session = conn.session;
+			if (session != null && !session.isClosing())
+				++n;
+		}
+		return n;
+	}
+
+	/** 获取全部连接的未回复请求总数 */
+	public int getOutstandingCount() {
+		int n = 0;
+		for (Conn conn : _conns)
+			n += conn.outstanding.get();
+		return n;
+	}
+
+	public Balance getBalance() {
+		return _balance;
+	}
+
+	public ClientPool setBalance(Balance balance) {
+		if (balance == null)
+			throw new NullPointerException();
+		_balance = balance;
+		return this;
+	}
+
+	/**
+	 * 设置定时检查和重连的间隔. 需要在start前设置
+	 *
+	 * @param checkIntervalMs 定时检查的间隔(毫秒)
+	 * @param retryMinMs      连接失败后重连的最小间隔(毫秒),连续失败时每次翻倍
+	 * @param retryMaxMs      连接失败后重连的最大间隔(毫秒)
+	 */
+	public ClientPool setCheckInterval(int checkIntervalMs, int retryMinMs, int retryMaxMs) {
+		if (checkIntervalMs <= 0 || retryMinMs < 0 || retryMaxMs < retryMinMs)
+			throw new IllegalArgumentException("checkIntervalMs=" + checkIntervalMs + ",retryMinMs=" + retryMinMs + ",retryMaxMs=" + retryMaxMs);
+		_checkIntervalMs = checkIntervalMs;
+		_retryMinMs = retryMinMs;
+		_retryMaxMs = retryMaxMs;
+		return this;
+	}
+
+	/**
+	 * 设置心跳请求. 需要在start前设置
+	 * <p>
+	 * 每次定时检查时对每个没有未回复心跳的连接发送一次心跳请求,超时无回复的连接会被断开并重连. 对方需要回复此请求
+	 *
+	 * @param heartbeat  心跳请求的构造. null表示不发心跳
+	 * @param timeoutSec 心跳请求的超时时间(秒)
+	 */
+	public ClientPool setHeartbeat(Supplier<Bean<?>> heartbeat, int timeoutSec) {
+		_heartbeat = heartbeat;
+		_heartbeatTimeoutSec = Math.max(timeoutSec, 1);
+		return this;
+	}
+
+	/** 启动连接池,开始建立全部连接. 此操作是异步的 */
+	public synchronized void start() {
+		if (_running)
+			return;
+		_running = true;
+		Log.info("{}: client pool start: addr={},size={}", _mgr.getName(), _addr, _conns.length);
+		for (Conn conn : _conns)
+			connect(conn);
+		_checkFuture = NetManager.scheduleWithFixedDelayMs(_checkIntervalMs, _checkIntervalMs, this::check);
+	}
+
+	/** 停止连接池,断开全部连接且不再重连 */
+	public synchronized void stop() {
+		if (!_running)
+			return;
+		_running = false;
+		Log.info("{}: client pool stop: addr={}", _mgr.getName(), _addr);
+		if (_checkFuture != null) {
+			_checkFuture.cancel(false);
+			_checkFuture = null;
+		}
+		for (Conn conn : _conns) {
+			IoSession session = conn.session;
+			conn.session = null;
+			if (session != null)
+				session.closeNow();
+		}
+	}
+
+	public boolean isRunning() {
+		return _running;
+	}
+
+	private void connect(Conn conn) {
+		if (!_running || conn.connecting)
+			return;
+		conn.connecting = true;
+		try {
+			_mgr.getConnector().connect(_addr).addListener((ConnectFuture future) -> onConnected(conn, future));
+		} catch (Throwable e) {
+			conn.connecting = false;
+			Log.error(e, "{}: client pool connect exception: addr={}", _mgr.getName(), _addr);
+		}
+	}
+
+	private void onConnected(Conn conn, ConnectFuture future) {
+		try {
+			if (!future.isConnected()) {
+				int failCount;
+				synchronized (conn) {
+					failCount = ++conn.failCount;
+					long delayMs = Math.min((long)_retryMinMs << Math.min(failCount - 1, 20), _retryMaxMs);
+					conn.retryTime = System.currentTimeMillis() + delayMs;
+				}
+				Log.warn("{}: client pool connect failed: addr={},count={}", _mgr.getName(), _addr, failCount);
+				try {
+					_mgr.onConnectFailed(future, _addr, failCount, this);
+				} catch (Throwable e) {
+					Log.error("ClientPool.onConnected: onConnectFailed exception:", e);
+				}
+				return;
+			}
+			IoSession session = future.getSession();
+			synchronized (conn) {
+				conn.failCount = 0;
+				conn.retryTime = 0;
+			}
+			conn.pinging = false;
+			if (!_running) {
+				session.closeNow();
+				return;
+			}
+			conn.session = session;
+			session.getCloseFuture().addListener(f -> onClosed(conn, session));
+		} finally {
+			conn.connecting = false;
+		}
+	}
+
+	private void onClosed(Conn conn, IoSession session) {
+		if (conn.session != session)
+			return;
+		conn.session = null;
+		if (_running) { // 可能在IO线程中回调,重连放到定时器线程中进行
+			long delayMs;
+			synchronized (conn) {
+				delayMs = Math.max(conn.retryTime - System.currentTimeMillis(), 0);
+			}
+			NetManager.scheduleMs(delayMs, () -> {
+				if (conn.session == null)
+					connect(conn);
+			});
+		}
+	}
+
+	/** 定时检查: 重连断开的连接,发送心跳 */
+	private void check() {
+		if (!_running)
+			return;
+		long now = System.currentTimeMillis();
+		Supplier<Bean<?>> heartbeat = _heartbeat;
+		for (Conn conn : _conns) {
+			IoSession session = conn.session;
+			if (session == null || session.isClosing()) {
+				long retryTime;
+				synchronized (conn) {
+					retryTime = conn.retryTime;
+				}
+				if (now >= retryTime) {
+					conn.session = null;
+					connect(conn);
+				}
+			} else if (heartbeat != null && !conn.pinging) {
+				Bean<?> bean = heartbeat.get();
+				if (bean == null)
+					continue;
+				conn.pinging = true;
+				CompletableFuture<?> cf = _mgr.askAsync(session, bean, _heartbeatTimeoutSec);
+				if (cf == null)
+					conn.pinging = false;
+				else {
+					cf.thenAccept(r -> {
+						conn.pinging = false;
+						if (r == null && conn.session == session) {
+							Log.warn("{}: client pool heartbeat timeout: addr={},session={}", _mgr.getName(), _addr, session.getId());
+							session.closeNow();
+						}
+					});
+				}
+			}
+		}
+	}
+
+	private Conn select() {
+		Conn[] conns = _conns;
+		int n = conns.length;
+		int start = (_rrIndex.getAndIncrement() & Integer.MAX_VALUE) % n;
+		Conn best = null, bestBlocked = null; // bestBlocked: 超过写队列高水位的连接中最好的
+		int bestCount = Integer.MAX_VALUE, bestBlockedCount = Integer.MAX_VALUE;
+		boolean leastOutstanding = (_balance == Balance.LEAST_OUTSTANDING);
+		for (int i = 0; i < n; ++i) {
+			Conn conn = conns[(start + i) % n];
+			IoSession session = conn.session;
+			if (session == null || session.isClosing())
+				continue;
+			int count = (leastOutstanding ? conn.outstanding.get() : 0);
+			if (session.isWritable()) {
+				if (!leastOutstanding)
+					return conn;
+				if (count < bestCount) {
+					best = conn;
+					bestCount = count;
+					if (count == 0)
+						break;
+				}
+			} else if (count < bestBlockedCount) {
+				bestBlocked = conn;
+				bestBlockedCount = count;
+			}
+		}
+		return best != null ? best : bestBlocked;
+	}
+
+	/**
+	 * 按选择策略获取一个有效的连接
+	 *
+	 * @return 没有有效的连接时返回null
+	 */
+	public IoSession selectSession() {
+		Conn conn = select();
+		return conn != null ? conn.session : null;
+	}
+
+	/**
+	 * 选择一个连接发送bean
+	 *
+	 * @return 没有有效的连接或发送失败时返回false
+	 */
+	public boolean send(Bean<?> bean) {
+		IoSession session = selectSession();
+		return session != null && _mgr.send(session, bean);
+	}
+
+	/**
+	 * 选择一个连接发送请求
+	 *
+	 * @return 没有有效的连接时返回false且不会有回复和超时的回调, 否则返回true
+	 * @see NetManager#ask(IoSession, Bean, int, AnswerHandler)
+	 */
+	public <B extends Bean<B>> boolean ask(Bean<?> bean, int timeoutSec, AnswerHandler<B> onAnswer) {
+		Conn conn = select();
+		if (conn == null)
+			return false;
+		IoSession session = conn.session;
+		if (session == null)
+			return false;
+		AtomicInteger outstanding = conn.outstanding;
+		outstanding.getAndIncrement();
+		if (_mgr.ask(session, bean, timeoutSec, (B b) -> {
+			outstanding.getAndDecrement();
+			onAnswer.onAnswer(b);
+		}))
+			return true;
+		outstanding.getAndDecrement();
+		return false;
+	}
+
+	public <B extends Bean<B>> boolean ask(Bean<?> bean, AnswerHandler<B> onAnswer) {
+		return ask(bean, Const.askDefaultTimeout, onAnswer);
+	}
+
+	/**
+	 * 选择一个连接发送请求并返回CompletableFuture对象
+	 *
+	 * @return 没有有效的连接时返回null
+	 * @see NetManager#askAsync(IoSession, Bean, int)
+	 */
+	public <B extends Bean<B>> CompletableFuture<B> askAsync(Bean<?> bean, int timeoutSec) {
+		Conn conn = select();
+		if (conn == null)
+			return null;
+		IoSession session = conn.session;
+		if (session == null)
+			return null;
+		AtomicInteger outstanding = conn.outstanding;
+		outstanding.getAndIncrement();
+		CompletableFuture<B> cf = _mgr.askAsync(session, bean, timeoutSec);
+		if (cf == null)
+			outstanding.getAndDecrement();
+		else
+			cf.whenComplete((b, e) -> outstanding.getAndDecrement());
+		return cf;
+	}
+
+	public <B extends Bean<B>> CompletableFuture<B> askAsync(Bean<?> bean) {
+		return askAsync(bean, Const.askDefaultTimeout);
+	}
+
+	@Override
+	public String toString() {
+		return "ClientPool:" + _addr + ":" + getConnectedCount() + '/' + _conns.length;
+	}
+}
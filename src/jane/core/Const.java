@@ -19,6 +19,11 @@ public final class Const {
 	public static final int askCheckInterval;
 	public static final int askDefaultTimeout;
 	public static final int beanDefaultMaxSize;
+	public static final boolean beanDirectEncode;
+	public static final boolean ioThreadPerCore;
+	public static final int acceptorCount;
+	public static final int writeHighWaterMark;
+	public static final int writeLowWaterMark;
 	public static final int httpHeadMaxSize;
 	public static final int httpBodyDefaultMaxSize;
 	public static final String dbFilename;
@@ -27,10 +32,18 @@ public final class Const {
 	public static final int deadlockCheckInterval;
 	public static final int maxSessionProcedure;
 	public static final int maxBatchProceduer;
+	public static final int procWeightHigh;
+	public static final int procWeightNormal;
+	public static final int procWeightLow;
+	public static final int procAdmitQueueSize;
+	public static final int procAdmitModCount;
 	public static final int maxProceduerRedo;
 	public static final int lockPoolSize;
+	public static final boolean lockExactKey;
+	public static final boolean appendLockUnordered;
 	public static final int maxLockPerProcedure;
 	public static final int dbSimpleCacheSize;
+	public static final int dbAbsentCacheSize;
 	public static final int dbCommitResaveCount;
 	public static final int dbCommitModCount;
 	public static final long dbCommitPeriod;
@@ -40,6 +53,7 @@ public final class Const {
 	public static final int procedureDeadlockTimeout;
 	public static final int procedureShutdownTimeout;
 	public static final int procedureShutdownNowTimeout;
+	public static final boolean procStatEnabled;
 	public static final int autoIdBegin;
 	public static final int autoIdStride;
 	public static final String levelDBNativePath;
@@ -74,6 +88,11 @@ public final class Const {
 		askCheckInterval = getPropInt("jane.askCheckInterval", 5, 0);
 		askDefaultTimeout = getPropInt("jane.askDefaultTimeout", 30, 1);
 		beanDefaultMaxSize = getPropInt("jane.beanDefaultMaxSize", 65536, 0);
+		beanDirectEncode = getPropInt("jane.beanDirectEncode", 0, 0, 1) != 0;
+		writeHighWaterMark = getPropInt("jane.writeHighWaterMark", 0, 0);
+		writeLowWaterMark = getPropInt("jane.writeLowWaterMark", writeHighWaterMark / 2, 0, Math.max(writeHighWaterMark - 1, 0));
+		ioThreadPerCore = getPropInt("jane.ioThreadPerCore", 0, 0, 1) != 0;
+		acceptorCount = getPropInt("jane.acceptorCount", 1, 1);
 		httpHeadMaxSize = getPropInt("jane.httpHeadMaxSize", 4096, 0);
 		httpBodyDefaultMaxSize = getPropInt("jane.httpBodyDefaultMaxSize", 65536, 0);
 		dbFilename = System.getProperty("jane.dbFilename", "db/jane");
@@ -82,10 +101,18 @@ public final class Const {
 		deadlockCheckInterval = getPropInt("jane.deadlockCheckInterval", 10, 0);
 		maxSessionProcedure = getPropInt("jane.maxSessionProcedure", 65536, 1);
 		maxBatchProceduer = getPropInt("jane.maxBatchProceduer", 256, 1);
+		procWeightHigh = getPropInt("jane.procWeightHigh", 8, 1, 1000);
+		procWeightNormal = getPropInt("jane.procWeightNormal", 4, 1, 1000);
+		procWeightLow = getPropInt("jane.procWeightLow", 1, 1, 1000);
+		procAdmitQueueSize = getPropInt("jane.procAdmitQueueSize", 0, 0);
+		procAdmitModCount = getPropInt("jane.procAdmitModCount", 0, 0);
 		maxProceduerRedo = getPropInt("jane.maxProceduerRedo", 256, 1);
 		lockPoolSize = Util.nextPowerOfTwo(getPropInt("jane.lockPoolSize", 1024, 1, 0x4000_0000));
+		lockExactKey = getPropInt("jane.lockExactKey", 0, 0, 1) != 0;
+		appendLockUnordered = getPropInt("jane.appendLockUnordered", 0, 0, 1) != 0;
 		maxLockPerProcedure = getPropInt("jane.maxLockPerProcedure", 16, 4, 256);
 		dbSimpleCacheSize = getPropInt("jane.dbSimpleCacheSize", 10000, 1);
+		dbAbsentCacheSize = getPropInt("jane.dbAbsentCacheSize", 0, 0);
 		dbCommitResaveCount = getPropInt("jane.dbCommitResaveCount", 200000, 1);
 		dbCommitModCount = getPropInt("jane.dbCommitModCount", 200000, 1);
 		dbCommitPeriod = getPropLong("jane.dbCommitPeriod", 60, 1);
@@ -95,6 +122,7 @@ public final class Const {
 		procedureDeadlockTimeout = getPropInt("jane.procedureDeadlockTimeout", 5, 1);
 		procedureShutdownTimeout = getPropInt("jane.procedureShutdownTimeout", 5, 0);
 		procedureShutdownNowTimeout = getPropInt("jane.procedureShutdownNowTimeout", 1, 0);
+		procStatEnabled = getPropInt("jane.procStatEnabled", 1, 0, 1) != 0;
 		autoIdBegin = getPropInt("jane.autoIdBegin", 1, 1);
 		autoIdStride = getPropInt("jane.autoIdStride", 1, 1);
 		levelDBNativePath = System.getProperty("jane.levelDBNativePath", "lib");
@@ -6,16 +6,16 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 import jane.core.SContext.Safe;
 
 /** 数据库管理器(单件) */
@@ -32,10 +32,12 @@ public final class DBManager {
 
 	private final ArrayList<TableBase<?>> _tables = new ArrayList<>(16); // 所有表的容器
 	private final CommitThread _commitThread = new CommitThread(); // 处理数据提交的线程
-	private final ThreadPoolExecutor _procThreads; // 事务线程池
+	private final WorkStealingExecutor _procThreads; // 事务线程池
 	private final ConcurrentMap<Object, ArrayDeque<Procedure>> _qmap = Util.newConcurrentHashMap(); // 当前sid队列的数量
 	private final AtomicLong _procCount = new AtomicLong(); // 绑定过sid的在队列中未运行的事务数量
-	private final FastRWLock _rwlCommit = new FastRWLock(); // 用于数据提交的读写锁
+	private final LongAdder _procRejectCount = new LongAdder(); // 因准入限制或sid队列已满而拒绝或丢弃的低优先级事务数量
+	private final StripedRWLock _rwlCommit = new StripedRWLock(); // 用于数据提交的读写锁. 每个事务都加读锁,所以用分段计数
+	private volatile long _commitCount; // 已完成的数据库提交(checkpoint)次数
 	private String _dbBackupPath; // 数据库的备份路径
 	private Storage _storage; // 存储引擎
 
@@ -140,6 +142,7 @@ public final class DBManager {
 							t3 = System.currentTimeMillis();
 							Log.info("db-commit done ({}/{}/{} ms)", t1, t3 - t2, t3 - t0);
 						}
+						_commitCount++; // 只在提交线程中修改
 
 						// 5.判断备份周期并启动备份
 						long backupTime = _backupTime;
@@ -179,13 +182,8 @@ public final class DBManager {
 	}
 
 	private DBManager() {
-		AtomicInteger counter = new AtomicInteger();
-		_procThreads = (ThreadPoolExecutor)Executors.newFixedThreadPool(
-				Const.dbThreadCount > 0 ? Const.dbThreadCount : Runtime.getRuntime().availableProcessors(), r -> {
-					Thread t = new ProcThread(this, "ProcThread-" + counter.incrementAndGet(), r);
-					t.setDaemon(true);
-					return t;
-				});
+		_procThreads = new WorkStealingExecutor(this,
+				Const.dbThreadCount > 0 ? Const.dbThreadCount : Runtime.getRuntime().availableProcessors(), "ProcThread-");
 	}
 
 	/**
@@ -408,19 +406,38 @@ public final class DBManager {
 		return _qmap.size();
 	}
 
+	/**
+	 * 获取已完成的数据库提交(checkpoint)次数
+	 * <p>
+	 * 在此值为n时提交的事务,其修改保证在此值达到n+2时已保存到数据库存储中,可以被表的walk遍历到
+	 */
+	public long getCommitCount() {
+		return _commitCount;
+	}
+
 	/** 获取绑定过sid的在队列中未运行的事务数量 */
 	public long getProcQueuedCount() {
 		return _procCount.get();
 	}
 
+	/** 获取因准入限制或sid队列已满而拒绝提交或从队列中丢弃的低优先级事务数量 */
+	public long getProcRejectCount() {
+		return _procRejectCount.sum();
+	}
+
 	/** 获取当前事务线程池对象 */
-	public ThreadPoolExecutor getProcThreads() {
+	public ExecutorService getProcThreads() {
+		return _procThreads;
+	}
+
+	/** 获取当前事务线程池对象,可获取工作窃取线程池的统计 */
+	public WorkStealingExecutor getProcExecutor() {
 		return _procThreads;
 	}
 
 	/** 获取当前事务线程池待运行的事务数量 */
 	public int getProcSubmittedCount() {
-		return _procThreads.getQueue().size();
+		return _procThreads.getQueueSize();
 	}
 
 	/** 获取当前事务线程池正在运行的事务数量 */
@@ -471,37 +488,99 @@ public final class DBManager {
 		counts[1] = _qmap.size();
 	}
 
-	/** 向工作线程池提交一个事务 */
-	public void submit(Procedure p) {
+	/**
+	 * 准入检查
+	 * <p>
+	 * 只限制低优先级的事务: 排队的事务数量(线程池和sid队列的和,近似值)或所有表的写缓存记录数达到配置的上限时拒绝
+	 */
+	private boolean admit(Procedure p) {
+		if (p.getPriority() != Procedure.PRIORITY_LOW)
+			return true;
+		int queueLimit = Const.procAdmitQueueSize;
+		int modLimit = Const.procAdmitModCount;
+		if (queueLimit > 0 && _procThreads.getQueueSize() + _procCount.get() >= queueLimit ||
+				modLimit > 0 && getCacheModSize() >= modLimit) {
+			_procRejectCount.increment();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 从sid队列中丢弃最后一个低优先级的事务,为新提交的事务腾出位置
+	 * <p>
+	 * 队列头的事务可能正在运行,不会丢弃. 必须在synchronized(q)中调用
+	 */
+	private boolean shedLowPriority(ArrayDeque<Procedure> q) {
+		Iterator<Procedure> it = q.descendingIterator();
+		for (int i = q.size() - 1; i > 0; --i) {
+			if (it.next().getPriority() == Procedure.PRIORITY_LOW) {
+				it.remove();
+				_procCount.getAndDecrement();
+				_procRejectCount.increment();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * 向工作线程池提交一个事务
+	 *
+	 * @return 是否已提交. 只有低优先级的事务会因准入限制(jane.procAdmit*)而被拒绝
+	 */
+	public boolean submit(Procedure p) {
+		if (!admit(p))
+			return false;
+		p.setSubmitTime();
 		_procThreads.execute(p);
+		return true;
 	}
 
-	/** 向工作线程池提交一个事务,并获取异步执行的future,可用于同步等待 */
+	/**
+	 * 向工作线程池提交一个事务,并获取异步执行的future,可用于同步等待
+	 *
+	 * @return 低优先级的事务因准入限制而被拒绝时返回null
+	 */
 	public Future<?> submitFuture(Procedure p) {
+		if (!admit(p))
+			return null;
+		p.setSubmitTime();
 		return _procThreads.submit(p);
 	}
 
+	/**
+	 * 异步事务(没有sid)等待结束后重新提交续接阶段. 事务已经准入过,不做准入检查,避免运行到一半的事务被拒绝
+	 */
+	void resubmit(Procedure p) {
+		p.setSubmitTime();
+		_procThreads.execute(p);
+	}
+
 	/**
 	 * 向工作线程池提交一个需要排队的事务
 	 * <p>
-	 * 不同sid的事务会并发处理,但相同的sid会按照提交顺序排队处理<br>
-	 * 如果队列中的事务数量超过上限(Const.maxSessionProcedure),则会清除这个sid的整个队列并输出错误日志<br>
+	 * 不同sid的事务会并发处理,但相同的sid会按照提交顺序排队处理. 异步事务(AsyncProcedure)等待期间仍占据队头,后面的事务等它全部完成后才运行<br>
+	 * 如果队列中的事务数量达到上限(Const.maxSessionProcedure),低优先级的事务直接拒绝,其它事务会丢弃队列中最后一个低优先级的事务,没有则抛出异常<br>
 	 * sid即SessionId,一般表示网络连接的ID,事务运行时可以获取这个对象({@link Procedure#getSid})<br>
 	 * 当这个sid失效且不需要处理其任何未处理的事务时,应该调用clearSession清除这个sid的队列以避免少量的内存泄漏
 	 */
-	public void submit(Object sid, Procedure p) {
-		submit(_procThreads, sid, p);
+	public boolean submit(Object sid, Procedure p) {
+		return submit(_procThreads, sid, p);
 	}
 
 	/**
 	 * 见{@link #submit(Object sid, Procedure p)}<br>
 	 * 可使用自定义的线程池(必须是ProcThread)
 	 */
-	public void submit(Executor executor, Object sid, Procedure p) {
+	public boolean submit(Executor executor, Object sid, Procedure p) {
+		if (!admit(p))
+			return false;
 		p.setSid(sid);
+		p.setSubmitTime();
 		if (sid == null) {
 			executor.execute(p);
-			return;
+			return true;
 		}
 		ArrayDeque<Procedure> q;
 		for (; ; ) {
@@ -510,18 +589,24 @@ public final class DBManager {
 				if (q != _qmap.get(sid))
 					continue; // maybe just collected
 				int qs = q.size();
-				if (qs >= Const.maxSessionProcedure)
-					throw new IllegalStateException("procedure overflow: procedure=" + p.getClass().getName() +
-							",sid=" + sid + ",size=" + q.size() + ",maxsize=" + Const.maxSessionProcedure);
+				if (qs >= Const.maxSessionProcedure) {
+					if (p.getPriority() == Procedure.PRIORITY_LOW) {
+						_procRejectCount.increment();
+						return false;
+					}
+					if (!shedLowPriority(q))
+						throw new IllegalStateException("procedure overflow: procedure=" + p.getClass().getName() +
+								",sid=" + sid + ",size=" + q.size() + ",maxsize=" + Const.maxSessionProcedure);
+				}
 				q.addLast(p);
 				_procCount.getAndIncrement();
 				if (qs > 0)
-					return;
+					return true;
 			}
 			break;
 		}
 		ArrayDeque<Procedure> _q = q;
-		executor.execute(new Runnable() {
+		execute(executor, new Runnable() {
 			@Override
 			public void run() {
 				try {
@@ -538,13 +623,25 @@ public final class DBManager {
 						} catch (Throwable e) {
 							Log.error(e, "procedure(sid={}) exception:", sid);
 						}
+						if (proc instanceof AsyncProcedure) { // 异步等待中的事务留在队头阻塞队列,等待结束后由本对象继续运行
+							AsyncProcedure ap = (AsyncProcedure)proc;
+							Runnable runner = this;
+							_procCount.getAndIncrement(); // 续接阶段运行时会再减掉. 等待可能已结束,要在安排续接前加上
+							if (ap.scheduleResume(() -> DBManager.execute(executor, runner, ap.getPriority())))
+								return;
+							_procCount.getAndDecrement();
+						}
+						Procedure next;
 						synchronized (_q) {
 							_q.pollFirst();
-							if (_q.isEmpty())
+							if ((next = _q.peekFirst()) == null)
 								return;
 						}
-						if (--n <= 0) {
-							executor.execute(this);
+						if (--n <= 0) { // 让出给其它任务. 工作窃取线程池中放到本线程队列的最后运行,其它空闲线程可以窃取
+							if (executor instanceof WorkStealingExecutor)
+								((WorkStealingExecutor)executor).executeLater(this, next.getPriority());
+							else
+								executor.execute(this);
 							return;
 						}
 					}
@@ -554,6 +651,15 @@ public final class DBManager {
 					Log.error(e, "procedure(sid={}) fatal exception:", sid);
 				}
 			}
-		});
+		}, p.getPriority());
+		return true;
+	}
+
+	/** 按sid队列头事务的优先级调度sid队列 */
+	private static void execute(Executor executor, Runnable r, int priority) {
+		if (executor instanceof WorkStealingExecutor)
+			((WorkStealingExecutor)executor).execute(r, priority);
+		else
+			executor.execute(r);
 	}
 }
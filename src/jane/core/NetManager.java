@@ -6,16 +6,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
 import java.util.function.Supplier;
 import jane.core.map.IntHashMap;
 import jane.core.map.LongConcurrentHashMap;
-import jane.core.map.LongMap.MapIterator;
 import org.apache.mina.core.filterchain.IoFilter;
 import org.apache.mina.core.filterchain.IoFilterChain;
 import org.apache.mina.core.future.ConnectFuture;
@@ -28,6 +27,8 @@ import org.apache.mina.core.session.IoSession;
 import org.apache.mina.core.write.DefaultWriteRequest;
 import org.apache.mina.core.write.WriteRequest;
 import org.apache.mina.transport.socket.DefaultSocketSessionConfig;
+import org.apache.mina.transport.socket.nio.NioProcessor;
+import org.apache.mina.transport.socket.nio.NioSession;
 import org.apache.mina.transport.socket.nio.NioSocketAcceptor;
 import org.apache.mina.transport.socket.nio.NioSocketConnector;
 
@@ -55,6 +56,7 @@ public class NetManager implements IoHandler {
 		int askSerial; // 请求bean的serial
 		public final IoSession session; // 请求时绑定的session
 		public final AnswerHandler<B> answerHandler; // 接收回复的回调,超时也会回调(传入的bean为null)
+		TimingWheel.Task timeoutTask; // 超时处理的定时任务,收到回复或发送失败时取消. null表示不检测超时
 
 		BeanContext(int timeoutSec, IoSession session, AnswerHandler<B> answerHandler) {
 			if (timeoutSec > 0x4000_0000) // 不能太大, 否则会判断出错
@@ -73,10 +75,11 @@ public class NetManager implements IoHandler {
 
 	private static final LongConcurrentHashMap<BeanContext<?>> _beanCtxMap = new LongConcurrentHashMap<>(); // 当前等待回复的所有请求上下文
 	private static final ConcurrentLinkedQueue<IoSession> _closings = new ConcurrentLinkedQueue<>(); // 已经closeOnFlush的session队列,超时则closeNow
-	private static final ScheduledExecutorService _scheduledThread; // NetManager自带的单线程调度器(处理重连,请求和事务超时)
+	private static final TimingWheel _timer = new TimingWheel("ScheduledThread"); // NetManager自带的单线程时间轮调度器(处理重连,请求和事务超时)
 	private static final AtomicInteger _serialCounter = new AtomicInteger(1); // 协议序列号的分配器
 	private static volatile SimpleIoProcessorPool _sharedIoProcessorPool; // 共享的网络IO线程池
 	private static int _sharedIoThreadCount; // 共享的网络IO线程数量(<=0表示默认的线程数量)
+	private static boolean _sharedIoThreadPerCore = Const.ioThreadPerCore; // 共享的网络IO线程池是否使用线程每核模式
 	private static long _timeSec = System.currentTimeMillis() / 1000; // NetManager的秒级时间戳值,可以快速获取
 
 	private final String _name = getClass().getSimpleName(); // 当前管理器的名字
@@ -86,30 +89,11 @@ public class NetManager implements IoHandler {
 	private volatile NioSocketConnector _connector; // mina的网络连接器
 	private int _ioThreadCount; // 网络IO线程数量(0表示使用共享的IO线程池;<0表示默认的线程数量)
 	private boolean _enableTrace = Log.hasTrace; // 是否输出TRACE级日志
+	private volatile boolean _suspendReadOnUnwritable; // 连接不可写(写队列超过高水位)时是否暂停读取,直到恢复可写
+	private volatile Predicate<Bean<?>> _dropOnUnwritable; // 连接不可写时丢弃满足条件的bean. null表示不丢弃
+	private final LongAdder _dropCount = new LongAdder(); // 因连接不可写而丢弃的bean数量
 
 	static {
-		_scheduledThread = Executors.newSingleThreadScheduledExecutor(r -> {
-			Thread t = new Thread(r, "ScheduledThread");
-			t.setDaemon(true);
-			return t;
-		});
-		if (Const.askCheckInterval > 0) {
-			scheduleWithFixedDelay(Const.askCheckInterval, Const.askCheckInterval, () -> {
-				try {
-					int now = (int)_timeSec;
-					for (MapIterator<BeanContext<?>> it = _beanCtxMap.entryIterator(); it.moveToNext(); ) {
-						BeanContext<?> beanCtx = it.value();
-						if (now - beanCtx.askEndTime > 0 && _beanCtxMap.remove(it.key(), beanCtx)) {
-							IoSession session = beanCtx.session;
-							if (session != null)
-								((NetManager)session.getHandler()).onAnswer(beanCtx, null);
-						}
-					}
-				} catch (Throwable e) {
-					Log.error("NetManager: ask check fatal exception:", e);
-				}
-			});
-		}
 		scheduleWithFixedDelay(1, 1, () -> {
 			try {
 				int timeSec = (int)(_timeSec = System.currentTimeMillis() / 1000);
@@ -137,6 +121,11 @@ public class NetManager implements IoHandler {
 		return _beanCtxMap.size();
 	}
 
+	/** 获取NetManager自带的时间轮调度器 */
+	public static TimingWheel getTimingWheel() {
+		return _timer;
+	}
+
 	/**
 	 * 获取秒级时间戳
 	 * <p>
@@ -168,16 +157,65 @@ public class NetManager implements IoHandler {
 		_sharedIoThreadCount = count;
 	}
 
+	/**
+	 * 设置全局共享的网络IO线程池是否使用线程每核模式
+	 * <p>
+	 * 必须在创建连接器和监听器之前修改. 默认值为Const.ioThreadPerCore<br>
+	 * 线程每核模式下,共享的IO线程数量默认为CPU核心数,每个IO线程同时也是DBManager的事务线程,
+	 * 通过{@link #submit(IoSession, Object, Procedure)}提交的事务会在连接所在的IO线程上排队运行,不再经过事务线程池和线程切换,
+	 * 事务中写出的数据在当前这轮IO循环结束时批量发送<br>
+	 * 注意事务等锁或运行较久时会阻塞此IO线程上的所有连接,所以只适合锁冲突少且运行很快的事务
+	 */
+	public static synchronized void setSharedIoThreadPerCore(boolean enable) {
+		_sharedIoThreadPerCore = enable;
+	}
+
 	private static SimpleIoProcessorPool getSharedIoProcessorPool() {
 		if (_sharedIoProcessorPool == null || _sharedIoProcessorPool.isDisposing()) {
 			synchronized (NetManager.class) {
-				if (_sharedIoProcessorPool == null || _sharedIoProcessorPool.isDisposing())
-					_sharedIoProcessorPool = new SimpleIoProcessorPool(_sharedIoThreadCount > 0 ? _sharedIoThreadCount : DEFAULT_IO_THREAD_COUNT);
+				if (_sharedIoProcessorPool == null || _sharedIoProcessorPool.isDisposing()) {
+					if (_sharedIoThreadPerCore) {
+						DBManager dbm = DBManager.instance();
+						AtomicInteger idGen = new AtomicInteger();
+						_sharedIoProcessorPool = new SimpleIoProcessorPool(_sharedIoThreadCount > 0 ? _sharedIoThreadCount :
+								Runtime.getRuntime().availableProcessors(), r -> new ProcThread(dbm, "NioProcThread-" + idGen.incrementAndGet(), r), true);
+					} else
+						_sharedIoProcessorPool = new SimpleIoProcessorPool(_sharedIoThreadCount > 0 ? _sharedIoThreadCount : DEFAULT_IO_THREAD_COUNT);
+				}
 			}
 		}
 		return _sharedIoProcessorPool;
 	}
 
+	/**
+	 * 获取连接所在的事务执行器
+	 * <p>
+	 * 只在线程每核模式下返回连接所在的IO线程(NioProcessor),否则返回null
+	 */
+	public static Executor getProcExecutor(IoSession session) {
+		if (session instanceof NioSession) {
+			NioProcessor processor = ((NioSession)session).getNioProcessor();
+			if (processor != null && processor.isEventLoop())
+				return processor;
+		}
+		return null;
+	}
+
+	/**
+	 * 提交与连接相关的需要排队的事务
+	 * <p>
+	 * 线程每核模式下在连接所在的IO线程上运行,否则同{@link DBManager#submit(Object, Procedure)}
+	 *
+	 * @param sid 同DBManager.submit的sid,相同sid的事务按提交顺序运行. 线程每核模式下同一个sid只应提交到同一个连接
+	 */
+	public static void submit(IoSession session, Object sid, Procedure p) {
+		Executor executor = getProcExecutor(session);
+		if (executor != null)
+			DBManager.instance().submit(executor, sid, p);
+		else
+			DBManager.instance().submit(sid, p);
+	}
+
 	/**
 	 * 设置网络IO线程池的线程数量
 	 * <p>
@@ -202,7 +240,9 @@ public class NetManager implements IoHandler {
 					else
 						t = new NioSocketAcceptor(DEFAULT_IO_THREAD_COUNT);
 					t.setReuseAddress(true);
+					t.setAcceptorCount(Const.acceptorCount);
 					t.setHandler(this);
+					t.getSessionConfig().setWriteWaterMarks(Const.writeHighWaterMark, Const.writeLowWaterMark);
 					_acceptor = acceptor = t;
 				}
 			}
@@ -226,6 +266,7 @@ public class NetManager implements IoHandler {
 						t = new NioSocketConnector(DEFAULT_IO_THREAD_COUNT);
 					t.setHandler(this);
 					t.setConnectTimeoutMillis(Const.connectTimeout * 1000);
+					t.getSessionConfig().setWriteWaterMarks(Const.writeHighWaterMark, Const.writeLowWaterMark);
 					_connector = connector = t;
 				}
 			}
@@ -273,6 +314,51 @@ public class NetManager implements IoHandler {
 		return connector != null ? connector.getManagedSessions() : Collections.emptyMap();
 	}
 
+	/**
+	 * 设置连接不可写(写队列待发送数据超过高水位)时是否暂停读取对端的数据,直到降到低水位时恢复读取
+	 * <p>
+	 * 对端暂停发送请求,可以避免为慢连接产生更多的回复. 水位可通过getServerConfig/getClientConfig设置,默认使用Const的配置
+	 */
+	public final void setSuspendReadOnUnwritable(boolean suspendRead) {
+		_suspendReadOnUnwritable = suspendRead;
+	}
+
+	/**
+	 * 设置连接不可写时可以丢弃的bean
+	 * <p>
+	 * 连接不可写时发送满足条件的bean会直接丢弃并返回false,适合丢弃可有可无或能被后续数据覆盖的低优先级协议(如位置同步)
+	 *
+	 * @param filter 判断bean是否可以丢弃. null表示不丢弃
+	 */
+	public final void setDropOnUnwritable(Predicate<Bean<?>> filter) {
+		_dropOnUnwritable = filter;
+	}
+
+	/** 获取因连接不可写而丢弃的bean数量 */
+	public final long getDropCount() {
+		return _dropCount.sum();
+	}
+
+	/** 获取当前全部连接的写队列待发送数据的总字节数 */
+	public final long getScheduledWriteBytes() {
+		long n = 0;
+		for (IoSession session : getServerSessions().values())
+			n += session.getScheduledWriteBytes();
+		for (IoSession session : getClientSessions().values())
+			n += session.getScheduledWriteBytes();
+		return n;
+	}
+
+	private boolean dropOnUnwritable(IoSession session, Bean<?> bean) {
+		Predicate<Bean<?>> filter = _dropOnUnwritable;
+		if (filter == null || session.isWritable() || !filter.test(bean))
+			return false;
+		_dropCount.increment();
+		if (_enableTrace)
+			Log.trace("{}({}): drop: {}:{}", _name, session.getId(), bean.typeName(), bean);
+		return true;
+	}
+
 	/**
 	 * 设置当前的协议编码器工厂
 	 * <p>
@@ -374,6 +460,19 @@ public class NetManager implements IoHandler {
 		return startClient(addr, null);
 	}
 
+	/**
+	 * 启动客户端的连接池,对同一地址建立多个连接
+	 * <p>
+	 * 此操作是异步的,连接失败会回调onConnectFailed(ctx参数为连接池对象,返回值无效),并由连接池自动重连
+	 *
+	 * @param size 连接数量
+	 */
+	public ClientPool startClientPool(InetSocketAddress addr, int size) {
+		ClientPool pool = new ClientPool(this, addr, size);
+		pool.start();
+		return pool;
+	}
+
 	/**
 	 * 停止服务器端的监听并断开相关的连接
 	 *
@@ -412,11 +511,11 @@ public class NetManager implements IoHandler {
 	 * @param delaySec 延迟调度的秒数
 	 */
 	public static ScheduledFuture<?> schedule(long delaySec, Runnable runnable) {
-		return _scheduledThread.schedule(runnable, delaySec, TimeUnit.SECONDS);
+		return _timer.schedule(delaySec * 1000, runnable);
 	}
 
 	public static ScheduledFuture<?> scheduleMs(long delayMs, Runnable runnable) {
-		return _scheduledThread.schedule(runnable, delayMs, TimeUnit.MILLISECONDS);
+		return _timer.schedule(delayMs, runnable);
 	}
 
 	/**
@@ -425,11 +524,13 @@ public class NetManager implements IoHandler {
 	 * @param periodSec 定时间隔周期的秒数
 	 */
 	public static ScheduledFuture<?> scheduleWithFixedDelay(int delaySec, int periodSec, Runnable runnable) {
-		return _scheduledThread.scheduleWithFixedDelay(runnable, delaySec, periodSec, TimeUnit.SECONDS);
+		return scheduleWithFixedDelayMs(delaySec * 1000, periodSec * 1000, runnable);
 	}
 
-	public static ScheduledFuture<?> scheduleWithFixedDelayMs(int delayMs, int periodSec, Runnable runnable) {
-		return _scheduledThread.scheduleWithFixedDelay(runnable, delayMs, periodSec, TimeUnit.MILLISECONDS);
+	public static ScheduledFuture<?> scheduleWithFixedDelayMs(int delayMs, int periodMs, Runnable runnable) {
+		if (periodMs <= 0)
+			throw new IllegalArgumentException("periodMs=" + periodMs);
+		return _timer.schedule(delayMs, -(long)periodMs, runnable);
 	}
 
 	/**
@@ -438,11 +539,13 @@ public class NetManager implements IoHandler {
 	 * @param periodSec 定时触发周期的秒数
 	 */
 	public static ScheduledFuture<?> scheduleAtFixedRate(int delaySec, int periodSec, Runnable runnable) {
-		return _scheduledThread.scheduleAtFixedRate(runnable, delaySec, periodSec, TimeUnit.SECONDS);
+		return scheduleAtFixedRateMs(delaySec * 1000, periodSec * 1000, runnable);
 	}
 
-	public static ScheduledFuture<?> scheduleAtFixedRateMs(int delayMs, int periodSec, Runnable runnable) {
-		return _scheduledThread.scheduleAtFixedRate(runnable, delayMs, periodSec, TimeUnit.MILLISECONDS);
+	public static ScheduledFuture<?> scheduleAtFixedRateMs(int delayMs, int periodMs, Runnable runnable) {
+		if (periodMs <= 0)
+			throw new IllegalArgumentException("periodMs=" + periodMs);
+		return _timer.schedule(delayMs, periodMs, runnable);
 	}
 
 	public static final class SimpleWriteRequest implements WriteRequest {
@@ -525,6 +628,8 @@ public class NetManager implements IoHandler {
 	 * @return 如果连接已经失效则返回false, 否则返回true
 	 */
 	public boolean send(IoSession session, Bean<?> bean) {
+		if (dropOnUnwritable(session, bean))
+			return false;
 		int oldSerial = bean.serial();
 		bean.serial(0);
 		boolean r = write(session, bean);
@@ -552,7 +657,7 @@ public class NetManager implements IoHandler {
 	 * @return 如果连接已经失效则返回false, 否则返回true
 	 */
 	public <B extends Bean<B>> boolean send(IoSession session, B bean, Runnable onSent) {
-		if (bean == null)
+		if (bean == null || dropOnUnwritable(session, bean))
 			return false;
 		int oldSerial = bean.serial();
 		bean.serial(0);
@@ -582,19 +687,72 @@ public class NetManager implements IoHandler {
 		return true;
 	}
 
+	/**
+	 * 向多个连接广播同一个bean
+	 * <p>
+	 * bean只序列化一次,所有连接的写队列共享同一份只读数据,适合大量连接发送相同协议的情况(如房间内广播)<br>
+	 * 要求这些连接的编码器是BeanCodec或对RawBean同样直接发送数据部分,且后续过滤器不能原地修改发送的数据(如流加密)<br>
+	 * 此操作是异步的
+	 *
+	 * @param bean 如果其type==0,则认为是已经序列化好的RawBean,在发送完成前不能修改其数据部分
+	 * @return 成功投递的连接数量(不含已经失效的连接)
+	 */
+	public int broadcast(Collection<? extends IoSession> sessions, Bean<?> bean) {
+		if (sessions == null || bean == null)
+			return 0;
+		RawBean rawbean = (bean.type() == 0 ? (RawBean)bean : new RawBean(bean, 0));
+		int n = 0;
+		for (IoSession session : sessions) {
+			if (!dropOnUnwritable(session, bean) && write(session, rawbean))
+				++n;
+		}
+		if (_enableTrace)
+			Log.trace("{}: broadcast({}/{}): {}:{}", _name, n, sessions.size(), bean.typeName(), bean);
+		return n;
+	}
+
+	/** 在事务成功提交后广播,bean会立即序列化,因此之后修改bean不影响广播内容 */
+	public boolean broadcastSafe(Collection<? extends IoSession> sessions, Bean<?> bean) {
+		if (sessions == null || bean == null)
+			return false;
+		RawBean rawbean = new RawBean(bean, 0);
+		SContext.current().addOnCommit(() -> broadcast(sessions, rawbean));
+		return true;
+	}
+
 	private static <B extends Bean<B>> BeanContext<B> allocBeanContext(int timeoutSec, IoSession session, AnswerHandler<B> onAnswer) {
 		BeanContext<B> beanCtx = new BeanContext<>(timeoutSec, session, onAnswer);
 		for (; ; ) {
 			int serial = _serialCounter.getAndIncrement();
 			if (serial > 0) {
 				beanCtx.askSerial = serial;
-				if (_beanCtxMap.putIfAbsent(serial, beanCtx) == null) // 确保serial没同时在用
+				if (_beanCtxMap.putIfAbsent(serial, beanCtx) == null) { // 确保serial没同时在用
+					if (Const.askCheckInterval > 0) {
+						beanCtx.timeoutTask = _timer.schedule(timeoutSec * 1000L, () -> {
+							if (_beanCtxMap.remove(serial, beanCtx)) {
+								IoSession s = beanCtx.session;
+								if (s != null)
+									((NetManager)s.getHandler()).onAnswer(beanCtx, null);
+							}
+						});
+					}
 					return beanCtx;
+				}
 			} else
 				_serialCounter.compareAndSet(serial + 1, 1); // 回到1开始计数
 		}
 	}
 
+	/** 移除等待回复的请求上下文并取消其超时处理. 返回false表示已被其它地方移除(比如超时) */
+	private static boolean freeBeanContext(int serial, BeanContext<?> beanCtx) {
+		if (!_beanCtxMap.remove(serial, beanCtx))
+			return false;
+		TimingWheel.Task task = beanCtx.timeoutTask;
+		if (task != null)
+			task.cancel(false);
+		return true;
+	}
+
 	private boolean send0(IoSession session, Bean<?> bean) {
 		if (!write(session, bean))
 			return false;
@@ -622,7 +780,7 @@ public class NetManager implements IoHandler {
 		boolean r = send0(session, bean);
 		bean.serial(oldSerial);
 		if (!r)
-			_beanCtxMap.remove(askSerial, beanCtx);
+			freeBeanContext(askSerial, beanCtx);
 		return r;
 	}
 
@@ -669,7 +827,7 @@ public class NetManager implements IoHandler {
 		bean.serial(oldSerial);
 		if (r)
 			return cf;
-		_beanCtxMap.remove(askSerial, beanCtx);
+		freeBeanContext(askSerial, beanCtx);
 		return null;
 	}
 
@@ -731,6 +889,17 @@ public class NetManager implements IoHandler {
 	protected void onDelSession(IoSession session) {
 	}
 
+	/**
+	 * 连接的可写状态变化后的回调
+	 * <p>
+	 * 只在网络IO线程中按变化的顺序回调,发送数据的线程改变状态后由随后的flush通知
+	 *
+	 * @param session  状态变化的连接对象
+	 * @param writable false表示写队列待发送数据超过了高水位; true表示已降到低水位
+	 */
+	protected void onWritabilityChanged(IoSession session, boolean writable) {
+	}
+
 	/**
 	 * 作为客户端连接失败后的回调
 	 *
@@ -769,6 +938,19 @@ public class NetManager implements IoHandler {
 		onDelSession(session);
 	}
 
+	@Override
+	public void writabilityChanged(IoSession session, boolean writable) {
+		if (Log.hasDebug)
+			Log.debug("{}({}): writable={}, scheduledWriteBytes={}", _name, session.getId(), writable, session.getScheduledWriteBytes());
+		if (_suspendReadOnUnwritable) {
+			if (writable)
+				session.resumeRead();
+			else
+				session.suspendRead();
+		}
+		onWritabilityChanged(session, writable);
+	}
+
 	@Override
 	public void inputClosed(IoSession session) {
 		session.closeNow(); // session.suspendRead();
@@ -783,7 +965,7 @@ public class NetManager implements IoHandler {
 		if (serial < 0) {
 			BeanContext<?> beanCtx = _beanCtxMap.get(-serial);
 			if (beanCtx != null && beanCtx.session == session) { // 判断session是否一致,避免伪造影响其它session的answer处理
-				if (!_beanCtxMap.remove(-serial, beanCtx))
+				if (!freeBeanContext(-serial, beanCtx))
 					return; // 异常情况,刚刚被其它地方处理了(比如超时),所以不再继续处理了
 				if (onAnswer(beanCtx, bean))
 					return;
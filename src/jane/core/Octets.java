@@ -208,7 +208,7 @@ public class Octets implements Cloneable, Comparable<Octets>, WriteRequest {
 	}
 
 	/** 类似reserve, 但不保证原数据的有效 */
-	public final void reserveSpace(int size) {
+	public void reserveSpace(int size) {
 		if (size > _buffer.length) {
 			int cap = DEFAULT_SIZE;
 			while (size > cap)
@@ -225,7 +225,7 @@ public class Octets implements Cloneable, Comparable<Octets>, WriteRequest {
 		_count = size;
 	}
 
-	public final void replace(byte[] data, int pos, int size) {
+	public void replace(byte[] data, int pos, int size) {
 		if (size <= 0) {
 			_count = 0;
 			return;
@@ -0,0 +1,570 @@
+package jane.core;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import org.apache.mina.core.buffer.IoBuffer;
+
+/**
+ * 直接写入direct IoBuffer的Octets
+ * <p>
+ * 只用于序列化的目标: 覆盖了所有追加写入的方法(marshal*,append*,reserve,resize等),bean序列化时直接写到可发送的直接内存中,
+ * 避免先写到堆内存再由JDK在channel.write时复制到临时直接内存<br>
+ * IoBuffer从{@link IoBuffer#allocate(int, boolean)}分配,因此应配合可复用直接内存的分配器使用(如jane.tool.PooledIoBufferAllocator)<br>
+ * 用完后必须调用{@link #detach}交出IoBuffer或调用{@link #reset}释放. 插入/删除等修改方法在直接内存上进行,查找等只读的方法会先复制到堆内存<br>
+ * 没有堆内存的数据缓冲区: {@link #array}返回数据的副本,wraps不共享参数的数据而是复制. 作为其它Octets方法的参数时应先用{@link #toHeap}转换
+ */
+public final class OctetsDirect extends Octets {
+	private IoBuffer _ioBuf; // 当前持有的IoBuffer. null表示已交出或释放
+	private ByteBuffer _bb; // _ioBuf的底层ByteBuffer,只用绝对位置读写
+
+	public OctetsDirect() {
+		this(DEFAULT_SIZE);
+	}
+
+	public OctetsDirect(int size) {
+		_ioBuf = IoBuffer.allocate(Math.max(size, DEFAULT_SIZE), true);
+		_bb = prepare(_ioBuf);
+	}
+
+	/** 分配器可能设置了limit和字节序,绝对位置读写前需要恢复 */
+	private static ByteBuffer prepare(IoBuffer buf) {
+		ByteBuffer bb = buf.buf();
+		bb.clear();
+		bb.order(ByteOrder.BIG_ENDIAN);
+		return bb;
+	}
+
+	/**
+	 * 交出当前持有的IoBuffer,之后此对象变为空
+	 *
+	 * @param pos 交出的IoBuffer的起始位置,结束位置是当前的size()
+	 */
+	public IoBuffer detach(int pos) {
+		IoBuffer buf = _ioBuf;
+		if (buf == null)
+			throw new IllegalStateException("detached already");
+		buf.limit(_count).position(pos);
+		_ioBuf = null;
+		_bb = null;
+		_count = 0;
+		return buf;
+	}
+
+	private ByteBuffer bb() {
+		ByteBuffer bb = _bb;
+		if (bb == null)
+			throw new IllegalStateException("detached already");
+		return bb;
+	}
+
+	/** 复制到堆内存的Octets. 用于非序列化的只读操作 */
+	public Octets toHeap() {
+		return Octets.wrap(getBytes());
+	}
+
+	/** 写入到直接内存的指定位置,需要事先保证空间足够 */
+	private void put(int p, byte[] data, int pos, int size) {
+		ByteBuffer bb = _bb.duplicate();
+		bb.limit(p + size).position(p);
+		bb.put(data, pos, size);
+	}
+
+	/** @return 数据的副本. 修改副本不会影响此对象 */
+	@Override
+	public byte[] array() {
+		return getBytes();
+	}
+
+	@Override
+	public int capacity() {
+		return _bb != null ? _bb.capacity() : 0;
+	}
+
+	@Override
+	public byte getByte(int p) {
+		return bb().get(p);
+	}
+
+	@Override
+	public void setByte(int p, byte b) {
+		bb().put(p, b);
+	}
+
+	@Override
+	public void reset() {
+		IoBuffer buf = _ioBuf;
+		if (buf != null) {
+			_ioBuf = null;
+			_bb = null;
+			buf.free();
+		}
+		_count = 0;
+	}
+
+	@Override
+	public byte[] getBytes() {
+		return getBytes(0, _count);
+	}
+
+	@Override
+	public byte[] getBytes(int pos, int len) {
+		if (pos < 0)
+			pos = 0;
+		if (pos >= _count || len <= 0)
+			return EMPTY;
+		int n = pos + len;
+		n = (n < 0 || n > _count ? _count - pos : len);
+		byte[] buf = new byte[n];
+		ByteBuffer bb = bb().duplicate();
+		bb.limit(pos + n).position(pos);
+		bb.get(buf);
+		return buf;
+	}
+
+	@Override
+	public Octets wraps(byte[] data, int size) {
+		_count = 0;
+		return append(data, 0, size);
+	}
+
+	@Override
+	public Octets wraps(byte[] data) {
+		_count = 0;
+		return append(data, 0, data.length);
+	}
+
+	@Override
+	public Octets wraps(Octets o) {
+		_count = 0;
+		return append(o);
+	}
+
+	@Override
+	public void shrink(int size) {
+		if (_count <= 0)
+			reset();
+	}
+
+	@Override
+	public void reserve(int size) {
+		ByteBuffer bb = bb();
+		if (size > bb.capacity()) {
+			int cap = bb.capacity();
+			while (size > cap)
+				cap <<= 1;
+			IoBuffer newBuf = IoBuffer.allocate(cap, true);
+			ByteBuffer newBb = prepare(newBuf);
+			int n = _count;
+			if (n > 0) {
+				ByteBuffer src = bb.duplicate();
+				src.limit(n).position(0);
+				newBb.put(src);
+				newBb.clear();
+			}
+			IoBuffer oldBuf = _ioBuf;
+			_ioBuf = newBuf;
+			_bb = newBb;
+			oldBuf.free();
+		}
+	}
+
+	@Override
+	public void reserveSpace(int size) {
+		reserve(size);
+	}
+
+	@Override
+	public void replace(byte[] data, int pos, int size) {
+		_count = 0;
+		append(data, pos, size);
+	}
+
+	@Override
+	public void swap(Octets o) {
+		if (o instanceof OctetsDirect) {
+			OctetsDirect od = (OctetsDirect)o;
+			IoBuffer buf = _ioBuf;
+			ByteBuffer bb = _bb;
+			int n = _count;
+			_ioBuf = od._ioBuf;
+			_bb = od._bb;
+			_count = od._count;
+			od._ioBuf = buf;
+			od._bb = bb;
+			od._count = n;
+		} else {
+			byte[] data = getBytes();
+			replace(o._buffer, 0, o._count);
+			o.wraps(data);
+		}
+	}
+
+	@Override
+	public Octets append(byte b) {
+		int n = _count;
+		int nNew = n + 1;
+		reserve(nNew);
+		_bb.put(n, b);
+		_count = nNew;
+		return this;
+	}
+
+	@Override
+	public Octets append(byte[] data, int pos, int size) {
+		if (size <= 0)
+			return this;
+		int len = data.length;
+		if (pos < 0)
+			pos = 0;
+		if (pos >= len)
+			return this;
+		len -= pos;
+		if (size > len)
+			size = len;
+		int n = _count;
+		reserve(n + size);
+		put(n, data, pos, size);
+		_count = n + size;
+		return this;
+	}
+
+	@Override
+	public Octets append(Octets o) {
+		if (o instanceof OctetsDirect) {
+			byte[] data = o.getBytes();
+			return append(data, 0, data.length);
+		}
+		return super.append(o);
+	}
+
+	@Override
+	public Octets append(String str) {
+		int bn = marshalStrLen(str);
+		if (bn > 0) {
+			reserve(_count + bn);
+			putStr(str, bn);
+		}
+		return this;
+	}
+
+	private void putStr(String str, int bn) {
+		ByteBuffer bb = _bb;
+		int n = _count;
+		int cn = str.length();
+		if (bn == cn) {
+			for (int i = 0; i < cn; ++i)
+				bb.put(n++, (byte)str.charAt(i));
+		} else {
+			for (int i = 0; i < cn; ++i) {
+				int v = str.charAt(i);
+				if (v < 0x80)
+					bb.put(n++, (byte)v);                      // 0xxx xxxx
+				else if (v < 0x800) {
+					bb.put(n++, (byte)(0xc0 + (v >> 6)));      // 110x xxxx  10xx xxxx
+					bb.put(n++, (byte)(0x80 + (v & 0x3f)));
+				} else {
+					bb.put(n++, (byte)(0xe0 + (v >> 12)));     // 1110 xxxx  10xx xxxx  10xx xxxx
+					bb.put(n++, (byte)(0x80 + ((v >> 6) & 0x3f)));
+					bb.put(n++, (byte)(0x80 + (v & 0x3f)));
+				}
+			}
+		}
+		_count = n;
+	}
+
+	@Override
+	public Octets insert(int from, int size) {
+		if (size <= 0)
+			return this;
+		int n = _count;
+		if (from < 0)
+			from = 0;
+		if (from >= n) {
+			resize(n + size);
+			return this;
+		}
+		byte[] tail = getBytes(from, n - from);
+		reserve(n + size);
+		put(from + size, tail, 0, tail.length);
+		_count = n + size;
+		return this;
+	}
+
+	@Override
+	public Octets insert(int from, byte[] data, int pos, int size) {
+		if (size <= 0)
+			return this;
+		int n = _count;
+		if (from < 0)
+			from = 0;
+		if (from >= n)
+			return append(data, pos, size);
+		int len = data.length;
+		if (pos < 0)
+			pos = 0;
+		if (pos >= len)
+			return this;
+		len -= pos;
+		if (size > len)
+			size = len;
+		byte[] tail = getBytes(from, n - from);
+		reserve(n + size);
+		put(from + size, tail, 0, tail.length);
+		put(from, data, pos, size);
+		_count = n + size;
+		return this;
+	}
+
+	@Override
+	public Octets erase(int from, int to) {
+		int n = _count;
+		if (from < 0)
+			from = 0;
+		if (from >= n || from >= to)
+			return this;
+		if (to >= n)
+			_count = from;
+		else {
+			byte[] tail = getBytes(to, n - to);
+			put(from, tail, 0, tail.length);
+			_count = from + tail.length;
+		}
+		return this;
+	}
+
+	@Override
+	public Octets eraseFront(int size) {
+		return erase(0, size);
+	}
+
+	@Override
+	public int find(int pos, int end, byte b) {
+		return toHeap().find(pos, end, b);
+	}
+
+	@Override
+	public int find(int pos, int end, byte[] b, int p, int s) {
+		return toHeap().find(pos, end, b, p, s);
+	}
+
+	@Override
+	public void setString(String str) {
+		replace(str.getBytes(getDefaultEncoding()));
+	}
+
+	@Override
+	public void setString(String str, Charset charset) {
+		replace(str.getBytes(charset));
+	}
+
+	@Override
+	public void setString(String str, String encoding) throws UnsupportedEncodingException {
+		replace(str.getBytes(encoding));
+	}
+
+	@Override
+	public String getString() {
+		return toHeap().getString();
+	}
+
+	@Override
+	public String getString(Charset charset) {
+		return toHeap().getString(charset);
+	}
+
+	@Override
+	public String getString(String encoding) throws UnsupportedEncodingException {
+		return toHeap().getString(encoding);
+	}
+
+	@Override
+	public Octets clone() {
+		return toHeap();
+	}
+
+	@Override
+	public int hashCode() {
+		return toHeap().hashCode();
+	}
+
+	@Override
+	public int compareTo(Octets o) {
+		return toHeap().compareTo(o instanceof OctetsDirect ? ((OctetsDirect)o).toHeap() : o);
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		return this == o || toHeap().equals(o instanceof OctetsDirect ? ((OctetsDirect)o).toHeap() : o);
+	}
+
+	@Override
+	public StringBuilder toStringBuilder(StringBuilder sb) {
+		return sb.append('[').append(_count).append('/').append(capacity()).append(']');
+	}
+
+	@Override
+	public StringBuilder dump(StringBuilder s) {
+		return toHeap().dump(s);
+	}
+
+	@Override
+	public StringBuilder dumpJStr(StringBuilder s) {
+		return toHeap().dumpJStr(s);
+	}
+
+	@Override
+	public Octets marshalZero() {
+		int count = _count;
+		int countNew = count + 1;
+		reserve(countNew);
+		_bb.put(count, (byte)0);
+		_count = countNew;
+		return this;
+	}
+
+	@Override
+	public Octets marshal1(byte v) {
+		int count = _count;
+		int countNew = count + 1;
+		reserve(countNew);
+		_bb.put(count, v);
+		_count = countNew;
+		return this;
+	}
+
+	@Override
+	public Octets marshal2(int v) {
+		int count = _count;
+		int countNew = count + 2;
+		reserve(countNew);
+		_bb.putShort(count, (short)v);
+		_count = countNew;
+		return this;
+	}
+
+	@Override
+	public Octets marshal3(int v) {
+		int count = _count;
+		int countNew = count + 3;
+		reserve(countNew);
+		ByteBuffer bb = _bb;
+		bb.put(count, (byte)(v >> 16));
+		bb.putShort(count + 1, (short)v);
+		_count = countNew;
+		return this;
+	}
+
+	@Override
+	public Octets marshal4(int v) {
+		int count = _count;
+		int countNew = count + 4;
+		reserve(countNew);
+		_bb.putInt(count, v);
+		_count = countNew;
+		return this;
+	}
+
+	@Override
+	public Octets marshal5(byte b, int v) {
+		int count = _count;
+		int countNew = count + 5;
+		reserve(countNew);
+		ByteBuffer bb = _bb;
+		bb.put(count, b);
+		bb.putInt(count + 1, v);
+		_count = countNew;
+		return this;
+	}
+
+	@Override
+	public Octets marshal5(long v) {
+		int count = _count;
+		int countNew = count + 5;
+		reserve(countNew);
+		ByteBuffer bb = _bb;
+		bb.put(count, (byte)(v >> 32));
+		bb.putInt(count + 1, (int)v);
+		_count = countNew;
+		return this;
+	}
+
+	@Override
+	public Octets marshal6(long v) {
+		int count = _count;
+		int countNew = count + 6;
+		reserve(countNew);
+		ByteBuffer bb = _bb;
+		bb.putShort(count, (short)(v >> 32));
+		bb.putInt(count + 2, (int)v);
+		_count = countNew;
+		return this;
+	}
+
+	@Override
+	public Octets marshal7(long v) {
+		int count = _count;
+		int countNew = count + 7;
+		reserve(countNew);
+		ByteBuffer bb = _bb;
+		bb.put(count, (byte)(v >> 48));
+		bb.putShort(count + 1, (short)(v >> 32));
+		bb.putInt(count + 3, (int)v);
+		_count = countNew;
+		return this;
+	}
+
+	@Override
+	public Octets marshal8(long v) {
+		int count = _count;
+		int countNew = count + 8;
+		reserve(countNew);
+		_bb.putLong(count, v);
+		_count = countNew;
+		return this;
+	}
+
+	@Override
+	public Octets marshal9(byte b, long v) {
+		int count = _count;
+		int countNew = count + 9;
+		reserve(countNew);
+		ByteBuffer bb = _bb;
+		bb.put(count, b);
+		bb.putLong(count + 1, v);
+		_count = countNew;
+		return this;
+	}
+
+	@Override
+	public Octets marshal(boolean b) {
+		int count = _count;
+		int countNew = count + 1;
+		reserve(countNew);
+		_bb.put(count, (byte)(b ? 1 : 0));
+		_count = countNew;
+		return this;
+	}
+
+	@Override
+	public Octets marshal(Octets o) {
+		if (o instanceof OctetsDirect) {
+			byte[] data = o.getBytes();
+			marshalUInt(data.length);
+			return append(data, 0, data.length);
+		}
+		return super.marshal(o);
+	}
+
+	@Override
+	public Octets marshal(String str) {
+		int bn = marshalStrLen(str);
+		if (bn <= 0)
+			return marshalZero();
+		reserve(_count + marshalUIntLen(bn) + bn);
+		marshalUInt(bn);
+		putStr(str, bn);
+		return this;
+	}
+}
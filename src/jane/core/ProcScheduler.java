@@ -0,0 +1,328 @@
+package jane.core;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 持久化的定时事务调度器
+ * <p>
+ * 定时任务保存在专用的TableLong表中,key是(触发时间毫秒<<16 | 序号),所以按key的顺序遍历就是按触发时间的顺序. value是RawBean,保存处理器类型和参数数据<br>
+ * 内存中只保留最近一段时间窗口内的任务,放在多层时间轮中. 加载线程周期地按key范围遍历表,逐步加载新进入时间窗口的任务,加载数量有上限<br>
+ * 到期时按同一毫秒的任务批量提交事务. 每个任务在独立的事务中删除记录并调用处理器,处理器的修改和任务的删除一起提交或回滚,
+ * 所以重启后会重新加载未删除的任务,既不会丢失也不会重复运行(前提是同一个数据库的修改都已持久化)<br>
+ * 表的遍历只能得到已保存到数据库存储的记录,所以新调度的任务在确认已保存前还要保存在内存中,加载时合并
+ */
+public final class ProcScheduler {
+	private static final int SEQ_BITS = 16; // key中序号的位数
+	private static final long SEQ_MASK = (1L << SEQ_BITS) - 1;
+	private static final long MAX_FIRE_TIME = Long.MAX_VALUE >> SEQ_BITS;
+	private static final long LOAD_PERIOD = 1000; // 加载线程的运行周期(毫秒)
+	private static final long RETRY_DELAY = 10_000; // 处理器异常后首次重试的延迟(毫秒),之后每次加倍
+	private static final long RETRY_MAX_DELAY = 3_600_000; // 重试延迟的上限(毫秒)
+
+	/** 定时任务的处理器 */
+	public interface Handler {
+		/**
+		 * 任务到期时在事务中调用
+		 * <p>
+		 * 调用前任务记录已加锁,调用后删除,所以可以继续用lockGet等方法追加加锁其它记录. 抛出异常或超时会回滚所有修改,任务会在一段时间后重试
+		 *
+		 * @param id   任务ID. 即schedule的返回值
+		 * @param data 调度时指定的参数数据
+		 */
+		void onFire(long id, Octets data) throws Exception;
+	}
+
+	private final class FireProc extends Procedure {
+		private final long _id;
+		private final int _retry; // 已重试的次数
+
+		FireProc(long id, int retry) {
+			_id = id;
+			_retry = retry;
+		}
+
+		/** 事务异常,超时被打断等没有正常完成时,都延迟重试. 延迟按重试次数指数增长,避免一个坏任务频繁重试 */
+		@Override
+		public boolean execute() {
+			if (super.execute())
+				return true;
+			long delay = Math.min(RETRY_DELAY << Math.min(_retry, 20), RETRY_MAX_DELAY);
+			Log.warn("ProcScheduler: fire failed: id={}, retry={}, retry after {}ms", _id, _retry, delay);
+			_retryCount.increment();
+			_wheel.schedule(delay, () -> _dbm.submit(new FireProc(_id, _retry + 1)));
+			return false;
+		}
+
+		@Override
+		protected void onProcess() throws Exception {
+			lock(_table.lockId(_id));
+			RawBean.Safe entry = _table.get(_id);
+			if (entry == null) // 已取消或已运行
+				return;
+			int type = entry.getType();
+			Handler handler = _handlers.get(type);
+			if (handler == null) {
+				Log.error("ProcScheduler: not found handler: id={}, type={}", _id, type);
+				return;
+			}
+			handler.onFire(_id, entry.getData()); // 先调用处理器,避免其追加加锁时已有修改
+			_table.remove(_id);
+			_fireCount.increment();
+		}
+
+		@Override
+		protected void onException(Throwable e) {
+			Log.error(e, "ProcScheduler: fire exception: id={}, retry={}", _id, _retry);
+		}
+
+		@Override
+		public String toString() {
+			return "ProcScheduler.FireProc:id=" + _id;
+		}
+	}
+
+	private final DBManager _dbm;
+	private final TableLong<RawBean, RawBean.Safe> _table;
+	private final long _windowMs; // 时间轮中保留的时间窗口(毫秒)
+	private final int _loadLimit; // 每次加载的任务数量上限
+	private final ConcurrentMap<Integer, Handler> _handlers = Util.newConcurrentHashMap();
+	private final TreeMap<Long, Long> _pending = new TreeMap<>(); // 新调度的未加载任务: key=>调度时的提交次数. 由this保护
+	private final AtomicInteger _seq = new AtomicInteger(); // 分配key中的序号
+	private final LongAdder _fireCount = new LongAdder();
+	private final LongAdder _retryCount = new LongAdder();
+	private final AtomicLong _loadedCount = new AtomicLong(); // 已加载到时间轮中等待触发的任务数量
+	private final TimingWheel _wheel = new TimingWheel("ProcSchedulerTimer");
+	private long _loadedTime; // 已加载的触发时间上限(不含). 由this保护
+	private long[] _loadKeys = new long[256]; // 加载时的临时key数组,只在加载线程访问
+	private int _loadCount;
+	private volatile Thread _loadThread;
+
+	/**
+	 * @param table 专用于保存定时任务的表
+	 */
+	public ProcScheduler(DBManager dbm, TableLong<RawBean, RawBean.Safe> table) {
+		this(dbm, table, 60_000, 100_000);
+	}
+
+	/**
+	 * @param table     专用于保存定时任务的表
+	 * @param windowMs  内存中保留的时间窗口(毫秒). 越大加载越少,但占用内存越多
+	 * @param loadLimit 每次加载的任务数量上限. 避免积压过多到期任务时一次加载到内存
+	 */
+	public ProcScheduler(DBManager dbm, TableLong<RawBean, RawBean.Safe> table, long windowMs, int loadLimit) {
+		_dbm = dbm;
+		_table = table;
+		_windowMs = Math.max(windowMs, LOAD_PERIOD * 2);
+		_loadLimit = Math.max(loadLimit, 1);
+	}
+
+	/** 注册处理器. 应在start前注册全部的处理器 */
+	public void registerHandler(int type, Handler handler) {
+		if (handler != null)
+			_handlers.put(type, handler);
+		else
+			_handlers.remove(type);
+	}
+
+	/** 开始加载和运行定时任务. 应在数据库启动后调用一次 */
+	public synchronized void start() {
+		if (_loadThread != null)
+			return;
+		Thread t = new Thread(this::runLoad, "ProcSchedulerLoader");
+		t.setDaemon(true);
+		_loadThread = t;
+		t.start();
+	}
+
+	/** 停止加载和运行定时任务. 内存中未运行的任务会在下次启动后重新加载 */
+	public synchronized void shutdown() {
+		Thread t = _loadThread;
+		if (t != null) {
+			_loadThread = null;
+			t.interrupt();
+		}
+		_wheel.shutdown();
+	}
+
+	/**
+	 * 调度一个定时任务
+	 * <p>
+	 * 必须在事务中调用,会追加加锁任务记录,所以同lockGet一样应在修改记录前调用. 事务提交后才生效,回滚则取消
+	 *
+	 * @param fireTime 触发时间(System.currentTimeMillis()). 已过去的时间会尽快触发
+	 * @param type     处理器类型
+	 * @param data     参数数据. 会复制保存
+	 * @return 任务ID. 可用于cancel
+	 */
+	public long schedule(long fireTime, int type, Octets data) throws InterruptedException {
+		if (fireTime < 0 || fireTime > MAX_FIRE_TIME)
+			throw new IllegalArgumentException("invalid fireTime: " + fireTime);
+		if (Procedure.getCurProcedure() == null)
+			throw new IllegalStateException("invalid schedule out of procedure");
+		long base = fireTime << SEQ_BITS;
+		for (int i = 0; i <= SEQ_MASK; ++i) {
+			long id = base + (_seq.getAndIncrement() & SEQ_MASK);
+			if (_table.lockGet(id) == null) {
+				_table.put(id, new RawBean(type, 0, data != null ? data.clone() : new Octets()));
+				SContext.current().addOnCommit(() -> onScheduled(id));
+				return id;
+			}
+		}
+		throw new IllegalStateException("too many scheduled at fireTime: " + fireTime);
+	}
+
+	/**
+	 * 取消一个定时任务
+	 * <p>
+	 * 必须在事务中调用,会追加加锁任务记录,所以同lockGet一样应在修改记录前调用
+	 *
+	 * @return 任务是否存在(未运行)
+	 */
+	public boolean cancel(long id) throws InterruptedException {
+		if (_table.lockGet(id) == null)
+			return false;
+		_table.remove(id);
+		return true;
+	}
+
+	/** 获取任务的触发时间 */
+	public static long getFireTime(long id) {
+		return id >>> SEQ_BITS;
+	}
+
+	/** 获取已运行完成的任务数量 */
+	public long getFireCount() {
+		return _fireCount.sum();
+	}
+
+	/** 获取处理器异常或超时而重试的次数 */
+	public long getRetryCount() {
+		return _retryCount.sum();
+	}
+
+	/** 获取已加载到时间轮中等待触发的任务数量 */
+	public long getLoadedSize() {
+		return _loadedCount.get();
+	}
+
+	/** 获取新调度而未确认保存到数据库存储的任务数量 */
+	public synchronized int getPendingSize() {
+		return _pending.size();
+	}
+
+	private void onScheduled(long id) {
+		long fireTime = getFireTime(id);
+		synchronized (this) {
+			if (fireTime >= _loadedTime) { // 还没加载到此时间,等加载时合并
+				_pending.put(id, _dbm.getCommitCount());
+				return;
+			}
+		}
+		fire(fireTime, new long[] { id }, 0, 1);
+	}
+
+	/** 在时间轮中调度一批同一触发时间的任务 */
+	private void fire(long fireTime, long[] ids, int from, int to) {
+		_loadedCount.addAndGet(to - from);
+		_wheel.schedule(fireTime - System.currentTimeMillis(), () -> {
+			for (int i = from; i < to; ++i)
+				_dbm.submit(new FireProc(ids[i], 0));
+			_loadedCount.addAndGet(from - to);
+		});
+	}
+
+	private void addLoadKey(long id) {
+		int n = _loadCount;
+		if (n == _loadKeys.length)
+			_loadKeys = Arrays.copyOf(_loadKeys, n * 2);
+		_loadKeys[n] = id;
+		_loadCount = n + 1;
+	}
+
+	/**
+	 * 加载一次新进入时间窗口的任务
+	 *
+	 * @return 是否因达到加载数量上限而没有加载完整个时间窗口
+	 */
+	private boolean load() {
+		long end = System.currentTimeMillis() + _windowMs;
+		long begin;
+		synchronized (this) {
+			begin = _loadedTime;
+			// 清理确认已保存到数据库存储的任务,之后的遍历能得到它们
+			long commitCount = _dbm.getCommitCount();
+			for (Iterator<Long> it = _pending.values().iterator(); it.hasNext(); ) {
+				if (it.next() + 2 <= commitCount)
+					it.remove();
+			}
+		}
+		if (begin >= end)
+			return false;
+		_loadCount = 0;
+		long[] endTime = { end };
+		boolean limited;
+		_table.walk(k -> {
+			long t = getFireTime(k);
+			if (_loadCount >= _loadLimit && t > getFireTime(_loadKeys[_loadCount - 1])) { // 同一毫秒的任务要一起加载
+				endTime[0] = t;
+				return false;
+			}
+			addLoadKey(k);
+			return true;
+		}, begin << SEQ_BITS, (end << SEQ_BITS) - 1, true, false);
+		limited = (endTime[0] != end);
+		end = endTime[0];
+		synchronized (this) {
+			for (Iterator<Entry<Long, Long>> it = _pending.headMap(end << SEQ_BITS).entrySet().iterator(); it.hasNext(); ) {
+				addLoadKey(it.next().getKey());
+				it.remove();
+			}
+			_loadedTime = end;
+		}
+		int n = _loadCount;
+		if (n > 0) {
+			long[] ids = _loadKeys;
+			Arrays.sort(ids, 0, n);
+			int m = 1;
+			for (int i = 1; i < n; ++i) { // 去掉遍历和内存中重复的任务
+				if (ids[i] != ids[m - 1])
+					ids[m++] = ids[i];
+			}
+			ids = Arrays.copyOf(ids, m);
+			for (int i = 0, j; i < m; i = j) {
+				long t = getFireTime(ids[i]);
+				for (j = i + 1; j < m && getFireTime(ids[j]) == t; ++j) {
+				}
+				fire(t, ids, i, j);
+			}
+			if (_loadKeys.length > 65536)
+				_loadKeys = new long[256];
+		}
+		return limited;
+	}
+
+	private void runLoad() {
+		while (_loadThread == Thread.currentThread()) {
+			boolean more = false;
+			try {
+				more = load();
+			} catch (Throwable e) {
+				Log.error("ProcScheduler: load exception:", e);
+			}
+			if (!more || _loadedCount.get() >= _loadLimit) {
+				try {
+					Thread.sleep(LOAD_PERIOD);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package jane.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 按事务类统计的运行指标
+ * <p>
+ * 每个事务类一个实例,记录排队/等锁/运行/提交耗时的直方图,以及重做/撤销/异常/打断的次数和访问的记录数<br>
+ * 只在Const.procStatEnabled时统计. 可通过StatusServer的页面或"/metrics"(Prometheus文本格式)查看
+ */
+public final class ProcStat {
+	/**
+	 * 对数分桶的耗时直方图(纳秒)
+	 * <p>
+	 * 每个2的幂区间再线性分为8个子桶,相对误差不超过12.5%. 只用原子累加,不加锁
+	 */
+	public static final class Histogram {
+		private static final int SUB_BITS = 3;
+		private static final int SUB_COUNT = 1 << SUB_BITS;
+		private static final int BUCKET_COUNT = (64 - SUB_BITS) * SUB_COUNT;
+
+		private final AtomicLongArray _buckets = new AtomicLongArray(BUCKET_COUNT);
+		private final LongAdder _count = new LongAdder();
+		private final LongAdder _sum = new LongAdder();
+		private final AtomicLong _max = new AtomicLong();
+
+		private static int bucketIndex(long v) {
+			if (v < SUB_COUNT)
+				return (int)v;
+			int b = 63 - Long.numberOfLeadingZeros(v); // b >= SUB_BITS
+			return ((b - SUB_BITS + 1) << SUB_BITS) + (int)((v >>> (b - SUB_BITS)) & (SUB_COUNT - 1));
+		}
+
+		/** 获取某个桶的值上限(不包含) */
+		private static long bucketUpper(int idx) {
+			if (idx < SUB_COUNT)
+				return idx + 1;
+			int shift = (idx >> SUB_BITS) - 1;
+			return (long)(SUB_COUNT + (idx & (SUB_COUNT - 1)) + 1) << shift;
+		}
+
+		public void record(long ns) {
+			if (ns < 0)
+				ns = 0;
+			_buckets.getAndIncrement(bucketIndex(ns));
+			_count.increment();
+			_sum.add(ns);
+			for (long max; ns > (max = _max.get()); ) {
+				if (_max.compareAndSet(max, ns))
+					break;
+			}
+		}
+
+		public long getCount() {
+			return _count.sum();
+		}
+
+		/** 获取总耗时(纳秒) */
+		public long getSum() {
+			return _sum.sum();
+		}
+
+		/** 获取最大耗时(纳秒) */
+		public long getMax() {
+			return _max.get();
+		}
+
+		/** 获取平均耗时(纳秒). 没有记录时返回0 */
+		public long getMean() {
+			long n = getCount();
+			return n > 0 ? getSum() / n : 0;
+		}
+
+		/**
+		 * 获取百分位耗时的近似值(纳秒)
+		 *
+		 * @param q 百分位,范围[0,1]
+		 */
+		public long getPercentile(double q) {
+			long total = 0;
+			for (int i = 0; i < BUCKET_COUNT; ++i)
+				total += _buckets.get(i);
+			if (total <= 0)
+				return 0;
+			long rank = Math.max((long)Math.ceil(total * Math.min(Math.max(q, 0), 1)), 1);
+			long max = _max.get();
+			for (int i = 0; i < BUCKET_COUNT; ++i) {
+				if ((rank -= _buckets.get(i)) <= 0)
+					return Math.min(bucketUpper(i) - 1, max);
+			}
+			return max;
+		}
+
+		public void clear() {
+			for (int i = 0; i < BUCKET_COUNT; ++i)
+				_buckets.set(i, 0);
+			_count.reset();
+			_sum.reset();
+			_max.set(0);
+		}
+	}
+
+	static final int RESULT_OK = 0; // 正常提交
+	static final int RESULT_UNDO = 1; // 撤销
+	static final int RESULT_EXCEPTION = 2; // 异常
+	static final int RESULT_INTERRUPT = 3; // 被打断
+
+	private static final ConcurrentMap<Class<?>, ProcStat> _stats = Util.newConcurrentHashMap();
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+	private final String _name;
+	private final Histogram _queueTime = new Histogram(); // 提交到开始运行的排队耗时
+	private final Histogram _lockTime = new Histogram(); // 运行中等待加锁的耗时
+	private final Histogram _runTime = new Histogram(); // 运行耗时(不含等锁和提交,含重做)
+	private final Histogram _commitTime = new Histogram(); // 提交修改的耗时
+	private final LongAdder _count = new LongAdder(); // 运行次数
+	private final LongAdder _redoCount = new LongAdder(); // 重做次数
+	private final LongAdder _undoCount = new LongAdder(); // 撤销次数
+	private final LongAdder _exceptionCount = new LongAdder(); // 异常次数(不含打断)
+	private final LongAdder _interruptCount = new LongAdder(); // 被打断的次数
+	private final LongAdder _recordCount = new LongAdder(); // 成功提交时访问过的记录数
+
+	private ProcStat(Class<?> cls) {
+		_name = cls.getName();
+	}
+
+	/** 获取事务类对应的统计. 没有则创建 */
+	public static ProcStat get(Class<?> cls) {
+		ProcStat stat = _stats.get(cls);
+		return stat != null ? stat : _stats.computeIfAbsent(cls, ProcStat::new);
+	}
+
+	/** 获取全部事务类的统计 */
+	public static Collection<ProcStat> getAll() {
+		return _stats.values();
+	}
+
+	/** 清除全部事务类的统计 */
+	public static void clearAll() {
+		_stats.clear();
+	}
+
+	void record(long queueTime, long lockTime, long runTime, long commitTime, int redoCount, int result, int recordCount) {
+		_count.increment();
+		if (queueTime >= 0)
+			_queueTime.record(queueTime);
+		_lockTime.record(lockTime);
+		_runTime.record(runTime);
+		if (redoCount > 0)
+			_redoCount.add(redoCount);
+		switch (result) {
+		case RESULT_OK:
+			_commitTime.record(commitTime);
+			_recordCount.add(recordCount);
+			break;
+		case RESULT_UNDO:
+			_undoCount.increment();
+			break;
+		case RESULT_EXCEPTION:
+			_exceptionCount.increment();
+			break;
+		case RESULT_INTERRUPT:
+			_interruptCount.increment();
+			break;
+		}
+	}
+
+	/** 获取事务类名 */
+	public String getName() {
+		return _name;
+	}
+
+	public Histogram getQueueTime() {
+		return _queueTime;
+	}
+
+	public Histogram getLockTime() {
+		return _lockTime;
+	}
+
+	public Histogram getRunTime() {
+		return _runTime;
+	}
+
+	public Histogram getCommitTime() {
+		return _commitTime;
+	}
+
+	public long getCount() {
+		return _count.sum();
+	}
+
+	public long getRedoCount() {
+		return _redoCount.sum();
+	}
+
+	public long getUndoCount() {
+		return _undoCount.sum();
+	}
+
+	public long getExceptionCount() {
+		return _exceptionCount.sum();
+	}
+
+	public long getInterruptCount() {
+		return _interruptCount.sum();
+	}
+
+	public long getRecordCount() {
+		return _recordCount.sum();
+	}
+
+	private static void appendLabel(StringBuilder sb, String name) {
+		sb.append("{proc=\"");
+		for (int i = 0, n = name.length(); i < n; ++i) {
+			char c = name.charAt(i);
+			if (c == '"' || c == '\\')
+				sb.append('\\');
+			sb.append(c);
+		}
+		sb.append('"');
+	}
+
+	private static void appendSummary(StringBuilder sb, ArrayList<ProcStat> stats, String metric, String help, int type) {
+		sb.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(metric).append(" summary\n");
+		for (ProcStat stat : stats) {
+			Histogram h = type == 0 ? stat._queueTime : (type == 1 ? stat._lockTime : (type == 2 ? stat._runTime : stat._commitTime));
+			for (double q : QUANTILES) {
+				sb.append(metric);
+				appendLabel(sb, stat._name);
+				sb.append(",quantile=\"").append(q).append("\"} ").append(h.getPercentile(q) / 1e9).append('\n');
+			}
+			sb.append(metric).append("_sum");
+			appendLabel(sb, stat._name);
+			sb.append("} ").append(h.getSum() / 1e9).append('\n');
+			sb.append(metric).append("_count");
+			appendLabel(sb, stat._name);
+			sb.append("} ").append(h.getCount()).append('\n');
+		}
+	}
+
+	private static void appendCounter(StringBuilder sb, ArrayList<ProcStat> stats, String metric, String help, int type) {
+		sb.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(metric).append(" counter\n");
+		for (ProcStat stat : stats) {
+			sb.append(metric);
+			appendLabel(sb, stat._name);
+			sb.append("} ");
+			switch (type) {
+			//@formatter:off
+			case 0: sb.append(stat.getCount()); break;
+			case 1: sb.append(stat.getRedoCount()); break;
+			case 2: sb.append(stat.getUndoCount()); break;
+			case 3: sb.append(stat.getExceptionCount()); break;
+			case 4: sb.append(stat.getInterruptCount()); break;
+			default: sb.append(stat.getRecordCount()); break;
+			//@formatter:on
+			}
+			sb.append('\n');
+		}
+	}
+
+	/** 以Prometheus文本格式(0.0.4)输出全部事务类的统计 */
+	public static void genPrometheus(StringBuilder sb) {
+		ArrayList<ProcStat> stats = new ArrayList<>(_stats.values());
+		appendCounter(sb, stats, "jane_proc_total", "Number of procedure executions.", 0);
+		appendCounter(sb, stats, "jane_proc_redo_total", "Number of procedure redos.", 1);
+		appendCounter(sb, stats, "jane_proc_undo_total", "Number of procedure undos.", 2);
+		appendCounter(sb, stats, "jane_proc_exception_total", "Number of procedure exceptions.", 3);
+		appendCounter(sb, stats, "jane_proc_interrupt_total", "Number of procedure interruptions.", 4);
+		appendCounter(sb, stats, "jane_proc_records_total", "Number of records touched by committed procedures.", 5);
+		appendSummary(sb, stats, "jane_proc_queue_seconds", "Time from submit to run.", 0);
+		appendSummary(sb, stats, "jane_proc_lock_wait_seconds", "Time waiting for record locks.", 1);
+		appendSummary(sb, stats, "jane_proc_run_seconds", "Time running onProcess excluding lock wait.", 2);
+		appendSummary(sb, stats, "jane_proc_commit_seconds", "Time committing modified records.", 3);
+	}
+}
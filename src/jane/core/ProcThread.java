@@ -2,11 +2,15 @@ package jane.core;
 
 import java.lang.management.ManagementFactory;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import jane.core.Procedure.IndexLock;
 
 public class ProcThread extends Thread {
 	private static final ConcurrentLinkedQueue<ProcThread> _procThreads = new ConcurrentLinkedQueue<>(); // 当前运行的全部事务线程. 用于判断是否超时
+	private static final int DEADLOCK_CHECK_DEPTH = 64; // 死锁检测沿等待链查找的最大线程数量
 	private static volatile long _interruptCount; // 事务被打断的次数统计
+	private static final LongAdder _deadlockCount = new LongAdder(); // 检测到死锁的次数统计
 
 	final DBManager dbm; // 所属的DBManager实例
 	final IndexLock[] locks = new IndexLock[Const.maxLockPerProcedure]; // 当前线程已经加过的锁
@@ -14,7 +18,13 @@ public class ProcThread extends Thread {
 	final SContext sctx = new SContext(); // 当前线程上的安全修改的上下文
 	Procedure proc; // 当前运行的事务
 	long beginTime; // 当前/上个事务运行的起始时间. 用于判断是否超时
+	long lockWaitTime; // 当前事务累计等待加锁的时间(纳秒). 只在Const.procStatEnabled时统计
 	final long[] versions = new long[Const.maxLockPerProcedure]; // 当前线程已经加过的锁版本号(只在需要时临时设置,这里只是为了避免反复分配)
+	final IndexLock[] relocks = new IndexLock[Const.maxLockPerProcedure]; // 当前线程需要重新加锁的锁(只在需要时临时设置,这里只是为了避免反复分配)
+	volatile IndexLock waitLock; // 当前线程正在挂起等待的锁
+	ProcThread waitNext; // 等待同一个锁的下个线程. 由锁对象的synchronized保护
+	volatile boolean deadlockVictim; // 是否被选为死锁的牺牲者,需要放弃等待并重做事务
+	WorkStealingExecutor.Worker worker; // 所属的工作窃取线程池中的工作者. 不属于则为null
 
 	public ProcThread(DBManager dbm, String name) {
 		this(dbm, name, null);
@@ -26,65 +36,66 @@ public class ProcThread extends Thread {
 		_procThreads.add(this);
 	}
 
-/*
-	volatile IndexLock nowLock;
 
-	private static boolean mayDeadLock0(java.util.ArrayList<ProcThread> otherLockingThreads, IndexLock checkLock, IndexLock nowLock) {
-		for (ProcThread pt : otherLockingThreads) {
-			if (pt.nowLock != checkLock)
-				continue;
-			IndexLock[] ls = pt.locks;
-			for (int j = pt.lockCount - 1; j >= 0; --j) {
-				IndexLock lk = ls[j];
-				if (lk != null && lk != checkLock && (lk == nowLock || mayDeadLock0(otherLockingThreads, lk, nowLock)))
-					return true;
+	/**
+	 * 沿"等待的锁->持有锁的线程"查找等待链,判断是否回到当前线程形成循环等待
+	 * <p>
+	 * 只查找有限的深度. 并发修改时可能误判,误判只会引起不必要的重做
+	 *
+	 * @param victimLock 非null时,形成循环则在[0]输出牺牲者在等待链中等待的锁
+	 * @return 形成循环时返回循环中选出的牺牲者(已加锁最少的线程,相同时取线程ID最大的),否则返回null
+	 */
+	ProcThread findDeadlockVictim(IndexLock[] victimLock) {
+		ProcThread pt = this, victim = this;
+		IndexLock vLock = null;
+		for (int i = 0; i < DEADLOCK_CHECK_DEPTH; ++i) {
+			IndexLock lock = pt.waitLock;
+			if (lock == null)
+				return null;
+			if (pt == victim)
+				vLock = lock;
+			Thread t = lock.getOwner();
+			if (t == this) {
+				if (victimLock != null)
+					victimLock[0] = vLock;
+				return victim;
 			}
+			if (!(t instanceof ProcThread))
+				return null;
+			pt = (ProcThread)t;
+			int c = pt.lockCount, vc = victim.lockCount;
+			if (c < vc || c == vc && pt.getId() > victim.getId())
+				victim = pt;
 		}
-		return false;
+		return null;
 	}
 
-	private boolean mayDeadLock() {
-		if (lockCount < 1)
-			return false;
-		java.util.ArrayList<ProcThread> otherLockingThreads = new java.util.ArrayList<>();
-		for (ProcThread pt : _procThreads) {
-			if (pt != this && pt.nowLock != null)
-				otherLockingThreads.add(pt);
-		}
-		IndexLock[] ls = locks;
-		IndexLock nl = nowLock;
-		for (int i = lockCount - 1; i >= 0; --i) {
-			if (mayDeadLock0(otherLockingThreads, ls[i], nl))
-				return true;
+	/**
+	 * 当前线程准备挂起等待锁时检测死锁. 发现死锁则标记牺牲者,牺牲者会放弃等待并重做事务
+	 * <p>
+	 * 只在牺牲者仍在等待链中看到的锁时才标记,并在该锁的synchronized中检查和标记,避免牺牲者已离开等待后被误标记
+	 */
+	void checkDeadlock() {
+		IndexLock[] victimLock = new IndexLock[1];
+		ProcThread victim = findDeadlockVictim(victimLock);
+		if (victim != null) {
+			IndexLock lock = victimLock[0];
+			synchronized (lock) {
+				if (victim.waitLock != lock)
+					return;
+				victim.deadlockVictim = true;
+			}
+			_deadlockCount.increment();
+			if (victim != this)
+				LockSupport.unpark(victim);
 		}
-		return false;
 	}
 
-	void safeLock(IndexLock lock) throws InterruptedException {
-		nowLock = lock;
-		if (!lock.tryLock()) {
-			if (mayDeadLock())
-				Procedure.redo();
-			lock.lockInterruptibly();
-		}
-		nowLock = null;
-		locks[++lockCount] = lock;
+	/** 获取检测到死锁的次数统计 */
+	public static long getDeadlockCount() {
+		return _deadlockCount.sum();
 	}
 
-	void safeLock(IndexLock lock, int i) throws InterruptedException {
-		lockCount = i;
-		nowLock = lock;
-		if (!lock.tryLock()) {
-			if (mayDeadLock())
-				Procedure.redo();
-			lock.lockInterruptibly();
-		}
-		nowLock = null;
-		locks[i] = lock;
-		lockCount = i + 1;
-	}
-//*/
-
 	/** 获取事务被打断的次数统计 */
 	public static long getInterruptCount() {
 		return _interruptCount;
@@ -116,25 +127,31 @@ public class ProcThread extends Thread {
 											++_interruptCount;
 											pt.interrupt();
 										} else if (timeout > procDeadlockTimeout) {
-											if (!foundDeadlock) {
-												foundDeadlock = true;
-												tids = ManagementFactory.getThreadMXBean().findDeadlockedThreads();
-											}
-											if (tids != null) {
-												long tid = pt.getId();
-												for (int i = tids.length - 1; i >= 0; --i) {
-													if (tids[i] == tid) {
-														StringBuilder sb = new StringBuilder(2000);
-														sb.append("procedure({}) in {} interrupted for deadlock timeout({} ms): sid={}\n");
-														for (StackTraceElement ste : pt.getStackTrace())
-															sb.append("\tat ").append(ste).append('\n');
-														Log.error(sb.toString(), p.getClass().getName(), pt, timeout, p.getSid());
-														++_interruptCount;
-														pt.interrupt();
-														break;
+											boolean deadlock = (pt.findDeadlockVictim(null) != null); // 事务锁不是JVM可检测的锁,需要单独检测
+											if (!deadlock) {
+												if (!foundDeadlock) {
+													foundDeadlock = true;
+													tids = ManagementFactory.getThreadMXBean().findDeadlockedThreads();
+												}
+												if (tids != null) {
+													long tid = pt.getId();
+													for (int i = tids.length - 1; i >= 0; --i) {
+														if (tids[i] == tid) {
+															deadlock = true;
+															break;
+														}
 													}
 												}
 											}
+											if (deadlock) {
+												StringBuilder sb = new StringBuilder(2000);
+												sb.append("procedure({}) in {} interrupted for deadlock timeout({} ms): sid={}\n");
+												for (StackTraceElement ste : pt.getStackTrace())
+													sb.append("\tat ").append(ste).append('\n');
+												Log.error(sb.toString(), p.getClass().getName(), pt, timeout, p.getSid());
+												++_interruptCount;
+												pt.interrupt();
+											}
 										}
 									}
 								}
@@ -3,11 +3,15 @@ package jane.core;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import java.util.concurrent.atomic.AtomicReferenceArray;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Supplier;
 import jane.core.SContext.Safe;
+import jane.core.map.LongConcurrentHashMap;
 
 /** 事务的基类(抽象类) */
 public abstract class Procedure implements Runnable {
@@ -15,26 +19,263 @@ public abstract class Procedure implements Runnable {
 		void onException(Throwable e);
 	}
 
-	@SuppressWarnings("serial")
-	static final class IndexLock extends ReentrantLock {
-		final int index;
+	/**
+	 * 事务的记录锁
+	 * <p>
+	 * 不可重入. 锁字包含加锁标记,等待标记和版本号. 加锁失败时先自适应地自旋,再挂起到等待链表中,解锁时唤醒链表头的线程<br>
+	 * 挂起等待只用于ProcThread,等待时会把锁设置到ProcThread.waitLock上,并在首次挂起前检测死锁. 版本号在持有锁时修改记录后递增,用于重新加锁时检查记录是否被修改过
+	 */
+	static final class IndexLock {
+		private static final AtomicLongFieldUpdater<IndexLock> stateUpdater = AtomicLongFieldUpdater.newUpdater(IndexLock.class, "state");
+		private static final AtomicIntegerFieldUpdater<IndexLock> refCountUpdater = AtomicIntegerFieldUpdater.newUpdater(IndexLock.class, "refCount");
+		private static final long LOCKED = 1; // 锁字中的加锁标记
+		private static final long WAITING = 2; // 锁字中的等待标记,表示等待链表可能非空
+		private static final int VERSION_SHIFT = 2; // 锁字中版本号的起始位
+		private static final long VERSION_UNIT = 1L << VERSION_SHIFT;
+		private static final int SPIN_MIN = 16;
+		private static final int SPIN_MAX = Runtime.getRuntime().availableProcessors() > 1 ? 1024 : 0; // 单核时自旋没有意义
+
+		final int index; // 锁池模式下是锁池下标; 精确模式下是完整的lockId
+		private volatile long state; // 锁字
+		private volatile Thread owner; // 持有锁的线程
+		private ProcThread waitHead, waitTail; // 挂起等待的线程链表. 由synchronized(this)保护
+		private int spinLimit = SPIN_MAX; // 自适应的自旋次数,不要求精确
+		volatile int refCount; // 精确模式下的引用计数(加锁中和准备加锁的数量). 归零后此锁对象失效,不能再被引用
+		long holderKey; // 最近加锁者的keyOf(lockId), 0表示未知. 只用于统计锁池冲突,不要求精确
 
-		IndexLock(int i) {
+		IndexLock(int i, long version) {
 			index = i;
+			state = version << VERSION_SHIFT;
+		}
+
+		static long keyOf(int lockId) {
+			return 0x1_0000_0000L | (lockId & 0xffff_ffffL);
+		}
+
+		long version() {
+			return state >>> VERSION_SHIFT;
+		}
+
+		void incVersion() {
+			stateUpdater.getAndAdd(this, VERSION_UNIT);
+		}
+
+		void addVersion(long n) {
+			stateUpdater.getAndAdd(this, n << VERSION_SHIFT);
+		}
+
+		boolean isLocked() {
+			return (state & LOCKED) != 0;
+		}
+
+		boolean isHeldByCurrentThread() {
+			return owner == Thread.currentThread();
+		}
+
+		Thread getOwner() {
+			return owner;
+		}
+
+		boolean tryLock() {
+			long s = state;
+			if ((s & LOCKED) == 0 && stateUpdater.compareAndSet(this, s, s | LOCKED)) {
+				owner = Thread.currentThread();
+				return true;
+			}
+			return false;
+		}
+
+		/** 加锁,并在需要统计时累计当前线程等待加锁的耗时. 被打断时释放引用 */
+		void lockInterruptibly(ProcThread pt) throws InterruptedException {
+			lockInterruptibly(pt, 0);
+		}
+
+		/** @param key 加锁的keyOf(lockId), 0表示未知 */
+		void lockInterruptibly(ProcThread pt, long key) throws InterruptedException {
+			if (!tryLock()) {
+				if (key != 0 && _lockMap == null) { // 锁池模式下统计不同lockId共用锁引起的等待
+					long k = holderKey;
+					if (k != 0) {
+						_lockWaitCount.increment();
+						if (k != key)
+							_lockCollisionCount.increment();
+					}
+				}
+				try {
+					if (Const.procStatEnabled) {
+						long t = System.nanoTime();
+						lockSlow(pt);
+						pt.lockWaitTime += System.nanoTime() - t;
+					} else
+						lockSlow(pt);
+				} catch (Throwable e) { // 被打断或被选为死锁的牺牲者
+					releaseRef(this);
+					throw e;
+				}
+			}
+			holderKey = key;
+		}
+
+		private void lockSlow(ProcThread pt) throws InterruptedException {
+			int spins = spinLimit;
+			for (int i = 0; i < spins; ++i) {
+				Thread.onSpinWait();
+				if (tryLock()) {
+					if (spins < SPIN_MAX)
+						spinLimit = Math.min(spins * 2, SPIN_MAX); // 自旋成功则下次多自旋一些
+					return;
+				}
+			}
+			if (spins > SPIN_MIN)
+				spinLimit = Math.max(spins / 2, SPIN_MIN); // 自旋失败则下次少自旋一些
+			boolean queued = false, checked = false;
+			pt.waitLock = this;
+			try {
+				for (; ; ) {
+					if (tryLock())
+						return;
+					synchronized (this) {
+						if (!queued) {
+							if (waitTail != null)
+								waitTail.waitNext = pt;
+							else
+								waitHead = pt;
+							waitTail = pt;
+							queued = true;
+						}
+						long s = state;
+						if ((s & LOCKED) == 0 || ((s & WAITING) == 0 && !stateUpdater.compareAndSet(this, s, s | WAITING)))
+							continue; // 锁字有变化则重试加锁
+					}
+					if (!checked) { // 循环等待一定由最后开始等待的线程形成,所以每次等待只需检测一次
+						checked = true;
+						pt.checkDeadlock();
+					}
+					if (pt.deadlockVictim)
+						redo();
+					LockSupport.park(this); // 设置等待标记后,解锁时一定会唤醒链表头
+					if (Thread.interrupted())
+						throw new InterruptedException();
+				}
+			} finally {
+				if (queued)
+					dequeue(pt);
+				synchronized (this) { // 和checkDeadlock标记牺牲者互斥,离开等待后不会再被标记
+					pt.waitLock = null;
+					pt.deadlockVictim = false;
+				}
+			}
+		}
+
+		private void dequeue(ProcThread pt) {
+			ProcThread head;
+			synchronized (this) {
+				for (ProcThread p = waitHead, prev = null; p != null; prev = p, p = p.waitNext) {
+					if (p == pt) {
+						ProcThread next = p.waitNext;
+						if (prev != null)
+							prev.waitNext = next;
+						else
+							waitHead = next;
+						if (waitTail == p)
+							waitTail = prev;
+						p.waitNext = null;
+						break;
+					}
+				}
+				if ((head = waitHead) == null) {
+					for (long s; !stateUpdater.compareAndSet(this, s = state, s & ~WAITING); ) {
+					}
+					return;
+				}
+			}
+			if ((state & LOCKED) == 0) // 被打断而放弃加锁时,可能已经收到了唤醒,所以转交给下个等待的线程
+				LockSupport.unpark(head);
+		}
+
+		/** 解锁并释放引用 */
+		void unlock() {
+			unlockKeepRef();
+			releaseRef(this);
+		}
+
+		/** 只解锁而保留引用,用于之后重新加锁 */
+		void unlockKeepRef() {
+			if (owner != Thread.currentThread())
+				throw new IllegalMonitorStateException();
+			owner = null;
+			if ((stateUpdater.getAndAdd(this, -LOCKED) & WAITING) != 0) {
+				ProcThread head;
+				synchronized (this) {
+					head = waitHead;
+				}
+				if (head != null)
+					LockSupport.unpark(head);
+			}
 		}
 	}
 
 	private static final IndexLock[] _lockPool = new IndexLock[Const.lockPoolSize]; // 全局共享的锁池
-	private static final AtomicLongArray _lockVersions = new AtomicLongArray(Const.lockPoolSize); // 全局共享的锁版本号池
 	private static final AtomicReferenceArray<IndexLock> _lockCreator = new AtomicReferenceArray<>(_lockPool); // 锁池中锁的线程安全创造器(副本)
 	private static final int _lockMask = Const.lockPoolSize - 1; // 锁池下标的掩码
+	private static final int _lockIdMask = Const.lockExactKey ? -1 : _lockMask; // lockId转换成锁下标的掩码
+	private static final LongConcurrentHashMap<IndexLock> _lockMap = Const.lockExactKey ? new LongConcurrentHashMap<>(Const.lockPoolSize) : null; // 精确模式下按lockId索引的锁表
+	private static final AtomicLongArray _retiredVersions = Const.lockExactKey ? new AtomicLongArray(Const.lockPoolSize) : null; // 精确模式下已回收锁的最大版本号,作为新建锁的起始版本号
+	private static final LongAdder _lockWaitCount = new LongAdder(); // 锁池模式下能判断是否冲突的等待加锁次数
+	private static final LongAdder _lockCollisionCount = new LongAdder(); // 锁池模式下因不同lockId共用锁引起的等待加锁次数
+	private static final LongAdder _lateDropCount = new LongAdder(); // 开始运行时已超过截止时间而丢弃的次数
 	private static ExceptionHandler _defaultEh; // 默认的全局异常处理
 
+	public static final int PRIORITY_HIGH = 0; // 高优先级. 用于延迟敏感的事务,如玩家的操作
+	public static final int PRIORITY_NORMAL = 1; // 普通优先级. 默认
+	public static final int PRIORITY_LOW = 2; // 低优先级. 用于可延后或丢弃的事务,如日志和统计. 超过准入限制时会被拒绝
+	public static final int PRIORITY_COUNT = 3;
+
 	private ProcThread _pt; // 事务所属的线程上下文. 只在事务运行中有效
 	private Object _sid; // 事务绑定的SessionId
+	private long _submitTime; // 事务提交到线程池的时间(System.nanoTime). 0表示没有记录. 只用于统计
+	private long _deadline; // 事务的截止时间(System.currentTimeMillis). 0表示没有截止时间
+	private int _priority = PRIORITY_NORMAL; // 事务的优先级
 
 	static void incVersion(int lockId) {
-		_lockVersions.getAndIncrement(lockId & _lockMask);
+		LongConcurrentHashMap<IndexLock> lockMap = _lockMap;
+		if (lockMap == null) {
+			getLock(lockId & _lockMask).incVersion();
+			return;
+		}
+		for (; ; ) {
+			IndexLock lock = lockMap.get(lockId);
+			if (lock != null) {
+				lock.incVersion();
+				return;
+			}
+			// 精确模式下没有锁对象时递增已回收的版本号,之后新建的锁对象从此版本号开始. 递增后再检查一次,期间新建的锁对象也要递增
+			AtomicLongArray versions = _retiredVersions;
+			int i = lockId & _lockMask;
+			for (long r; !versions.compareAndSet(i, r = versions.get(i), r + 1); ) {
+			}
+			if (lockMap.get(lockId) == null)
+				return;
+		}
+	}
+
+	/** 获取锁池模式下能判断是否冲突的等待加锁次数 */
+	public static long getLockWaitCount() {
+		return _lockWaitCount.sum();
+	}
+
+	/**
+	 * 获取锁池模式下因不同lockId共用锁引起的等待加锁次数
+	 * <p>
+	 * 和{@link #getLockWaitCount}的比值即锁池的冲突率,比值较高时可加大锁池或开启精确锁模式(jane.lockExactKey)
+	 */
+	public static long getLockCollisionCount() {
+		return _lockCollisionCount.sum();
+	}
+
+	/** 获取开始运行时已超过截止时间而丢弃的事务次数 */
+	public static long getLateDropCount() {
+		return _lateDropCount.sum();
 	}
 
 	/** 设置当前默认的异常处理器 */
@@ -61,6 +302,66 @@ public abstract class Procedure implements Runnable {
 		_sid = sid;
 	}
 
+	public final int getPriority() {
+		return _priority;
+	}
+
+	/**
+	 * 设置事务的优先级
+	 * <p>
+	 * 应在提交前设置. 线程池按优先级分别排队,按权重(jane.procWeight*)分配调度机会. 绑定sid的事务仍按sid的提交顺序运行
+	 *
+	 * @param priority PRIORITY_HIGH/PRIORITY_NORMAL/PRIORITY_LOW
+	 */
+	public final void setPriority(int priority) {
+		if (priority < 0 || priority >= PRIORITY_COUNT)
+			throw new IllegalArgumentException("invalid priority: " + priority);
+		_priority = priority;
+	}
+
+	public final long getDeadline() {
+		return _deadline;
+	}
+
+	/**
+	 * 设置事务的截止时间
+	 * <p>
+	 * 开始运行时如果已超过截止时间,会调用onLate决定丢弃还是继续运行. 异步事务只在第一个阶段检查,已开始的事务不会在等待后被丢弃
+	 *
+	 * @param deadline 截止时间(System.currentTimeMillis). 0表示没有截止时间
+	 */
+	public final void setDeadline(long deadline) {
+		_deadline = deadline;
+	}
+
+	/** 判断现在是否已超过截止时间. 可在事务运行中判断,以降级处理 */
+	public final boolean isLate() {
+		long deadline = _deadline;
+		return deadline != 0 && System.currentTimeMillis() > deadline;
+	}
+
+	/**
+	 * 可由子类继承的超时处理
+	 * <p>
+	 * 在事务开始运行前已超过截止时间时调用,还没有加锁
+	 *
+	 * @return 是否继续运行. 默认返回false,丢弃此次运行
+	 */
+	protected boolean onLate() {
+		return false;
+	}
+
+	/** 是否正要运行异步事务的续接阶段. 续接阶段不检查截止时间 */
+	boolean isResuming() {
+		return false;
+	}
+
+	/** 记录事务提交到线程池的时间,用于统计排队耗时 */
+	final void setSubmitTime() {
+		if (Const.procStatEnabled)
+			_submitTime = System.nanoTime();
+	}
+
 	protected final void addOnCommit(Runnable r) {
 		_pt.sctx.addOnCommit(r);
 	}
@@ -85,6 +386,7 @@ public abstract class Procedure implements Runnable {
 	private static final class ProcException extends RuntimeException {
 		static final ProcException _redo = new ProcException();
 		static final ProcException _undo = new ProcException();
+		static final ProcException _await = new ProcException(); // 见AsyncProcedure
 
 		private ProcException() {
 			super(null, null, false, false);
@@ -99,6 +401,10 @@ public abstract class Procedure implements Runnable {
 		return ProcException._undo;
 	}
 
+	static RuntimeException awaitException() {
+		return ProcException._await;
+	}
+
 	public static void redo() {
 		throw ProcException._redo;
 	}
@@ -248,24 +554,155 @@ public abstract class Procedure implements Runnable {
 			throw new IllegalStateException("invalid unlock after any dirty record");
 	}
 
-	/** 根据lockId获取实际的锁对象 */
+	/** 判断当前事务是否有修改过的记录 */
+	final boolean hasDirty() {
+		ProcThread pt = _pt;
+		if (pt == null)
+			throw new IllegalStateException("invalid hasDirty out of procedure");
+		return pt.sctx.hasDirty();
+	}
+
+
+	/**
+	 * 获取当前事务已加的全部锁下标(升序)
+	 * <p>
+	 * 只能在事务中调用
+	 */
+	final int[] getLockIndexes() {
+		ProcThread pt = _pt;
+		if (pt == null)
+			throw new IllegalStateException("invalid getLockIndexes out of procedure");
+		int n = pt.lockCount;
+		IndexLock[] locks = pt.locks;
+		int[] lockIdxes = new int[n];
+		for (int i = 0; i < n; ++i)
+			lockIdxes[i] = locks[i].index;
+		return lockIdxes;
+	}
+
+	/**
+	 * 获取当前事务已加的全部锁的版本号(和getLockIndexes的顺序一致)
+	 * <p>
+	 * 只能在事务中调用
+	 */
+	final long[] getLockVersions() {
+		ProcThread pt = _pt;
+		if (pt == null)
+			throw new IllegalStateException("invalid getLockVersions out of procedure");
+		int n = pt.lockCount;
+		IndexLock[] locks = pt.locks;
+		long[] versions = new long[n];
+		for (int i = 0; i < n; ++i)
+			versions[i] = locks[i].version();
+		return versions;
+	}
+
+	/**
+	 * 重新加锁getLockIndexes获取的一组锁
+	 * <p>
+	 * 只能在事务中调用, 加锁前会释放当前事务已经加过的锁
+	 *
+	 * @param versions 之前获取的对应锁版本号
+	 * @return 加锁后的版本号是否和之前的一致. 不一致表示期间有其它事务修改过这些锁保护的记录
+	 */
+	final boolean relock(int[] lockIdxes, long[] versions) throws InterruptedException {
+		unlock();
+		ProcThread pt = _pt;
+		IndexLock[] locks = pt.locks;
+		int n = lockIdxes.length;
+		for (int i = 0; i < n; ++i) {
+			(locks[i] = getLock(lockIdxes[i])).lockInterruptibly(pt);
+			pt.lockCount = i + 1;
+		}
+		for (int i = 0; i < n; ++i) {
+			if (locks[i].version() != versions[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * 根据锁下标获取实际的锁对象
+	 * <p>
+	 * 精确模式下会增加锁对象的引用计数,之后必须加锁再解锁,或者调用releaseRef释放引用
+	 */
 	private static IndexLock getLock(int lockIdx) {
+		LongConcurrentHashMap<IndexLock> lockMap = _lockMap;
+		if (lockMap != null)
+			return getExactLock(lockMap, lockIdx);
 		IndexLock lock = _lockPool[lockIdx];
 		if (lock != null)
 			return lock;
-		if (!_lockCreator.compareAndSet(lockIdx, null, lock = new IndexLock(lockIdx))) // ensure init lock object only once
+		if (!_lockCreator.compareAndSet(lockIdx, null, lock = new IndexLock(lockIdx, 0))) // ensure init lock object only once
 			lock = _lockCreator.get(lockIdx); // should not be null
 		_lockPool[lockIdx] = lock; // still safe when overwritten
 		return lock;
 	}
 
+	private static IndexLock getExactLock(LongConcurrentHashMap<IndexLock> lockMap, int lockId) {
+		for (; ; ) {
+			IndexLock lock = lockMap.get(lockId);
+			if (lock == null) {
+				long v = _retiredVersions.get(lockId & _lockMask);
+				lock = new IndexLock(lockId, v);
+				lock.refCount = 1;
+				IndexLock old = lockMap.putIfAbsent(lockId, lock);
+				if (old == null) {
+					long v2 = _retiredVersions.get(lockId & _lockMask); // 放入锁表前并发incVersion递增的版本号要追上
+					if (v2 > v)
+						lock.addVersion(v2 - v);
+					return lock;
+				}
+				lock = old;
+			}
+			for (int r; (r = lock.refCount) > 0; ) {
+				if (IndexLock.refCountUpdater.compareAndSet(lock, r, r + 1))
+					return lock;
+			}
+			retireVersion(lock); // 引用计数已归零的锁对象已失效,帮忙回收后重试
+			lockMap.remove(lockId, lock);
+		}
+	}
+
+	/**
+	 * 记录失效锁对象的版本号
+	 * <p>
+	 * 同一lockId之后新建的锁对象从不小于此版本号开始,所以期间修改过的记录不会被误认为没有修改
+	 */
+	private static void retireVersion(IndexLock lock) {
+		AtomicLongArray versions = _retiredVersions;
+		int i = lock.index & _lockMask;
+		long v = lock.version();
+		for (long r; (r = versions.get(i)) < v && !versions.compareAndSet(i, r, v); ) {
+		}
+	}
+
+	/** 释放getLock获取的引用. 精确模式下引用计数归零时从锁表中移除 */
+	static void releaseRef(IndexLock lock) {
+		LongConcurrentHashMap<IndexLock> lockMap = _lockMap;
+		if (lockMap != null && IndexLock.refCountUpdater.decrementAndGet(lock) == 0) {
+			retireVersion(lock);
+			lockMap.remove(lock.index, lock);
+		}
+	}
+
 	/** 判断lockId是否已被获取到锁 */
 	public static boolean isLocked(int lockId) {
+		LongConcurrentHashMap<IndexLock> lockMap = _lockMap;
+		if (lockMap != null) {
+			IndexLock lock = lockMap.get(lockId);
+			return lock != null && lock.isLocked();
+		}
 		return getLock(lockId & _lockMask).isLocked();
 	}
 
 	/** 判断lockId是否已被当前线程获取到锁 */
 	public static boolean isLockedByCurrentThread(int lockId) {
+		LongConcurrentHashMap<IndexLock> lockMap = _lockMap;
+		if (lockMap != null) {
+			IndexLock lock = lockMap.get(lockId);
+			return lock != null && lock.isHeldByCurrentThread();
+		}
 		return getLock(lockId & _lockMask).isHeldByCurrentThread();
 	}
 
@@ -275,26 +712,32 @@ public abstract class Procedure implements Runnable {
 	 * 只用于内部提交数据
 	 */
 	static IndexLock tryLock(int lockId) {
-		IndexLock lock = getLock(lockId & _lockMask);
-		return lock.tryLock() ? lock : null;
+		IndexLock lock = getLock(lockId & _lockIdMask);
+		if (lock.tryLock()) {
+			lock.holderKey = IndexLock.keyOf(lockId);
+			return lock;
+		}
+		releaseRef(lock);
+		return null;
 	}
 
 	/**
 	 * 追加一个lockId的锁
 	 * <p>
 	 * 可能会引发已加锁的重排序并重锁,并检测两次锁之间是否有修改的序列号变化,如果有则抛出Redo异常<br>
-	 * 只能在事务中调用. 且此调用之前的事务不能有写操作
+	 * 只能在事务中调用. 且此调用之前的事务不能有写操作<br>
+	 * 开启jane.appendLockUnordered时不会重排序,而是直接等待加锁,出现循环等待时可能抛出Redo异常. 此时之前的事务可以有写操作
 	 */
 	protected final void appendLock(int lockId) throws InterruptedException {
 		final ProcThread pt = _pt;
 		if (pt == null)
 			throw new IllegalStateException("invalid appendLock out of procedure");
 		final IndexLock[] locks = pt.locks;
-		final int lockIdx = lockId & _lockMask;
+		final int lockIdx = lockId & _lockIdMask;
+		final long key = IndexLock.keyOf(lockId);
 		final int n = pt.lockCount;
-		IndexLock lock = getLock(lockIdx);
 		if (n == 0) {
-			(locks[0] = lock).lockInterruptibly(); // 之前没有加任何锁则可以直接加锁
+			(locks[0] = getLock(lockIdx)).lockInterruptibly(pt, key); // 之前没有加任何锁则可以直接加锁
 			pt.lockCount = 1;
 			return;
 		}
@@ -304,7 +747,7 @@ public abstract class Procedure implements Runnable {
 			if (lastLockIdx != lockIdx) {
 				if (n >= Const.maxLockPerProcedure)
 					throw new IllegalStateException("appendLock exceed: " + (n + 1) + '>' + Const.maxLockPerProcedure);
-				(locks[n] = lock).lockInterruptibly(); // 要加的锁比之前的锁都大则直接加锁
+				(locks[n] = getLock(lockIdx)).lockInterruptibly(pt, key); // 要加的锁比之前的锁都大则直接加锁
 				pt.lockCount = n + 1;
 			}
 			return;
@@ -320,33 +763,53 @@ public abstract class Procedure implements Runnable {
 		}
 		if (n >= Const.maxLockPerProcedure)
 			throw new IllegalStateException("appendLock exceed: " + (n + 1) + '>' + Const.maxLockPerProcedure);
-		if (lock.tryLock()) { // 尝试直接加锁,成功则直接按顺序插入锁
-			for (int j = n - 1; j >= i; --j)
-				locks[j + 1] = locks[j];
-			locks[i] = lock;
-			pt.lockCount = n + 1;
+		IndexLock lock = getLock(lockIdx);
+		if (lock.tryLock()) // 尝试直接加锁,成功则直接按顺序插入锁
+			lock.holderKey = key;
+		else if (Const.appendLockUnordered)
+			lock.lockInterruptibly(pt, key); // 直接等待加锁,出现循环等待时由死锁检测选出事务重做
+		else {
+			relockAppend(pt, lock, key, i);
 			return;
 		}
-		if (pt.sctx.hasDirty()) // 必须要解部分锁了,所以确保之前不能有修改操作
+		for (int j = n - 1; j >= i; --j)
+			locks[j + 1] = locks[j];
+		locks[i] = lock;
+		pt.lockCount = n + 1;
+	}
+
+	/** 解开比要追加的锁更大的锁,再按顺序加锁,并检测解锁期间是否有修改 */
+	private static void relockAppend(ProcThread pt, IndexLock lock, long key, int i) throws InterruptedException {
+		if (pt.sctx.hasDirty()) { // 必须要解部分锁了,所以确保之前不能有修改操作
+			releaseRef(lock);
 			throw new IllegalStateException("invalid appendLock after any dirty record");
+		}
+		final IndexLock[] locks = pt.locks;
 		final long[] versions = pt.versions;
+		final IndexLock[] relocks = pt.relocks;
+		final int n = pt.lockCount;
+		final int m = n - i;
 		for (int j = n - 1; j >= i; --j) {
-			lastLock = locks[j];
-			versions[j] = _lockVersions.get(lastLock.index);
-			lastLock.unlock(); // 尝试解所有比当前锁大的锁
+			IndexLock lastLock = locks[j];
+			versions[j - i] = lastLock.version();
+			lastLock.unlockKeepRef(); // 尝试解所有比当前锁大的锁
+			relocks[j - i] = lastLock;
 		}
 		pt.lockCount = i;
-		(locks[i] = lock).lockInterruptibly(); // 加当前锁
-		pt.lockCount = ++i;
-		for (; ; ) {
-			lock = locks[i];
-			(locks[i] = lastLock).lockInterruptibly(); // 继续加比当前锁大的所有锁
+		int k = 0;
+		try {
+			(locks[i] = lock).lockInterruptibly(pt, key); // 加当前锁
 			pt.lockCount = ++i;
-			if (_lockVersions.get(lastLock.index) != versions[i - 2])
-				redo(); // 发现解锁和加锁期间有版本变化则回滚重做
-			if (i > n)
-				return;
-			lastLock = lock;
+			while (k < m) {
+				IndexLock lastLock = relocks[k++];
+				(locks[i] = lastLock).lockInterruptibly(pt); // 继续加比当前锁大的所有锁
+				pt.lockCount = ++i;
+				if (lastLock.version() != versions[k - 1])
+					redo(); // 发现解锁和加锁期间有版本变化则回滚重做
+			}
+		} finally {
+			while (k < m)
+				releaseRef(relocks[k++]); // 中途被打断或重做时释放还没重新加锁的引用
 		}
 	}
 
@@ -359,7 +822,7 @@ public abstract class Procedure implements Runnable {
 	protected final void lock(int lockId) throws InterruptedException {
 		unlock();
 		ProcThread pt = _pt;
-		(pt.locks[0] = getLock(lockId & _lockMask)).lockInterruptibly();
+		(pt.locks[0] = getLock(lockId & _lockIdMask)).lockInterruptibly(pt, IndexLock.keyOf(lockId));
 		pt.lockCount = 1;
 	}
 
@@ -371,8 +834,8 @@ public abstract class Procedure implements Runnable {
 	 * 这个方法比加锁一组lockId的效率高
 	 */
 	protected final void lock(int lockId0, int lockId1) throws InterruptedException {
-		lockId0 &= _lockMask;
-		lockId1 &= _lockMask;
+		lockId0 &= _lockIdMask;
+		lockId1 &= _lockIdMask;
 		//@formatter:off
 		int t = Math.min(lockId0, lockId1); lockId1 ^= lockId0 ^ t; lockId0 = t;
 		//@formatter:on
@@ -381,10 +844,10 @@ public abstract class Procedure implements Runnable {
 		IndexLock[] locks = pt.locks;
 		int i = 0;
 		if (lockId0 != lockId1) {
-			(locks[0] = getLock(lockId0)).lockInterruptibly();
+			(locks[0] = getLock(lockId0)).lockInterruptibly(pt);
 			pt.lockCount = i = 1;
 		}
-		(locks[i] = getLock(lockId1)).lockInterruptibly();
+		(locks[i] = getLock(lockId1)).lockInterruptibly(pt);
 		pt.lockCount = ++i;
 	}
 
@@ -396,9 +859,9 @@ public abstract class Procedure implements Runnable {
 	 * 这个方法比加锁一组lockId的效率高
 	 */
 	protected final void lock(int lockId0, int lockId1, int lockId2) throws InterruptedException {
-		lockId0 &= _lockMask;
-		lockId1 &= _lockMask;
-		lockId2 &= _lockMask;
+		lockId0 &= _lockIdMask;
+		lockId1 &= _lockIdMask;
+		lockId2 &= _lockIdMask;
 		int t;
 		//@formatter:off
 		t = Math.min(lockId0, lockId1); lockId1 ^= lockId0 ^ t; lockId0 = t;
@@ -410,14 +873,14 @@ public abstract class Procedure implements Runnable {
 		IndexLock[] locks = pt.locks;
 		int i = 0;
 		if (lockId0 != lockId1) {
-			(locks[0] = getLock(lockId0)).lockInterruptibly();
+			(locks[0] = getLock(lockId0)).lockInterruptibly(pt);
 			pt.lockCount = i = 1;
 		}
 		if (lockId1 != lockId2) {
-			(locks[i] = getLock(lockId1)).lockInterruptibly();
+			(locks[i] = getLock(lockId1)).lockInterruptibly(pt);
 			pt.lockCount = ++i;
 		}
-		(locks[i] = getLock(lockId2)).lockInterruptibly();
+		(locks[i] = getLock(lockId2)).lockInterruptibly(pt);
 		pt.lockCount = ++i;
 	}
 
@@ -429,10 +892,10 @@ public abstract class Procedure implements Runnable {
 	 * 这个方法比加锁一组lockId的效率高
 	 */
 	protected final void lock(int lockId0, int lockId1, int lockId2, int lockId3) throws InterruptedException {
-		lockId0 &= _lockMask;
-		lockId1 &= _lockMask;
-		lockId2 &= _lockMask;
-		lockId3 &= _lockMask;
+		lockId0 &= _lockIdMask;
+		lockId1 &= _lockIdMask;
+		lockId2 &= _lockIdMask;
+		lockId3 &= _lockIdMask;
 		int t;
 		//@formatter:off
 		t = Math.min(lockId0, lockId1); lockId1 ^= lockId0 ^ t; lockId0 = t;
@@ -446,18 +909,18 @@ public abstract class Procedure implements Runnable {
 		IndexLock[] locks = pt.locks;
 		int i = 0;
 		if (lockId0 != lockId1) {
-			(locks[0] = getLock(lockId0)).lockInterruptibly();
+			(locks[0] = getLock(lockId0)).lockInterruptibly(pt);
 			pt.lockCount = i = 1;
 		}
 		if (lockId1 != lockId2) {
-			(locks[i] = getLock(lockId1)).lockInterruptibly();
+			(locks[i] = getLock(lockId1)).lockInterruptibly(pt);
 			pt.lockCount = ++i;
 		}
 		if (lockId2 != lockId3) {
-			(locks[i] = getLock(lockId2)).lockInterruptibly();
+			(locks[i] = getLock(lockId2)).lockInterruptibly(pt);
 			pt.lockCount = ++i;
 		}
-		(locks[i] = getLock(lockId3)).lockInterruptibly();
+		(locks[i] = getLock(lockId3)).lockInterruptibly(pt);
 		pt.lockCount = ++i;
 	}
 
@@ -469,11 +932,11 @@ public abstract class Procedure implements Runnable {
 	 * 这个方法比加锁一组lockId的效率高
 	 */
 	protected final void lock(int lockId0, int lockId1, int lockId2, int lockId3, int lockId4) throws InterruptedException {
-		lockId0 &= _lockMask;
-		lockId1 &= _lockMask;
-		lockId2 &= _lockMask;
-		lockId3 &= _lockMask;
-		lockId4 &= _lockMask;
+		lockId0 &= _lockIdMask;
+		lockId1 &= _lockIdMask;
+		lockId2 &= _lockIdMask;
+		lockId3 &= _lockIdMask;
+		lockId4 &= _lockIdMask;
 		int t;
 		//@formatter:off
 		t = Math.min(lockId1, lockId2); lockId2 ^= lockId1 ^ t; lockId1 = t;
@@ -491,22 +954,22 @@ public abstract class Procedure implements Runnable {
 		IndexLock[] locks = pt.locks;
 		int i = 0;
 		if (lockId0 != lockId1) {
-			(locks[0] = getLock(lockId0)).lockInterruptibly();
+			(locks[0] = getLock(lockId0)).lockInterruptibly(pt);
 			pt.lockCount = i = 1;
 		}
 		if (lockId1 != lockId2) {
-			(locks[i] = getLock(lockId1)).lockInterruptibly();
+			(locks[i] = getLock(lockId1)).lockInterruptibly(pt);
 			pt.lockCount = ++i;
 		}
 		if (lockId2 != lockId3) {
-			(locks[i] = getLock(lockId2)).lockInterruptibly();
+			(locks[i] = getLock(lockId2)).lockInterruptibly(pt);
 			pt.lockCount = ++i;
 		}
 		if (lockId3 != lockId4) {
-			(locks[i] = getLock(lockId3)).lockInterruptibly();
+			(locks[i] = getLock(lockId3)).lockInterruptibly(pt);
 			pt.lockCount = ++i;
 		}
-		(locks[i] = getLock(lockId4)).lockInterruptibly();
+		(locks[i] = getLock(lockId4)).lockInterruptibly(pt);
 		pt.lockCount = ++i;
 	}
 
@@ -518,12 +981,12 @@ public abstract class Procedure implements Runnable {
 	 * 这个方法比加锁一组lockId的效率高
 	 */
 	protected final void lock(int lockId0, int lockId1, int lockId2, int lockId3, int lockId4, int lockId5) throws InterruptedException {
-		lockId0 &= _lockMask;
-		lockId1 &= _lockMask;
-		lockId2 &= _lockMask;
-		lockId3 &= _lockMask;
-		lockId4 &= _lockMask;
-		lockId5 &= _lockMask;
+		lockId0 &= _lockIdMask;
+		lockId1 &= _lockIdMask;
+		lockId2 &= _lockIdMask;
+		lockId3 &= _lockIdMask;
+		lockId4 &= _lockIdMask;
+		lockId5 &= _lockIdMask;
 		int t;
 		//@formatter:off
 		t = Math.min(lockId1, lockId2); lockId2 ^= lockId1 ^ t; lockId1 = t;
@@ -544,26 +1007,26 @@ public abstract class Procedure implements Runnable {
 		IndexLock[] locks = pt.locks;
 		int i = 0;
 		if (lockId0 != lockId1) {
-			(locks[0] = getLock(lockId0)).lockInterruptibly();
+			(locks[0] = getLock(lockId0)).lockInterruptibly(pt);
 			pt.lockCount = i = 1;
 		}
 		if (lockId1 != lockId2) {
-			(locks[i] = getLock(lockId1)).lockInterruptibly();
+			(locks[i] = getLock(lockId1)).lockInterruptibly(pt);
 			pt.lockCount = ++i;
 		}
 		if (lockId2 != lockId3) {
-			(locks[i] = getLock(lockId2)).lockInterruptibly();
+			(locks[i] = getLock(lockId2)).lockInterruptibly(pt);
 			pt.lockCount = ++i;
 		}
 		if (lockId3 != lockId4) {
-			(locks[i] = getLock(lockId3)).lockInterruptibly();
+			(locks[i] = getLock(lockId3)).lockInterruptibly(pt);
 			pt.lockCount = ++i;
 		}
 		if (lockId4 != lockId5) {
-			(locks[i] = getLock(lockId4)).lockInterruptibly();
+			(locks[i] = getLock(lockId4)).lockInterruptibly(pt);
 			pt.lockCount = ++i;
 		}
-		(locks[i] = getLock(lockId5)).lockInterruptibly();
+		(locks[i] = getLock(lockId5)).lockInterruptibly(pt);
 		pt.lockCount = ++i;
 	}
 
@@ -590,16 +1053,16 @@ public abstract class Procedure implements Runnable {
 	 */
 	protected final void lock(int[] lockIds, int n) throws InterruptedException {
 		for (int i = 0; i < n; ++i)
-			lockIds[i] &= _lockMask;
+			lockIds[i] &= _lockIdMask;
 		Arrays.sort(lockIds, 0, n);
 		unlock();
 		ProcThread pt = _pt;
 		IndexLock[] locks = pt.locks;
-		for (int i = 0, j = 0, lastIdx = -1; i < n; ++i) {
+		for (int i = 0, j = 0, lastIdx = 0; i < n; ++i) {
 			int lockIdx = lockIds[i];
-			if (lockIdx != lastIdx) {
+			if (j == 0 || lockIdx != lastIdx) {
 				lastIdx = lockIdx;
-				(locks[j] = getLock(lockIdx)).lockInterruptibly();
+				(locks[j] = getLock(lockIdx)).lockInterruptibly(pt);
 				pt.lockCount = ++j;
 			}
 		}
@@ -649,11 +1112,30 @@ public abstract class Procedure implements Runnable {
 	 * @return 是否正常完成事务
 	 */
 	public boolean execute() {
+		if (_deadline != 0 && isLate() && !isResuming()) {
+			boolean run = false;
+			try {
+				run = onLate();
+			} catch (Throwable e) {
+				Log.error(e, "procedure.onLate exception: {}", toString());
+			}
+			if (!run) {
+				_lateDropCount.increment();
+				_submitTime = 0;
+				return false;
+			}
+		}
 		ProcThread pt = (ProcThread)Thread.currentThread();
+		pt.deadlockVictim = false; // 清除之前事务可能残留的死锁牺牲者标记
 		SContext sctx = pt.sctx;
 		DBManager dbm = pt.dbm;
+		boolean stat = Const.procStatEnabled;
+		long beginTime = 0, commitTime = 0;
+		int redoCount = 0, result = ProcStat.RESULT_EXCEPTION, recordCount = 0;
 		dbm.readLock();
 		try {
+			if (stat)
+				beginTime = System.nanoTime();
 			synchronized (this) {
 				if (pt.proc != null) // 防止嵌套调用
 					throw new IllegalStateException("procedure can not be reentrant: " + toString());
@@ -661,29 +1143,41 @@ public abstract class Procedure implements Runnable {
 					throw new IllegalStateException("procedure is running already: " + toString());
 				pt.beginTime = NetManager.getTimeSec();
 				pt.proc = this;
+				pt.lockWaitTime = 0;
 				_pt = pt;
 			}
 			for (int n = Const.maxProceduerRedo; ; ) {
 				try {
-					onProcess();
+					process();
 					break;
 				} catch (ProcException e) {
+					if (e == ProcException._await)
+						break; // 异步等待,没有修改,当作正常提交
 					sctx.rollback();
-					if (e == ProcException._undo)
+					if (e == ProcException._undo) {
+						result = ProcStat.RESULT_UNDO;
 						return false;
+					}
 				}
 				unlock();
+				++redoCount;
 				if (--n <= 0)
 					throw new Exception("procedure redo too many times=" + Const.maxProceduerRedo + ": " + toString());
 				Log.info("procedure redo({}): {}", Const.maxProceduerRedo - n, toString());
 			}
+			if (stat) {
+				recordCount = sctx.getRecordCount();
+				commitTime = System.nanoTime();
+			}
 			sctx.commit();
+			result = ProcStat.RESULT_OK;
 			return true;
 		} catch (Throwable e) {
 			try {
-				if (e instanceof InterruptedException)
+				if (e instanceof InterruptedException) {
+					result = ProcStat.RESULT_INTERRUPT;
 					Log.info("procedure canceled: {}", toString());
-				else
+				} else
 					onException(e);
 			} catch (Throwable ex) {
 				Log.error(ex, "procedure.onException exception: {}", toString());
@@ -692,7 +1186,8 @@ public abstract class Procedure implements Runnable {
 			}
 			return false;
 		} finally { // 以下代码绝不能抛出异常
-			if (_pt != null)
+			boolean running = (_pt != null);
+			if (running)
 				unlock();
 			synchronized (this) {
 				_pt = null;
@@ -701,9 +1196,30 @@ public abstract class Procedure implements Runnable {
 				Thread.interrupted(); // 清除interrupted标识
 			}
 			dbm.readUnlock();
+			if (stat && running)
+				recordStat(pt, beginTime, commitTime, redoCount, result, recordCount);
 		}
 	}
 
+	private void recordStat(ProcThread pt, long beginTime, long commitTime, int redoCount, int result, int recordCount) {
+		try {
+			long now = System.nanoTime();
+			long submitTime = _submitTime;
+			_submitTime = 0;
+			long lockTime = pt.lockWaitTime;
+			long endRunTime = (commitTime != 0 ? commitTime : now);
+			ProcStat.get(getClass()).record(submitTime != 0 ? beginTime - submitTime : -1, lockTime,
+					endRunTime - beginTime - lockTime, commitTime != 0 ? now - commitTime : 0, redoCount, result, recordCount);
+		} catch (Throwable e) {
+			Log.error("procedure recordStat exception:", e);
+		}
+	}
+
+	/** 事务每次(包括重做)运行的入口. 默认直接调用onProcess */
+	void process() throws Exception {
+		onProcess();
+	}
+
 	/** 由子类实现的事务 */
 	protected abstract void onProcess() throws Exception;
 
@@ -1,5 +1,6 @@
 package jane.core;
 
+import java.lang.reflect.Field;
 import java.util.Objects;
 
 /**
@@ -129,6 +130,16 @@ public final class RawBean extends Bean<RawBean> {
 		return os.unmarshal(_data);
 	}
 
+	@Override
+	public Safe safe(SContext.Safe<?> parent) {
+		return new Safe(this, parent);
+	}
+
+	@Override
+	public Safe safe() {
+		return new Safe(this, null);
+	}
+
 	@Override
 	public RawBean clone() {
 		return new RawBean(_type, serial(), _data != null ? _data.clone() : null);
@@ -171,4 +182,50 @@ public final class RawBean extends Bean<RawBean> {
 	public String toString() {
 		return toStringBuilder(new StringBuilder(24)).toString();
 	}
+
+	public static final class Safe extends SContext.Safe<RawBean> {
+		private static final Field FIELD_type;
+		private static final Field FIELD_data;
+
+		static {
+			try {
+				Class<RawBean> c = RawBean.class;
+				FIELD_type = c.getDeclaredField("_type");
+				FIELD_type.setAccessible(true);
+				FIELD_data = c.getDeclaredField("_data");
+				FIELD_data.setAccessible(true);
+			} catch (Exception e) {
+				throw new Error(e);
+			}
+		}
+
+		private Safe(RawBean bean, SContext.Safe<?> parent) {
+			super(bean, parent);
+		}
+
+		public int getType() {
+			checkLock();
+			return _bean.getType();
+		}
+
+		public void setType(int type) {
+			SContext s = safeContext();
+			if (s != null)
+				s.addOnRollback(new SBase.SInteger(_bean, FIELD_type, _bean.getType()));
+			_bean.setType(type);
+		}
+
+		public Octets getData() {
+			checkLock();
+			Octets data = _bean.getData();
+			return data != null ? data.clone() : null;
+		}
+
+		public void setData(Octets data) {
+			SContext s = safeContext();
+			if (s != null)
+				s.addOnRollback(new SBase.SOctets(_bean, FIELD_data, _bean.getData(), false));
+			_bean.setData(data != null ? data.clone() : null);
+		}
+	}
 }
@@ -1,6 +1,7 @@
 package jane.core;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
  * 安全修改的上下文类
@@ -12,7 +13,8 @@ public final class SContext {
 	public abstract static class Safe<B extends Bean<B>> implements Comparable<B>, Cloneable {
 		protected final B _bean;
 		private final Safe<?> _parent;
-		private Rec _rec;
+		private RecordBase _rec;
+		private int _recGen; // 设置_rec时_rec的回收代数. 不一致表示记录已被回收,当前封装已过期
 		private Runnable _onDirty;
 		private boolean _dirty;
 		private boolean _fullUndo;
@@ -33,22 +35,29 @@ public final class SContext {
 
 		public Rec record() {
 			for (Safe<?> s = this; ; ) {
-				Rec rec = s._rec;
-				if (rec != null)
+				RecordBase rec = s._rec;
+				if (rec != null) {
+					if (rec._gen != s._recGen)
+						return null;
+					rec._exposed = true; // 可能被外部持有,不能再回收
 					return rec;
+				}
 				if ((s = s._parent) == null)
 					return null;
 			}
 		}
 
-		void record(Rec rec) {
+		void record(RecordBase rec) {
 			_rec = rec;
+			_recGen = rec._gen;
 		}
 
 		public void checkLock() {
 			for (Safe<?> s = this; ; ) {
-				Rec rec = s._rec;
+				RecordBase rec = s._rec;
 				if (rec != null) {
+					if (rec._gen != s._recGen)
+						throwExpiredAccess();
 					rec.checkLock();
 					return;
 				}
@@ -160,19 +169,39 @@ public final class SContext {
 		void checkLock();
 	}
 
-	static final class Record<K, V extends Bean<V>, S extends Safe<V>> implements Rec {
-		private final Table<K, V, S> _table;
-		private final K _key;
-		private final S _value;
-		private final int _lockId;
+	/** 记录的基类. 事务中访问的记录对象由SContext回收复用 */
+	abstract static class RecordBase implements Rec {
+		int _gen; // 回收代数. 每次回收时递增,使之前关联的Safe封装过期
+		boolean _exposed; // 是否已通过Safe.record()暴露给外部. 暴露过的记录不再回收复用
+	}
+
+	static final class Record<K, V extends Bean<V>, S extends Safe<V>> extends RecordBase {
+		private Table<K, V, S> _table;
+		private K _key;
+		private S _value;
+		private int _lockId;
+
+		Record() {
+		}
 
 		Record(Table<K, V, S> table, K key, S value) {
+			set(table, key, value);
+		}
+
+		void set(Table<K, V, S> table, K key, S value) {
 			_table = table;
 			_key = key;
 			_value = value;
 			_lockId = table.lockId(key);
 		}
 
+		void clear() {
+			++_gen;
+			_table = null;
+			_key = null;
+			_value = null;
+		}
+
 		@Override
 		public TableBase<V> getTable() {
 			return _table;
@@ -200,19 +229,32 @@ public final class SContext {
 		}
 	}
 
-	static final class RecordLong<V extends Bean<V>, S extends Safe<V>> implements Rec {
-		private final TableLong<V, S> _table;
-		private final long _key;
-		private final S _value;
-		private final int _lockId;
+	static final class RecordLong<V extends Bean<V>, S extends Safe<V>> extends RecordBase {
+		private TableLong<V, S> _table;
+		private long _key;
+		private S _value;
+		private int _lockId;
+
+		RecordLong() {
+		}
 
 		RecordLong(TableLong<V, S> table, long key, S value) {
+			set(table, key, value);
+		}
+
+		void set(TableLong<V, S> table, long key, S value) {
 			_table = table;
 			_key = key;
 			_value = value;
 			_lockId = table.lockId(key);
 		}
 
+		void clear() {
+			++_gen;
+			_table = null;
+			_value = null;
+		}
+
 		@Override
 		public TableBase<V> getTable() {
 			return _table;
@@ -240,8 +282,17 @@ public final class SContext {
 		}
 	}
 
-	private final ArrayList<Record<?, ?, ?>> _records = new ArrayList<>();
-	private final ArrayList<RecordLong<?, ?>> _recordLongs = new ArrayList<>();
+	private static final int INDEX_THRESHOLD = 8; // 访问的记录数超过此值时建立索引,否则线性查找
+	private static final int ARENA_MAX = 1024; // 事务结束后最多保留复用的记录对象数量
+
+	private Record<?, ?, ?>[] _records = new Record<?, ?, ?>[16]; // 当前事务访问的记录. 下标_recordCount及之后的是可复用的记录对象
+	private RecordLong<?, ?>[] _recordLongs = new RecordLong<?, ?>[16]; // 同上
+	private int _recordCount;
+	private int _recordLongCount;
+	private int[] _recordIndex; // _records的开放寻址索引,元素是下标+1,0表示空. 只在_recordIndexed时有效
+	private int[] _recordLongIndex; // 同上
+	private boolean _recordIndexed;
+	private boolean _recordLongIndexed;
 	private final ArrayList<Runnable> _onRollbacks = new ArrayList<>();
 	private final ArrayList<Runnable> _onCommits = new ArrayList<>();
 	private Throwable _illegalException;
@@ -257,6 +308,12 @@ public final class SContext {
 		throw error;
 	}
 
+	static void throwExpiredAccess() {
+		IllegalAccessError error = new IllegalAccessError("access expired record! Safe object can not be used after its procedure");
+		current()._illegalException = error;
+		throw error;
+	}
+
 	@SuppressWarnings("unchecked")
 	static <V, S> S safe(Safe<?> parent, V v) {
 		return (S)(v instanceof Bean ? ((Bean<?>)v).safe(parent) : v);
@@ -285,58 +342,221 @@ public final class SContext {
 		return v;
 	}
 
+	private static int indexHash(int lockId) {
+		int h = lockId * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	/** 把下标为i的记录加入索引. 索引中相同的记录按加入顺序排在探测序列中,所以查找总是得到最早加入的记录 */
+	private static void indexAdd(int[] index, int lockId, int i) {
+		int mask = index.length - 1;
+		int j = indexHash(lockId) & mask;
+		while (index[j] != 0)
+			j = (j + 1) & mask;
+		index[j] = i + 1;
+	}
+
+	/** 记录数超过阈值时建立或扩大索引,保持装载率不超过1/2 */
+	private void indexRecords(int n) {
+		int[] index = _recordIndex;
+		if (_recordIndexed && n * 2 <= index.length)
+			return;
+		int cap = Integer.highestOneBit(n * 4 - 1);
+		if (index == null || index.length < cap)
+			_recordIndex = index = new int[cap];
+		else
+			Arrays.fill(index, 0);
+		Record<?, ?, ?>[] records = _records;
+		for (int i = 0; i < n; ++i)
+			indexAdd(index, records[i]._lockId, i);
+		_recordIndexed = true;
+	}
+
+	private void indexRecordLongs(int n) {
+		int[] index = _recordLongIndex;
+		if (_recordLongIndexed && n * 2 <= index.length)
+			return;
+		int cap = Integer.highestOneBit(n * 4 - 1);
+		if (index == null || index.length < cap)
+			_recordLongIndex = index = new int[cap];
+		else
+			Arrays.fill(index, 0);
+		RecordLong<?, ?>[] records = _recordLongs;
+		for (int i = 0; i < n; ++i)
+			indexAdd(index, records[i]._lockId, i);
+		_recordLongIndexed = true;
+	}
+
+	/** 查找当前事务中最早访问的指定记录,返回下标,找不到返回-1 */
+	private <K> int findRecord(Table<K, ?, ?> table, K key) {
+		Record<?, ?, ?>[] records = _records;
+		if (!_recordIndexed) {
+			for (int i = 0, n = _recordCount; i < n; ++i) {
+				Record<?, ?, ?> r = records[i];
+				if (r._key.equals(key) && r._table == table)
+					return i;
+			}
+			return -1;
+		}
+		int[] index = _recordIndex;
+		int mask = index.length - 1;
+		for (int j = indexHash(table.lockId(key)) & mask; ; j = (j + 1) & mask) {
+			int i = index[j] - 1;
+			if (i < 0)
+				return -1;
+			Record<?, ?, ?> r = records[i];
+			if (r._key.equals(key) && r._table == table)
+				return i;
+		}
+	}
+
+	private int findRecord(TableLong<?, ?> table, long key) {
+		RecordLong<?, ?>[] records = _recordLongs;
+		if (!_recordLongIndexed) {
+			for (int i = 0, n = _recordLongCount; i < n; ++i) {
+				RecordLong<?, ?> r = records[i];
+				if (r._key == key && r._table == table)
+					return i;
+			}
+			return -1;
+		}
+		int[] index = _recordLongIndex;
+		int mask = index.length - 1;
+		for (int j = indexHash(table.lockId(key)) & mask; ; j = (j + 1) & mask) {
+			int i = index[j] - 1;
+			if (i < 0)
+				return -1;
+			RecordLong<?, ?> r = records[i];
+			if (r._key == key && r._table == table)
+				return i;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
 	<K, V extends Bean<V>, S extends Safe<V>> S addRecord(Table<K, V, S> table, K key, V value) {
-		@SuppressWarnings("unchecked")
+		int i = findRecord(table, key);
+		if (i >= 0) {
+			S s = (S)_records[i]._value;
+			if (s._bean == value) // 同一事务中重复获取同一记录时返回同一个封装
+				return s;
+		}
 		S s = (S)value.safe(null);
-		Record<K, V, S> rec = new Record<>(table, key, s);
+		int n = _recordCount;
+		Record<?, ?, ?>[] records = _records;
+		if (n == records.length)
+			_records = records = Arrays.copyOf(records, n * 2);
+		Record<K, V, S> rec = (Record<K, V, S>)records[n];
+		if (rec == null)
+			records[n] = rec = new Record<>();
+		rec.set(table, key, s);
 		s.record(rec);
-		_records.add(rec);
+		_recordCount = ++n;
+		if (_recordIndexed && n * 2 <= _recordIndex.length)
+			indexAdd(_recordIndex, rec._lockId, n - 1);
+		else if (n > INDEX_THRESHOLD)
+			indexRecords(n);
 		return s;
 	}
 
+	@SuppressWarnings("unchecked")
 	<V extends Bean<V>, S extends Safe<V>> S addRecord(TableLong<V, S> table, long key, V value) {
-		@SuppressWarnings("unchecked")
+		int i = findRecord(table, key);
+		if (i >= 0) {
+			S s = (S)_recordLongs[i]._value;
+			if (s._bean == value) // 同一事务中重复获取同一记录时返回同一个封装
+				return s;
+		}
 		S s = (S)value.safe(null);
-		RecordLong<V, S> rec = new RecordLong<>(table, key, s);
+		int n = _recordLongCount;
+		RecordLong<?, ?>[] records = _recordLongs;
+		if (n == records.length)
+			_recordLongs = records = Arrays.copyOf(records, n * 2);
+		RecordLong<V, S> rec = (RecordLong<V, S>)records[n];
+		if (rec == null)
+			records[n] = rec = new RecordLong<>();
+		rec.set(table, key, s);
 		s.record(rec);
-		_recordLongs.add(rec);
+		_recordLongCount = ++n;
+		if (_recordLongIndexed && n * 2 <= _recordLongIndex.length)
+			indexAdd(_recordLongIndex, rec._lockId, n - 1);
+		else if (n > INDEX_THRESHOLD)
+			indexRecordLongs(n);
 		return s;
 	}
 
 	@SuppressWarnings("unchecked")
 	<K, V extends Bean<V>, S extends Safe<V>> S getRecord(Table<K, V, S> table, K key) {
-		for (int i = 0, n = _records.size(); i < n; ++i) {
-			Record<?, ?, ?> r = _records.get(i);
-			if (r.getKey().equals(key) && r.getTable() == table)
-				return (S)r.getValue();
-		}
-		return null;
+		int i = findRecord(table, key);
+		return i >= 0 ? (S)_records[i]._value : null;
 	}
 
 	@SuppressWarnings("unchecked")
 	<V extends Bean<V>, S extends Safe<V>> S getRecord(TableLong<V, S> table, long key) {
-		for (int i = 0, n = _recordLongs.size(); i < n; ++i) {
-			RecordLong<?, ?> r = _recordLongs.get(i);
-			if (r.getKeyLong() == key && r.getTable() == table)
-				return (S)r.getValue();
+		int i = findRecord(table, key);
+		return i >= 0 ? (S)_recordLongs[i]._value : null;
+	}
+
+	/** 回收当前事务访问的全部记录对象 */
+	private void clearRecords() {
+		int n = _recordCount;
+		if (n > 0) {
+			Record<?, ?, ?>[] records = _records;
+			for (int i = 0; i < n; ++i) {
+				Record<?, ?, ?> r = records[i];
+				if (r._exposed)
+					records[i] = null;
+				else
+					r.clear();
+			}
+			if (records.length > ARENA_MAX)
+				_records = Arrays.copyOf(records, ARENA_MAX);
+			_recordCount = 0;
+			if (_recordIndexed) {
+				_recordIndexed = false;
+				if (_recordIndex.length > ARENA_MAX * 2)
+					_recordIndex = null;
+			}
+		}
+		n = _recordLongCount;
+		if (n > 0) {
+			RecordLong<?, ?>[] records = _recordLongs;
+			for (int i = 0; i < n; ++i) {
+				RecordLong<?, ?> r = records[i];
+				if (r._exposed)
+					records[i] = null;
+				else
+					r.clear();
+			}
+			if (records.length > ARENA_MAX)
+				_recordLongs = Arrays.copyOf(records, ARENA_MAX);
+			_recordLongCount = 0;
+			if (_recordLongIndexed) {
+				_recordLongIndexed = false;
+				if (_recordLongIndex.length > ARENA_MAX * 2)
+					_recordLongIndex = null;
+			}
 		}
-		return null;
 	}
 
 	public boolean hasDirty() {
 		if (_hasDirty)
 			return true;
-		for (int i = 0, n = _records.size(); i < n; ++i) {
-			if (_records.get(i)._value.isDirty())
+		for (int i = 0, n = _recordCount; i < n; ++i) {
+			if (_records[i]._value.isDirty())
 				return true;
 		}
-		for (int i = 0, n = _recordLongs.size(); i < n; ++i) {
-			if (_recordLongs.get(i)._value.isDirty())
+		for (int i = 0, n = _recordLongCount; i < n; ++i) {
+			if (_recordLongs[i]._value.isDirty())
 				return true;
 		}
 		return false;
 	}
 
+	/** 获取当前事务访问过的记录数 */
+	int getRecordCount() {
+		return _recordCount + _recordLongCount;
+	}
+
 	public void addOnCommit(Runnable r) {
 		_onCommits.add(r);
 	}
@@ -355,28 +575,26 @@ public final class SContext {
 			throw new RuntimeException(_illegalException);
 		_onRollbacks.clear();
 
-		int n = _records.size();
+		int n = _recordCount;
 		if (n > 0) {
 			int i = 0;
 			do {
-				Record<?, ?, ?> r = _records.get(i);
+				Record<?, ?, ?> r = _records[i];
 				if (r._value.isDirty())
 					r._table.modify(r._key, r._value._bean);
 			}
 			while (++i < n);
-			_records.clear();
 		}
 
-		n = _recordLongs.size();
+		n = _recordLongCount;
 		if (n > 0) {
 			int i = 0;
 			do {
-				RecordLong<?, ?> r = _recordLongs.get(i);
+				RecordLong<?, ?> r = _recordLongs[i];
 				if (r._value.isDirty())
 					r._table.modify(r._key, r._value._bean);
 			}
 			while (++i < n);
-			_recordLongs.clear();
 		}
 
 		n = _onCommits.size();
@@ -393,12 +611,12 @@ public final class SContext {
 			_onCommits.clear();
 		}
 
+		clearRecords(); // 提交回调中可能还会访问记录,所以最后回收
 		_hasDirty = false;
 	}
 
 	void rollback() {
-		_records.clear();
-		_recordLongs.clear();
+		clearRecords();
 		_onCommits.clear();
 
 		for (int i = _onRollbacks.size(); --i >= 0; ) {
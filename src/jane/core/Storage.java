@@ -111,6 +111,36 @@ public interface Storage extends Closeable {
 		boolean onWalk(long k, byte[] v) throws Exception;
 	}
 
+	/**
+	 * 读取时升级了旧版本记录的回调接口
+	 * <p>
+	 * 适用于key是非id类型的表
+	 */
+	interface UpgradeHandler<K, V extends Bean<V>> {
+		/**
+		 * 在读取记录的线程中调用,此时记录value还没返回
+		 *
+		 * @param k 记录的key
+		 * @param v 升级后的记录value
+		 */
+		void onUpgrade(K k, V v);
+	}
+
+	/**
+	 * 读取时升级了旧版本记录的回调接口
+	 * <p>
+	 * 适用于key是id类型的表
+	 */
+	interface UpgradeLongHandler<V extends Bean<V>> {
+		/**
+		 * 在读取记录的线程中调用,此时记录value还没返回
+		 *
+		 * @param k 记录的key
+		 * @param v 升级后的记录value
+		 */
+		void onUpgrade(long k, V v);
+	}
+
 	final class Helper {
 		private Helper() {
 		}
@@ -221,6 +251,16 @@ public interface Storage extends Closeable {
 		 * @return 返回true表示已完全遍历, 返回false表示被用户中断
 		 */
 		boolean walkRaw(WalkRawHandler<K> handler, K from, K to, boolean inclusive, boolean reverse);
+
+		/**
+		 * 设置记录value的版本迁移
+		 * <p>
+		 * 之后写入的记录使用迁移的当前版本,读取到旧版本的记录时升级并回调handler
+		 *
+		 * @param migration 版本迁移. null表示不使用,只能读写版本0的记录
+		 * @param handler   升级的回调. 可以为null
+		 */
+		void setMigration(BeanMigration<V> migration, UpgradeHandler<K, V> handler);
 	}
 
 	interface TableLong<V extends Bean<V>> extends TableBase {
@@ -295,6 +335,16 @@ public interface Storage extends Closeable {
 		 * @return 返回true表示已完全遍历, 返回false表示被用户中断
 		 */
 		boolean walkRaw(WalkLongRawHandler handler, long from, long to, boolean inclusive, boolean reverse);
+
+		/**
+		 * 设置记录value的版本迁移
+		 * <p>
+		 * 之后写入的记录使用迁移的当前版本,读取到旧版本的记录时升级并回调handler
+		 *
+		 * @param migration 版本迁移. null表示不使用,只能读写版本0的记录
+		 * @param handler   升级的回调. 可以为null
+		 */
+		void setMigration(BeanMigration<V> migration, UpgradeLongHandler<V> handler);
 	}
 
 	/**
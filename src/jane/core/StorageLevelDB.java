@@ -5,11 +5,14 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongPredicate;
 
 /**
  * LevelDB存储引擎的实现
@@ -23,6 +26,8 @@ public final class StorageLevelDB implements Storage {
 	private final Octets _writeBuf = new Octets(0x10000); // 提交中的写缓冲区
 	private final Map<Slice, Slice> _writeMap = Util.newConcurrentHashMap(); // 提交中的写记录
 	private final FastRWLock _writeBufLock = new FastRWLock(); // 访问_writeBuf和_writeMap的读写锁
+	private final FastRWLock _compactLock = new FastRWLock(); // 压缩时加读锁,关闭数据库时加写锁,使压缩可以和提交备份并发
+	private final ConcurrentMap<Integer, TableStat> _tableStats = Util.newConcurrentHashMap(); // 所有打开过的表的写统计
 	private long _db; // LevelDB的数据库对象句柄
 	private File _dbFile; // 当前数据库的文件
 	private final SimpleDateFormat _sdf = new SimpleDateFormat("yy-MM-dd-HH-mm-ss"); // 备份文件后缀名的时间格式
@@ -93,16 +98,61 @@ public final class StorageLevelDB implements Storage {
 		}
 	}
 
+	/** 每个表提交到数据库的写记录统计. 只在提交线程中累加,其它线程可以随时读取 */
+	public static final class TableStat {
+		private final Storage.TableBase _table;
+		volatile long putCount; // 提交过的写记录数量
+		volatile long removeCount; // 提交过的删除记录数量
+
+		TableStat(Storage.TableBase table) {
+			_table = table;
+		}
+
+		public int getTableId() {
+			return _table.getTableId();
+		}
+
+		public String getTableName() {
+			return _table.getTableName();
+		}
+
+		/** 获取记录值序列化的平均大小(-1表示无结果) */
+		public int getAverageValueSize() {
+			return _table.getAverageValueSize();
+		}
+
+		public long getPutCount() {
+			return putCount;
+		}
+
+		public long getRemoveCount() {
+			return removeCount;
+		}
+	}
+
 	static {
 		Util.loadNativeLib(StorageLevelDB.class.getClassLoader(), Const.levelDBNativePath, "leveldbjni");
 	}
 
 	public static <B extends Bean<B>> B toBean(OctetsStreamEx os, B beanStub) throws MarshalException {
+		return toBean(os, beanStub, null);
+	}
+
+	/**
+	 * 反序列化记录value
+	 *
+	 * @param migration 记录value的版本迁移. 旧版本的记录会被升级. null表示只支持版本0
+	 */
+	public static <B extends Bean<B>> B toBean(OctetsStreamEx os, B beanStub, BeanMigration<B> migration) throws MarshalException {
 		if (os == null)
 			return null;
 		int format = os.unmarshalInt1();
-		if (format != 0)
-			throw new IllegalStateException("unknown record value format(" + format + ") for type(" + beanStub.typeName() + ")");
+		int version = (migration != null ? migration.getVersion() : 0);
+		if (format != version) {
+			if (format > version)
+				throw new IllegalStateException("unknown record value format(" + format + ") for type(" + beanStub.typeName() + ")");
+			return migration.upgrade(format, os);
+		}
 		B bean = beanStub.create();
 		bean.unmarshal(os);
 		return bean;
@@ -140,7 +190,7 @@ public final class StorageLevelDB implements Storage {
 		return size;
 	}
 
-	private int writeValue(Bean<?> bean) { // size(VarUInt) + data
+	private int writeValue(Bean<?> bean, int format) { // size(VarUInt) + format + data
 		int maxSize = 1 + bean.maxSize(); // 1 for format
 		int initLenLen = Octets.marshalUIntLen(maxSize > 1 ? maxSize : Integer.MAX_VALUE);
 
@@ -148,7 +198,7 @@ public final class StorageLevelDB implements Storage {
 		int pos = os.size(); // 记录当前位置,之后写大小
 		int vpos = pos + initLenLen;
 		os.resize(vpos); // 跳过估计大小的长度
-		os.marshalZero(); // format
+		os.marshal1((byte)format);
 		bean.marshal(os);
 		int len = os.size() - vpos; // 实际的bean序列化大小
 		int lenLen = Octets.marshalUIntLen(len); // 实际大小的长度
@@ -207,12 +257,17 @@ public final class StorageLevelDB implements Storage {
 		private final int _tableIdLen;
 		private final Octets _tableIdCounter;
 		private final V _stubV;
+		private final TableStat _stat;
 		private final AtomicLong _getCount = new AtomicLong();
 		private final AtomicLong _getSize = new AtomicLong();
+		private BeanMigration<V> _migration; // 记录value的版本迁移. null表示不使用
+		private UpgradeLongHandler<V> _upgradeHandler;
+		private volatile int _version; // 记录value的当前版本. 最后设置,保证读到新版本时也能读到对应的_migration
 
 		public TableLong(int tableId, String tableName, V stubV) {
 			_tableName = tableName;
 			_tableId = tableId;
+			_stat = _tableStats.computeIfAbsent(tableId, __ -> new TableStat(this));
 			_tableIdLen = Octets.marshalUIntLen(tableId);
 			_tableIdCounter = Octets.createSpace(1 + Octets.marshalUIntLen(tableId))
 					.marshal1((byte)0xf1).marshalUInt(tableId); // 0xf1前缀用于idcounter
@@ -256,8 +311,16 @@ public final class StorageLevelDB implements Storage {
 			OctetsStreamEx val = OctetsStreamEx.wrap(buf);
 			try {
 				int format = val.unmarshalInt1();
-				if (format != 0)
-					throw new IllegalStateException(String.format("unknown record value format(%d) in table(%s,%d),key=%d", format, _tableName, _tableId, k));
+				int version = _version;
+				if (format != version) {
+					if (format > version)
+						throw new IllegalStateException(String.format("unknown record value format(%d) in table(%s,%d),key=%d", format, _tableName, _tableId, k));
+					V v = _migration.upgrade(format, val);
+					UpgradeLongHandler<V> handler = _upgradeHandler;
+					if (handler != null)
+						handler.onUpgrade(k, v);
+					return v;
+				}
 				V v = _stubV.create();
 				v.unmarshal(val);
 				return v;
@@ -269,6 +332,7 @@ public final class StorageLevelDB implements Storage {
 		@Override
 		public void put(long k, V v) {
 			incWriteCount();
+			++_stat.putCount;
 			Octets os = _writeBuf;
 			os.marshal1((byte)1); // leveldb::ValueType::kTypeValue
 			int klen = _tableIdLen + Octets.marshalLen(k);
@@ -279,7 +343,7 @@ public final class StorageLevelDB implements Storage {
 			else
 				os.marshalUInt(_tableId);
 			os.marshal(k);
-			int vpos = writeValue(v);
+			int vpos = writeValue(v, _version);
 			byte[] buf = os.array();
 			_writeMap.put(new Slice(buf, kpos, klen), new Slice(buf, vpos, os.size() - vpos));
 		}
@@ -287,6 +351,7 @@ public final class StorageLevelDB implements Storage {
 		@Override
 		public void remove(long k) {
 			incWriteCount();
+			++_stat.removeCount;
 			Octets os = _writeBuf;
 			os.marshalZero(); // leveldb::ValueType::kTypeDeletion
 			int klen = _tableIdLen + Octets.marshalLen(k);
@@ -383,12 +448,19 @@ public final class StorageLevelDB implements Storage {
 			return true;
 		}
 
+		@Override
+		public void setMigration(BeanMigration<V> migration, UpgradeLongHandler<V> handler) {
+			_migration = migration;
+			_upgradeHandler = handler;
+			_version = (migration != null ? migration.getVersion() : 0);
+		}
+
 		@Override
 		public boolean walkValue(WalkLongValueHandler<V> handler, V beanStub, long from, long to, boolean inclusive, boolean reverse) {
 			OctetsStreamEx os = new OctetsStreamEx();
 			return walkRaw((k, v) -> {
 				os.wraps(v).setPosition(0);
-				return handler.onWalk(k, toBean(os, beanStub));
+				return handler.onWalk(k, toBean(os, beanStub, _migration));
 			}, from, to, inclusive, reverse);
 		}
 
@@ -458,12 +530,17 @@ public final class StorageLevelDB implements Storage {
 		protected final int _tableIdLen;
 		protected final Octets _tableIdNext = Octets.createSpace(5);
 		protected final V _stubV;
+		protected final TableStat _stat;
 		protected final AtomicLong _getCount = new AtomicLong();
 		protected final AtomicLong _getSize = new AtomicLong();
+		protected BeanMigration<V> _migration; // 记录value的版本迁移. null表示不使用
+		protected UpgradeHandler<K, V> _upgradeHandler;
+		protected volatile int _version; // 记录value的当前版本. 最后设置,保证读到新版本时也能读到对应的_migration
 
 		protected TableBase(int tableId, String tableName, V stubV) {
 			_tableName = tableName;
 			_tableId = tableId;
+			_stat = _tableStats.computeIfAbsent(tableId, __ -> new TableStat(this));
 			_tableIdLen = Octets.marshalUIntLen(tableId);
 			if (tableId < Integer.MAX_VALUE)
 				_tableIdNext.marshalUInt(tableId + 1);
@@ -497,6 +574,22 @@ public final class StorageLevelDB implements Storage {
 			return n > 0 ? (int)(_getSize.get() / n) : -1;
 		}
 
+		@Override
+		public void setMigration(BeanMigration<V> migration, UpgradeHandler<K, V> handler) {
+			_migration = migration;
+			_upgradeHandler = handler;
+			_version = (migration != null ? migration.getVersion() : 0);
+		}
+
+		/** 升级旧版本的记录value. 调用前已读取了版本号,且确认小于当前版本 */
+		protected V upgrade(K k, int format, OctetsStreamEx val) throws MarshalException {
+			V v = _migration.upgrade(format, val);
+			UpgradeHandler<K, V> handler = _upgradeHandler;
+			if (handler != null)
+				handler.onUpgrade(k, v);
+			return v;
+		}
+
 		@Override
 		public boolean walk(WalkHandler<K> handler, K from, K to, boolean inclusive, boolean reverse) {
 			if (_db == 0)
@@ -553,7 +646,7 @@ public final class StorageLevelDB implements Storage {
 			OctetsStreamEx os = new OctetsStreamEx();
 			return walkRaw((k, v) -> {
 				os.wraps(v).setPosition(0);
-				return handler.onWalk(k, toBean(os, beanStub));
+				return handler.onWalk(k, toBean(os, beanStub, _migration));
 			}, from, to, inclusive, reverse);
 		}
 
@@ -646,9 +739,13 @@ public final class StorageLevelDB implements Storage {
 			OctetsStreamEx val = OctetsStreamEx.wrap(buf);
 			try {
 				int format = val.unmarshalInt1();
-				if (format != 0)
-					throw new IllegalStateException(
-							String.format("unknown record value format(%d) in table(%s,%d),key=%s", format, _tableName, _tableId, k.dump()));
+				int version = _version;
+				if (format != version) {
+					if (format > version)
+						throw new IllegalStateException(
+								String.format("unknown record value format(%d) in table(%s,%d),key=%s", format, _tableName, _tableId, k.dump()));
+					return upgrade(k, format, val);
+				}
 				V v = _stubV.create();
 				v.unmarshal(val);
 				return v;
@@ -660,6 +757,7 @@ public final class StorageLevelDB implements Storage {
 		@Override
 		public void put(Octets k, V v) {
 			incWriteCount();
+			++_stat.putCount;
 			Octets os = _writeBuf;
 			os.marshal1((byte)1); // leveldb::ValueType::kTypeValue
 			int ksize = k.size();
@@ -672,7 +770,7 @@ public final class StorageLevelDB implements Storage {
 			int pos = os.size();
 			os.resize(pos + ksize);
 			System.arraycopy(k.array(), 0, os.array(), pos, ksize);
-			int vpos = writeValue(v);
+			int vpos = writeValue(v, _version);
 			byte[] buf = os.array();
 			_writeMap.put(new Slice(buf, kpos, klen), new Slice(buf, vpos, os.size() - vpos));
 		}
@@ -680,6 +778,7 @@ public final class StorageLevelDB implements Storage {
 		@Override
 		public void remove(Octets k) {
 			incWriteCount();
+			++_stat.removeCount;
 			Octets os = _writeBuf;
 			os.marshalZero(); // leveldb::ValueType::kTypeDeletion
 			int ksize = k.size();
@@ -728,8 +827,12 @@ public final class StorageLevelDB implements Storage {
 			OctetsStreamEx val = OctetsStreamEx.wrap(buf);
 			try {
 				int format = val.unmarshalInt1();
-				if (format != 0)
-					throw new IllegalStateException(String.format("unknown record value format(%d) in table(%s,%d),key=%s", format, _tableName, _tableId, k));
+				int version = _version;
+				if (format != version) {
+					if (format > version)
+						throw new IllegalStateException(String.format("unknown record value format(%d) in table(%s,%d),key=%s", format, _tableName, _tableId, k));
+					return upgrade(k, format, val);
+				}
 				V v = _stubV.create();
 				v.unmarshal(val);
 				return v;
@@ -741,6 +844,7 @@ public final class StorageLevelDB implements Storage {
 		@Override
 		public void put(String k, V v) {
 			incWriteCount();
+			++_stat.putCount;
 			Octets os = _writeBuf;
 			os.marshal1((byte)1); // leveldb::ValueType::kTypeValue
 			int bn = Octets.marshalStrLen(k);
@@ -751,7 +855,7 @@ public final class StorageLevelDB implements Storage {
 			else
 				os.marshalUInt(_tableId);
 			os.append(k);
-			int vpos = writeValue(v);
+			int vpos = writeValue(v, _version);
 			byte[] buf = os.array();
 			_writeMap.put(new Slice(buf, kpos, klen), new Slice(buf, vpos, os.size() - vpos));
 		}
@@ -759,6 +863,7 @@ public final class StorageLevelDB implements Storage {
 		@Override
 		public void remove(String k) {
 			incWriteCount();
+			++_stat.removeCount;
 			Octets os = _writeBuf;
 			os.marshalZero(); // leveldb::ValueType::kTypeDeletion
 			int bn = Octets.marshalStrLen(k);
@@ -811,8 +916,12 @@ public final class StorageLevelDB implements Storage {
 			OctetsStreamEx val = OctetsStreamEx.wrap(buf);
 			try {
 				int format = val.unmarshalInt1();
-				if (format != 0)
-					throw new IllegalStateException(String.format("unknown record value format(%d) in table(%s,%d),key=%s", format, _tableName, _tableId, k));
+				int version = _version;
+				if (format != version) {
+					if (format > version)
+						throw new IllegalStateException(String.format("unknown record value format(%d) in table(%s,%d),key=%s", format, _tableName, _tableId, k));
+					return upgrade(k, format, val);
+				}
 				V v = _stubV.create();
 				v.unmarshal(val);
 				return v;
@@ -824,11 +933,12 @@ public final class StorageLevelDB implements Storage {
 		@Override
 		public void put(K k, V v) {
 			incWriteCount();
+			++_stat.putCount;
 			Octets os = _writeBuf;
 			os.marshal1((byte)1); // leveldb::ValueType::kTypeValue
-			int kpos = writeValue((Bean<?>)k);
+			int kpos = writeValue((Bean<?>)k, 0); // key不使用版本
 			int klen = os.size() - kpos;
-			int vpos = writeValue(v);
+			int vpos = writeValue(v, _version);
 			byte[] buf = os.array();
 			_writeMap.put(new Slice(buf, kpos, klen), new Slice(buf, vpos, os.size() - vpos));
 		}
@@ -836,9 +946,10 @@ public final class StorageLevelDB implements Storage {
 		@Override
 		public void remove(K k) {
 			incWriteCount();
+			++_stat.removeCount;
 			Octets os = _writeBuf;
 			os.marshalZero(); // leveldb::ValueType::kTypeDeletion
-			int kpos = writeValue((Bean<?>)k);
+			int kpos = writeValue((Bean<?>)k, 0); // key不使用版本
 			_writeMap.put(new Slice(os.array(), kpos, os.size() - kpos), _deletedSlice);
 		}
 	}
@@ -868,8 +979,86 @@ public final class StorageLevelDB implements Storage {
 		return value != null ? value : "";
 	}
 
-	public synchronized boolean compact() {
-		return _db != 0 && leveldb_compact(_db, null, 0, null, 0);
+	/** 获取所有打开过的表的写统计 */
+	public Collection<TableStat> getTableStats() {
+		return _tableStats.values();
+	}
+
+	/**
+	 * 压缩整个数据库
+	 * <p>
+	 * 可以和提交及备份并发,但可能会运行很久,关闭数据库时会等待压缩完成
+	 */
+	public boolean compact() {
+		return compact(null, null);
+	}
+
+	/**
+	 * 压缩数据库中指定key范围的记录
+	 * <p>
+	 * 可以和提交及备份并发,关闭数据库时会等待压缩完成
+	 *
+	 * @param keyFrom 压缩范围的最小key(包含). null表示最小值
+	 * @param keyTo   压缩范围的最大key(包含). null表示最大值
+	 * @return 数据库已关闭或正在关闭时返回false
+	 */
+	public boolean compact(Octets keyFrom, Octets keyTo) {
+		if (!_compactLock.tryReadLock())
+			return false;
+		try {
+			return _db != 0 && leveldb_compact(_db, keyFrom != null ? keyFrom.array() : null, keyFrom != null ? keyFrom.size() : 0,
+					keyTo != null ? keyTo.array() : null, keyTo != null ? keyTo.size() : 0);
+		} finally {
+			_compactLock.readUnlock();
+		}
+	}
+
+	/**
+	 * 分段压缩指定表的全部记录
+	 * <p>
+	 * 按key的顺序每stepCount个记录压缩一段,最后一段一直压缩到表的结束,每段压缩后回调onStep,可在回调中休眠以限制压缩的IO速度<br>
+	 * 可以和提交及备份并发,关闭数据库时会等待当前段的压缩完成
+	 *
+	 * @param stepCount 每段压缩的记录数量. <=0表示整个表只压缩一段且不回调onStep
+	 * @param onStep    每段压缩后的回调,参数是本段的记录数量,返回false表示中断压缩. 可以为null
+	 * @return 返回true表示已完整压缩, 返回false表示被中断或数据库已关闭
+	 */
+	public boolean compactTable(int tableId, int stepCount, LongPredicate onStep) {
+		Octets keyFrom = Octets.createSpace(5).marshalUInt(tableId);
+		Octets keyEnd = (tableId < Integer.MAX_VALUE ? Octets.createSpace(5).marshalUInt(tableId + 1) : Octets.wrap(new byte[]{(byte)0xf1}));
+		if (stepCount <= 0)
+			return compact(keyFrom, keyEnd);
+		byte[] keyEndData = keyEnd.getBytes();
+		for (; ; ) {
+			Octets keyTo = null;
+			long n = 0;
+			if (!_compactLock.tryReadLock())
+				return false;
+			try {
+				if (_db == 0)
+					return false;
+				long iter = leveldb_iter_new(_db, keyFrom.array(), keyFrom.size(), 2);
+				try {
+					for (byte[] key; n < stepCount && (key = leveldb_iter_next(iter)) != null; ++n) {
+						if (Util.compareBytes(key, keyEndData) >= 0)
+							break;
+						keyTo = Octets.wrap(key);
+					}
+				} finally {
+					leveldb_iter_delete(iter);
+				}
+				if (n < stepCount) // 已遍历到表尾,最后一段压缩到表的结束key,包括最后一个记录之后(或空表中)只剩删除标记的范围
+					keyTo = keyEnd;
+				leveldb_compact(_db, keyFrom.array(), keyFrom.size(), keyTo.array(), keyTo.size());
+			} finally {
+				_compactLock.readUnlock();
+			}
+			if (onStep != null && !onStep.test(n))
+				return false;
+			if (n < stepCount)
+				return true;
+			keyFrom = keyTo.append((byte)0); // 下一段从比上一段最大key大的最小key开始
+		}
 	}
 
 	/**
@@ -1105,8 +1294,13 @@ public final class StorageLevelDB implements Storage {
 		commit();
 		_dbFile = null;
 		if (_db != 0) {
-			leveldb_close(_db);
-			_db = 0;
+			_compactLock.writeLock(); // 等待正在进行的压缩完成
+			try {
+				leveldb_close(_db);
+				_db = 0;
+			} finally {
+				_compactLock.writeUnlock();
+			}
 		}
 		putBegin(); // only for clearing the write buffer
 	}
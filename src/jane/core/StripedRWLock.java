@@ -0,0 +1,96 @@
+package jane.core;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 读多写少的分段读写锁
+ * <p>
+ * 读计数按线程ID分散到多个独占缓存行的计数器中,读锁和读解锁只修改当前线程对应的计数器,避免多线程竞争同一个缓存行<br>
+ * 写锁先设置写标记,再等待全部计数器归零. 读锁在计数后检查写标记,有写标记则撤销计数并挂起等待,写解锁时唤醒<br>
+ * 读锁和读解锁必须在同一线程中调用. 不支持重入. 写标记会阻止新的读锁,所以写锁不会被持续的读锁饿死
+ */
+public final class StripedRWLock {
+	private static final int STRIPE_SHIFT = 4; // 每个计数器占16个long(128字节),避免伪共享和相邻缓存行预取的干扰
+	private static final int STRIPE_COUNT;
+	private static final int STRIPE_MASK;
+
+	static {
+		int n = Integer.highestOneBit(Math.max(Runtime.getRuntime().availableProcessors() * 2 - 1, 1)) * 2;
+		STRIPE_COUNT = Math.min(n, 64);
+		STRIPE_MASK = STRIPE_COUNT - 1;
+	}
+
+	private final AtomicLongArray _counts = new AtomicLongArray(STRIPE_COUNT << STRIPE_SHIFT);
+	private final ConcurrentLinkedQueue<Thread> _waitReaders = new ConcurrentLinkedQueue<>(); // 等待写解锁的读线程
+	private final ReentrantLock _writeMutex = new ReentrantLock(); // 写锁之间互斥
+	private volatile Thread _writer; // 持有或正在获取写锁的线程. null表示没有写锁
+
+	private static int stripeIndex() {
+		return ((int)Thread.currentThread().getId() & STRIPE_MASK) << STRIPE_SHIFT;
+	}
+
+	private long readCount() {
+		long n = 0;
+		for (int i = 0; i < STRIPE_COUNT; ++i)
+			n += _counts.get(i << STRIPE_SHIFT);
+		return n;
+	}
+
+	/** 撤销读计数,如果有写锁正在等待则唤醒它重新检查 */
+	private void undoRead(int idx) {
+		_counts.getAndDecrement(idx);
+		Thread writer = _writer;
+		if (writer != null)
+			LockSupport.unpark(writer);
+	}
+
+	public boolean tryReadLock() {
+		int idx = stripeIndex();
+		_counts.getAndIncrement(idx);
+		if (_writer == null)
+			return true;
+		undoRead(idx);
+		return false;
+	}
+
+	public void readLock() {
+		int idx = stripeIndex();
+		for (; ; ) {
+			_counts.getAndIncrement(idx);
+			if (_writer == null)
+				return;
+			undoRead(idx);
+			Thread t = Thread.currentThread();
+			_waitReaders.offer(t);
+			while (_writer != null) // 入队后再检查一次,避免错过写解锁的唤醒
+				LockSupport.park(this);
+			_waitReaders.remove(t);
+		}
+	}
+
+	public void readUnlock() {
+		int idx = stripeIndex();
+		if (_counts.decrementAndGet(idx) <= 0) {
+			Thread writer = _writer;
+			if (writer != null)
+				LockSupport.unpark(writer);
+		}
+	}
+
+	public void writeLock() {
+		_writeMutex.lock();
+		_writer = Thread.currentThread();
+		while (readCount() != 0)
+			LockSupport.parkNanos(this, 1_000_000); // 最后一个读解锁会唤醒,超时只是兜底
+	}
+
+	public void writeUnlock() {
+		_writer = null;
+		for (Thread t : _waitReaders)
+			LockSupport.unpark(t);
+		_writeMutex.unlock();
+	}
+}
@@ -2,8 +2,8 @@ package jane.core;
 
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.locks.Lock;
 import java.util.function.Supplier;
+import jane.core.Procedure.IndexLock;
 import jane.core.SContext.Record;
 import jane.core.SContext.Safe;
 import jane.core.Storage.Helper;
@@ -16,6 +16,10 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 	private final Storage.Table<K, V> _stoTable; // 存储引擎的表对象
 	private final Map<K, Supplier<V>> _cache; // 读缓存. 有大小限制,溢出自动清理
 	private final Map<K, V> _cacheMod; // 写缓存. 不会溢出,保存到数据库存储引擎后清理
+	private final Map<K, Boolean> _absentCache; // 存储中不存在记录的key缓存. 有大小限制,溢出自动清理. null表示不缓存
+	private volatile BloomFilter _bloomFilter; // 存储中全部key的Bloom过滤器. null表示不使用
+	private volatile boolean _bloomReady; // _bloomFilter是否已包含存储中的全部key,可以用于判定不存在
+	private K _migrateFrom; // 后台遍历升级旧版本记录的起始key(已遍历过). null表示从头开始. 只在后台遍历线程访问
 
 	/**
 	 * 创建一个数据库表
@@ -31,6 +35,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		_stoTable = stoTable;
 		_cache = Util.newConcurrentLRUMap(cacheSize, tableName);
 		_cacheMod = (stoTable != null ? Util.newConcurrentHashMap() : null);
+		_absentCache = (stoTable != null && Const.dbAbsentCacheSize > 0 ? Util.newConcurrentLRUMap(Const.dbAbsentCacheSize, tableName + ".absent") : null);
 	}
 
 	/**
@@ -42,6 +47,125 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		return _lockId ^ k.hashCode();
 	}
 
+	/**
+	 * 为此表建立存储中全部key的Bloom过滤器
+	 * <p>
+	 * 会遍历存储中的全部key,之后put及保存到存储的key也会加入过滤器. 读存储前如果过滤器判定key不存在则直接返回null<br>
+	 * 只能在初始化表后,开始执行事务前调用. 只对有存储的表有效. 删除的key不会从过滤器中移除,所以删除较多时误判率会上升
+	 *
+	 * @param expectedCount 预计的记录数量上限. 超过后误判率会上升
+	 * @param bitsPerKey    每个key占用的位数. 越大误判率越低,10位约1%. <=0表示不使用过滤器
+	 * @return 遍历的key数量
+	 */
+	public long buildBloomFilter(long expectedCount, int bitsPerKey) {
+		Storage.Table<K, V> stoTable = _stoTable;
+		_bloomReady = false;
+		_bloomFilter = null;
+		if (stoTable == null || bitsPerKey <= 0)
+			return 0;
+		BloomFilter bf = new BloomFilter(expectedCount, bitsPerKey);
+		_bloomFilter = bf;
+		long[] n = new long[1];
+		stoTable.walk(k -> {
+			bf.add(BloomFilter.hash(k.hashCode()));
+			++n[0];
+			return true;
+		}, null, null, true, false);
+		_bloomReady = true;
+		Log.info("{}: build bloom filter: keys={}, bits={}", _tableName, n[0], bf.getBitCount());
+		return n[0];
+	}
+
+	/** 读存储前判定记录是否一定不存在 */
+	private boolean isAbsent(K k) {
+		Map<K, Boolean> absentCache;
+		if (_bloomReady && !_bloomFilter.mightContain(BloomFilter.hash(k.hashCode())) ||
+				(absentCache = _absentCache) != null && absentCache.get(k) != null) {
+			_readAbsentCount.getAndIncrement();
+			return true;
+		}
+		return false;
+	}
+
+	/** 缓存从存储中读到的不存在结果. 只在已加锁时缓存,保证不会和put及保存时的清除交错 */
+	private void putAbsent(K k) {
+		Map<K, Boolean> absentCache = _absentCache;
+		if (absentCache != null && Procedure.isLockedByCurrentThread(lockId(k)))
+			absentCache.put(k, Boolean.TRUE);
+	}
+
+	/** 记录即将存在时清除不存在的缓存,并加入Bloom过滤器 */
+	private void onPresent(K k) {
+		Map<K, Boolean> absentCache = _absentCache;
+		if (absentCache != null)
+			absentCache.remove(k);
+		BloomFilter bf = _bloomFilter;
+		if (bf != null)
+			bf.add(BloomFilter.hash(k.hashCode()));
+	}
+
+	/**
+	 * 设置记录value的版本迁移
+	 * <p>
+	 * 只能在初始化表后,开始执行事务前调用. 只对有存储的表有效<br>
+	 * 之后保存的记录都使用迁移的当前版本. 读到旧版本的记录时升级,如果已加锁则同时标记为已修改,在下次存库时写回
+	 *
+	 * @param migration 版本迁移. 只能绑定一个表. null表示不使用
+	 */
+	public void setMigration(BeanMigration<V> migration) {
+		Storage.Table<K, V> stoTable = _stoTable;
+		if (stoTable == null)
+			return;
+		if (migration != null) {
+			migration.bind(_dbm, _tableName, (batchSize, scanLimit) -> walkMigration(migration, batchSize, scanLimit));
+			stoTable.setMigration(migration, this::onUpgrade);
+		} else
+			stoTable.setMigration(null, null);
+	}
+
+	/** 从存储中读到旧版本的记录并已升级. 只在已加锁时标记为已修改,保证不会和保存时的清除交错 */
+	private void onUpgrade(K k, V v) {
+		if (Procedure.isLockedByCurrentThread(lockId(k)))
+			_cacheMod.putIfAbsent(k, v);
+	}
+
+	/** 后台遍历升级的一步. 在后台遍历线程中调用 */
+	private boolean walkMigration(BeanMigration<V> migration, int batchSize, int scanLimit) {
+		int version = migration.getVersion();
+		K from = _migrateFrom;
+		@SuppressWarnings("unchecked")
+		K[] keys = (K[])new Object[batchSize];
+		int[] counts = new int[2]; // 遍历的记录数,找到的旧版本记录数
+		boolean done = _stoTable.walkRaw((k, v) -> {
+			if (from != null && k.equals(from)) // 包含起始key的遍历,跳过上次已遍历的
+				return true;
+			_migrateFrom = k;
+			++counts[0];
+			if (v.length > 0 && (v[0] & 0xff) < version)
+				keys[counts[1]++] = k;
+			return counts[1] < batchSize && counts[0] < scanLimit;
+		}, from, null, true, false);
+		int n = counts[1];
+		if (n > 0 && !new Procedure() {
+				@Override
+				protected void onProcess() throws Exception {
+					int[] lockIds = new int[n];
+					for (int i = 0; i < n; ++i)
+						lockIds[i] = lockId(keys[i]);
+					lock(lockIds);
+					for (int i = 0; i < n; ++i) {
+						K k = keys[i];
+						V v = getNoCacheUnsafe(k); // 从存储读到旧版本时会升级并标记为已修改
+						if (v != null) // 也可能是之前未加锁读取并升级的缓存,同样要标记为已修改
+							_cacheMod.putIfAbsent(k, v);
+					}
+				}
+			}.execute())
+			counts[1] = 0; // 事务失败时已输出日志,这些记录留给之后的读取升级
+		migration.addWalkCount(counts[0], counts[1]);
+		return done;
+	}
+
 	/**
 	 * 尝试依次加锁并保存此表已修改的记录
 	 * <p>
@@ -58,15 +182,17 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		long n = 0;
 		try {
 			for (K k : cacheMod.keySet()) {
-				Lock lock = Procedure.tryLock(lockId(k));
+				IndexLock lock = Procedure.tryLock(lockId(k));
 				if (lock != null) {
 					try {
 						++n;
 						V v = cacheMod.get(k);
 						if (v == _deleted)
 							stoTable.remove(k);
-						else
+						else {
+							onPresent(k);
 							stoTable.put(k, v);
+						}
 						cacheMod.remove(k, v);
 					} finally {
 						lock.unlock();
@@ -91,8 +217,10 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 			V v = e.getValue();
 			if (v == _deleted)
 				stoTable.remove(k);
-			else
+			else {
+				onPresent(k);
 				stoTable.put(k, v);
+			}
 		}
 		int m = cacheMod.size();
 		cacheMod.clear();
@@ -138,11 +266,14 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 			return v;
 		}
 		_readStoCount.getAndIncrement();
+		if (isAbsent(k))
+			return null;
 		v = _stoTable.get(k);
 		if (v != null) {
 			v.storeAll();
 			cache.put(k, new CacheRefK<>(cache, k, v));
-		}
+		} else
+			putAbsent(k);
 		return v;
 	}
 
@@ -250,7 +381,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		if (v != null)
 			return v != _deleted ? v : null;
 		_readStoCount.getAndIncrement();
-		return _stoTable.get(k);
+		return isAbsent(k) ? null : _stoTable.get(k);
 	}
 
 	/**
@@ -340,6 +471,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		v.checkStoreAll();
 		Procedure.incVersion(lockId(k));
 		if (cacheMod != null) {
+			onPresent(k);
 			cacheMod.put(k, v);
 			cache.put(k, new CacheRefK<>(cache, k, v));
 		} else
@@ -369,6 +501,7 @@ public final class Table<K, V extends Bean<V>, S extends Safe<V>> extends TableB
 		v.checkStoreAll();
 		Procedure.incVersion(lockId(k));
 		if (cacheMod != null) {
+			onPresent(k);
 			cacheMod.put(k, v);
 			cache.put(k, new CacheRefK<>(cache, k, v));
 		} else
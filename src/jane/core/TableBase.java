@@ -10,6 +10,7 @@ public abstract class TableBase<V extends Bean<V>> {
 	protected final V _deleted; // 表示已删除的value. 同存根bean
 	protected final AtomicLong _readCount = new AtomicLong(); // 读操作次数统计
 	protected final AtomicLong _readStoCount = new AtomicLong(); // 读数据库存储的次数统计(即cache-miss的次数统计)
+	protected final AtomicLong _readAbsentCount = new AtomicLong(); // 由不存在记录的缓存或Bloom过滤器判定不存在而省去读数据库存储的次数统计
 
 	protected TableBase(DBManager dbm, int tableId, String tableName, V stubV, int lockId) {
 		_dbm = dbm;
@@ -48,6 +49,11 @@ public abstract class TableBase<V extends Bean<V>> {
 		return _readStoCount.get();
 	}
 
+	/** 获取判定记录不存在而省去读存储的统计次数(已计入{@link #getReadStoCount}) */
+	public long getReadAbsentCount() {
+		return _readAbsentCount.get();
+	}
+
 	/**
 	 * 尝试依次加锁并保存此表已修改的记录
 	 * <p>
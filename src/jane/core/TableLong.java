@@ -1,8 +1,8 @@
 package jane.core;
 
 import java.util.concurrent.atomic.AtomicLong;
-import java.util.concurrent.locks.Lock;
 import java.util.function.Supplier;
+import jane.core.Procedure.IndexLock;
 import jane.core.SContext.RecordLong;
 import jane.core.SContext.Safe;
 import jane.core.Storage.Helper;
@@ -24,10 +24,14 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 	private final Storage.TableLong<V> _stoTable; // 存储引擎的表对象
 	private final LongMap<Supplier<V>> _cache; // 读缓存. 有大小限制,溢出自动清理
 	private final LongConcurrentHashMap<V> _cacheMod; // 写缓存. 不会溢出,保存到数据库存储引擎后清理
+	private final LongMap<Boolean> _absentCache; // 存储中不存在记录的key缓存. 有大小限制,溢出自动清理. null表示不缓存
+	private volatile BloomFilter _bloomFilter; // 存储中全部key的Bloom过滤器. null表示不使用
+	private volatile boolean _bloomReady; // _bloomFilter是否已包含存储中的全部key,可以用于判定不存在
 	private final AtomicLong _idCounter = new AtomicLong(); // 用于自增长ID的计数器
 	private volatile boolean _idCounterMod; // idCounter是否待存状态(有修改未存库)
 	private int _autoIdBegin = Const.autoIdBegin; // 自增长ID的初始值, 可运行时指定
 	private int _autoIdStride = Const.autoIdStride; // 自增长ID的分配跨度, 可运行时指定
+	private long _migrateFrom; // 后台遍历升级旧版本记录的下一个起始key. 只在后台遍历线程访问
 
 	/**
 	 * 创建一个数据库表
@@ -43,6 +47,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		_stoTable = stoTable;
 		_cache = Util.newLongConcurrentLRUMap(cacheSize, tableName);
 		_cacheMod = (stoTable != null ? new LongConcurrentHashMap<>() : null);
+		_absentCache = (stoTable != null && Const.dbAbsentCacheSize > 0 ? Util.newLongConcurrentLRUMap(Const.dbAbsentCacheSize, tableName + ".absent") : null);
 		if (stoTable != null)
 			_idCounter.set(_stoTable.getIdCounter());
 	}
@@ -82,6 +87,121 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		return _lockId ^ (int)k ^ (int)(k >> 32);
 	}
 
+	/**
+	 * 为此表建立存储中全部key的Bloom过滤器
+	 * <p>
+	 * 会遍历存储中的全部key,之后put及保存到存储的key也会加入过滤器. 读存储前如果过滤器判定key不存在则直接返回null<br>
+	 * 只能在初始化表后,开始执行事务前调用. 只对有存储的表有效. 删除的key不会从过滤器中移除,所以删除较多时误判率会上升
+	 *
+	 * @param expectedCount 预计的记录数量上限. 超过后误判率会上升
+	 * @param bitsPerKey    每个key占用的位数. 越大误判率越低,10位约1%. <=0表示不使用过滤器
+	 * @return 遍历的key数量
+	 */
+	public long buildBloomFilter(long expectedCount, int bitsPerKey) {
+		Storage.TableLong<V> stoTable = _stoTable;
+		_bloomReady = false;
+		_bloomFilter = null;
+		if (stoTable == null || bitsPerKey <= 0)
+			return 0;
+		BloomFilter bf = new BloomFilter(expectedCount, bitsPerKey);
+		_bloomFilter = bf;
+		long[] n = new long[1];
+		stoTable.walk(k -> {
+			bf.add(BloomFilter.hash(k));
+			++n[0];
+			return true;
+		}, 0, -1, true, false);
+		_bloomReady = true;
+		Log.info("{}: build bloom filter: keys={}, bits={}", _tableName, n[0], bf.getBitCount());
+		return n[0];
+	}
+
+	/** 读存储前判定记录是否一定不存在 */
+	private boolean isAbsent(long k) {
+		LongMap<Boolean> absentCache;
+		if (_bloomReady && !_bloomFilter.mightContain(BloomFilter.hash(k)) ||
+				(absentCache = _absentCache) != null && absentCache.get(k) != null) {
+			_readAbsentCount.getAndIncrement();
+			return true;
+		}
+		return false;
+	}
+
+	/** 缓存从存储中读到的不存在结果. 只在已加锁时缓存,保证不会和put及保存时的清除交错 */
+	private void putAbsent(long k) {
+		LongMap<Boolean> absentCache = _absentCache;
+		if (absentCache != null && Procedure.isLockedByCurrentThread(lockId(k)))
+			absentCache.put(k, Boolean.TRUE);
+	}
+
+	/** 记录即将存在时清除不存在的缓存,并加入Bloom过滤器 */
+	private void onPresent(long k) {
+		LongMap<Boolean> absentCache = _absentCache;
+		if (absentCache != null)
+			absentCache.remove(k);
+		BloomFilter bf = _bloomFilter;
+		if (bf != null)
+			bf.add(BloomFilter.hash(k));
+	}
+
+	/**
+	 * 设置记录value的版本迁移
+	 * <p>
+	 * 只能在初始化表后,开始执行事务前调用. 只对有存储的表有效<br>
+	 * 之后保存的记录都使用迁移的当前版本. 读到旧版本的记录时升级,如果已加锁则同时标记为已修改,在下次存库时写回
+	 *
+	 * @param migration 版本迁移. 只能绑定一个表. null表示不使用
+	 */
+	public void setMigration(BeanMigration<V> migration) {
+		Storage.TableLong<V> stoTable = _stoTable;
+		if (stoTable == null)
+			return;
+		if (migration != null) {
+			migration.bind(_dbm, _tableName, (batchSize, scanLimit) -> walkMigration(migration, batchSize, scanLimit));
+			stoTable.setMigration(migration, this::onUpgrade);
+		} else
+			stoTable.setMigration(null, null);
+	}
+
+	/** 从存储中读到旧版本的记录并已升级. 只在已加锁时标记为已修改,保证不会和保存时的清除交错 */
+	private void onUpgrade(long k, V v) {
+		if (Procedure.isLockedByCurrentThread(lockId(k)))
+			_cacheMod.putIfAbsent(k, v);
+	}
+
+	/** 后台遍历升级的一步. 在后台遍历线程中调用 */
+	private boolean walkMigration(BeanMigration<V> migration, int batchSize, int scanLimit) {
+		int version = migration.getVersion();
+		long[] keys = new long[batchSize];
+		int[] counts = new int[2]; // 遍历的记录数,找到的旧版本记录数
+		boolean done = _stoTable.walkRaw((k, v) -> {
+			_migrateFrom = k + 1;
+			++counts[0];
+			if (v.length > 0 && (v[0] & 0xff) < version)
+				keys[counts[1]++] = k;
+			return counts[1] < batchSize && counts[0] < scanLimit;
+		}, _migrateFrom, -1, true, false);
+		int n = counts[1];
+		if (n > 0 && !new Procedure() {
+				@Override
+				protected void onProcess() throws Exception {
+					int[] lockIds = new int[n];
+					for (int i = 0; i < n; ++i)
+						lockIds[i] = lockId(keys[i]);
+					lock(lockIds);
+					for (int i = 0; i < n; ++i) {
+						long k = keys[i];
+						V v = getNoCacheUnsafe(k); // 从存储读到旧版本时会升级并标记为已修改
+						if (v != null) // 也可能是之前未加锁读取并升级的缓存,同样要标记为已修改
+							_cacheMod.putIfAbsent(k, v);
+					}
+				}
+			}.execute())
+			counts[1] = 0; // 事务失败时已输出日志,这些记录留给之后的读取升级
+		migration.addWalkCount(counts[0], counts[1]);
+		return done;
+	}
+
 	/**
 	 * 尝试依次加锁并保存此表已修改的记录
 	 * <p>
@@ -99,15 +219,17 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		try {
 			for (LongIterator it = cacheMod.keyIterator(); it.hasNext(); ) {
 				long k = it.next();
-				Lock lock = Procedure.tryLock(lockId(k));
+				IndexLock lock = Procedure.tryLock(lockId(k));
 				if (lock != null) {
 					try {
 						++n;
 						V v = cacheMod.get(k);
 						if (v == _deleted)
 							stoTable.remove(k);
-						else
+						else {
+							onPresent(k);
 							stoTable.put(k, v);
+						}
 						cacheMod.remove(k, v);
 					} finally {
 						lock.unlock();
@@ -132,8 +254,10 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 			V v = it.value();
 			if (v == _deleted)
 				stoTable.remove(k);
-			else
+			else {
+				onPresent(k);
 				stoTable.put(k, v);
+			}
 		}
 		int m = cacheMod.size();
 		cacheMod.clear();
@@ -181,11 +305,14 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 			return v;
 		}
 		_readStoCount.getAndIncrement();
+		if (isAbsent(k))
+			return null;
 		v = _stoTable.get(k);
 		if (v != null) {
 			v.storeAll();
 			cache.put(k, new CacheRefLong<>(cache, k, v));
-		}
+		} else
+			putAbsent(k);
 		return v;
 	}
 
@@ -293,7 +420,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		if (v != null)
 			return v != _deleted ? v : null;
 		_readStoCount.getAndIncrement();
-		return _stoTable.get(k);
+		return isAbsent(k) ? null : _stoTable.get(k);
 	}
 
 	/**
@@ -382,6 +509,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		v.checkStoreAll();
 		Procedure.incVersion(lockId(k));
 		if (cacheMod != null) {
+			onPresent(k);
 			cacheMod.put(k, v);
 			cache.put(k, new CacheRefLong<>(cache, k, v));
 		} else
@@ -411,6 +539,7 @@ public final class TableLong<V extends Bean<V>, S extends Safe<V>> extends Table
 		v.checkStoreAll();
 		Procedure.incVersion(lockId(k));
 		if (cacheMod != null) {
+			onPresent(k);
 			cacheMod.put(k, v);
 			cache.put(k, new CacheRefLong<>(cache, k, v));
 		} else
@@ -0,0 +1,325 @@
+package jane.core;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 多层时间轮定时器
+ * <p>
+ * 算法同jane.test.TestTimer: 毫秒精度,5层每层256个槽,可覆盖约34年. 到期时按槽批量处理,上层的槽在低层转满一圈时下降到低层<br>
+ * 每个槽是双向链表,因此添加和取消都是O(1). 任何线程都可以添加和取消任务,先放入无锁队列,由定时器线程合并到时间轮中<br>
+ * 定时器线程只在最近可能到期的时刻唤醒,没有任务时不会空转. 到期任务在定时器线程中运行,因此只适合简单的处理,运行时间不要过长
+ */
+public final class TimingWheel {
+	private static final int SLOT_SHIFT = 8;
+	private static final int SLOTS_COUNT = 5;
+	private static final int SLOT_MASK = (1 << SLOT_SHIFT) - 1;
+	private static final int SLOT_SIZE = (1 << SLOT_SHIFT) * SLOTS_COUNT;
+
+	private static final int STATE_WAITING = 0;
+	private static final int STATE_DONE = 1;
+	private static final int STATE_CANCELLED = 2;
+
+	/** 定时器中的任务. 实现了ScheduledFuture以兼容ScheduledExecutorService的用法 */
+	public static final class Task implements ScheduledFuture<Object> {
+		private static final AtomicIntegerFieldUpdater<Task> stateUpdater = AtomicIntegerFieldUpdater.newUpdater(Task.class, "state");
+
+		private final TimingWheel wheel;
+		private final Runnable runnable;
+		private final long period; // 毫秒. >0表示固定频率;<0表示固定间隔;0表示只运行一次
+		private Task prev, next; // 槽中的双向链表,只在定时器线程访问
+		private int slot = -1; // 所在槽的索引. -1表示不在时间轮中,只在定时器线程访问
+		private volatile long runTime; // 定时器时间(毫秒)
+		private volatile int state;
+
+		Task(TimingWheel wheel, long runTime, long period, Runnable runnable) {
+			this.wheel = wheel;
+			this.runTime = runTime;
+			this.period = period;
+			this.runnable = runnable;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(runTime - wheel.now(), TimeUnit.MILLISECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed o) {
+			return o == this ? 0 : Long.compare(getDelay(TimeUnit.NANOSECONDS), o.getDelay(TimeUnit.NANOSECONDS));
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			if (!stateUpdater.compareAndSet(this, STATE_WAITING, STATE_CANCELLED))
+				return false;
+			wheel.cancelQueue.offer(this);
+			synchronized (this) {
+				notifyAll();
+			}
+			return true;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return state == STATE_CANCELLED;
+		}
+
+		@Override
+		public boolean isDone() {
+			return state != STATE_WAITING;
+		}
+
+		@Override
+		public Object get() throws InterruptedException {
+			synchronized (this) {
+				while (state == STATE_WAITING)
+					wait();
+			}
+			if (state == STATE_CANCELLED)
+				throw new CancellationException();
+			return null;
+		}
+
+		@Override
+		public Object get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+			long endTime = System.nanoTime() + unit.toNanos(timeout);
+			synchronized (this) {
+				for (long t; state == STATE_WAITING; ) {
+					if ((t = endTime - System.nanoTime()) <= 0)
+						throw new TimeoutException();
+					wait(t / 1_000_000, (int)(t % 1_000_000));
+				}
+			}
+			if (state == STATE_CANCELLED)
+				throw new CancellationException();
+			return null;
+		}
+
+		void run() {
+			if (period == 0) {
+				if (!stateUpdater.compareAndSet(this, STATE_WAITING, STATE_DONE))
+					return;
+				try {
+					runnable.run();
+				} catch (Throwable e) {
+					Log.error("TimingWheel: task exception:", e);
+				}
+				synchronized (this) {
+					notifyAll();
+				}
+			} else if (state == STATE_WAITING) {
+				try {
+					runnable.run();
+				} catch (Throwable e) {
+					Log.error("TimingWheel: task exception:", e);
+				}
+				if (state == STATE_WAITING) {
+					runTime = (period > 0 ? runTime + period : wheel.now() - period);
+					wheel.addNow(this);
+				}
+			}
+		}
+	}
+
+	private final ConcurrentLinkedQueue<Task> addQueue = new ConcurrentLinkedQueue<>();
+	private final ConcurrentLinkedQueue<Task> cancelQueue = new ConcurrentLinkedQueue<>();
+	private final Task[] heads = new Task[SLOT_SIZE + 1]; // 只在定时器线程访问
+	private final long baseNanoTime = System.nanoTime();
+	private final Thread thread;
+	private long curTime; // 时间轮已处理到的时间(毫秒),只在定时器线程访问
+	private int count; // 时间轮中的任务数量,只在定时器线程访问
+	private volatile long wakeTime = Long.MAX_VALUE; // 定时器线程计划唤醒的时间(毫秒)
+	private volatile boolean running = true;
+
+	public TimingWheel(String threadName) {
+		thread = new Thread(this::run, threadName);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/** 获取定时器时间(毫秒),从创建时开始计时 */
+	public long now() {
+		return (System.nanoTime() - baseNanoTime) / 1_000_000;
+	}
+
+	/** 获取等待运行的任务数量(近似值) */
+	public int size() {
+		return count + addQueue.size();
+	}
+
+	public Thread getThread() {
+		return thread;
+	}
+
+	/**
+	 * 调度一个任务
+	 *
+	 * @param delayMs  延迟运行的毫秒数
+	 * @param periodMs 重复运行的周期毫秒数. >0表示固定频率(延迟过大时会补足次数);<0表示固定间隔(从上次运行完开始计算);0表示只运行一次
+	 */
+	public Task schedule(long delayMs, long periodMs, Runnable runnable) {
+		if (runnable == null)
+			throw new NullPointerException();
+		Task task = new Task(this, now() + Math.max(delayMs, 0), periodMs, runnable);
+		addQueue.offer(task);
+		if (task.runTime < wakeTime)
+			LockSupport.unpark(thread);
+		return task;
+	}
+
+	public Task schedule(long delayMs, Runnable runnable) {
+		return schedule(delayMs, 0, runnable);
+	}
+
+	/** 停止定时器线程. 等待中的任务不会再运行 */
+	public void shutdown() {
+		running = false;
+		LockSupport.unpark(thread);
+	}
+
+	private void link(Task node) {
+		final int idx;
+		long runTime = node.runTime;
+		final long dt = runTime - curTime;
+		if (dt < 1L << SLOT_SHIFT) {
+			if (dt < 0)
+				idx = runTime < curTime ? (int)(runTime = curTime) & SLOT_MASK : SLOT_SIZE;
+			else
+				idx = (int)runTime & SLOT_MASK;
+		} else if (dt < 1L << (SLOT_SHIFT * 2))
+			idx = (1 << SLOT_SHIFT) + ((int)(runTime >>> SLOT_SHIFT) & SLOT_MASK);
+		else if (dt < 1L << (SLOT_SHIFT * 3))
+			idx = (2 << SLOT_SHIFT) + ((int)(runTime >>> (SLOT_SHIFT * 2)) & SLOT_MASK);
+		else if (dt < 1L << (SLOT_SHIFT * 4))
+			idx = (3 << SLOT_SHIFT) + ((int)(runTime >>> (SLOT_SHIFT * 3)) & SLOT_MASK);
+		else if (dt < 1L << (SLOT_SHIFT * 5))
+			idx = (4 << SLOT_SHIFT) + ((int)(runTime >>> (SLOT_SHIFT * 4)) & SLOT_MASK);
+		else // SLOTS_COUNT overflow
+			idx = SLOT_SIZE;
+		node.runTime = runTime;
+		linkSlot(node, idx);
+	}
+
+	private void linkSlot(Task node, int idx) {
+		final Task head = heads[idx];
+		node.prev = null;
+		node.next = head;
+		if (head != null)
+			head.prev = node;
+		heads[idx] = node;
+		node.slot = idx;
+	}
+
+	private void unlink(Task node) {
+		final int idx = node.slot;
+		if (idx < 0)
+			return;
+		final Task prev = node.prev, next = node.next;
+		if (prev != null)
+			prev.next = next;
+		else
+			heads[idx] = next;
+		if (next != null)
+			next.prev = prev;
+		node.prev = node.next = null;
+		node.slot = -1;
+		count--;
+	}
+
+	/** 在定时器线程中重新加入周期任务 */
+	void addNow(Task node) {
+		link(node);
+		count++;
+	}
+
+	private void update(long now) {
+		final Task[] hs = heads;
+		for (long t = curTime; ; ) {
+			int idx = (int)t & SLOT_MASK;
+			for (Task head; (head = hs[idx]) != null; ) { // 运行中可能会加入同一个槽,所以要循环到槽为空
+				curTime = t;
+				hs[idx] = null;
+				for (Task node = head; node != null; ) {
+					final Task next = node.next;
+					node.prev = node.next = null;
+					node.slot = -1;
+					count--;
+					node.run();
+					node = next;
+				}
+			}
+			if (t >= now) {
+				curTime = t;
+				return;
+			}
+			if ((idx = (int)++t & SLOT_MASK) == 0) { // 低层转满一圈,上层的槽下降
+				int i = 1;
+				while (((t >>> (i * SLOT_SHIFT)) & SLOT_MASK) == 0 && i < SLOTS_COUNT - 1)
+					i++;
+				for (; i > 0; i--) {
+					int shift = i * SLOT_SHIFT;
+					int idx1 = (i << SLOT_SHIFT) + ((int)(t >>> shift) & SLOT_MASK);
+					Task head = hs[idx1];
+					if (head != null) {
+						hs[idx1] = null;
+						int base = (i - 1) << SLOT_SHIFT;
+						shift -= SLOT_SHIFT;
+						for (Task node = head; node != null; ) {
+							final Task next = node.next;
+							linkSlot(node, base + ((int)(node.runTime >>> shift) & SLOT_MASK));
+							node = next;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/** 估算下次需要唤醒的时间: 最低层中最近的非空槽,或者最低层转满一圈需要下降上层槽的时刻 */
+	private long nextWakeTime() {
+		if (count <= 0)
+			return Long.MAX_VALUE;
+		final long t = curTime;
+		final long end = (t | SLOT_MASK) + 1;
+		for (long t1 = t + 1; t1 < end; t1++) {
+			if (heads[(int)t1 & SLOT_MASK] != null)
+				return t1;
+		}
+		return end;
+	}
+
+	private void run() {
+		curTime = now();
+		while (running) {
+			try {
+				for (Task task; (task = cancelQueue.poll()) != null; )
+					unlink(task);
+				for (Task task; (task = addQueue.poll()) != null; ) {
+					if (task.state == STATE_WAITING)
+						addNow(task);
+				}
+				update(now());
+				long wt = nextWakeTime();
+				wakeTime = wt;
+				if (!addQueue.isEmpty())
+					continue;
+				if (wt == Long.MAX_VALUE)
+					LockSupport.park(this);
+				else {
+					long ms = wt - now();
+					if (ms > 0)
+						LockSupport.parkNanos(this, ms * 1_000_000);
+				}
+			} catch (Throwable e) {
+				Log.error("TimingWheel: fatal exception:", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,421 @@
+package jane.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 工作窃取的事务线程池
+ * <p>
+ * 每个工作线程(ProcThread)有自己的任务队列. 工作线程自己提交的任务放入自己队列的尾部并优先从尾部取出(后进先出,利于缓存局部性),
+ * 其它线程提交的任务放入全局队列. 工作线程在自己的队列为空时先取全局队列,再从其它工作线程的队列头部窃取最早的任务.
+ * 为避免饿死,每隔一定次数会先取全局队列和自己队列的头部<br>
+ * 没有任务的工作线程会挂起,提交任务时只唤醒一个挂起的线程. 工作线程在首次提交任务时才会创建<br>
+ * 任务分为高/普通/低三个优先级(见Procedure.PRIORITY_*),各有独立的全局队列,工作线程自己的队列只放普通优先级的任务.
+ * 工作线程按各优先级的权重轮流优先选取某个优先级的任务,该优先级没有任务时再按优先级从高到低选取,所以空闲时不会限制任何优先级
+ */
+public final class WorkStealingExecutor extends AbstractExecutorService {
+	private static final int STATE_RUNNING = 0;
+	private static final int STATE_SHUTDOWN = 1; // 不再接受新任务,运行完已提交的任务后结束
+	private static final int STATE_STOP = 2; // 不再运行已提交的任务,打断运行中的任务
+	private static final int FAIR_POLL_PERIOD = 61; // 每选取这么多次普通优先级的任务,先取一次全局队列和自己队列的头部
+
+	/** 工作线程及其任务队列 */
+	static final class Worker implements Runnable {
+		private static final AtomicIntegerFieldUpdater<Worker> parkedUpdater = AtomicIntegerFieldUpdater.newUpdater(Worker.class, "parked");
+
+		private final WorkStealingExecutor executor;
+		private final ArrayDeque<Runnable> deque = new ArrayDeque<>(); // 本线程的任务队列. 由deque的锁保护
+		private final int index;
+		private int tick; // 在按权重调度的轮转表中的位置. 只在本线程访问
+		private int fairTick; // 距上次公平选取后选取普通优先级任务的次数. 只在本线程访问
+		ProcThread thread;
+		volatile int parked; // 1表示已挂起等待唤醒
+		volatile boolean active; // 是否正在运行任务
+		volatile long completedCount;
+
+		Worker(WorkStealingExecutor executor, int index) {
+			this.executor = executor;
+			this.index = index;
+		}
+
+		void pushLast(Runnable r) {
+			synchronized (deque) {
+				deque.addLast(r);
+			}
+		}
+
+		void pushFirst(Runnable r) {
+			synchronized (deque) {
+				deque.addFirst(r);
+			}
+		}
+
+		Runnable pollLast() {
+			synchronized (deque) {
+				return deque.pollLast();
+			}
+		}
+
+		Runnable pollFirst() {
+			synchronized (deque) {
+				return deque.pollFirst();
+			}
+		}
+
+		int size() {
+			synchronized (deque) {
+				return deque.size();
+			}
+		}
+
+		@Override
+		public void run() {
+			executor.runWorker(this);
+		}
+	}
+
+	private final DBManager _dbm;
+	private final String _threadNamePrefix;
+	private final Worker[] _workers;
+	private final ConcurrentLinkedQueue<Runnable>[] _globalQueues; // 各优先级的全局任务队列. 非工作线程提交的任务和非普通优先级的任务
+	private final int[] _schedule; // 按权重调度的轮转表,每项是优先选取的优先级
+	private final ConcurrentLinkedQueue<Worker> _parkedWorkers = new ConcurrentLinkedQueue<>(); // 可能已挂起的工作线程
+	private final LongAdder _queuedCount = new LongAdder(); // 已提交未开始运行的任务数量
+	private final CountDownLatch _terminated;
+	private volatile int _state;
+	private volatile boolean _started;
+
+	public WorkStealingExecutor(DBManager dbm, int threadCount, String threadNamePrefix) {
+		if (threadCount <= 0)
+			throw new IllegalArgumentException("threadCount=" + threadCount);
+		_dbm = dbm;
+		_threadNamePrefix = threadNamePrefix;
+		_workers = new Worker[threadCount];
+		for (int i = 0; i < threadCount; ++i)
+			_workers[i] = new Worker(this, i);
+		@SuppressWarnings({ "rawtypes", "unchecked" })
+		ConcurrentLinkedQueue<Runnable>[] queues = new ConcurrentLinkedQueue[Procedure.PRIORITY_COUNT];
+		for (int i = 0; i < queues.length; ++i)
+			queues[i] = new ConcurrentLinkedQueue<>();
+		_globalQueues = queues;
+		_schedule = buildSchedule(Const.procWeightHigh, Const.procWeightNormal, Const.procWeightLow);
+		_terminated = new CountDownLatch(threadCount);
+	}
+
+	/** 按平滑加权轮转生成轮转表,使各优先级在表中分布均匀 */
+	private static int[] buildSchedule(int... weights) {
+		int total = 0;
+		for (int w : weights)
+			total += w;
+		int[] schedule = new int[total];
+		int[] cur = new int[weights.length];
+		for (int i = 0; i < total; ++i) {
+			int best = 0;
+			for (int j = 0; j < weights.length; ++j) {
+				cur[j] += weights[j];
+				if (cur[j] > cur[best])
+					best = j;
+			}
+			cur[best] -= total;
+			schedule[i] = best;
+		}
+		return schedule;
+	}
+
+	/** 带优先级的FutureTask,用于submit */
+	private static final class PriorityTask<T> extends FutureTask<T> {
+		final int priority;
+
+		PriorityTask(Runnable r, T v) {
+			super(r, v);
+			priority = priorityOf(r);
+		}
+	}
+
+	/** 获取任务的优先级. 非事务的任务是普通优先级 */
+	private static int priorityOf(Runnable r) {
+		if (r instanceof Procedure)
+			return ((Procedure)r).getPriority();
+		if (r instanceof PriorityTask)
+			return ((PriorityTask<?>)r).priority;
+		return Procedure.PRIORITY_NORMAL;
+	}
+
+	@Override
+	protected <T> RunnableFuture<T> newTaskFor(Runnable r, T v) {
+		return new PriorityTask<>(r, v);
+	}
+
+	private void ensureStarted() {
+		if (_started)
+			return;
+		synchronized (this) {
+			if (_started)
+				return;
+			for (Worker w : _workers) {
+				ProcThread t = new ProcThread(_dbm, _threadNamePrefix + (w.index + 1), w);
+				t.worker = w;
+				t.setDaemon(true);
+				w.thread = t;
+			}
+			for (Worker w : _workers)
+				w.thread.start();
+			_started = true;
+		}
+	}
+
+	/** 获取当前线程在本线程池中的工作者. 非本线程池的线程返回null */
+	private Worker currentWorker() {
+		Thread t = Thread.currentThread();
+		if (t instanceof ProcThread) {
+			Worker w = ((ProcThread)t).worker;
+			if (w != null && w.executor == this)
+				return w;
+		}
+		return null;
+	}
+
+	private void signalWork() {
+		for (Worker w; (w = _parkedWorkers.poll()) != null; ) {
+			if (Worker.parkedUpdater.compareAndSet(w, 1, 0)) {
+				LockSupport.unpark(w.thread);
+				return;
+			}
+		}
+	}
+
+	/** 提交任务. 事务按其优先级排队,其它任务是普通优先级 */
+	@Override
+	public void execute(Runnable r) {
+		execute(r, priorityOf(r));
+	}
+
+	/**
+	 * 按指定的优先级提交任务
+	 *
+	 * @param priority Procedure.PRIORITY_*
+	 */
+	public void execute(Runnable r, int priority) {
+		if (r == null)
+			throw new NullPointerException();
+		if (_state != STATE_RUNNING)
+			throw new RejectedExecutionException("WorkStealingExecutor has been shutdown");
+		ensureStarted();
+		_queuedCount.increment();
+		Worker w;
+		if (priority == Procedure.PRIORITY_NORMAL && (w = currentWorker()) != null)
+			w.pushLast(r);
+		else
+			_globalQueues[priority].offer(r);
+		signalWork();
+	}
+
+	/**
+	 * 提交任务,但在工作线程中提交时放入自己队列的头部(最晚运行,也最先被窃取)
+	 * <p>
+	 * 用于已运行一段时间的任务重新排队,让出给其它任务
+	 */
+	public void executeLater(Runnable r) {
+		executeLater(r, priorityOf(r));
+	}
+
+	/**
+	 * 同executeLater,但按指定的优先级提交任务. 非普通优先级的任务总是放入全局队列的尾部
+	 *
+	 * @param priority Procedure.PRIORITY_*
+	 */
+	public void executeLater(Runnable r, int priority) {
+		if (r == null)
+			throw new NullPointerException();
+		if (_state != STATE_RUNNING)
+			throw new RejectedExecutionException("WorkStealingExecutor has been shutdown");
+		ensureStarted();
+		_queuedCount.increment();
+		Worker w;
+		if (priority == Procedure.PRIORITY_NORMAL && (w = currentWorker()) != null)
+			w.pushFirst(r);
+		else
+			_globalQueues[priority].offer(r);
+		signalWork();
+	}
+
+	/**
+	 * 选取某个优先级的任务. 普通优先级依次从自己的队列,全局队列和其它工作线程的队列中选取
+	 * <p>
+	 * 自己的队列总有任务时,全局队列和自己队列头部(executeLater放入的任务)会一直得不到运行,
+	 * 所以每FAIR_POLL_PERIOD次先从全局队列和自己队列的头部选取一次
+	 */
+	private Runnable pollTask(Worker w, int priority) {
+		if (priority != Procedure.PRIORITY_NORMAL)
+			return _globalQueues[priority].poll();
+		Runnable r;
+		if (++w.fairTick >= FAIR_POLL_PERIOD) {
+			w.fairTick = 0;
+			if ((r = _globalQueues[priority].poll()) != null || (r = w.pollFirst()) != null)
+				return r;
+		}
+		if ((r = w.pollLast()) != null)
+			return r;
+		if ((r = _globalQueues[priority].poll()) != null)
+			return r;
+		Worker[] ws = _workers;
+		for (int i = 1, n = ws.length; i < n; ++i) {
+			if ((r = ws[(w.index + i) % n].pollFirst()) != null)
+				return r;
+		}
+		return null;
+	}
+
+	private Runnable findTask(Worker w) {
+		int tick = w.tick;
+		int priority = _schedule[tick];
+		w.tick = (++tick < _schedule.length ? tick : 0);
+		Runnable r = pollTask(w, priority);
+		if (r != null)
+			return r;
+		for (int i = 0; i < Procedure.PRIORITY_COUNT; ++i) {
+			if (i != priority && (r = pollTask(w, i)) != null)
+				return r;
+		}
+		return null;
+	}
+
+	void runWorker(Worker w) {
+		try {
+			for (; ; ) {
+				int state = _state;
+				if (state == STATE_STOP)
+					break;
+				Runnable r = findTask(w);
+				if (r == null) {
+					if (state == STATE_SHUTDOWN)
+						break;
+					w.parked = 1;
+					_parkedWorkers.offer(w);
+					if ((r = findTask(w)) == null) { // 入队后再找一次,避免和提交者错过唤醒
+						while (w.parked != 0 && _state == STATE_RUNNING)
+							LockSupport.park(this);
+						continue;
+					}
+					Worker.parkedUpdater.compareAndSet(w, 1, 0); // 队列中残留的自己会被提交者跳过
+				}
+				_queuedCount.decrement();
+				w.active = true;
+				try {
+					r.run();
+				} catch (Throwable e) {
+					Log.error(e, "{}: task exception:", w.thread.getName());
+				} finally {
+					w.active = false;
+					w.completedCount++;
+					Thread.interrupted(); // 清除事务超时打断的残留标记,避免影响下个任务
+				}
+			}
+		} finally {
+			_terminated.countDown();
+		}
+	}
+
+	private void wakeAll() {
+		for (Worker w : _workers) {
+			w.parked = 0;
+			Thread t = w.thread;
+			if (t != null)
+				LockSupport.unpark(t);
+		}
+	}
+
+	private void drainTo(List<Runnable> list) {
+		for (ConcurrentLinkedQueue<Runnable> queue : _globalQueues) {
+			for (Runnable r; (r = queue.poll()) != null; )
+				list.add(r);
+		}
+		for (Worker w : _workers) {
+			for (Runnable r; (r = w.pollFirst()) != null; )
+				list.add(r);
+		}
+		_queuedCount.add(-list.size());
+	}
+
+	@Override
+	public synchronized void shutdown() {
+		if (_state == STATE_RUNNING)
+			_state = STATE_SHUTDOWN;
+		if (!_started) {
+			for (int i = _workers.length; i > 0; --i)
+				_terminated.countDown();
+			_started = true;
+			return;
+		}
+		wakeAll();
+	}
+
+	@Override
+	public synchronized List<Runnable> shutdownNow() {
+		shutdown();
+		_state = STATE_STOP;
+		List<Runnable> list = new ArrayList<>();
+		drainTo(list);
+		for (Worker w : _workers) {
+			Thread t = w.thread;
+			if (t != null)
+				t.interrupt();
+		}
+		wakeAll();
+		return list;
+	}
+
+	@Override
+	public boolean isShutdown() {
+		return _state != STATE_RUNNING;
+	}
+
+	@Override
+	public boolean isTerminated() {
+		return _terminated.getCount() == 0;
+	}
+
+	@Override
+	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+		return _terminated.await(timeout, unit);
+	}
+
+	/** 获取工作线程数量 */
+	public int getPoolSize() {
+		return _workers.length;
+	}
+
+	/** 获取已提交未开始运行的任务数量(近似值) */
+	public int getQueueSize() {
+		return (int)Math.max(_queuedCount.sum(), 0);
+	}
+
+	/** 获取正在运行任务的线程数量(近似值) */
+	public int getActiveCount() {
+		int n = 0;
+		for (Worker w : _workers) {
+			if (w.active)
+				++n;
+		}
+		return n;
+	}
+
+	/** 获取已经运行完成的任务数量(近似值) */
+	public long getCompletedTaskCount() {
+		long n = 0;
+		for (Worker w : _workers)
+			n += w.completedCount;
+		return n;
+	}
+}
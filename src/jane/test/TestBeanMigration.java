@@ -0,0 +1,138 @@
+package jane.test;
+
+import java.util.concurrent.CountDownLatch;
+import jane.bean.TestBean;
+import jane.core.BeanMigration;
+import jane.core.DBManager;
+import jane.core.Log;
+import jane.core.Procedure;
+import jane.core.TableLong;
+
+/**
+ * 数据库表记录版本迁移的测试
+ * <p>
+ * 带参数"v0"运行时,不绑定版本迁移,写入一批只有value1字段的版本0的记录,保存数据库后立即退出. 之后不带参数再运行一次,以版本1和升级器打开表,检查:<br>
+ * 事务中加锁读取的旧记录会升级并标记为已修改,存库后写回为版本1; 后台遍历会升级其余全部旧记录,统计数量正确
+ */
+public final class TestBeanMigration {
+	private static final int TABLE_ID = 9993; // 测试表ID. 可调整来避免和现有数据库中的数据冲突
+	private static final int RECORD_COUNT = 3000; // 写入的记录数量
+	private static final long READ_KEY = 5; // 在事务中读取的记录key
+	private static final int WALK_SPEED = 2000; // 后台遍历每秒升级的记录数量上限
+
+	private static TableLong<TestBean, TestBean.Safe> table;
+
+	private static abstract class SyncProc extends Procedure {
+		private final CountDownLatch _done = new CountDownLatch(1);
+
+		protected abstract void onRun() throws Exception;
+
+		@Override
+		protected void onProcess() throws Exception {
+			try {
+				onRun();
+			} finally {
+				_done.countDown();
+			}
+		}
+
+		void run(DBManager dbm) throws InterruptedException {
+			dbm.submit(this);
+			_done.await();
+		}
+	}
+
+	/** @return [版本不是1的记录数量,全部记录数量] */
+	private static long[] countOld() {
+		long[] counts = new long[2];
+		table.walkRaw((k, v) -> {
+			if (v[0] != 1)
+				++counts[0];
+			++counts[1];
+			return true;
+		});
+		return counts;
+	}
+
+	private static boolean check(String name, long value, long expected) {
+		boolean ok = (value == expected);
+		Log.info("{}: {} (expected {}) {}", name, value, expected, ok ? "OK" : "FAILED!!!");
+		return ok;
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean v0 = (args.length > 0 && args[0].equals("v0"));
+		DBManager dbm = DBManager.instance();
+		dbm.startup();
+		table = dbm.openTable(TABLE_ID, "migTable", "mig", 100, TestBean.BEAN_STUB);
+		BeanMigration<TestBean> migration = null;
+		if (!v0) {
+			migration = new BeanMigration<>(TestBean.BEAN_STUB, 1).setUpgrader(0, b -> { // 版本1增加字段2(value2),值为字段1(value1)的2倍
+				Object v = b.getField(1);
+				if (v != null)
+					b.setField(2, (Long)v * 2);
+				return b;
+			});
+			table.setMigration(migration);
+		}
+		dbm.startCommitThread();
+
+		if (v0) {
+			for (int i = 0; i < RECORD_COUNT; ++i) { // 每个事务只能持有有限的锁,所以每条记录一个事务
+				int k = i;
+				new SyncProc() {
+					@Override
+					protected void onRun() throws Exception {
+						lock(table.lockId(k));
+						table.put(k, new TestBean(k, 0));
+					}
+				}.run(dbm);
+			}
+			dbm.checkpoint();
+			long[] counts = countOld();
+			Log.info("v0: written: old={}, total={}", counts[0], counts[1]);
+			System.exit(0);
+		}
+
+		boolean ok = check("old before", countOld()[0], RECORD_COUNT);
+
+		long[] r = new long[2];
+		new SyncProc() {
+			@Override
+			protected void onRun() throws Exception {
+				TestBean.Safe b = table.lockGet(READ_KEY);
+				r[0] = (b != null ? b.getValue2() : -1);
+				r[1] = table.getCacheModSize();
+			}
+		}.run(dbm);
+		ok &= check("read value2", r[0], READ_KEY * 2);
+		ok &= check("read modified", r[1], 1);
+		ok &= check("read upgrades", migration.getUpgradeCount(), 1);
+
+		dbm.checkpoint();
+		byte[][] raw = new byte[1][];
+		table.walkRaw((k, v) -> {
+			raw[0] = v;
+			return false;
+		}, READ_KEY, READ_KEY, true, false);
+		ok &= check("saved version", raw[0] != null ? raw[0][0] : -1, 1);
+		ok &= check("old after save", countOld()[0], RECORD_COUNT - 1);
+
+		long t = System.currentTimeMillis();
+		migration.startWalker(WALK_SPEED);
+		while (!migration.isWalkDone())
+			Thread.sleep(100);
+		Log.info("walk end: {}ms", System.currentTimeMillis() - t);
+		ok &= check("walked", migration.getWalkCount(), RECORD_COUNT);
+		ok &= check("walk upgraded", migration.getWalkUpgradeCount(), RECORD_COUNT - 1);
+		ok &= check("total upgrades", migration.getUpgradeCount(), RECORD_COUNT);
+
+		dbm.checkpoint();
+		long[] counts = countOld();
+		ok &= check("old after walk", counts[0], 0);
+		ok &= check("total", counts[1], RECORD_COUNT);
+		Log.info("end: {}", ok ? "OK" : "FAILED!!!");
+		dbm.shutdown();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,109 @@
+package jane.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import jane.core.Const;
+import jane.core.DBManager;
+import jane.core.Log;
+import jane.core.ProcThread;
+import jane.core.Procedure;
+import jane.core.TableLong;
+import jane.test.TestStress.StressBean;
+
+/**
+ * 死锁检测的压力测试
+ * <p>
+ * 需要用-Djane.appendLockUnordered=1运行. 每个事务按随机顺序追加加锁少量记录中的几个,并在加锁间让出CPU,故意制造大量的循环等待<br>
+ * 每个事务在记录间转移数值,全部完成后检查总和不变,并输出检测到的死锁次数
+ */
+public final class TestDeadlock extends Procedure {
+	private static final int TABLE_ID = 9998; // 表ID. 可调整来避免和现有数据库中的数据冲突
+	private static final int RECORD_COUNT = 8; // 总测试的记录数量. 越少越容易死锁
+	private static final int LOCK_COUNT = 3; // 每个事务加锁的记录数量
+	private static final int CONCURRENT_COUNT = 8; // 并发事务的数量
+	private static final int PROC_COUNT = 20000; // 每个并发事务序列运行的事务数量
+	private static final int INIT_VALUE = 1000; // 每个记录的初始值
+
+	private static final AtomicLong counter = new AtomicLong(); // 事务完成次数统计
+	private static TableLong<StressBean, StressBean.Safe> table;
+	private static CountDownLatch finished;
+
+	private final int id;
+	private int remain;
+
+	private TestDeadlock(int id, int remain) {
+		this.id = id;
+		this.remain = remain;
+	}
+
+	@Override
+	protected void onProcess() throws Exception {
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		for (int i = 0; i < LOCK_COUNT; ++i) {
+			long k = rand.nextInt(RECORD_COUNT);
+			StressBean.Safe b = lockGet(table, k);
+			if (b == null)
+				throw new Exception("record not found: " + k);
+			b.setValue1(b.getValue1() + (i == 0 ? -LOCK_COUNT + 1 : 1)); // 追加加锁前已有修改,只有不重排序时才允许
+			Thread.yield();
+		}
+		counter.getAndIncrement();
+		if (--remain > 0)
+			DBManager.instance().submit(id, this);
+		else
+			finished.countDown();
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (!Const.appendLockUnordered) {
+			Log.error("need -Djane.appendLockUnordered=1");
+			return;
+		}
+		DBManager dbm = DBManager.instance();
+		dbm.startup();
+		table = dbm.openTable(TABLE_ID, "deadlockTable", "deadlock", 0, StressBean.BEAN_STUB);
+		dbm.startCommitThread();
+
+		CountDownLatch inited = new CountDownLatch(1);
+		dbm.submit(new Procedure() {
+			@Override
+			protected void onProcess() throws Exception {
+				for (long k = 0; k < RECORD_COUNT; ++k) {
+					StressBean.Safe b = lockGet(table, k);
+					if (b == null)
+						table.put(k, new StressBean(INIT_VALUE));
+					else
+						b.setValue1(INIT_VALUE);
+				}
+				inited.countDown();
+			}
+		});
+		inited.await();
+
+		Log.info("start...");
+		long t = System.currentTimeMillis();
+		finished = new CountDownLatch(CONCURRENT_COUNT);
+		for (int i = 0; i < CONCURRENT_COUNT; ++i)
+			dbm.submit(i, new TestDeadlock(i, PROC_COUNT));
+		while (!finished.await(1, TimeUnit.SECONDS))
+			Log.info("C=" + counter.get() + "  DL=" + ProcThread.getDeadlockCount() + "  INT=" + ProcThread.getInterruptCount());
+
+		long[] sum = new long[1];
+		CountDownLatch checked = new CountDownLatch(1);
+		dbm.submit(new Procedure() {
+			@Override
+			protected void onProcess() throws Exception {
+				for (long k = 0; k < RECORD_COUNT; ++k)
+					sum[0] += lockGet(table, k).getValue1();
+				checked.countDown();
+			}
+		});
+		checked.await();
+		Log.info("end: C=" + counter.get() + "  DL=" + ProcThread.getDeadlockCount() + "  INT=" + ProcThread.getInterruptCount() +
+				"  time=" + (System.currentTimeMillis() - t) + "ms  sum=" + sum[0] + (sum[0] == (long)RECORD_COUNT * INIT_VALUE ? " OK" : " FAILED!!!"));
+		dbm.shutdown();
+		System.exit(0);
+	}
+}
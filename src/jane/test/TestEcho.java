@@ -6,6 +6,7 @@ import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import jane.core.Log;
 import jane.core.NetManager;
+import jane.core.Procedure;
 import jane.tool.CachedIoBufferAllocator;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.future.ConnectFuture;
@@ -14,12 +15,13 @@ import org.apache.mina.core.session.IoSession;
 import org.apache.mina.core.write.WriteRequest;
 import org.apache.mina.core.write.WriteRequestQueue;
 
-// start.bat jane.test.TestEcho 6 64 32 100000 1 64
+// start.bat jane.test.TestEcho 6 64 32 100000 1 64 [procMode]
 public final class TestEcho extends NetManager {
 	private static int TEST_THREAD_COUNT = 6;
 	private static int TEST_CLIENT_COUNT = 64;
 	private static int TEST_ECHO_SIZE = 32;
 	private static int TEST_ECHO_COUNT = 100000;
+	private static int TEST_PROC_MODE; // 0:直接回显; 1:在事务线程池的事务中回显; 2:线程每核模式,在IO线程的事务中回显
 
 	private static CountDownLatch _closedCount;
 	private static final AtomicInteger _recvCount = new AtomicInteger();
@@ -104,7 +106,18 @@ public final class TestEcho extends NetManager {
 	public void messageReceived(IoSession session, Object message) {
 		if (_recvCount.getAndIncrement() < TEST_ECHO_COUNT) {
 //			perf[6].begin();
-			write(session, message);
+			IoBuffer buf = (IoBuffer)message;
+			IoBuffer echo = buf.isTransient() ? buf.copyRemaining() : buf; // 共享的读缓冲区不能直接放进写队列
+			if (TEST_PROC_MODE == 0)
+				write(session, echo);
+			else {
+				NetManager.submit(session, session, new Procedure() {
+					@Override
+					protected void onProcess() {
+						write(session, echo);
+					}
+				});
+			}
 //			perf[6].end();
 		} else
 			session.closeNow();
@@ -119,11 +132,14 @@ public final class TestEcho extends NetManager {
 			TEST_ECHO_SIZE = Integer.parseInt(args[2]);
 		if (args.length > 3)
 			TEST_ECHO_COUNT = Integer.parseInt(args[3]);
-		System.out.println("TestEcho: start: " + TEST_CLIENT_COUNT);
+		if (args.length > 6)
+			TEST_PROC_MODE = Integer.parseInt(args[6]);
+		System.out.println("TestEcho: start: " + TEST_CLIENT_COUNT + ", procMode: " + TEST_PROC_MODE);
 		_closedCount = new CountDownLatch(TEST_CLIENT_COUNT * 2);
 		CachedIoBufferAllocator.globalSet((args.length > 4 ? Integer.parseInt(args[4]) : 0) > 0,
 				args.length > 5 ? Integer.parseInt(args[5]) : 0, 64 * 1024);
 		NetManager.setSharedIoThreadCount(TEST_THREAD_COUNT);
+		NetManager.setSharedIoThreadPerCore(TEST_PROC_MODE == 2);
 		long time = System.currentTimeMillis();
 //		perf[2].begin();
 //		perf[0].begin();
@@ -0,0 +1,91 @@
+package jane.test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import jane.core.DBManager;
+import jane.core.Log;
+import jane.core.Procedure;
+
+/**
+ * 事务优先级调度的测试
+ * <p>
+ * 先提交大量带截止时间的低优先级事务占满线程池,再间隔提交少量各优先级的探测事务,高和普通优先级的平均排队耗时应远小于低优先级<br>
+ * 用-Djane.procAdmitQueueSize=N运行可以观察低优先级事务被准入限制拒绝的数量
+ */
+public final class TestProcPriority {
+	private static final int LOW_COUNT = 200_000; // 低优先级事务的数量
+	private static final long LOW_DEADLINE = 2000; // 低优先级事务的截止时间(毫秒)
+	private static final long LOW_RUN_TIME = 20_000; // 每个低优先级事务的运行耗时(纳秒)
+	private static final int PROBE_COUNT = 100; // 每个优先级探测事务的数量
+	private static final long PROBE_INTERVAL = 10; // 探测事务的提交间隔(毫秒)
+
+	private static final LongAdder lowRunCount = new LongAdder();
+
+	private static final class ProbeProc extends Procedure {
+		private final long submitTime = System.nanoTime();
+		private final AtomicLong sum;
+		private final CountDownLatch done;
+
+		ProbeProc(int priority, AtomicLong sum, CountDownLatch done) {
+			setPriority(priority);
+			this.sum = sum;
+			this.done = done;
+		}
+
+		@Override
+		protected void onProcess() {
+			sum.addAndGet(System.nanoTime() - submitTime);
+			done.countDown();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		DBManager dbm = DBManager.instance();
+		dbm.startup();
+
+		Log.info("submit low...");
+		long deadline = System.currentTimeMillis() + LOW_DEADLINE;
+		int rejected = 0;
+		for (int i = 0; i < LOW_COUNT; ++i) {
+			Procedure p = new Procedure() {
+				@Override
+				protected void onProcess() {
+					for (long t = System.nanoTime(); System.nanoTime() - t < LOW_RUN_TIME; ) {
+					}
+					lowRunCount.increment();
+				}
+			};
+			p.setPriority(Procedure.PRIORITY_LOW);
+			p.setDeadline(deadline);
+			if (!dbm.submit(p))
+				++rejected;
+		}
+
+		Log.info("submit probes...");
+		AtomicLong[] sums = new AtomicLong[Procedure.PRIORITY_COUNT];
+		CountDownLatch done = new CountDownLatch(PROBE_COUNT * sums.length);
+		for (int i = 0; i < sums.length; ++i)
+			sums[i] = new AtomicLong();
+		for (int i = 0; i < PROBE_COUNT; ++i) {
+			for (int j = 0; j < sums.length; ++j) {
+				if (!dbm.submit(new ProbeProc(j, sums[j], done)))
+					done.countDown();
+			}
+			Thread.sleep(PROBE_INTERVAL);
+		}
+		done.await();
+		long highAvg = sums[Procedure.PRIORITY_HIGH].get() / PROBE_COUNT / 1000;
+		long normalAvg = sums[Procedure.PRIORITY_NORMAL].get() / PROBE_COUNT / 1000;
+		long lowAvg = sums[Procedure.PRIORITY_LOW].get() / PROBE_COUNT / 1000;
+		Log.info("probe queue time: high={}us, normal={}us, low={}us {}", highAvg, normalAvg, lowAvg,
+				rejected > 0 || highAvg < lowAvg && normalAvg < lowAvg ? "OK" : "FAILED!!!");
+
+		while (dbm.getProcSubmittedCount() > 0)
+			Thread.sleep(100);
+		Log.info("low: submitted={}, rejected={}, run={}, lateDropped={}",
+				LOW_COUNT, rejected, lowRunCount.sum(), Procedure.getLateDropCount());
+		dbm.shutdown();
+		System.exit(0);
+	}
+}
@@ -0,0 +1,138 @@
+package jane.test;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import jane.core.Const;
+import jane.core.DBManager;
+import jane.core.Log;
+import jane.core.Octets;
+import jane.core.OctetsStream;
+import jane.core.ProcScheduler;
+import jane.core.Procedure;
+import jane.core.RawBean;
+import jane.core.TableLong;
+import jane.test.TestStress.StressBean;
+
+/**
+ * 持久化定时事务调度器的测试
+ * <p>
+ * 调度大量触发时间分散的任务,其中一部分在同一事务中取消. 调度和运行的次数都保存在数据库中,全部运行完后检查两者是否相等<br>
+ * 带参数"stop"运行时,只调度较远的任务,保存数据库后立即退出. 之后不带参数再运行一次,检查重启后能否准确运行上次遗留的任务<br>
+ * 少量任务首次运行时会抛出异常或超时被打断,检查它们能否重试成功. 超时的任务只在用-Djane.procedureTimeout=1运行时模拟
+ */
+public final class TestProcScheduler {
+	private static final int TABLE_ID = 9995; // 定时任务表ID. 可调整来避免和现有数据库中的数据冲突
+	private static final int COUNTER_TABLE_ID = 9994; // 计数表ID
+	private static final int HANDLER_TYPE = 1;
+	private static final int SCHEDULE_COUNT = 50000; // 调度的任务数量
+	private static final long KEY_SCHEDULED = 1; // 计数表中保存调度次数的记录key
+	private static final long KEY_FIRED = 2; // 计数表中保存运行次数的记录key
+	private static final int FAIL_PERIOD = 1000; // 每这么多个任务首次运行时有一个抛出异常
+	private static final int TIMEOUT_PERIOD = 5000; // 每这么多个任务首次运行时有一个超时
+
+	private static TableLong<StressBean, StressBean.Safe> counterTable;
+	private static ProcScheduler scheduler;
+	private static final Set<Long> failedIds = ConcurrentHashMap.newKeySet(); // 已模拟过失败的任务ID
+
+	private static abstract class SyncProc extends Procedure {
+		private final CountDownLatch _done = new CountDownLatch(1);
+
+		protected abstract void onRun() throws Exception;
+
+		@Override
+		protected void onProcess() throws Exception {
+			try {
+				onRun();
+			} finally {
+				_done.countDown();
+			}
+		}
+
+		void run(DBManager dbm) throws InterruptedException {
+			dbm.submit(this);
+			_done.await();
+		}
+	}
+
+	private static int[] getCounts(DBManager dbm) throws InterruptedException {
+		int[] counts = new int[2];
+		new SyncProc() {
+			@Override
+			protected void onRun() throws Exception {
+				StressBean.Safe s = counterTable.lockGet(KEY_SCHEDULED);
+				StressBean.Safe f = counterTable.lockGet(KEY_FIRED);
+				counts[0] = (s != null ? s.getValue1() : 0);
+				counts[1] = (f != null ? f.getValue1() : 0);
+			}
+		}.run(dbm);
+		return counts;
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean stop = (args.length > 0 && args[0].equals("stop"));
+		DBManager dbm = DBManager.instance();
+		dbm.startup();
+		TableLong<RawBean, RawBean.Safe> table = dbm.openTable(TABLE_ID, "schedTable", "sched", 1000, RawBean.BEAN_STUB);
+		counterTable = dbm.openTable(COUNTER_TABLE_ID, "schedCounter", "schedCounter", 0, StressBean.BEAN_STUB);
+		dbm.startCommitThread();
+
+		scheduler = new ProcScheduler(dbm, table, 2000, 10000);
+		scheduler.registerHandler(HANDLER_TYPE, (id, data) -> {
+			long fireTime = ProcScheduler.getFireTime(id);
+			if (OctetsStream.wrap(data).unmarshalLong() != fireTime)
+				throw new IllegalStateException("invalid data: id=" + id);
+			if (fireTime % FAIL_PERIOD == 0 && failedIds.add(id))
+				throw new Exception("test fail: id=" + id);
+			if (fireTime % TIMEOUT_PERIOD == 1 && Const.procedureTimeout <= 1 && failedIds.add(id))
+				Thread.sleep(Const.procedureTimeout * 10_000L); // 等待超时被打断
+			StressBean.Safe f = counterTable.lockGetOrNew(KEY_FIRED);
+			f.setValue1(f.getValue1() + 1);
+		});
+		if (!stop)
+			scheduler.start();
+
+		Log.info("schedule...");
+		long t = System.currentTimeMillis();
+		long base = t + (stop ? 10_000 : -1000); // 正常运行时有一部分任务已经到期
+		CountDownLatch scheduled = new CountDownLatch(SCHEDULE_COUNT);
+		for (int i = 0; i < SCHEDULE_COUNT; ++i) {
+			boolean cancel = (i % 10 == 0);
+			dbm.submit(new Procedure() {
+				@Override
+				protected void onProcess() throws Exception {
+					StressBean.Safe s = counterTable.lockGetOrNew(KEY_SCHEDULED); // 先加锁计数记录,之后追加的锁不会遇到已有修改
+					long fireTime = base + ThreadLocalRandom.current().nextInt(5000);
+					long id = scheduler.schedule(fireTime, HANDLER_TYPE, new Octets(9).marshal(fireTime));
+					if (cancel)
+						scheduler.cancel(id);
+					else
+						s.setValue1(s.getValue1() + 1);
+					scheduled.countDown();
+				}
+			});
+		}
+		scheduled.await();
+		Log.info("schedule end: {}ms", System.currentTimeMillis() - t);
+		if (stop) {
+			dbm.checkpoint();
+			Log.info("stop: scheduled={}", getCounts(dbm)[0]);
+			System.exit(0);
+		}
+
+		for (int[] counts; ; ) {
+			Thread.sleep(1000);
+			counts = getCounts(dbm);
+			Log.info("scheduled={}, fired={}, loaded={}, pending={}, retry={}",
+					counts[0], counts[1], scheduler.getLoadedSize(), scheduler.getPendingSize(), scheduler.getRetryCount());
+			if (counts[1] >= counts[0]) {
+				Log.info("end: {}ms, {}", System.currentTimeMillis() - t, counts[1] == counts[0] ? "OK" : "FAILED!!!");
+				break;
+			}
+		}
+		scheduler.shutdown();
+		dbm.shutdown();
+		System.exit(0);
+	}
+}
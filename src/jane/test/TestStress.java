@@ -242,8 +242,8 @@ public final class TestStress extends Procedure {
 		//noinspection InfiniteLoopStatement
 		for (; ; ) {
 			long curRemoveCount = CacheRef.getRefRemoveCount();
-			Log.info("TQ=" + dbm.getProcThreads().getQueue().size() +
-					"  TA=" + dbm.getProcThreads().getActiveCount() +
+			Log.info("TQ=" + dbm.getProcExecutor().getQueueSize() +
+					"  TA=" + dbm.getProcExecutor().getActiveCount() +
 					"  RR=" + (curRemoveCount - lastRemoveCount) +
 					"  C=" + counter.getAndSet(0));
 			lastRemoveCount = curRemoveCount;
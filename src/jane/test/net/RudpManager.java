@@ -0,0 +1,308 @@
+package jane.test.net;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import jane.core.Bean;
+import jane.core.BeanHandler;
+import jane.core.Log;
+import jane.core.NetManager;
+
+/**
+ * 可靠UDP网络管理器
+ * <p>
+ * 在UdpManager的基础上实现多个RudpSession的收发,bean的编解码格式和BeanCodec相同,解码使用所关联NetManager注册的bean处理器<br>
+ * 同一个UDP socket可以同时作为服务器和客户端: 收到未知会话ID的可靠分段时创建新会话(可关闭), connect时随机分配会话ID<br>
+ * 由单独的更新线程定时处理各会话的重传和超时. 可设置发送丢包率模拟网络丢包,用于测试
+ */
+public class RudpManager extends UdpManager {
+	public static final int DEF_INTERVAL = 10; // 默认的更新间隔(毫秒)
+	public static final int DEF_WINDOW = 128; // 默认的发送和接收窗口(分段数量)
+	public static final int DEF_MIN_RTO = 30; // 默认的最小RTO(毫秒)
+	public static final int DEF_FAST_RESEND = 2; // 默认的快速重传跳过次数. 0表示不快速重传
+	public static final int DEF_DEAD_LINK = 20; // 默认的单个分段最大发送次数,超过则断开
+	public static final int DEF_IDLE_TIMEOUT = 30_000; // 默认的空闲断开时间(毫秒)
+
+	private final NetManager _netMgr;
+	private final ConcurrentHashMap<Integer, RudpSession> _sessions = new ConcurrentHashMap<>();
+	private final long _baseNanoTime = System.nanoTime();
+	private Thread _updateThread;
+	private volatile boolean _acceptSession = true;
+	private volatile int _interval = DEF_INTERVAL;
+	private volatile int _sndWnd = DEF_WINDOW;
+	private volatile int _rcvWnd = DEF_WINDOW;
+	private volatile int _minRto = DEF_MIN_RTO;
+	private volatile int _fastResend = DEF_FAST_RESEND;
+	private volatile int _deadLink = DEF_DEAD_LINK;
+	private volatile int _idleTimeout = DEF_IDLE_TIMEOUT;
+	private volatile double _lossRate;
+
+	/** @param netMgr 提供bean处理器的NetManager,只用于解码,不需要启动 */
+	public RudpManager(NetManager netMgr) {
+		if (netMgr == null)
+			throw new NullPointerException();
+		_netMgr = netMgr;
+	}
+
+	public final NetManager getNetManager() {
+		return _netMgr;
+	}
+
+	/** 获取管理器的时间(毫秒),从创建时开始计时 */
+	public final long now() {
+		return (System.nanoTime() - _baseNanoTime) / 1_000_000;
+	}
+
+	public final int getSessionCount() {
+		return _sessions.size();
+	}
+
+	public final RudpSession getSession(int conv) {
+		return _sessions.get(conv);
+	}
+
+	public final Iterator<RudpSession> getSessionIterator() {
+		return _sessions.values().iterator();
+	}
+
+	/** 设置是否接受对方发起的新会话 */
+	public void setAcceptSession(boolean accept) {
+		_acceptSession = accept;
+	}
+
+	public int getInterval() {
+		return _interval;
+	}
+
+	/** 设置更新间隔(毫秒). 影响重传检查的精度 */
+	public void setInterval(int interval) {
+		_interval = Math.max(interval, 1);
+	}
+
+	public int getSendWindow() {
+		return _sndWnd;
+	}
+
+	public int getRecvWindow() {
+		return _rcvWnd;
+	}
+
+	/** 设置发送和接收窗口(分段数量). 接收窗口会调整成不超过16384的2的幂. 只影响之后创建的会话 */
+	public void setWindow(int sndWnd, int rcvWnd) {
+		_sndWnd = Math.max(sndWnd, 1);
+		_rcvWnd = Integer.highestOneBit(Math.min(Math.max(rcvWnd, 2), 0x4000) * 2 - 1);
+	}
+
+	public int getMinRto() {
+		return _minRto;
+	}
+
+	public void setMinRto(int minRto) {
+		_minRto = Math.max(minRto, 1);
+	}
+
+	public int getFastResend() {
+		return _fastResend;
+	}
+
+	/** 设置快速重传的跳过次数. 0表示不快速重传 */
+	public void setFastResend(int fastResend) {
+		_fastResend = Math.max(fastResend, 0);
+	}
+
+	public int getDeadLink() {
+		return _deadLink;
+	}
+
+	public void setDeadLink(int deadLink) {
+		_deadLink = Math.max(deadLink, 1);
+	}
+
+	public int getIdleTimeout() {
+		return _idleTimeout;
+	}
+
+	public void setIdleTimeout(int idleTimeout) {
+		_idleTimeout = Math.max(idleTimeout, 1);
+	}
+
+	public double getLossRate() {
+		return _lossRate;
+	}
+
+	/** 设置发送时模拟丢包的概率[0,1). 只用于测试 */
+	public void setLossRate(double lossRate) {
+		_lossRate = lossRate;
+	}
+
+	@Override
+	public synchronized void start(SocketAddress addr) throws IOException {
+		super.start(addr);
+		_updateThread = new Thread(name + "-UpdateThread") {
+			@Override
+			public void run() {
+				try {
+					while (isRunning()) {
+						long now = now();
+						for (RudpSession session : _sessions.values()) {
+							try {
+								int reason = session.update(now);
+								if (reason >= 0)
+									session.close(reason);
+							} catch (Throwable e) {
+								Log.error(e, "{}: update exception: {}", name, session);
+							}
+						}
+						Thread.sleep(_interval);
+					}
+				} catch (InterruptedException e) {
+					Log.info("{} interrupted", getName());
+				}
+			}
+		};
+		_updateThread.setDaemon(true);
+		_updateThread.start();
+	}
+
+	/** 停止服务. 会断开全部会话 */
+	@Override
+	public synchronized void stop() throws InterruptedException {
+		for (RudpSession session : _sessions.values())
+			session.close(RudpSession.CLOSE_MANAGER);
+		if (_updateThread != null) {
+			_updateThread.interrupt();
+			_updateThread.join();
+			_updateThread = null;
+		}
+		super.stop();
+	}
+
+	/**
+	 * 创建到指定地址的会话. 需要先调用start
+	 * <p>
+	 * 会立即发送一个空的可靠分段通知对方创建会话,不等待对方回复
+	 */
+	public RudpSession connect(SocketAddress addr) {
+		if (!isRunning())
+			throw new IllegalStateException(name + " has not started");
+		ThreadLocalRandom rand = ThreadLocalRandom.current();
+		RudpSession session;
+		for (; ; ) {
+			int conv = rand.nextInt();
+			if (conv == 0)
+				continue;
+			session = new RudpSession(this, conv, addr, now());
+			if (_sessions.putIfAbsent(conv, session) == null)
+				break;
+		}
+		session.sendOpen();
+		doSessionOpened(session);
+		return session;
+	}
+
+	/** 发送数据包并回收. 可能在任何线程中调用 */
+	void sendPacket(DatagramPacket packet) {
+		try {
+			double lossRate = _lossRate;
+			if (lossRate > 0 && ThreadLocalRandom.current().nextDouble() < lossRate)
+				return;
+			send(packet);
+		} catch (Throwable e) {
+			Log.error(e, "{}: send exception:", name);
+		} finally {
+			freePacket(packet);
+		}
+	}
+
+	@Override
+	protected void onReceive(DatagramPacket packet) {
+		try {
+			byte[] b = packet.getData();
+			int len = packet.getLength();
+			if (len < RudpSession.HEAD_SIZE)
+				return;
+			int conv = RudpSession.getInt(b, 0);
+			int cmd = b[4];
+			RudpSession session = _sessions.get(conv);
+			if (session == null) {
+				if (cmd != RudpSession.CMD_PUSH || !_acceptSession)
+					return;
+				session = new RudpSession(this, conv, packet.getSocketAddress(), now());
+				RudpSession old = _sessions.putIfAbsent(conv, session);
+				if (old != null)
+					session = old;
+				else
+					doSessionOpened(session);
+			}
+			if (cmd == RudpSession.CMD_CLOSE) {
+				session.close(RudpSession.CLOSE_REMOTE);
+				return;
+			}
+			ArrayList<Bean<?>> beans;
+			try {
+				beans = session.onPacket(b, len, packet.getSocketAddress(), now());
+			} catch (Exception e) {
+				Log.error(e, "{}: decode exception: {}", name, session);
+				session.close(RudpSession.CLOSE_DECODE);
+				return;
+			}
+			if (beans != null) {
+				for (int i = 0, n = beans.size(); i < n; ++i) {
+					Bean<?> bean = beans.get(i);
+					try {
+						onProcess(session, _netMgr.getHandler(bean.type()), bean);
+					} catch (Throwable e) {
+						Log.error(e, "{}: process exception: {}: {}", name, session, bean);
+					}
+				}
+			}
+		} finally {
+			freePacket(packet);
+		}
+	}
+
+	private void doSessionOpened(RudpSession session) {
+		try {
+			onSessionOpened(session);
+		} catch (Throwable e) {
+			Log.error(e, "{}: onSessionOpened exception: {}", name, session);
+		}
+	}
+
+	void doSessionClosed(RudpSession session, int reason) {
+		if (!_sessions.remove(session.getConv(), session))
+			return;
+		try {
+			onSessionClosed(session, reason);
+		} catch (Throwable e) {
+			Log.error(e, "{}: onSessionClosed exception: {}", name, session);
+		}
+	}
+
+	/** 会话创建后的回调. 在接收线程或connect的调用线程中回调 */
+	protected void onSessionOpened(RudpSession session) {
+		Log.info("{}: open: {}", name, session);
+	}
+
+	/**
+	 * 会话断开后的回调
+	 *
+	 * @param reason 断开原因. 见RudpSession.CLOSE_*
+	 */
+	protected void onSessionClosed(RudpSession session, int reason) {
+		Log.info("{}: close: {},reason={}", name, session, reason);
+	}
+
+	/**
+	 * 收到bean后的回调. 在接收线程中按收到的顺序回调
+	 *
+	 * @param handler 对应bean类型的处理器. 没有注册则为null
+	 */
+	protected void onProcess(RudpSession session, BeanHandler<?> handler, Bean<?> bean) throws Exception {
+		Log.warn("{}: unhandled bean: {}: {}", name, session, bean);
+	}
+}
@@ -0,0 +1,521 @@
+package jane.test.net;
+
+import java.net.DatagramPacket;
+import java.net.SocketAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import jane.core.Bean;
+import jane.core.BeanCodec;
+import jane.core.BeanHandler;
+import jane.core.Const;
+import jane.core.DecodeException;
+import jane.core.Log;
+import jane.core.MarshalException;
+import jane.core.Octets;
+import jane.core.OctetsStream;
+import jane.core.RawBean;
+
+/**
+ * 可靠UDP的连接
+ * <p>
+ * 可靠通道是类似KCP的ARQ: 可靠数据作为字节流切分成带序号的分段,接收方按序重组后用BeanCodec相同的格式(类型,序列号,大小,内容)解码bean<br>
+ * 每个分段都会立即回复ACK,ACK包含累积确认序号和窗口内已乱序收到的序号(选择确认),发送方据此只重传真正丢失的分段<br>
+ * 被后续分段的ACK跳过指定次数的分段会立即快速重传,不必等待超时. 超时重传的RTO按RTT估算,每次超时只增加50%<br>
+ * 不可靠通道的每个bean单独作为一个UDP包发送,不重传不排序,适合发送可被后续数据覆盖的状态快照<br>
+ * 所有状态都由本对象的锁保护,收到的bean在锁外回调RudpManager.onProcess
+ */
+public final class RudpSession {
+	public static final int CLOSE_ACTIVE = 0; // 调用close()主动断开
+	public static final int CLOSE_REMOTE = 1; // 对方通知断开
+	public static final int CLOSE_TIMEOUT = 2; // 超过空闲时间没有收到任何数据而断开
+	public static final int CLOSE_DEADLINK = 3; // 某个分段重传次数过多而断开
+	public static final int CLOSE_DECODE = 4; // 解码bean失败而断开
+	public static final int CLOSE_MANAGER = 5; // 管理器停止而断开
+
+	static final int CMD_PUSH = 1; // 可靠分段: [conv:4][cmd:1][sn:4][una:4][wnd:2][data]
+	static final int CMD_ACK = 2; // 确认: [conv:4][cmd:1][una:4][wnd:2][sn:4]*
+	static final int CMD_UNRELIABLE = 3; // 不可靠数据: [conv:4][cmd:1][data]
+	static final int CMD_CLOSE = 4; // 断开通知: [conv:4][cmd:1]
+	static final int HEAD_SIZE = 5;
+	static final int PUSH_HEAD_SIZE = HEAD_SIZE + 10;
+	static final int ACK_HEAD_SIZE = HEAD_SIZE + 6;
+	static final int MSS = UdpManager.PACKET_BUFFER_CAPACITY - PUSH_HEAD_SIZE; // 每个分段的最大数据量
+	static final int MAX_RTO = 60_000; // 最大的RTO(毫秒)
+	private static final byte[] EMPTY = new byte[0];
+
+	private static final class Segment {
+		final byte[] data;
+		int len;
+		int sn;
+		int rto;
+		int xmit; // 已发送次数
+		int fastAck; // 被后续分段的ACK跳过的次数
+		long sentTime; // 最后一次发送的时间(毫秒)
+		long resendTime; // 超时重传的时间(毫秒)
+
+		Segment(int capacity) {
+			data = new byte[capacity];
+		}
+	}
+
+	private final RudpManager _manager;
+	private final int _conv; // 会话ID
+	private volatile SocketAddress _remoteAddr;
+	private Object _userObject;
+
+	private final ArrayDeque<Segment> _sndQueue = new ArrayDeque<>(); // 等待进入发送窗口的分段
+	private final ArrayDeque<Segment> _sndBuf = new ArrayDeque<>(); // 已发送未确认的分段,按序号排列
+	private final int _sndWnd;
+	private final int _sndQueueMax;
+	private int _sndNxt; // 下一个分配的发送序号
+	private int _rmtWnd; // 对方的接收窗口
+
+	private final byte[][] _rcvRing; // 窗口内乱序收到的分段,按sn & _rcvMask索引
+	private final int _rcvMask;
+	private final OctetsStream _rcvStream = new OctetsStream(); // 已按序重组未解码的数据
+	private int _rcvNxt; // 下一个期望收到的序号
+	private int _rcvOutOfOrder; // 窗口内乱序收到的分段数量
+	private int _ptype; // 当前解码中的协议类型
+	private int _pserial; // 当前解码中的协议序列号
+	private int _psize = -1; // 当前解码中的协议大小. -1表示没获取到
+
+	private int _srtt, _rttVar; // 平滑的RTT及其偏差(毫秒)
+	private int _rto;
+	private long _lastRecvTime;
+	private long _resendCount, _fastResendCount;
+	private boolean _closed;
+
+	RudpSession(RudpManager manager, int conv, SocketAddress remoteAddr, long now) {
+		_manager = manager;
+		_conv = conv;
+		_remoteAddr = remoteAddr;
+		_sndWnd = manager.getSendWindow();
+		_sndQueueMax = _sndWnd * 8;
+		_rmtWnd = manager.getRecvWindow();
+		int rcvWnd = manager.getRecvWindow();
+		_rcvRing = new byte[rcvWnd][];
+		_rcvMask = rcvWnd - 1;
+		_rto = Math.max(manager.getMinRto(), 200);
+		_lastRecvTime = now;
+	}
+
+	public RudpManager getManager() {
+		return _manager;
+	}
+
+	public int getConv() {
+		return _conv;
+	}
+
+	public SocketAddress getRemoteAddress() {
+		return _remoteAddr;
+	}
+
+	public Object getUserObject() {
+		return _userObject;
+	}
+
+	public void setUserObject(Object obj) {
+		_userObject = obj;
+	}
+
+	public synchronized boolean isOpen() {
+		return !_closed;
+	}
+
+	/** 获取平滑的RTT(毫秒) */
+	public synchronized int getSrtt() {
+		return _srtt;
+	}
+
+	public synchronized int getRto() {
+		return _rto;
+	}
+
+	/** 获取超时重传的总次数 */
+	public synchronized long getResendCount() {
+		return _resendCount;
+	}
+
+	/** 获取快速重传的总次数 */
+	public synchronized long getFastResendCount() {
+		return _fastResendCount;
+	}
+
+	/** 获取已发送未确认和等待发送的分段数量 */
+	public synchronized int getSendQueueSize() {
+		return _sndBuf.size() + _sndQueue.size();
+	}
+
+	private static void putInt(byte[] b, int p, int v) {
+		b[p] = (byte)(v >> 24);
+		b[p + 1] = (byte)(v >> 16);
+		b[p + 2] = (byte)(v >> 8);
+		b[p + 3] = (byte)v;
+	}
+
+	static int getInt(byte[] b, int p) {
+		return (b[p] << 24) + ((b[p + 1] & 0xff) << 16) + ((b[p + 2] & 0xff) << 8) + (b[p + 3] & 0xff);
+	}
+
+	private static int getUShort(byte[] b, int p) {
+		return ((b[p] & 0xff) << 8) + (b[p + 1] & 0xff);
+	}
+
+	private DatagramPacket allocPacket(int cmd) {
+		DatagramPacket packet = UdpManager.allocPacket();
+		byte[] b = packet.getData();
+		putInt(b, 0, _conv);
+		b[4] = (byte)cmd;
+		return packet;
+	}
+
+	private void sendPacket(DatagramPacket packet, int len) {
+		packet.setLength(len);
+		packet.setSocketAddress(_remoteAddr);
+		_manager.sendPacket(packet);
+	}
+
+	private int recvWindowAvail() {
+		return _rcvRing.length - _rcvOutOfOrder;
+	}
+
+	/** 把bean编码成BeanCodec相同的格式 */
+	private static Octets encode(Bean<?> bean) {
+		return (bean.type() == 0 ? ((RawBean)bean).getData() : new RawBean(bean).getData());
+	}
+
+	/**
+	 * 通过可靠通道发送bean
+	 *
+	 * @return 连接已断开或发送队列已满时返回false
+	 */
+	public boolean send(Bean<?> bean) {
+		Octets data = encode(bean);
+		byte[] src = data.array();
+		int pos = data.position(), len = data.remain();
+		synchronized (this) {
+			if (_closed || _sndQueue.size() + (len + MSS - 1) / MSS > _sndQueueMax)
+				return false;
+			Segment seg = _sndQueue.peekLast();
+			while (len > 0) {
+				if (seg == null || seg.len >= seg.data.length)
+					_sndQueue.addLast(seg = new Segment(MSS));
+				int n = Math.min(seg.data.length - seg.len, len);
+				System.arraycopy(src, pos, seg.data, seg.len, n);
+				seg.len += n;
+				pos += n;
+				len -= n;
+			}
+			flush(_manager.now());
+		}
+		return true;
+	}
+
+	/**
+	 * 通过不可靠通道发送bean. 对方可能收不到,也可能乱序收到
+	 *
+	 * @return 连接已断开或bean编码后超过一个UDP包的容量时返回false
+	 */
+	public boolean sendUnreliable(Bean<?> bean) {
+		Octets data = encode(bean);
+		int len = data.remain();
+		if (len > UdpManager.PACKET_BUFFER_CAPACITY - HEAD_SIZE)
+			return false;
+		synchronized (this) {
+			if (_closed)
+				return false;
+		}
+		DatagramPacket packet = allocPacket(CMD_UNRELIABLE);
+		System.arraycopy(data.array(), data.position(), packet.getData(), HEAD_SIZE, len);
+		sendPacket(packet, HEAD_SIZE + len);
+		return true;
+	}
+
+	/** 发送一个空的可靠分段,用于建立连接时通知对方 */
+	synchronized void sendOpen() {
+		_sndQueue.addLast(new Segment(0));
+		flush(_manager.now());
+	}
+
+	private void sendSegment(Segment seg) {
+		DatagramPacket packet = allocPacket(CMD_PUSH);
+		byte[] b = packet.getData();
+		putInt(b, HEAD_SIZE, seg.sn);
+		putInt(b, HEAD_SIZE + 4, _rcvNxt);
+		int wnd = recvWindowAvail();
+		b[HEAD_SIZE + 8] = (byte)(wnd >> 8);
+		b[HEAD_SIZE + 9] = (byte)wnd;
+		System.arraycopy(seg.data, 0, b, PUSH_HEAD_SIZE, seg.len);
+		sendPacket(packet, PUSH_HEAD_SIZE + seg.len);
+	}
+
+	private void sendAck() {
+		DatagramPacket packet = allocPacket(CMD_ACK);
+		byte[] b = packet.getData();
+		putInt(b, HEAD_SIZE, _rcvNxt);
+		int wnd = recvWindowAvail();
+		b[HEAD_SIZE + 4] = (byte)(wnd >> 8);
+		b[HEAD_SIZE + 5] = (byte)wnd;
+		int p = ACK_HEAD_SIZE;
+		if (_rcvOutOfOrder > 0) { // 选择确认: 窗口内已收到的乱序分段
+			byte[][] ring = _rcvRing;
+			int end = _rcvNxt + ring.length;
+			int maxP = UdpManager.PACKET_BUFFER_CAPACITY - 4;
+			for (int sn = _rcvNxt + 1; sn - end < 0 && p <= maxP; ++sn) {
+				if (ring[sn & _rcvMask] != null) {
+					putInt(b, p, sn);
+					p += 4;
+				}
+			}
+		}
+		sendPacket(packet, p);
+	}
+
+	/** 把窗口允许的分段加入发送,并处理超时重传和快速重传. 返回false表示连接已失效 */
+	private boolean flush(long now) {
+		int cwnd = Math.min(_sndWnd, Math.max(_rmtWnd, 1)); // 对方窗口为0时仍允许1个分段作为探测
+		int sndUna = (_sndBuf.isEmpty() ? _sndNxt : _sndBuf.peekFirst().sn);
+		while (_sndNxt - sndUna < cwnd) {
+			Segment seg = _sndQueue.pollFirst();
+			if (seg == null)
+				break;
+			seg.sn = _sndNxt++;
+			_sndBuf.addLast(seg);
+		}
+		int fastResend = _manager.getFastResend();
+		int deadLink = _manager.getDeadLink();
+		for (Segment seg : _sndBuf) {
+			if (seg.xmit == 0)
+				seg.rto = _rto;
+			else if (now - seg.resendTime >= 0) {
+				seg.rto = Math.min(seg.rto + seg.rto / 2, MAX_RTO);
+				_resendCount++;
+			} else if (fastResend > 0 && seg.fastAck >= fastResend) {
+				seg.fastAck = 0;
+				_fastResendCount++;
+			} else
+				continue;
+			if (++seg.xmit > deadLink)
+				return false;
+			seg.sentTime = now;
+			seg.resendTime = now + seg.rto;
+			sendSegment(seg);
+		}
+		return true;
+	}
+
+	private void updateRtt(int rtt) {
+		if (_srtt == 0) {
+			_srtt = rtt;
+			_rttVar = rtt / 2;
+		} else {
+			int delta = Math.abs(rtt - _srtt);
+			_rttVar = (3 * _rttVar + delta) / 4;
+			_srtt = Math.max((7 * _srtt + rtt) / 8, 1);
+		}
+		_rto = Math.min(Math.max(_srtt + Math.max(_manager.getInterval(), 4 * _rttVar), _manager.getMinRto()), MAX_RTO);
+	}
+
+	private void onAck(int una, int wnd, byte[] b, int p, int end, long now) {
+		_rmtWnd = wnd;
+		int maxAck = una;
+		boolean hasSack = false;
+		for (int i = p; i < end; i += 4) {
+			int sn = getInt(b, i);
+			if (sn - maxAck > 0)
+				maxAck = sn;
+			hasSack = true;
+		}
+		for (Iterator<Segment> it = _sndBuf.iterator(); it.hasNext(); ) {
+			Segment seg = it.next();
+			int sn = seg.sn;
+			boolean acked = (sn - una < 0);
+			if (!acked) {
+				if (!hasSack || sn - maxAck > 0)
+					break;
+				for (int i = p; i < end; i += 4) {
+					if (getInt(b, i) == sn) {
+						acked = true;
+						break;
+					}
+				}
+			}
+			if (acked) {
+				if (seg.xmit == 1) // 只用没重传过的分段估算RTT
+					updateRtt((int)(now - seg.sentTime));
+				it.remove();
+			} else if (hasSack && sn - maxAck < 0)
+				seg.fastAck++;
+		}
+	}
+
+	/** 处理收到的包. 在接收线程中调用. 返回解码出的bean列表,没有则返回null */
+	ArrayList<Bean<?>> onPacket(byte[] b, int len, SocketAddress addr, long now) throws Exception {
+		ArrayList<Bean<?>> beans = null;
+		synchronized (this) {
+			if (_closed)
+				return null;
+			_lastRecvTime = now;
+			_remoteAddr = addr; // 对方地址可能因NAT重新映射而变化
+			switch (b[4]) {
+			case CMD_PUSH:
+				if (len < PUSH_HEAD_SIZE)
+					return null;
+				onAck(getInt(b, HEAD_SIZE + 4), getUShort(b, HEAD_SIZE + 8), b, 0, 0, now);
+				int sn = getInt(b, HEAD_SIZE);
+				byte[][] ring = _rcvRing;
+				if (sn - _rcvNxt >= 0 && sn - _rcvNxt < ring.length) {
+					int idx = sn & _rcvMask;
+					if (ring[idx] == null) {
+						int n = len - PUSH_HEAD_SIZE;
+						byte[] data = EMPTY;
+						if (n > 0) {
+							data = new byte[n];
+							System.arraycopy(b, PUSH_HEAD_SIZE, data, 0, n);
+						}
+						ring[idx] = data;
+						_rcvOutOfOrder++;
+						boolean received = false;
+						for (byte[] d; (d = ring[_rcvNxt & _rcvMask]) != null; ++_rcvNxt) {
+							ring[_rcvNxt & _rcvMask] = null;
+							_rcvOutOfOrder--;
+							_rcvStream.append(d);
+							received = true;
+						}
+						if (received)
+							beans = decode();
+					}
+				}
+				sendAck();
+				flush(now);
+				break;
+			case CMD_ACK:
+				if (len < ACK_HEAD_SIZE)
+					return null;
+				onAck(getInt(b, HEAD_SIZE), getUShort(b, HEAD_SIZE + 4), b, ACK_HEAD_SIZE, ACK_HEAD_SIZE + ((len - ACK_HEAD_SIZE) & ~3), now);
+				flush(now);
+				break;
+			case CMD_UNRELIABLE:
+				beans = decodeUnreliable(b, len);
+				break;
+			default:
+				return null;
+			}
+		}
+		return beans;
+	}
+
+	private BeanHandler<?> checkTypeSize() throws DecodeException {
+		BeanHandler<?> handler = _manager.getNetManager().getHandler(_ptype);
+		int maxSize;
+		if (handler == null || (maxSize = handler.beanStub().maxSize()) < 0)
+			maxSize = Const.beanDefaultMaxSize;
+		if ((_psize & 0xffff_ffffL) > maxSize)
+			throw new DecodeException("bean maxSize overflow: type=" + _ptype +
+					",serial=" + _pserial + ",size=" + _psize + ",maxSize=" + maxSize);
+		return handler;
+	}
+
+	private Bean<?> decodeBean(OctetsStream os, BeanHandler<?> handler) throws Exception {
+		Bean<?> bean = BeanCodec.decodeBean(handler, _ptype, _pserial, _psize, os);
+		_psize = -1;
+		return bean;
+	}
+
+	/** 从已重组的字节流中解码出全部完整的bean */
+	private ArrayList<Bean<?>> decode() throws Exception {
+		ArrayList<Bean<?>> beans = null;
+		OctetsStream os = _rcvStream;
+		for (; ; ) {
+			if (_psize < 0) {
+				int pos = os.position();
+				try {
+					_ptype = os.unmarshalUInt();
+					_pserial = os.unmarshalInt();
+					_psize = os.unmarshalUInt();
+				} catch (MarshalException.EOF e) {
+					os.setPosition(pos);
+					break;
+				}
+				checkTypeSize();
+			}
+			if (_psize > os.remain())
+				break;
+			Bean<?> bean = decodeBean(os, _manager.getNetManager().getHandler(_ptype));
+			if (beans == null)
+				beans = new ArrayList<>();
+			beans.add(bean);
+		}
+		int pos = os.position();
+		if (pos > 0) {
+			os.eraseFront(pos);
+			os.setPosition(0);
+		}
+		return beans;
+	}
+
+	/** 不可靠通道的每个包都是独立完整的bean,不影响可靠通道的解码状态 */
+	private ArrayList<Bean<?>> decodeUnreliable(byte[] b, int len) throws Exception {
+		OctetsStream os = OctetsStream.wrap(b, HEAD_SIZE, len);
+		int ptype = _ptype, pserial = _pserial, psize = _psize;
+		try {
+			_ptype = os.unmarshalUInt();
+			_pserial = os.unmarshalInt();
+			_psize = os.unmarshalUInt();
+			BeanHandler<?> handler = checkTypeSize();
+			if (_psize > os.remain())
+				return null;
+			ArrayList<Bean<?>> beans = new ArrayList<>(1);
+			beans.add(decodeBean(os, handler));
+			return beans;
+		} catch (MarshalException.EOF e) {
+			return null;
+		} finally {
+			_ptype = ptype;
+			_pserial = pserial;
+			_psize = psize;
+		}
+	}
+
+	/** 定时更新. 在更新线程中调用. 返回需要断开的原因,不需要断开则返回-1 */
+	synchronized int update(long now) {
+		if (_closed)
+			return -1;
+		if (now - _lastRecvTime > _manager.getIdleTimeout())
+			return CLOSE_TIMEOUT;
+		if (!flush(now))
+			return CLOSE_DEADLINK;
+		return -1;
+	}
+
+	/** 主动断开连接. 会尽量通知对方 */
+	public void close() {
+		close(CLOSE_ACTIVE);
+	}
+
+	void close(int reason) {
+		synchronized (this) {
+			if (_closed)
+				return;
+			_closed = true;
+			_sndQueue.clear();
+			_sndBuf.clear();
+			_rcvStream.clear();
+			if (reason != CLOSE_REMOTE) {
+				try {
+					sendPacket(allocPacket(CMD_CLOSE), HEAD_SIZE);
+				} catch (Throwable e) {
+					Log.error(e, "RudpSession({}).close: send exception:", _conv);
+				}
+			}
+		}
+		_manager.doSessionClosed(this, reason);
+	}
+
+	@Override
+	public String toString() {
+		return "RudpSession(" + _conv + "):" + _remoteAddr;
+	}
+}
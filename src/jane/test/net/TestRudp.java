@@ -0,0 +1,136 @@
+package jane.test.net;
+
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import jane.bean.AllBeans;
+import jane.bean.TestBean;
+import jane.core.Bean;
+import jane.core.BeanHandler;
+import jane.core.NetManager;
+import org.apache.mina.core.session.IoSession;
+
+/**
+ * 可靠UDP和TCP在丢包下的延迟对比测试
+ * <p>
+ * 在本机回环上做单连接的ping-pong,统计往返延迟的分位数,再批量发送检查可靠通道的顺序和完整性<br>
+ * rudp模式用RudpManager.setLossRate在两端模拟发送丢包. tcp模式是用NetManager连接的基准,
+ * TCP无法在进程内模拟丢包,需要在系统上对回环设置同样的丢包率,如: tc qdisc add dev lo root netem loss 2%<br>
+ * 对比时也可在设置了netem的回环上以丢包率0运行rudp模式,两者经历完全相同的网络
+ */
+// start.sh jane.test.net.TestRudp [rudp|tcp] [lossRate] [pingCount] [bulkCount]
+public final class TestRudp {
+	private static final int TEST_PORT = 19140;
+	private static final long PING_INTERVAL = 2; // ping的间隔(毫秒)
+	private static final long RECV_TIMEOUT = 20; // 等待回复的超时(秒)
+
+	private static final BlockingQueue<TestBean> _recvQueue = new LinkedBlockingQueue<>();
+
+	private interface Sender {
+		boolean send(Bean<?> bean);
+	}
+
+	private static Sender startRudp(double lossRate) throws Exception {
+		NetManager netMgr = new NetManager();
+		netMgr.setHandlers(AllBeans.getTestServerHandlers());
+		RudpManager server = new RudpManager(netMgr) {
+			@Override
+			protected void onProcess(RudpSession session, BeanHandler<?> handler, Bean<?> bean) {
+				session.send(bean);
+			}
+		};
+		server.setLossRate(lossRate);
+		server.start(new InetSocketAddress("127.0.0.1", TEST_PORT));
+		RudpManager client = new RudpManager(netMgr) {
+			@Override
+			protected void onProcess(RudpSession session, BeanHandler<?> handler, Bean<?> bean) {
+				_recvQueue.add((TestBean)bean);
+			}
+		};
+		client.setLossRate(lossRate);
+		client.start(null);
+		RudpSession session = client.connect(new InetSocketAddress("127.0.0.1", TEST_PORT));
+		return session::send;
+	}
+
+	private static Sender startTcp() throws Exception {
+		NetManager server = new NetManager() {
+			@Override
+			protected void onProcess(IoSession session, BeanHandler<?> handler, Bean<?> bean) {
+				send(session, bean);
+			}
+		};
+		server.setHandlers(AllBeans.getTestServerHandlers());
+		server.getServerConfig().setTcpNoDelay(true);
+		server.startServer(new InetSocketAddress("127.0.0.1", TEST_PORT));
+		BlockingQueue<IoSession> sessions = new LinkedBlockingQueue<>();
+		NetManager client = new NetManager() {
+			@Override
+			protected void onAddSession(IoSession session) {
+				sessions.add(session);
+			}
+
+			@Override
+			protected void onProcess(IoSession session, BeanHandler<?> handler, Bean<?> bean) {
+				_recvQueue.add((TestBean)bean);
+			}
+		};
+		client.setHandlers(AllBeans.getTestServerHandlers());
+		client.getClientConfig().setTcpNoDelay(true);
+		client.startClient(new InetSocketAddress("127.0.0.1", TEST_PORT));
+		IoSession session = sessions.poll(RECV_TIMEOUT, TimeUnit.SECONDS);
+		if (session == null)
+			throw new IllegalStateException("connect timeout");
+		return bean -> client.send(session, bean);
+	}
+
+	private static TestBean recv(int i) throws InterruptedException {
+		TestBean b = _recvQueue.poll(RECV_TIMEOUT, TimeUnit.SECONDS);
+		if (b == null || b.getValue1() != i || b.getValue2() != i * 7L)
+			throw new IllegalStateException("unexpected recv: index=" + i + ", bean=" + b);
+		return b;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String mode = (args.length > 0 ? args[0] : "rudp");
+		double lossRate = (args.length > 1 ? Double.parseDouble(args[1]) : 0.02);
+		int pingCount = (args.length > 2 ? Integer.parseInt(args[2]) : 2000);
+		int bulkCount = (args.length > 3 ? Integer.parseInt(args[3]) : 20000);
+		Sender sender;
+		if (mode.equals("tcp")) {
+			if (lossRate > 0)
+				System.out.println("TestRudp: tcp mode ignores lossRate, set the loss on loopback by netem instead");
+			sender = startTcp();
+		} else
+			sender = startRudp(lossRate);
+
+		long[] rtts = new long[pingCount];
+		for (int i = 0; i < pingCount; ++i) {
+			TestBean b = new TestBean(i, i * 7L);
+			long t = System.nanoTime();
+			if (!sender.send(b))
+				throw new IllegalStateException("send failed: index=" + i);
+			recv(i);
+			rtts[i] = System.nanoTime() - t;
+			Thread.sleep(PING_INTERVAL);
+		}
+		Arrays.sort(rtts);
+		System.out.printf("TestRudp: %s lossRate=%.3f ping: p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms%n", mode, lossRate,
+				rtts[pingCount / 2] / 1e6, rtts[(int)(pingCount * 0.99)] / 1e6, rtts[(int)(pingCount * 0.999)] / 1e6,
+				rtts[pingCount - 1] / 1e6);
+
+		long t = System.nanoTime();
+		for (int i = 0; i < bulkCount; ++i) {
+			TestBean b = new TestBean(i, i * 7L);
+			while (!sender.send(b)) // 可靠UDP的发送队列满时需要等待
+				Thread.sleep(1);
+		}
+		for (int i = 0; i < bulkCount; ++i)
+			recv(i);
+		System.out.printf("TestRudp: %s lossRate=%.3f bulk: count=%d time=%dms%n", mode, lossRate, bulkCount,
+				(System.nanoTime() - t) / 1_000_000);
+		System.exit(0);
+	}
+}
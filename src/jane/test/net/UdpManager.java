@@ -12,7 +12,7 @@ public abstract class UdpManager {
 	private static final int SOCKET_RECV_BUFFER_SIZE = 16 * 1024 * 1024; // socket接收缓冲区大小(字节)
 	private static final int SOCKET_SEND_BUFFER_SIZE = 16 * 1024 * 1024; // socket发送缓冲区大小(字节)
 	private static final int PACKET_POOL_MAX_SIZE = 50000; // 数据表对象池的上限数量
-	private static final int PACKET_BUFFER_CAPACITY = 576 - 20 - 8; // 最大的数据包内容大小(548字节)
+	public static final int PACKET_BUFFER_CAPACITY = 576 - 20 - 8; // 最大的数据包内容大小(548字节)
 
 	private static final DatagramPacket[] freeList = new DatagramPacket[PACKET_POOL_MAX_SIZE]; // 全局的数据包池. 只存放空闲的对象,初始为空
 	private static int freeSize; // 数据包池的当前空闲对象数量
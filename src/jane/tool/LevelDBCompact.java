@@ -1,5 +1,6 @@
 package jane.tool;
 
+import jane.core.Octets;
 import jane.core.StorageLevelDB;
 
 public final class LevelDBCompact {
@@ -8,10 +9,11 @@ public final class LevelDBCompact {
 
 	public static void main(String[] args) {
 		if (args.length < 1) {
-			System.err.println("USAGE: java -cp jane-core.jar jane.tool.LevelDBCompact <database_file>");
+			System.err.println("USAGE: java -cp jane-core.jar jane.tool.LevelDBCompact <database_file> [table_id]");
 			return;
 		}
 		String filename = args[0].trim();
+		int tableId = (args.length > 1 ? Integer.parseInt(args[1].trim()) : -1);
 
 		long t = System.currentTimeMillis();
 		System.err.println("INFO: opening " + filename + " ...");
@@ -20,8 +22,15 @@ public final class LevelDBCompact {
 			System.err.println("ERROR: leveldb_open failed");
 			return;
 		}
-		System.err.println("INFO: compacting db ...");
-		StorageLevelDB.leveldb_compact(db, null, 0, null, 0);
+		if (tableId >= 0) {
+			System.err.println("INFO: compacting table " + tableId + " ...");
+			Octets keyFrom = Octets.createSpace(5).marshalUInt(tableId);
+			Octets keyTo = (tableId < Integer.MAX_VALUE ? Octets.createSpace(5).marshalUInt(tableId + 1) : Octets.wrap(new byte[]{(byte)0xf1}));
+			StorageLevelDB.leveldb_compact(db, keyFrom.array(), keyFrom.size(), keyTo.array(), keyTo.size());
+		} else {
+			System.err.println("INFO: compacting db ...");
+			StorageLevelDB.leveldb_compact(db, null, 0, null, 0);
+		}
 		System.err.println("INFO: closing db ...");
 		StorageLevelDB.leveldb_close(db);
 		System.err.println("INFO: done! (" + (System.currentTimeMillis() - t) + " ms)");
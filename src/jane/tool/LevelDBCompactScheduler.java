@@ -0,0 +1,184 @@
+package jane.tool;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import jane.core.Log;
+import jane.core.StorageLevelDB;
+import jane.core.StorageLevelDB.TableStat;
+
+/**
+ * LevelDB的在线分表压缩调度器
+ * <p>
+ * 定期检查每个表在checkpoint中提交的写入和删除记录数,只在配置的低负载时间窗口内,每次选择一个写入量最大的表压缩其key范围<br>
+ * 压缩时按记录数分段进行,每段压缩后按IO限速休眠,避免影响正常的读写. 删除较多的表可以及时清理墓碑记录,减少读放大<br>
+ * 用法: new LevelDBCompactScheduler(sto).addWindow("04:00-06:00").start();
+ */
+public final class LevelDBCompactScheduler extends Thread {
+	private final StorageLevelDB _sto;
+	private final ArrayList<int[]> _windows = new ArrayList<>(); // 每项是一个时间窗口的[起始分钟,结束分钟),以当天0点为基准
+	private final HashMap<Integer, Long> _compactedScores = new HashMap<>(); // 每个表上次压缩时的写入量评分
+	private long _checkIntervalMs = 60_000; // 检查周期(毫秒)
+	private long _minScore = 100_000; // 表的写入量评分超过此值才会被压缩
+	private int _removeWeight = 4; // 删除记录相对写入记录的评分权重
+	private long _maxBytesPerSec = 8 << 20; // 压缩的IO限速(字节/秒). <=0表示不限速
+	private int _stepBytes = 16 << 20; // 每段压缩的数据量(字节)
+	private volatile boolean _running = true;
+
+	public LevelDBCompactScheduler(StorageLevelDB sto) {
+		super("LevelDBCompactScheduler");
+		setDaemon(true);
+		setPriority(Thread.MIN_PRIORITY);
+		_sto = sto;
+	}
+
+	/**
+	 * 增加一个允许压缩的时间窗口
+	 * <p>
+	 * 必须在启动前调用. 没有增加任何窗口时任何时刻都允许压缩
+	 *
+	 * @param beginMinute 窗口的起始时刻(当天0点开始的分钟数,包含)
+	 * @param endMinute   窗口的结束时刻(当天0点开始的分钟数,不包含). 小于起始时刻表示跨越0点
+	 */
+	public LevelDBCompactScheduler addWindow(int beginMinute, int endMinute) {
+		_windows.add(new int[]{Math.floorMod(beginMinute, 1440), Math.floorMod(endMinute, 1440)});
+		return this;
+	}
+
+	/**
+	 * 增加一个允许压缩的时间窗口
+	 *
+	 * @param window 格式如"04:00-06:00"
+	 */
+	public LevelDBCompactScheduler addWindow(String window) {
+		String[] times = window.trim().split("-");
+		if (times.length != 2)
+			throw new IllegalArgumentException("invalid window: " + window);
+		return addWindow(parseMinute(times[0]), parseMinute(times[1]));
+	}
+
+	private static int parseMinute(String time) {
+		String[] hm = time.trim().split(":");
+		return Integer.parseInt(hm[0].trim()) * 60 + (hm.length > 1 ? Integer.parseInt(hm[1].trim()) : 0);
+	}
+
+	/** 设置检查周期(秒) */
+	public LevelDBCompactScheduler setCheckInterval(int sec) {
+		_checkIntervalMs = Math.max(sec, 1) * 1000L;
+		return this;
+	}
+
+	/**
+	 * 设置触发压缩的写入量评分阈值
+	 *
+	 * @param minScore     上次压缩后的写入记录数+删除记录数*removeWeight超过此值才会压缩
+	 * @param removeWeight 删除记录的权重. 删除产生的墓碑记录对读放大的影响更大
+	 */
+	public LevelDBCompactScheduler setThreshold(long minScore, int removeWeight) {
+		_minScore = Math.max(minScore, 1);
+		_removeWeight = Math.max(removeWeight, 0);
+		return this;
+	}
+
+	/**
+	 * 设置压缩的IO限速
+	 *
+	 * @param maxBytesPerSec 每秒压缩的最大数据量(字节). <=0表示不限速
+	 * @param stepBytes      每段压缩的数据量(字节). 越小则IO越平滑,但压缩的总开销越大
+	 */
+	public LevelDBCompactScheduler setRateLimit(long maxBytesPerSec, int stepBytes) {
+		_maxBytesPerSec = maxBytesPerSec;
+		_stepBytes = Math.max(stepBytes, 1 << 16);
+		return this;
+	}
+
+	/** 停止调度. 当前正在压缩的表会在当前段完成后中断 */
+	public void shutdown() {
+		_running = false;
+		interrupt();
+	}
+
+	/** 判断当前时刻是否在允许压缩的时间窗口内 */
+	public boolean inWindow() {
+		if (_windows.isEmpty())
+			return true;
+		Calendar c = Calendar.getInstance();
+		int minute = c.get(Calendar.HOUR_OF_DAY) * 60 + c.get(Calendar.MINUTE);
+		for (int[] w : _windows) {
+			if (w[0] <= w[1] ? (minute >= w[0] && minute < w[1]) : (minute >= w[0] || minute < w[1]))
+				return true;
+		}
+		return false;
+	}
+
+	private long score(TableStat stat) {
+		return stat.getPutCount() + stat.getRemoveCount() * _removeWeight;
+	}
+
+	/** 选出上次压缩后写入量评分最大且超过阈值的表. 没有则返回null */
+	private TableStat pickTable() {
+		TableStat best = null;
+		long bestScore = _minScore - 1;
+		for (TableStat stat : _sto.getTableStats()) {
+			long score = score(stat);
+			Long last = _compactedScores.putIfAbsent(stat.getTableId(), score); // 首次见到的表从当前写入量开始统计
+			if (last != null && score - last > bestScore) {
+				bestScore = score - last;
+				best = stat;
+			}
+		}
+		return best;
+	}
+
+	private boolean compactTable(TableStat stat, int avgSize) {
+		long maxBytesPerSec = _maxBytesPerSec;
+		return _sto.compactTable(stat.getTableId(), Math.max(_stepBytes / avgSize, 1), n -> {
+			if (maxBytesPerSec > 0) {
+				try {
+					Thread.sleep(n * avgSize * 1000 / maxBytesPerSec);
+				} catch (InterruptedException e) {
+					return false;
+				}
+			}
+			return _running && inWindow();
+		});
+	}
+
+	@Override
+	public void run() {
+		while (_running) {
+			try {
+				Thread.sleep(_checkIntervalMs);
+			} catch (InterruptedException e) {
+				break;
+			}
+			try {
+				if (!inWindow())
+					continue;
+				TableStat stat = pickTable();
+				if (stat == null)
+					continue;
+				long score = score(stat);
+				int avgSize = averageSize(stat);
+				Log.info("LevelDBCompactScheduler: compacting table {}({}), score={}...", stat.getTableName(), stat.getTableId(),
+						score - _compactedScores.get(stat.getTableId()));
+				long t = System.currentTimeMillis();
+				if (compactTable(stat, avgSize)) {
+					_compactedScores.put(stat.getTableId(), score);
+					Log.info("LevelDBCompactScheduler: compacted table {}({}) ({} ms)", stat.getTableName(), stat.getTableId(),
+							System.currentTimeMillis() - t);
+				} else
+					Log.info("LevelDBCompactScheduler: compacting table {}({}) paused ({} ms)", stat.getTableName(), stat.getTableId(),
+							System.currentTimeMillis() - t);
+			} catch (Throwable e) {
+				Log.error("LevelDBCompactScheduler: fatal exception:", e);
+			}
+		}
+		Log.info("LevelDBCompactScheduler: stopped");
+	}
+
+	private static int averageSize(TableStat stat) {
+		int size = stat.getAverageValueSize();
+		return size > 0 ? size + 16 : 256; // 16 for key and record overhead
+	}
+}
@@ -0,0 +1,340 @@
+package jane.tool;
+
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.LongAdder;
+import jane.core.Log;
+import org.apache.mina.core.buffer.IoBuffer;
+import org.apache.mina.core.buffer.IoBufferAllocator;
+import org.apache.mina.core.buffer.SimpleBufferAllocator;
+
+/**
+ * 全局共享的IoBuffer池分配器
+ * <p>
+ * 与CachedIoBufferAllocator不同,缓存池是所有线程共享的,适合在一个线程分配(如事务线程中编码协议)而在另一个线程释放(如网络线程发送完成后)的情况<br>
+ * 按2的幂分级缓存,每级在每个线程有2个弹匣(magazine),分配和释放优先在当前线程的弹匣中进行,不需要加锁.
+ * 弹匣空或满时才与全局的仓库(depot)交换整个弹匣,仓库有上限,超过时释放的IoBuffer交给GC回收. 超过最大缓存大小的IoBuffer不会被缓存<br>
+ * 开启泄漏检测后(调试用,有额外开销),分配后没有free就被GC回收的IoBuffer会输出分配时的调用栈
+ */
+public final class PooledIoBufferAllocator implements IoBufferAllocator {
+	private static final int DEFAULT_MAGAZINE_SIZE = 32;
+	private static final int DEFAULT_MAX_POOL_SIZE = 1024;
+	private static final int DEFAULT_MAX_CACHED_BUFFER_SIZE = 1 << 16; // 64KB
+	private static final int MIN_BUFFER_SIZE = 64;
+
+	private static final LongAdder hitCount = new LongAdder(); // 从缓存中分配的次数
+	private static final LongAdder missCount = new LongAdder(); // 缓存中没有而新分配的次数(不含超过最大缓存大小的)
+	private static final LongAdder freeCount = new LongAdder(); // 释放回缓存的次数
+	private static final LongAdder dropCount = new LongAdder(); // 因仓库已满而交给GC回收的次数
+	private static final LongAdder outstandingBytes = new LongAdder(); // 已分配出去还没释放的可缓存IoBuffer的容量总和
+	private static final LongAdder leakCount = new LongAdder(); // 检测到泄漏的次数
+	private static volatile Cleaner leakCleaner; // 非null表示开启泄漏检测
+
+	private final int magazineSize; // 每个弹匣的最大数量
+	private final int maxDepotSize; // 每级仓库的最大弹匣数量
+	private final int maxCachedBufferSize; // 2^n
+	private final Depot[] depots; // [0,n)是heap,[n,2n)是direct
+	private final ThreadLocal<Magazine[]> magazines; // 每级2个,与depots的索引*2对应
+
+	private static final class Magazine {
+		final PooledBuffer[] bufs;
+		int size;
+
+		Magazine(int magazineSize) {
+			bufs = new PooledBuffer[magazineSize];
+		}
+	}
+
+	private static final class Depot {
+		final Magazine[] fulls;
+		final Magazine[] empties;
+		int fullSize, emptySize;
+
+		Depot(int maxDepotSize) {
+			fulls = new Magazine[maxDepotSize];
+			empties = new Magazine[maxDepotSize];
+		}
+
+		synchronized Magazine pollFull() {
+			int n = fullSize;
+			if (n <= 0)
+				return null;
+			fullSize = --n;
+			Magazine m = fulls[n];
+			fulls[n] = null;
+			return m;
+		}
+
+		synchronized boolean offerFull(Magazine m) {
+			int n = fullSize;
+			if (n >= fulls.length)
+				return false;
+			fulls[n] = m;
+			fullSize = n + 1;
+			return true;
+		}
+
+		synchronized Magazine pollEmpty() {
+			int n = emptySize;
+			if (n <= 0)
+				return null;
+			emptySize = --n;
+			Magazine m = empties[n];
+			empties[n] = null;
+			return m;
+		}
+
+		synchronized void offerEmpty(Magazine m) {
+			int n = emptySize;
+			if (n < empties.length) {
+				empties[n] = m;
+				emptySize = n + 1;
+			}
+		}
+	}
+
+	/** 泄漏检测的状态. 不能引用PooledBuffer,否则PooledBuffer不会被GC回收 */
+	private static final class LeakState implements Runnable {
+		final int capacity;
+		volatile Throwable allocTrace; // 非null表示已分配出去还没释放
+
+		LeakState(int capacity) {
+			this.capacity = capacity;
+		}
+
+		@Override
+		public void run() {
+			Throwable trace = allocTrace;
+			if (trace != null) {
+				leakCount.increment();
+				outstandingBytes.add(-capacity);
+				Log.error("PooledIoBufferAllocator: leaked IoBuffer(capacity=" + capacity + ") allocated at:", trace);
+			}
+		}
+	}
+
+	public static void globalSet(boolean useDirectBuffer, int maxPoolSize, int maxCachedBufferSize) {
+		IoBuffer.setUseDirectBuffer(useDirectBuffer);
+		IoBuffer.setAllocator(maxPoolSize > 0 && maxCachedBufferSize > 0 ?
+				new PooledIoBufferAllocator(DEFAULT_MAGAZINE_SIZE, maxPoolSize, maxCachedBufferSize) : SimpleBufferAllocator.instance);
+	}
+
+	/**
+	 * 设置是否开启泄漏检测
+	 * <p>
+	 * 只对开启后新创建的IoBuffer有效,所以应该在启动时设置. 开启后每次分配都会记录调用栈,只适合调试时使用
+	 */
+	public static synchronized void setLeakDetection(boolean enabled) {
+		if (enabled) {
+			if (leakCleaner == null)
+				leakCleaner = Cleaner.create();
+		} else
+			leakCleaner = null;
+	}
+
+	public static boolean isLeakDetection() {
+		return leakCleaner != null;
+	}
+
+	public static long getHitCount() {
+		return hitCount.sum();
+	}
+
+	public static long getMissCount() {
+		return missCount.sum();
+	}
+
+	public static long getFreeCount() {
+		return freeCount.sum();
+	}
+
+	public static long getDropCount() {
+		return dropCount.sum();
+	}
+
+	public static long getOutstandingBytes() {
+		return outstandingBytes.sum();
+	}
+
+	public static long getLeakCount() {
+		return leakCount.sum();
+	}
+
+	/** 以Prometheus文本格式(0.0.4)输出分配器的统计 */
+	public static void genPrometheus(StringBuilder sb) {
+		appendMetric(sb, "jane_iobuffer_pool_hit_total", "counter", "Number of IoBuffer allocations served from pool.", getHitCount());
+		appendMetric(sb, "jane_iobuffer_pool_miss_total", "counter", "Number of poolable IoBuffer allocations missing pool.", getMissCount());
+		appendMetric(sb, "jane_iobuffer_pool_free_total", "counter", "Number of IoBuffers freed into pool.", getFreeCount());
+		appendMetric(sb, "jane_iobuffer_pool_drop_total", "counter", "Number of freed IoBuffers dropped for full pool.", getDropCount());
+		appendMetric(sb, "jane_iobuffer_pool_leak_total", "counter", "Number of leaked IoBuffers detected.", getLeakCount());
+		appendMetric(sb, "jane_iobuffer_outstanding_bytes", "gauge", "Capacity of poolable IoBuffers allocated but not freed.", getOutstandingBytes());
+	}
+
+	private static void appendMetric(StringBuilder sb, String metric, String type, String help, long value) {
+		sb.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+		sb.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+		sb.append(metric).append(' ').append(value).append('\n');
+	}
+
+	public PooledIoBufferAllocator() {
+		this(DEFAULT_MAGAZINE_SIZE, DEFAULT_MAX_POOL_SIZE, DEFAULT_MAX_CACHED_BUFFER_SIZE);
+	}
+
+	/**
+	 * @param magazineSize        每个线程每级弹匣的容量
+	 * @param maxPoolSize         每级仓库最多缓存的IoBuffer数量(会按弹匣容量取整)
+	 * @param maxCachedBufferSize 最大缓存的IoBuffer容量,应该是2^n
+	 */
+	public PooledIoBufferAllocator(int magazineSize, int maxPoolSize, int maxCachedBufferSize) {
+		this.magazineSize = Math.max(magazineSize, 1);
+		maxDepotSize = Math.max((maxPoolSize + this.magazineSize - 1) / this.magazineSize, 1);
+		this.maxCachedBufferSize = Math.max(Integer.highestOneBit(Math.min(Math.max(maxCachedBufferSize, 0), 0x4000_0000)), MIN_BUFFER_SIZE);
+		int n = (getIdx(this.maxCachedBufferSize) + 1) * 2;
+		depots = new Depot[n];
+		for (int i = 0; i < n; ++i)
+			depots[i] = new Depot(maxDepotSize);
+		magazines = ThreadLocal.withInitial(() -> {
+			Magazine[] mags = new Magazine[n * 2];
+			for (int i = 0; i < mags.length; ++i)
+				mags[i] = new Magazine(this.magazineSize);
+			return mags;
+		});
+	}
+
+	private static int getIdx(int cap) { // cap=2^n:[MIN_BUFFER_SIZE,0x40000000]
+		return Integer.numberOfTrailingZeros(cap) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+	}
+
+	private int getDepotIdx(int cap, boolean direct) {
+		int i = getIdx(cap);
+		return direct ? i + (depots.length >> 1) : i;
+	}
+
+	private PooledBuffer poll(int depotIdx) {
+		Magazine[] mags = magazines.get();
+		int i = depotIdx * 2;
+		Magazine loaded = mags[i];
+		if (loaded.size <= 0) {
+			Magazine prev = mags[i + 1];
+			if (prev.size > 0) { // 上一个弹匣有存货就交换
+				mags[i] = prev;
+				mags[i + 1] = loaded;
+				loaded = prev;
+			} else {
+				Magazine full = depots[depotIdx].pollFull();
+				if (full == null)
+					return null;
+				depots[depotIdx].offerEmpty(prev);
+				mags[i + 1] = loaded;
+				mags[i] = loaded = full;
+			}
+		}
+		int n = --loaded.size;
+		PooledBuffer buf = loaded.bufs[n];
+		loaded.bufs[n] = null;
+		return buf;
+	}
+
+	private boolean offer(int depotIdx, PooledBuffer buf) {
+		Magazine[] mags = magazines.get();
+		int i = depotIdx * 2;
+		Magazine loaded = mags[i];
+		if (loaded.size >= magazineSize) {
+			Magazine prev = mags[i + 1];
+			if (prev.size < magazineSize) { // 上一个弹匣没满就交换
+				mags[i] = prev;
+				mags[i + 1] = loaded;
+				loaded = prev;
+			} else {
+				Depot depot = depots[depotIdx];
+				if (!depot.offerFull(prev))
+					return false;
+				Magazine empty = depot.pollEmpty();
+				mags[i + 1] = loaded;
+				mags[i] = loaded = (empty != null ? empty : new Magazine(magazineSize));
+			}
+		}
+		loaded.bufs[loaded.size++] = buf;
+		return true;
+	}
+
+	@Override
+	public IoBuffer allocate(int requestedCapacity, boolean direct) {
+		if (requestedCapacity <= 0)
+			return direct ? SimpleBufferAllocator.emptyDirectBuffer : SimpleBufferAllocator.emptyBuffer;
+
+		int actualCapacity = Math.max(Integer.highestOneBit(requestedCapacity), MIN_BUFFER_SIZE);
+		if (actualCapacity < requestedCapacity) {
+			actualCapacity += actualCapacity;
+			if (actualCapacity < 0)
+				actualCapacity = requestedCapacity; // must be > 0x4000_0000
+		}
+		IoBuffer buf;
+		if (actualCapacity <= maxCachedBufferSize) {
+			PooledBuffer pbuf = poll(getDepotIdx(actualCapacity, direct));
+			if (pbuf != null) {
+				pbuf.freed = false;
+				buf = pbuf;
+				buf.clear();
+				buf.buf().order(ByteOrder.BIG_ENDIAN);
+				hitCount.increment();
+			} else {
+				buf = pbuf = new PooledBuffer(actualCapacity, direct);
+				missCount.increment();
+			}
+			outstandingBytes.add(actualCapacity);
+			LeakState leakState = pbuf.leakState;
+			if (leakState != null)
+				leakState.allocTrace = new Throwable("allocate");
+		} else
+			buf = SimpleBufferAllocator.instance.allocate(actualCapacity, direct);
+		buf.limit(requestedCapacity);
+		return buf;
+	}
+
+	@Override
+	public IoBuffer wrap(ByteBuffer bb) {
+		return SimpleBufferAllocator.instance.wrap(bb);
+	}
+
+	private final class PooledBuffer extends IoBuffer {
+		private final ByteBuffer buf;
+		final LeakState leakState;
+		boolean freed;
+
+		PooledBuffer(int capacity, boolean direct) {
+			buf = (direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity));
+			Cleaner cleaner = leakCleaner;
+			if (cleaner != null)
+				cleaner.register(this, leakState = new LeakState(capacity));
+			else
+				leakState = null;
+		}
+
+		@Override
+		public ByteBuffer buf() {
+			return buf;
+		}
+
+		@Override
+		public IoBuffer duplicate() {
+			return SimpleBufferAllocator.instance.wrap(buf.duplicate());
+		}
+
+		@Override
+		public void free() {
+			if (freed)
+				return;
+			freed = true;
+			int cap = buf.capacity();
+			outstandingBytes.add(-cap);
+			if (leakState != null)
+				leakState.allocTrace = null;
+			if (offer(getDepotIdx(cap, buf.isDirect()), this))
+				freeCount.increment();
+			else
+				dropCount.increment();
+		}
+	}
+}
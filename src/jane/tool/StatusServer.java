@@ -5,7 +5,6 @@ import java.text.DecimalFormat;
 import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.Map.Entry;
-import java.util.concurrent.ThreadPoolExecutor;
 import jane.core.CacheRef;
 import jane.core.DBManager;
 import jane.core.DBSimpleManager;
@@ -13,9 +12,14 @@ import jane.core.HttpCodec;
 import jane.core.NetManager;
 import jane.core.Octets;
 import jane.core.OctetsStream;
+import jane.core.ProcStat;
+import jane.core.ProcStat.Histogram;
 import jane.core.ProcThread;
+import jane.core.Procedure;
 import jane.core.StorageLevelDB;
 import jane.core.TableBase;
+import jane.core.WorkStealingExecutor;
+import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.session.IoSession;
 
 public class StatusServer extends NetManager {
@@ -25,6 +29,12 @@ public class StatusServer extends NetManager {
 			"Connection: keep-alive",
 			"Cache-Control: no-cache",
 			"Pragma: no-cache");
+	private static final Octets extraHeadText = HttpCodec.createExtraHead(
+			"Server: jane",
+			"Content-Type: text/plain; version=0.0.4; charset=utf-8",
+			"Connection: keep-alive",
+			"Cache-Control: no-cache",
+			"Pragma: no-cache");
 
 	public StatusServer() {
 		setCodecFactory(HttpCodec::new);
@@ -110,16 +120,32 @@ public class StatusServer extends NetManager {
 
 		if (DBManager.instanceCreated()) {
 			DBManager dbMgr = DBManager.instance();
-			ThreadPoolExecutor tpe = dbMgr.getProcThreads();
+			WorkStealingExecutor tpe = dbMgr.getProcExecutor();
 			list.add(new SimpleEntry<String, Object>("jane.ProcSessionCount", formatter.format(dbMgr.getSessionCount())));
 			list.add(new SimpleEntry<String, Object>("jane.ProcWaitingCount", formatter.format(dbMgr.getProcQueuedCount())));
-			list.add(new SimpleEntry<String, Object>("jane.ProcQueueCount", formatter.format(tpe.getQueue().size())));
-			list.add(new SimpleEntry<String, Object>("jane.ProcThreadCount", tpe.getActiveCount() + "/" + tpe.getPoolSize() + "/" + tpe.getLargestPoolSize()));
+			list.add(new SimpleEntry<String, Object>("jane.ProcQueueCount", formatter.format(tpe.getQueueSize())));
+			list.add(new SimpleEntry<String, Object>("jane.ProcThreadCount", tpe.getActiveCount() + "/" + tpe.getPoolSize()));
 			list.add(new SimpleEntry<String, Object>("jane.ProcCompletedCount", formatter.format(tpe.getCompletedTaskCount())));
+			list.add(new SimpleEntry<String, Object>("jane.ProcRejectCount", formatter.format(dbMgr.getProcRejectCount())));
+			long absentCount = 0;
+			for (TableBase<?> table : dbMgr.getTables())
+				absentCount += table.getReadAbsentCount();
+			list.add(new SimpleEntry<String, Object>("jane.ReadAbsentCount", formatter.format(absentCount)));
 		}
 		list.add(new SimpleEntry<String, Object>("jane.CacheRefRemoveCount", formatter.format(CacheRef.getRefRemoveCount())));
 		list.add(new SimpleEntry<String, Object>("jane.ProcInterruptCount", formatter.format(ProcThread.getInterruptCount())));
+		list.add(new SimpleEntry<String, Object>("jane.ProcDeadlockCount", formatter.format(ProcThread.getDeadlockCount())));
+		list.add(new SimpleEntry<String, Object>("jane.ProcLateDropCount", formatter.format(Procedure.getLateDropCount())));
+		list.add(new SimpleEntry<String, Object>("jane.LockCollisionWait",
+				formatter.format(Procedure.getLockCollisionCount()) + "/" + formatter.format(Procedure.getLockWaitCount())));
 		list.add(new SimpleEntry<String, Object>("jane.AskWaitingCount", formatter.format(NetManager.getAskCount())));
+		if (IoBuffer.getAllocator() instanceof PooledIoBufferAllocator) {
+			list.add(new SimpleEntry<String, Object>("jane.IoBufferPoolHitMiss",
+					formatter.format(PooledIoBufferAllocator.getHitCount()) + "/" + formatter.format(PooledIoBufferAllocator.getMissCount())));
+			list.add(new SimpleEntry<String, Object>("jane.IoBufferPoolFreeDrop",
+					formatter.format(PooledIoBufferAllocator.getFreeCount()) + "/" + formatter.format(PooledIoBufferAllocator.getDropCount())));
+			list.add(new SimpleEntry<String, Object>("jane.IoBufferOutstandingBytes", formatter.format(PooledIoBufferAllocator.getOutstandingBytes())));
+		}
 
 		return list;
 	}
@@ -154,6 +180,36 @@ public class StatusServer extends NetManager {
 		sb.append("</table>\n");
 	}
 
+	private static void appendHistogram(StringBuilder sb, Histogram h) {
+		sb.append(String.format("<td align=right>%.3f<td align=right>%.3f<td align=right>%.3f",
+				h.getMean() / 1e6, h.getPercentile(0.99) / 1e6, h.getMax() / 1e6));
+	}
+
+	public static void genProcStat(StringBuilder sb) {
+		sb.append("<table border=1 style=border-collapse:collapse><tr bgcolor=silver><td rowspan=2><b>Procedure</b>" +
+				"<td rowspan=2><b>Count</b><td rowspan=2><b>Redo</b><td rowspan=2><b>Undo</b><td rowspan=2><b>Exception</b>" +
+				"<td rowspan=2><b>Interrupt</b><td rowspan=2><b>Records</b><td colspan=3><b>QueueTime(ms)</b>" +
+				"<td colspan=3><b>LockWait(ms)</b><td colspan=3><b>RunTime(ms)</b><td colspan=3><b>CommitTime(ms)</b>\n<tr bgcolor=silver>");
+		for (int i = 0; i < 4; ++i)
+			sb.append("<td><b>avg</b><td><b>p99</b><td><b>max</b>");
+		sb.append('\n');
+		for (ProcStat stat : ProcStat.getAll()) {
+			sb.append("<tr><td bgcolor=silver>").append(stat.getName());
+			sb.append("<td align=right>").append(stat.getCount());
+			sb.append("<td align=right>").append(stat.getRedoCount());
+			sb.append("<td align=right>").append(stat.getUndoCount());
+			sb.append("<td align=right>").append(stat.getExceptionCount());
+			sb.append("<td align=right>").append(stat.getInterruptCount());
+			sb.append("<td align=right>").append(stat.getRecordCount());
+			appendHistogram(sb, stat.getQueueTime());
+			appendHistogram(sb, stat.getLockTime());
+			appendHistogram(sb, stat.getRunTime());
+			appendHistogram(sb, stat.getCommitTime());
+			sb.append('\n');
+		}
+		sb.append("</table>\n");
+	}
+
 	public static void genLevelDBInfo(StringBuilder sb) {
 		final StorageLevelDB sto;
 		if (DBManager.instanceCreated())
@@ -171,13 +227,23 @@ public class StatusServer extends NetManager {
 
 	@Override
 	public void messageReceived(IoSession session, Object message) {
-		if (HttpCodec.getHeadPath((OctetsStream)message).endsWith("/favicon.ico"))
+		String path = HttpCodec.getHeadPath((OctetsStream)message);
+		if (path.endsWith("/favicon.ico"))
 			HttpCodec.sendHead(session, "404 Not Found", 0, extraHead);
-		else {
+		else if (path.endsWith("/metrics")) {
+			StringBuilder sb = new StringBuilder(4000);
+			ProcStat.genPrometheus(sb);
+			if (IoBuffer.getAllocator() instanceof PooledIoBufferAllocator)
+				PooledIoBufferAllocator.genPrometheus(sb);
+			Octets data = Octets.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+			HttpCodec.sendHead(session, null, 0, extraHeadText, data);
+		} else {
 			StringBuilder sb = new StringBuilder(4000);
 			sb.append("<html><head><meta http-equiv=\"content-type\" content=\"text/html;charset=utf-8\"/><title>Jane Status</title></head><body>\n");
 			genStatus(sb);
 			sb.append("<p>\n");
+			genProcStat(sb);
+			sb.append("<p>\n");
 			genLevelDBInfo(sb);
 			sb.append("</body></html>\n");
 			Octets data = Octets.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
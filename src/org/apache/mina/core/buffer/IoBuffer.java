@@ -217,6 +217,26 @@ public abstract class IoBuffer implements Comparable<IoBuffer>, WriteRequest {
 	 */
 	public abstract void free();
 
+	/**
+	 * @return <tt>true</tt> if this buffer is lent by its owner (such as the shared read buffer of a processor)
+	 * and is only valid until the current event returns.
+	 * The filters and handlers which need to keep the data after the event must keep a {@link #copyRemaining()} instead.
+	 */
+	public boolean isTransient() {
+		return false;
+	}
+
+	/**
+	 * @return a new allocated buffer filled with the remaining bytes of this buffer and flipped for reading.
+	 * The position of this buffer is not changed.
+	 */
+	public final IoBuffer copyRemaining() {
+		ByteBuffer bb = buf();
+		IoBuffer copy = allocate(bb.remaining(), bb.isDirect());
+		copy.buf().put(bb.duplicate());
+		return copy.flip();
+	}
+
 	/**
 	 * @return <tt>true</tt> if this is a direct buffer
 	 * @see ByteBuffer#isDirect()
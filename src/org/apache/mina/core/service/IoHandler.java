@@ -76,4 +76,17 @@ public interface IoHandler {
 	 * @throws Exception If we get an exception while processing the caught exception
 	 */
 	void exceptionCaught(IoSession session, Throwable cause) throws Exception;
+
+	/**
+	 * Invoked when the scheduled write bytes of a session exceed the high watermark or drop to the low watermark.
+	 * It is always invoked from the I/O processor thread, in the order of the changes.
+	 *
+	 * @param session  The session which writability is changed
+	 * @param writable <tt>false</tt> if the scheduled write bytes exceed the high watermark
+	 * @throws Exception If we get an exception while processing the event
+	 * @see org.apache.mina.transport.socket.AbstractSocketSessionConfig#setWriteWaterMarks(long, long)
+	 */
+	@SuppressWarnings("unused")
+	default void writabilityChanged(IoSession session, boolean writable) throws Exception {
+	}
 }
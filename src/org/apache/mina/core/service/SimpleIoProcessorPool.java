@@ -21,6 +21,7 @@ package org.apache.mina.core.service;
 import java.util.Arrays;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.mina.core.session.IoSession;
 import org.apache.mina.core.write.WriteRequest;
@@ -84,10 +85,21 @@ public final class SimpleIoProcessorPool implements IoProcessor<NioSession> {
 	 * @param size The number of IoProcessor in the pool
 	 */
 	public SimpleIoProcessorPool(int size) {
+		this(size, null, false);
+	}
+
+	/**
+	 * Creates a new instance of SimpleIoProcessorPool with a defined number of IoProcessors in the pool
+	 *
+	 * @param size          The number of IoProcessor in the pool
+	 * @param threadFactory The factory to create the threads of IoProcessors, null for the default factory
+	 * @param eventLoop     Whether the IoProcessors are in event loop mode, see {@link NioProcessor#NioProcessor(java.util.concurrent.Executor, boolean)}
+	 */
+	public SimpleIoProcessorPool(int size, ThreadFactory threadFactory, boolean eventLoop) {
 		if (size <= 0)
 			throw new IllegalArgumentException("size: " + size + " (expected: positive integer)");
 
-		executor = Executors.newFixedThreadPool(size,
+		executor = Executors.newFixedThreadPool(size, threadFactory != null ? threadFactory :
 				r -> new Thread(r, NioProcessor.class.getSimpleName() + '-' + idGenerator.incrementAndGet()));
 
 		pool = new NioProcessor[size];
@@ -95,7 +107,7 @@ public final class SimpleIoProcessorPool implements IoProcessor<NioSession> {
 		boolean success = false;
 		try {
 			for (int i = 0; i < pool.length; i++)
-				pool[i] = new NioProcessor(executor);
+				pool[i] = new NioProcessor(executor, eventLoop);
 			success = true;
 		} catch (Exception e) {
 			throw new RuntimeException(e);
@@ -105,6 +117,16 @@ public final class SimpleIoProcessorPool implements IoProcessor<NioSession> {
 		}
 	}
 
+	/** @return the number of IoProcessors in the pool */
+	public int getProcessorCount() {
+		return pool.length;
+	}
+
+	/** @return the IoProcessor at the index of the pool */
+	public NioProcessor getProcessor(int index) {
+		return pool[index];
+	}
+
 	/**
 	 * Find the processor associated to a session.
 	 * If it hasn't be stored into the session's attributes, pick a new processor and stores it.
@@ -141,6 +141,15 @@ public interface IoSession {
 	 */
 	WriteRequestQueue getWriteRequestQueue();
 
+	/** @return the bytes of the messages scheduled for writing but not written yet. */
+	long getScheduledWriteBytes();
+
+	/**
+	 * @return <tt>false</tt> if the scheduled write bytes exceeded the high watermark and haven't dropped to the low watermark.
+	 * @see AbstractSocketSessionConfig#setWriteWaterMarks(long, long)
+	 */
+	boolean isWritable();
+
 	/**
 	 * Writes the specified <code>message</code> to remote peer. This operation is asynchronous.
 	 * You can wait for the returned {@link WriteFuture} if you want to wait for the message actually written.
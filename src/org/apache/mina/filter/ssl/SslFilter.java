@@ -399,7 +399,8 @@ public final class SslFilter implements IoFilter {
 			if (!isSslStarted(session) && sslHandler.isInboundDone()) {
 				// The SSL session must be established first before we can push data to the application.
 				// Store the incoming data into a queue for a later processing
-				sslHandler.scheduleMessageReceived(nextFilter, message);
+				sslHandler.scheduleMessageReceived(nextFilter, message instanceof IoBuffer && ((IoBuffer)message).isTransient() ?
+						((IoBuffer)message).copyRemaining() : message);
 			} else {
 				IoBuffer buf = (IoBuffer)message;
 				boolean bufUsed = false;
@@ -436,7 +437,7 @@ public final class SslFilter implements IoFilter {
 
 						if (buf.hasRemaining()) {
 							bufUsed = true;
-							sslHandler.scheduleMessageReceived(nextFilter, buf); // forward the data received after closure
+							sslHandler.scheduleMessageReceived(nextFilter, buf.isTransient() ? buf.copyRemaining() : buf); // forward the data received after closure
 						}
 					}
 				} catch (SSLException se) {
@@ -31,6 +31,12 @@ public abstract class AbstractSocketSessionConfig {
 	/** The maximum size of the buffer used to read incoming data */
 	private int maxReadBufferSize = 65536;
 
+	/** The scheduled write bytes above which the session becomes unwritable (0 means disabled) */
+	private long writeHighWaterMark;
+
+	/** The scheduled write bytes below which the unwritable session becomes writable again */
+	private long writeLowWaterMark;
+
 	/**
 	 * @return the size of the read buffer that I/O processor allocates per each read.
 	 * 		It's unusual to adjust this property because it's often adjusted automatically by the I/O processor.
@@ -95,6 +101,38 @@ public abstract class AbstractSocketSessionConfig {
 		this.maxReadBufferSize = maxReadBufferSize;
 	}
 
+	/**
+	 * @return the scheduled write bytes above which the session becomes unwritable. 0 means disabled
+	 */
+	public long getWriteHighWaterMark() {
+		return writeHighWaterMark;
+	}
+
+	/**
+	 * @return the scheduled write bytes below which the unwritable session becomes writable again
+	 */
+	public long getWriteLowWaterMark() {
+		return writeLowWaterMark;
+	}
+
+	/**
+	 * Sets the watermarks of the scheduled write bytes.
+	 * The session becomes unwritable when its scheduled write bytes exceed the high watermark,
+	 * and becomes writable again when they drop to the low watermark.
+	 * The changes are notified by {@link org.apache.mina.core.service.IoHandler#writabilityChanged}.
+	 *
+	 * @param highWaterMark 0 means disabled
+	 * @param lowWaterMark  must be less than the high watermark if enabled
+	 */
+	public void setWriteWaterMarks(long highWaterMark, long lowWaterMark) {
+		if (highWaterMark < 0)
+			throw new IllegalArgumentException("writeHighWaterMark: " + highWaterMark + " (expected: 0+)");
+		if (highWaterMark > 0 && (lowWaterMark < 0 || lowWaterMark >= highWaterMark))
+			throw new IllegalArgumentException("writeLowWaterMark: " + lowWaterMark + " (expected: [0," + highWaterMark + "))");
+		writeHighWaterMark = highWaterMark;
+		writeLowWaterMark = Math.max(lowWaterMark, 0);
+	}
+
 	/**
 	 * Sets all configuration properties retrieved from the specified <tt>config</tt>.
 	 *
@@ -107,6 +145,7 @@ public abstract class AbstractSocketSessionConfig {
 		setReadBufferSize(config.getReadBufferSize());
 		setMinReadBufferSize(config.getMinReadBufferSize());
 		setMaxReadBufferSize(config.getMaxReadBufferSize());
+		setWriteWaterMarks(config.getWriteHighWaterMark(), config.getWriteLowWaterMark());
 
 		// Minimize unnecessary system calls by checking all 'propertyChanged' properties.
 		if (config.isReceiveBufferSizeChanged())
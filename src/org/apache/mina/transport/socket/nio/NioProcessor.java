@@ -19,12 +19,15 @@
 package org.apache.mina.transport.socket.nio;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
+import java.util.Arrays;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
@@ -41,15 +44,26 @@ import org.apache.mina.util.ExceptionMonitor;
 /**
  * A processor implements of {@link IoProcessor} for incoming and outgoing data got and written on a TCP socket.
  * This class is in charge of active polling a set of {@link IoSession} and trigger events when some I/O operation is possible.
+ * <p>
+ * In event loop mode, the processor also runs the tasks {@link #execute executed} on it in its own thread,
+ * and the writes made in the processor thread are flushed together at the end of each loop iteration.
  */
-public final class NioProcessor implements IoProcessor<NioSession> {
+public final class NioProcessor implements IoProcessor<NioSession>, Executor {
+	private static int defaultMaxGatherCount = 64;
+	private static boolean defaultSharedReadBuffer = true;
+
 	private final Executor executor;
+	private final boolean eventLoop;
+	private final int maxGatherCount;
+	private final boolean sharedReadBuffer;
+	private SharedReadBuffer readBuffer; // only accessed in processor thread
 	private Selector selector;
 	private final AtomicReference<Processor> processorRef = new AtomicReference<>();
 
 	private final Queue<NioSession> creatingSessions = new ConcurrentLinkedQueue<>();
 	private final Queue<NioSession> flushingSessions = new ConcurrentLinkedQueue<>();
 	private final Queue<NioSession> removingSessions = new ConcurrentLinkedQueue<>();
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
 
 	private final DefaultIoFuture disposalFuture = new DefaultIoFuture(null);
 	private final AtomicBoolean wakeupCalled = new AtomicBoolean();
@@ -58,12 +72,107 @@ public final class NioProcessor implements IoProcessor<NioSession> {
 	private volatile boolean disposing;
 
 	public NioProcessor(Executor executor) throws IOException {
+		this(executor, false);
+	}
+
+	/**
+	 * @param eventLoop true for the event loop mode: run the executed tasks in processor thread
+	 *                  and defer the flushing of writes in processor thread to the end of the loop iteration
+	 */
+	public NioProcessor(Executor executor, boolean eventLoop) throws IOException {
 		if (executor == null)
 			throw new IllegalArgumentException("executor");
 		this.executor = executor;
+		this.eventLoop = eventLoop;
+		maxGatherCount = defaultMaxGatherCount;
+		sharedReadBuffer = defaultSharedReadBuffer;
 		selector = Selector.open();
 	}
 
+	public static int getDefaultMaxGatherCount() {
+		return defaultMaxGatherCount;
+	}
+
+	/**
+	 * Set the max count of queued {@link IoBuffer}s gathered into one write call, for the processors created later.
+	 * 1 means writing the buffers one by one.
+	 */
+	public static void setDefaultMaxGatherCount(int count) {
+		defaultMaxGatherCount = Math.max(count, 1);
+	}
+
+	public static boolean isDefaultSharedReadBuffer() {
+		return defaultSharedReadBuffer;
+	}
+
+	/**
+	 * Set whether the sessions of a processor created later read into one shared buffer instead of a new allocated buffer for each read.
+	 * The shared buffer is {@link IoBuffer#isTransient() transient}, so the filters and handlers can't keep it after the received event.
+	 */
+	public static void setDefaultSharedReadBuffer(boolean shared) {
+		defaultSharedReadBuffer = shared;
+	}
+
+	/** The read buffer shared by all sessions of a processor, lent to the filter chain for each read event */
+	private static final class SharedReadBuffer extends IoBuffer {
+		private final ByteBuffer buf;
+
+		SharedReadBuffer(ByteBuffer bb) {
+			buf = bb;
+		}
+
+		@Override
+		public ByteBuffer buf() {
+			return buf;
+		}
+
+		@Override
+		public IoBuffer duplicate() {
+			return new SharedReadBuffer(buf.duplicate());
+		}
+
+		@Override
+		public void free() {
+		}
+
+		@Override
+		public boolean isTransient() {
+			return true;
+		}
+	}
+
+	/**
+	 * @return the shared read buffer cleared and limited to the size, or null if the shared read buffer is disabled.
+	 * Must be called in processor thread.
+	 */
+	IoBuffer getReadBuffer(int size) {
+		if (!sharedReadBuffer)
+			return null;
+		SharedReadBuffer buf = readBuffer;
+		if (buf == null || buf.capacity() < size)
+			readBuffer = buf = new SharedReadBuffer(IoBuffer.isUseDirectBuffer() ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size));
+		return buf.clear().limit(size);
+	}
+
+	public boolean isEventLoop() {
+		return eventLoop;
+	}
+
+	/**
+	 * Run the task in processor thread in the current or next loop iteration, only for the event loop mode.
+	 * No wakeup is needed if called in processor thread.
+	 */
+	@Override
+	public void execute(Runnable task) {
+		if (!eventLoop)
+			throw new RejectedExecutionException("not in event loop mode");
+		if (disposing)
+			throw new RejectedExecutionException("disposed processor");
+		tasks.add(task);
+		if (!isInProcessorThread())
+			startupProcessor();
+	}
+
 	public void wakeup() {
 		if (wakeupCalled.compareAndSet(false, true))
 			selector.wakeup();
@@ -94,6 +203,7 @@ public final class NioProcessor implements IoProcessor<NioSession> {
 
 	@Override
 	public void write(NioSession session, WriteRequest writeRequest) {
+		session.addScheduledWriteBytes(NioSession.getWriteRequestBytes(writeRequest));
 		session.getWriteRequestQueue().offer(writeRequest);
 		flush(session);
 	}
@@ -104,6 +214,11 @@ public final class NioProcessor implements IoProcessor<NioSession> {
 
 	@Override
 	public void flush(NioSession session) {
+		if (eventLoop && isInProcessorThread()) { // flushed at the end of the loop iteration
+			if (session.setScheduledForFlush())
+				flushingSessions.add(session);
+			return;
+		}
 		if (isInProcessorThread() && !session.isInterestedInWrite()) {
 			Processor processor = processorRef.get();
 			if (processor != null) {
@@ -148,6 +263,10 @@ public final class NioProcessor implements IoProcessor<NioSession> {
 	}
 
 	private final class Processor implements Runnable, Consumer<SelectionKey> {
+		private final WriteRequest[] gatherReqs = new WriteRequest[maxGatherCount];
+		private final ByteBuffer[] gatherBufs = new ByteBuffer[maxGatherCount];
+		private boolean flushing;
+
 		@Override
 		public void run() {
 			processorThread = Thread.currentThread();
@@ -169,18 +288,25 @@ public final class NioProcessor implements IoProcessor<NioSession> {
 				}
 				try {
 					createSessions();
-					if (selector.keys().isEmpty()) {
+					if (selector.keys().isEmpty() && tasks.isEmpty()) {
 						processorRef.set(null);
-						if (creatingSessions.isEmpty() || !processorRef.compareAndSet(null, this))
+						if (creatingSessions.isEmpty() && tasks.isEmpty() || !processorRef.compareAndSet(null, this))
 							return;
 					}
 
-					int selected = selector.select(this);
-					if (wakeupCalled.compareAndSet(true, false) || selected > 0)
+					if (eventLoop && !(tasks.isEmpty() && flushingSessions.isEmpty())) {
+						selector.selectNow(this);
 						nbTries = 10;
-					else if ((nbTries = fixSelector(nbTries)) < 0)
-						return;
+					} else {
+						int selected = selector.select(this);
+						if (wakeupCalled.compareAndSet(true, false) || selected > 0)
+							nbTries = 10;
+						else if ((nbTries = fixSelector(nbTries)) < 0)
+							return;
+					}
 
+					if (eventLoop)
+						runTasks();
 					flushSessions();
 					removeSessions();
 				} catch (Exception e) {
@@ -226,6 +352,20 @@ public final class NioProcessor implements IoProcessor<NioSession> {
 			}
 		}
 
+		/** Run the tasks queued before, the tasks added by them run in the next loop iteration */
+		private void runTasks() {
+			for (int n = tasks.size(); n > 0; n--) {
+				Runnable task = tasks.poll();
+				if (task == null)
+					break;
+				try {
+					task.run();
+				} catch (Throwable e) {
+					ExceptionMonitor.getInstance().exceptionCaught(e);
+				}
+			}
+		}
+
 		private void scheduleFlush(NioSession session) {
 			if (session.setScheduledForFlush())
 				flushingSessions.add(session);
@@ -257,36 +397,41 @@ public final class NioProcessor implements IoProcessor<NioSession> {
 		void flushNow(NioSession session) {
 			if (session.isClosing())
 				return;
+			if (flushing) { // reentered from the written callback, the gathering arrays are in use
+				scheduleFlush(session);
+				return;
+			}
+			flushing = true;
 			try {
 				WriteRequestQueue writeQueue = session.getWriteRequestQueue();
-				for (WriteRequest req; (req = writeQueue.peek()) != null; writeQueue.poll()) {
-					Object message = req.writeRequestMessage();
-					if (message instanceof IoBuffer) {
-						IoBuffer buf = (IoBuffer)message;
-						if (buf.hasRemaining()) {
-							session.getChannel().write(buf.buf());
-							if (buf.hasRemaining()) {
-								session.setInterestedInWrite(true);
-								return;
-							}
-						}
-						req.writeRequestFuture().setWritten();
-						buf.free();
-					} else if (message instanceof FileRegion) {
+				for (; ; ) {
+					WriteRequest req = writeQueue.peek();
+					Object message = (req != null ? req.writeRequestMessage() : null);
+					if (message instanceof IoBuffer || session.pendingWriteCount > 0) {
+						if (!writeBuffers(session, writeQueue))
+							return;
+					} else if (req == null)
+						break;
+					else if (message instanceof FileRegion) {
 						FileRegion region = (FileRegion)message;
 						long len = region.getRemainingBytes();
 						if (len > 0) {
-							region.update(region.getFileChannel().transferTo(region.getPosition(), len, session.getChannel()));
+							long written = region.getFileChannel().transferTo(region.getPosition(), len, session.getChannel());
+							region.update(written);
+							session.addScheduledWriteBytes(-written);
 							if (region.getRemainingBytes() > 0) {
 								session.setInterestedInWrite(true);
 								return;
 							}
 						}
+						writeQueue.poll();
 						req.writeRequestFuture().setWritten();
 					} else if (req == NioSession.CLOSE_REQUEST) {
+						writeQueue.poll();
 						session.closeNow();
 						break;
 					} else if (req == NioSession.SHUTDOWN_REQUEST) {
+						writeQueue.poll();
 						session.getChannel().shutdownOutput();
 						break;
 					} else
@@ -296,7 +441,79 @@ public final class NioProcessor implements IoProcessor<NioSession> {
 			} catch (Exception e) { // TCP RST
 				session.closeNow();
 				session.removeNow(e);
+			} finally {
+				if (!session.isClosing())
+					session.notifyWritability(); // the reentered flushes are scheduled since flushing is still true
+				flushing = false;
+			}
+		}
+
+		/**
+		 * Gather the pending and the consecutive queued {@link IoBuffer}s (at most maxGatherCount) and write them in one call.
+		 * The fully written requests are completed and their buffers are freed,
+		 * the partially written ones are kept in the session's pending writes before the write queue.
+		 *
+		 * @return false if the socket buffer is full
+		 */
+		private boolean writeBuffers(NioSession session, WriteRequestQueue writeQueue) throws IOException {
+			WriteRequest[] reqs = gatherReqs;
+			ByteBuffer[] bbs = gatherBufs;
+			int n = session.pendingWriteCount;
+			if (n > 0) {
+				WriteRequest[] pendingWrites = session.pendingWrites;
+				for (int i = 0; i < n; ++i) {
+					reqs[i] = pendingWrites[i];
+					pendingWrites[i] = null;
+					bbs[i] = ((IoBuffer)reqs[i].writeRequestMessage()).buf();
+				}
+				session.pendingWriteCount = 0;
+			}
+			for (WriteRequest req; n < reqs.length && (req = writeQueue.peek()) != null; ) {
+				Object message = req.writeRequestMessage();
+				if (!(message instanceof IoBuffer))
+					break;
+				writeQueue.poll();
+				IoBuffer buf = (IoBuffer)message;
+				if (buf.hasRemaining()) {
+					reqs[n] = req;
+					bbs[n++] = buf.buf();
+				} else {
+					req.writeRequestFuture().setWritten();
+					buf.free();
+				}
+			}
+			if (n == 0)
+				return true;
+
+			int i = 0;
+			try {
+				SocketChannel channel = session.getChannel();
+				session.addScheduledWriteBytes(-(n == 1 ? channel.write(bbs[0]) : channel.write(bbs, 0, n)));
+				while (i < n && !bbs[i].hasRemaining())
+					i++;
+			} finally { // keep the unwritten requests for next flush or for failing them when removing session
+				int left = n - i;
+				if (left > 0) {
+					WriteRequest[] pendingWrites = session.pendingWrites;
+					if (pendingWrites == null)
+						session.pendingWrites = pendingWrites = new WriteRequest[reqs.length];
+					System.arraycopy(reqs, i, pendingWrites, 0, left);
+					session.pendingWriteCount = left;
+					Arrays.fill(reqs, i, n, null);
+				}
+				Arrays.fill(bbs, 0, n, null);
+			}
+			for (int j = 0; j < i; ++j) {
+				WriteRequest req = reqs[j];
+				reqs[j] = null;
+				req.writeRequestFuture().setWritten();
+				((IoBuffer)req.writeRequestMessage()).free();
+			}
+			if (i < n) {
+				session.setInterestedInWrite(true);
+				return false;
 			}
+			return true;
 		}
 
 		private int fixSelector(int nbTries) throws IOException {
@@ -30,8 +30,10 @@ import java.nio.channels.SocketChannel;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 import org.apache.mina.core.buffer.IoBuffer;
 import org.apache.mina.core.file.DefaultFileRegion;
+import org.apache.mina.core.file.FileRegion;
 import org.apache.mina.core.filterchain.DefaultIoFilterChain;
 import org.apache.mina.core.filterchain.IoFilterChain;
 import org.apache.mina.core.future.CloseFuture;
@@ -62,6 +64,10 @@ public final class NioSession implements IoSession {
 
 	private static final AtomicIntegerFieldUpdater<NioSession> scheduledForFlushUpdater
 			= AtomicIntegerFieldUpdater.newUpdater(NioSession.class, "scheduledForFlush");
+	private static final AtomicLongFieldUpdater<NioSession> scheduledWriteBytesUpdater
+			= AtomicLongFieldUpdater.newUpdater(NioSession.class, "scheduledWriteBytes");
+	private static final AtomicIntegerFieldUpdater<NioSession> unwritableUpdater
+			= AtomicIntegerFieldUpdater.newUpdater(NioSession.class, "unwritable");
 
 	/** An id generator guaranteed to generate unique IDs for the session */
 	private static final AtomicLong idGenerator = new AtomicLong();
@@ -79,10 +85,22 @@ public final class NioSession implements IoSession {
 
 	private final WriteRequestQueue writeRequestQueue;
 
+	/** The requests polled from writeRequestQueue but not fully written by the gathering write, only accessed in processor thread */
+	WriteRequest[] pendingWrites;
+	int pendingWriteCount;
+
 	private final long sessionId = idGenerator.incrementAndGet();
 
 	private volatile int scheduledForFlush;
 
+	private volatile long scheduledWriteBytes;
+
+	/** 1 if the scheduled write bytes exceeded the high watermark and haven't dropped to the low watermark */
+	private volatile int unwritable;
+
+	/** The unwritable state last notified to the handler, only accessed in processor thread */
+	private int notifiedUnwritable;
+
 	/** A future that will be set 'closed' when the connection is closed */
 	private final CloseFuture closeFuture = new DefaultCloseFuture(this);
 
@@ -221,6 +239,62 @@ public final class NioSession implements IoSession {
 		return writeRequestQueue;
 	}
 
+	@Override
+	public long getScheduledWriteBytes() {
+		return scheduledWriteBytes;
+	}
+
+	@Override
+	public boolean isWritable() {
+		return unwritable == 0;
+	}
+
+	static long getWriteRequestBytes(WriteRequest req) {
+		Object message = req.writeRequestMessage();
+		if (message instanceof IoBuffer)
+			return ((IoBuffer)message).remaining();
+		if (message instanceof FileRegion)
+			return ((FileRegion)message).getRemainingBytes();
+		return 0;
+	}
+
+	/**
+	 * Add (or subtract if negative) the scheduled write bytes, and update the writability if the watermarks are crossed.
+	 * Called when a request is scheduled (in any thread) and when the bytes are written (in processor thread).
+	 * The handler is notified later by {@link #notifyWritability()} in processor thread.
+	 */
+	void addScheduledWriteBytes(long bytes) {
+		if (bytes == 0)
+			return;
+		long n = scheduledWriteBytesUpdater.addAndGet(this, bytes);
+		AbstractSocketSessionConfig cfg = config;
+		long high = cfg.getWriteHighWaterMark();
+		if (high <= 0)
+			return;
+		if (n > high) {
+			if (unwritable == 0)
+				unwritableUpdater.compareAndSet(this, 0, 1);
+		} else if (n <= cfg.getWriteLowWaterMark() && unwritable != 0)
+			unwritableUpdater.compareAndSet(this, 1, 0);
+	}
+
+	/**
+	 * Notify the handler until the notified writability matches the current one.
+	 * Only called in processor thread (after each flush), so the events are always in order and end with the current state.
+	 * Every change of writability is followed by a flush: scheduling a write always flushes the session,
+	 * and the bytes are only subtracted while flushing.
+	 */
+	void notifyWritability() {
+		for (int u; (u = unwritable) != notifiedUnwritable; ) {
+			notifiedUnwritable = u;
+			try {
+				getHandler().writabilityChanged(this, u == 0);
+			} catch (Exception e) {
+				filterChain.fireExceptionCaught(e);
+			}
+		}
+	}
+
 	public SocketChannel getChannel() {
 		return channel;
 	}
@@ -348,17 +422,27 @@ public final class NioSession implements IoSession {
 	}
 
 	private void clearWriteRequestQueue(Exception e) {
+		int n = pendingWriteCount;
 		WriteRequest req = writeRequestQueue.poll();
-		if (req == null)
+		if (n == 0 && req == null)
 			return;
 
 		Exception ex = new WriteToClosedSessionException(e);
-		do {
-			req.writeRequestFuture().setException(ex);
-			Object message = req.writeRequestMessage();
-			if (message instanceof IoBuffer)
-				((IoBuffer)message).free();
-		} while ((req = writeRequestQueue.poll()) != null);
+		for (int i = 0; i < n; ++i) {
+			failWriteRequest(pendingWrites[i], ex);
+			pendingWrites[i] = null;
+		}
+		pendingWriteCount = 0;
+		for (; req != null; req = writeRequestQueue.poll())
+			failWriteRequest(req, ex);
+	}
+
+	private void failWriteRequest(WriteRequest req, Exception ex) {
+		scheduledWriteBytesUpdater.addAndGet(this, -getWriteRequestBytes(req)); // not notify writability for the removing session
+		req.writeRequestFuture().setException(ex);
+		Object message = req.writeRequestMessage();
+		if (message instanceof IoBuffer)
+			((IoBuffer)message).free();
 	}
 
 	private void increaseReadBufferSize() {
@@ -387,7 +471,9 @@ public final class NioSession implements IoSession {
 	void read() {
 		try {
 			int readBufferSize = config.getReadBufferSize();
-			IoBuffer buf = IoBuffer.allocate(readBufferSize);
+			IoBuffer buf = nioProcessor.getReadBuffer(readBufferSize);
+			if (buf == null)
+				buf = IoBuffer.allocate(readBufferSize);
 			int readBytes;
 			try {
 				readBytes = channel.read(buf.buf());
@@ -23,7 +23,9 @@ import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.StandardSocketOptions;
 import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
@@ -53,6 +55,10 @@ import org.apache.mina.util.ExceptionMonitor;
  * This class handle the logic behind binding, accepting and disposing the server sockets.
  * An {@link Executor} will be used for running client accepting and a {@link IoProcessor}
  * will be used for processing client I/O operations like reading, writing and closing.
+ * <p>
+ * With {@link #setAcceptorCount acceptorCount} &gt; 1 (needs SO_REUSEPORT, e.g. on Linux), each address is bound by several channels,
+ * each accepted by its own thread and selector, so the kernel balances the incoming connections among them.
+ * If the processor is a {@link SimpleIoProcessorPool}, each acceptor feeds its own subset of the pooled processors.
  */
 public final class NioSocketAcceptor extends AbstractIoService implements IoAcceptor {
 	private final Queue<AcceptorFuture> registerQueue = new ConcurrentLinkedQueue<>();
@@ -68,6 +74,11 @@ public final class NioSocketAcceptor extends AbstractIoService implements IoAcce
 
 	private boolean reuseAddress = true;
 
+	private int acceptorCount = 1;
+
+	/** The additional acceptors for SO_REUSEPORT, only accessed in the main acceptor thread */
+	private final ArrayList<SubAcceptor> subAcceptors = new ArrayList<>();
+
 	/**
 	 * You need to provide a default session configuration, a class of {@link IoProcessor}
 	 * which will be instantiated in a {@link SimpleIoProcessorPool} for better scaling in multiprocessor systems.
@@ -113,6 +124,18 @@ public final class NioSocketAcceptor extends AbstractIoService implements IoAcce
 		this.reuseAddress = reuseAddress;
 	}
 
+	public int getAcceptorCount() {
+		return acceptorCount;
+	}
+
+	/**
+	 * Set the number of channels bound on each address with SO_REUSEPORT, each accepted by its own thread.
+	 * Must be set before binding. It falls back to 1 if SO_REUSEPORT is unsupported.
+	 */
+	public void setAcceptorCount(int count) {
+		acceptorCount = Math.max(count, 1);
+	}
+
 	@Override
 	public InetSocketAddress getLocalAddress() {
 		try {
@@ -228,7 +251,108 @@ public final class NioSocketAcceptor extends AbstractIoService implements IoAcce
 		return "(nio socket acceptor: localAddresses: " + getLocalAddresses() + ", managedSessionCount: " + getManagedSessionCount() + ')';
 	}
 
+	/** Create a session for the accepted channel, and assign it to a processor in the acceptor's subset if possible */
+	private void addSession(SocketChannel newChannel, int acceptorIndex, int seq) {
+		NioSession session = new NioSession(this, newChannel, null);
+		int n = acceptorCount;
+		if (n > 1 && processor instanceof SimpleIoProcessorPool) {
+			SimpleIoProcessorPool pool = (SimpleIoProcessorPool)processor;
+			int size = pool.getProcessorCount();
+			int idx;
+			if (size > acceptorIndex) {
+				int m = (size - acceptorIndex + n - 1) / n; // processors of index % n == acceptorIndex
+				idx = acceptorIndex + ((seq & Integer.MAX_VALUE) % m) * n;
+			} else
+				idx = acceptorIndex % size;
+			session.setNioProcessor(pool.getProcessor(idx));
+		}
+		processor.add(session);
+	}
+
+	private static void acceptFailed(Exception e) {
+		ExceptionMonitor.getInstance().exceptionCaught(e);
+		try {
+			// Sleep 50 ms, so that the select does not spin like crazy doing nothing but eating CPU
+			// This is typically what will happen if we don't have any more File handle on the server
+			// Check the ulimit parameter
+			// NOTE : this is a workaround, there is no way we can handle this exception in any smarter way...
+			Thread.sleep(50);
+		} catch (InterruptedException ignored) {
+		}
+	}
+
+	/** The additional acceptor with its own selector and thread for a channel bound with SO_REUSEPORT */
+	private final class SubAcceptor implements Runnable, Consumer<SelectionKey> {
+		private final int index;
+		private final Selector sel;
+		private int seq;
+
+		SubAcceptor(int index) throws IOException {
+			this.index = index;
+			sel = Selector.open();
+			Thread t = new Thread(this, NioSocketAcceptor.class.getSimpleName() + "-Sub" + index);
+			t.start();
+		}
+
+		@Override
+		public void run() {
+			for (; ; ) {
+				try {
+					sel.select(this);
+				} catch (ClosedSelectorException e) {
+					break;
+				} catch (Exception e) {
+					ExceptionMonitor.getInstance().exceptionCaught(e);
+					if (!sel.isOpen())
+						break;
+				}
+			}
+		}
+
+		@Override
+		public void accept(SelectionKey key) {
+			try {
+				SocketChannel newChannel = ((ServerSocketChannel)key.channel()).accept();
+				if (newChannel != null)
+					addSession(newChannel, index, seq++);
+			} catch (Exception e) {
+				acceptFailed(e);
+			}
+		}
+
+		/** @return true if no channel is bound after unbinding */
+		boolean unbind(HashSet<InetSocketAddress> localAddresses) {
+			boolean empty = true;
+			for (Object obj : sel.keys().toArray()) {
+				try {
+					SelectionKey key = (SelectionKey)obj;
+					ServerSocketChannel channel = (ServerSocketChannel)key.channel();
+					//noinspection SuspiciousMethodCalls
+					if (localAddresses == null || localAddresses.contains(channel.getLocalAddress())) {
+						key.cancel();
+						channel.close();
+					} else if (key.isValid())
+						empty = false;
+				} catch (Exception e) {
+					ExceptionMonitor.getInstance().exceptionCaught(e);
+				}
+			}
+			return empty;
+		}
+
+		void close() {
+			unbind(null);
+			try {
+				sel.close();
+			} catch (Exception e) {
+				ExceptionMonitor.getInstance().exceptionCaught(e);
+			}
+		}
+	}
+
 	private final class Acceptor implements Runnable, Consumer<SelectionKey> {
+		private int seq;
+
 		@Override
 		public void run() {
 			for (; ; ) {
@@ -260,27 +384,39 @@ public final class NioSocketAcceptor extends AbstractIoService implements IoAcce
 			try {
 				SocketChannel newChannel = ((ServerSocketChannel)key.channel()).accept();
 				if (newChannel != null)
-					processor.add(new NioSession(NioSocketAcceptor.this, newChannel, null));
+					addSession(newChannel, 0, seq++);
 			} catch (Exception e) {
-				ExceptionMonitor.getInstance().exceptionCaught(e);
-				try {
-					// Sleep 50 ms, so that the select does not spin like crazy doing nothing but eating CPU
-					// This is typically what will happen if we don't have any more File handle on the server
-					// Check the ulimit parameter
-					// NOTE : this is a workaround, there is no way we can handle this exception in any smarter way...
-					Thread.sleep(50);
-				} catch (InterruptedException ignored) {
-				}
+				acceptFailed(e);
 			}
 		}
 
-		private ServerSocketChannel open(InetSocketAddress localAddress) throws IOException {
+		/** Open all the channels bound on the address, the first one is registered on the main selector */
+		private void open(InetSocketAddress localAddress, ArrayList<ServerSocketChannel> channels) throws IOException {
 			if (localAddress == null)
-				return null;
+				return;
+			int n = acceptorCount;
+			if (n > 1) {
+				try (ServerSocketChannel channel = ServerSocketChannel.open()) {
+					if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+						ExceptionMonitor.getInstance().warn("SO_REUSEPORT is unsupported, acceptorCount falls back to 1");
+						acceptorCount = n = 1;
+					}
+				}
+			}
+			for (int i = 0; i < n; i++) {
+				if (i > 0 && subAcceptors.size() < i)
+					subAcceptors.add(new SubAcceptor(i));
+				channels.add(open(localAddress, n > 1, i > 0 ? subAcceptors.get(i - 1).sel : selector));
+			}
+		}
+
+		private ServerSocketChannel open(InetSocketAddress localAddress, boolean reusePort, Selector sel) throws IOException {
 			ServerSocketChannel channel = ServerSocketChannel.open();
 			try {
 				channel.configureBlocking(false);
 				channel.setOption(StandardSocketOptions.SO_REUSEADDR, reuseAddress);
+				if (reusePort)
+					channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
 				DefaultSocketSessionConfig config = getSessionConfig();
 				if (config.getSendBufferSize() >= 0 && channel.supportedOptions().contains(StandardSocketOptions.SO_SNDBUF))
 					channel.setOption(StandardSocketOptions.SO_SNDBUF, config.getSendBufferSize());
@@ -292,7 +428,9 @@ public final class NioSocketAcceptor extends AbstractIoService implements IoAcce
 					close(channel);
 					throw new IOException("error while binding on " + localAddress, ioe);
 				}
-				channel.register(selector, SelectionKey.OP_ACCEPT);
+				channel.register(sel, SelectionKey.OP_ACCEPT);
+				if (sel != selector)
+					sel.wakeup(); // the blocking select of the sub acceptor doesn't see the new registration until woken up
 				return channel;
 			} catch (Throwable e) {
 				close(channel);
@@ -308,18 +446,25 @@ public final class NioSocketAcceptor extends AbstractIoService implements IoAcce
 
 				HashSet<InetSocketAddress> localAddresses = future.localAddresses;
 				if (future.doBind) {
-					ServerSocketChannel[] channels = new ServerSocketChannel[localAddresses.size()];
+					ArrayList<ServerSocketChannel> channels = new ArrayList<>(localAddresses.size());
 					try {
-						int i = 0;
 						for (InetSocketAddress localAddress : localAddresses)
-							channels[i++] = open(localAddress);
+							open(localAddress, channels);
 					} catch (Exception e) {
 						for (ServerSocketChannel channel : channels)
-							close(channel);
+							closeChannel(channel);
 						future.setValue(e);
 						continue;
 					}
 				} else {
+					boolean empty = true;
+					for (SubAcceptor subAcceptor : subAcceptors)
+						empty &= subAcceptor.unbind(localAddresses);
+					if (empty) { // all addresses are unbound, stop the additional acceptor threads
+						for (SubAcceptor subAcceptor : subAcceptors)
+							subAcceptor.close();
+						subAcceptors.clear();
+					}
 					try {
 						for (Object obj : selector.keys().toArray()) {
 							try {
@@ -359,6 +504,14 @@ public final class NioSocketAcceptor extends AbstractIoService implements IoAcce
 		}
 	}
 
+	private static void closeChannel(SelectableChannel channel) {
+		try {
+			channel.close(); // also cancels the key in any selector
+		} catch (Exception e) {
+			ExceptionMonitor.getInstance().exceptionCaught(e);
+		}
+	}
+
 	private static final class AcceptorFuture extends DefaultIoFuture {
 		final HashSet<InetSocketAddress> localAddresses;
 		final boolean doBind;